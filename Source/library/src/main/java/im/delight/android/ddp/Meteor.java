@@ -18,6 +18,7 @@ package im.delight.android.ddp;
 
 import im.delight.android.ddp.db.DataStore;
 import im.delight.android.ddp.db.Database;
+import im.delight.android.ddp.db.SubscriptionAwareDataStore;
 import android.content.SharedPreferences;
 import android.content.Context;
 import com.neovisionaries.ws.client.WebSocket;
@@ -39,6 +40,9 @@ import org.codehaus.jackson.JsonProcessingException;
 import org.codehaus.jackson.JsonNode;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.LinkedList;
+import java.util.Collections;
+import org.codehaus.jackson.node.TextNode;
 
 /** Client that connects to Meteor servers implementing the DDP protocol */
 public class Meteor {
@@ -56,6 +60,10 @@ public class Meteor {
 	private final WebSocketListener mWebSocketListener;
 	/** Map that tracks all pending Listener instances */
 	private final Map<String, Listener> mListeners;
+	/** Map that tracks all active subscriptions by their canonical key (i.e. name and parameters) */
+	private final Map<String, Subscription> mSubscriptionsByKey;
+	/** Map that tracks all active subscriptions by their ID */
+	private final Map<String, Subscription> mSubscriptionsById;
 	/** Messages that couldn't be dispatched yet and thus had to be queued */
 	private final Queue<String> mQueuedMessages;
 	private final Context mContext;
@@ -159,6 +167,9 @@ public class Meteor {
 				mConnected = false;
 
 				if (lostConnection) {
+					// the server starts a new session after re-connecting and does not know the subscriptions anymore
+					releaseSubscriptions();
+
 					mReconnectAttempts++;
 
 					if (mReconnectAttempts <= RECONNECT_ATTEMPTS_MAX) {
@@ -200,6 +211,10 @@ public class Meteor {
 		// create a map that holds the pending Listener instances
 		mListeners = new HashMap<String, Listener>();
 
+		// create the maps that hold the active subscriptions shared between all subscribers
+		mSubscriptionsByKey = new HashMap<String, Subscription>();
+		mSubscriptionsById = new HashMap<String, Subscription>();
+
 		// create a queue that holds undispatched messages waiting to be sent
 		mQueuedMessages = new ConcurrentLinkedQueue<String>();
 
@@ -284,6 +299,8 @@ public class Meteor {
 		mListeners.clear();
 		mSessionID = null;
 
+		releaseSubscriptions();
+
 		if (mWebSocket != null) {
 			try {
 				mWebSocket.disconnect();
@@ -297,6 +314,31 @@ public class Meteor {
 		}
 	}
 
+	/**
+	 * Forgets all active subscriptions so that subscribing again sends new requests to the server
+	 *
+	 * The data store is told that these subscriptions have ended
+	 */
+	private void releaseSubscriptions() {
+		final List<Subscription> subscriptions;
+
+		synchronized (mSubscriptionsById) {
+			subscriptions = new LinkedList<Subscription>(mSubscriptionsById.values());
+
+			mSubscriptionsByKey.clear();
+			mSubscriptionsById.clear();
+		}
+
+		for (Subscription subscription : subscriptions) {
+			// the initial data of this subscription will not arrive anymore
+			if (!subscription.mReady) {
+				notifySubscriptionFinished(subscription.mId);
+			}
+
+			notifySubscriptionStopped(subscription.mId);
+		}
+	}
+
 	/**
 	 * Sends a Java object (POJO) over the websocket after serializing it with the Jackson library
 	 *
@@ -623,12 +665,34 @@ public class Meteor {
 						while (elements.hasNext()) {
 							subscriptionId = elements.next().getTextValue();
 
-							final Listener listener = mListeners.get(subscriptionId);
+							final List<SubscribeListener> listeners;
+							final boolean wasPending;
+
+							synchronized (mSubscriptionsById) {
+								final Subscription subscription = mSubscriptionsById.get(subscriptionId);
+
+								wasPending = subscription != null && !subscription.mReady;
 
-							if (listener instanceof SubscribeListener) {
-								mListeners.remove(subscriptionId);
+								if (subscription != null) {
+									subscription.mReady = true;
 
-								mCallbackProxy.forSubscribeListener((SubscribeListener) listener).onSuccess();
+									listeners = new LinkedList<SubscribeListener>(subscription.mListeners);
+									subscription.mListeners.clear();
+								}
+								else {
+									listeners = null;
+								}
+							}
+
+							if (wasPending) {
+								notifySubscriptionFinished(subscriptionId);
+							}
+
+							if (listeners != null) {
+								// notify every subscriber sharing this subscription
+								for (SubscribeListener listener : listeners) {
+									mCallbackProxy.forSubscribeListener(listener).onSuccess();
+								}
 							}
 						}
 					}
@@ -643,20 +707,46 @@ public class Meteor {
 						subscriptionId = null;
 					}
 
-					final Listener listener = mListeners.get(subscriptionId);
+					final Subscription subscription;
 
-					if (listener instanceof SubscribeListener) {
-						mListeners.remove(subscriptionId);
+					// the server has stopped a subscription that is still active for at least one subscriber
+					synchronized (mSubscriptionsById) {
+						subscription = mSubscriptionsById.remove(subscriptionId);
+
+						if (subscription != null) {
+							mSubscriptionsByKey.remove(subscription.mKey);
+						}
+					}
+
+					if (subscription != null) {
+						if (!subscription.mReady) {
+							notifySubscriptionFinished(subscriptionId);
+						}
+
+						notifySubscriptionStopped(subscriptionId);
+
+						final Protocol.Error error;
 
 						if (data.has(Protocol.Field.ERROR)) {
-							final Protocol.Error error = Protocol.Error.fromJson(data.get(Protocol.Field.ERROR));
-							mCallbackProxy.forSubscribeListener((SubscribeListener) listener).onError(error.getError(), error.getReason(), error.getDetails());
+							error = Protocol.Error.fromJson(data.get(Protocol.Field.ERROR));
 						}
 						else {
-							mCallbackProxy.forSubscribeListener((SubscribeListener) listener).onError(null, null, null);
+							error = null;
+						}
+
+						for (SubscribeListener listener : subscription.mListeners) {
+							if (error != null) {
+								mCallbackProxy.forSubscribeListener(listener).onError(error.getError(), error.getReason(), error.getDetails());
+							}
+							else {
+								mCallbackProxy.forSubscribeListener(listener).onError(null, null, null);
+							}
 						}
 					}
-					else if (listener instanceof UnsubscribeListener) {
+
+					final Listener listener = mListeners.get(subscriptionId);
+
+					if (listener instanceof UnsubscribeListener) {
 						mListeners.remove(subscriptionId);
 
 						mCallbackProxy.forUnsubscribeListener((UnsubscribeListener) listener).onSuccess();
@@ -1102,25 +1192,75 @@ public class Meteor {
 	/**
 	 * Subscribes to a specific subscription from the server
 	 *
+	 * If there is already an active subscription with the same name and parameters, that subscription is shared
+	 *
 	 * @param subscriptionName the name of the subscription
 	 * @param params the subscription parameters
 	 * @param listener the listener to call on success/error
 	 * @return the generated subscription ID (must be used when unsubscribing)
 	 */
 	public String subscribe(final String subscriptionName, final Object[] params, final SubscribeListener listener) {
-		// create a new unique ID for this request
-		final String subscriptionId = uniqueID();
+		final String subscriptionKey = getSubscriptionKey(subscriptionName, params);
 
-		// save a reference to the listener to be executed later
-		if (listener != null) {
-			mListeners.put(subscriptionId, listener);
+		final Subscription subscription;
+		final boolean shared;
+		final boolean alreadyReady;
+
+		synchronized (mSubscriptionsById) {
+			final Subscription existingSubscription = mSubscriptionsByKey.get(subscriptionKey);
+
+			// if another subscriber has already requested the same data
+			if (existingSubscription != null) {
+				// share the existing subscription instead of creating a new one
+				existingSubscription.mReferences++;
+
+				shared = true;
+				alreadyReady = existingSubscription.mReady;
+
+				// save a reference to the listener to be executed later
+				if (listener != null && !alreadyReady) {
+					existingSubscription.mListeners.add(listener);
+				}
+
+				subscription = existingSubscription;
+			}
+			else {
+				// create a new unique ID for this request
+				subscription = new Subscription(uniqueID(), subscriptionKey);
+
+				shared = false;
+				alreadyReady = false;
+
+				// save a reference to the listener to be executed later
+				if (listener != null) {
+					subscription.mListeners.add(listener);
+				}
+
+				mSubscriptionsByKey.put(subscriptionKey, subscription);
+				mSubscriptionsById.put(subscription.mId, subscription);
+			}
+		}
+
+		if (shared) {
+			// if the shared subscription is ready already, the listener won't receive a `ready` message anymore
+			if (listener != null && alreadyReady) {
+				mCallbackProxy.forSubscribeListener(listener).onSuccess();
+			}
+
+			// return the ID of the shared subscription
+			return subscription.mId;
+		}
+
+		// the data store must be prepared before the first document may arrive
+		if (mDataStore instanceof SubscriptionAwareDataStore) {
+			((SubscriptionAwareDataStore) mDataStore).onSubscriptionStarted(subscription.mId);
 		}
 
 		final Map<String, Object> data = new HashMap<String, Object>();
 
 		data.put(Protocol.Field.MESSAGE, Protocol.Message.SUBSCRIBE);
 		data.put(Protocol.Field.NAME, subscriptionName);
-		data.put(Protocol.Field.ID, subscriptionId);
+		data.put(Protocol.Field.ID, subscription.mId);
 
 		if (params != null) {
 			data.put(Protocol.Field.PARAMS, params);
@@ -1129,7 +1269,7 @@ public class Meteor {
 		send(data);
 
 		// return the generated subscription ID
-		return subscriptionId;
+		return subscription.mId;
 	}
 
 	/**
@@ -1144,10 +1284,56 @@ public class Meteor {
 	/**
 	 * Unsubscribes from the subscription with the specified name
 	 *
+	 * If the subscription is shared with other subscribers, it will only be stopped on the server when the last subscriber unsubscribes
+	 *
 	 * @param subscriptionId the ID of the subscription
 	 * @param listener the listener to call on success/error
 	 */
 	public void unsubscribe(final String subscriptionId, final UnsubscribeListener listener) {
+		final boolean stillShared;
+		boolean removed = false;
+		boolean wasPending = false;
+
+		synchronized (mSubscriptionsById) {
+			final Subscription subscription = mSubscriptionsById.get(subscriptionId);
+
+			if (subscription != null && subscription.mReferences > 1) {
+				subscription.mReferences--;
+
+				stillShared = true;
+			}
+			else {
+				if (subscription != null) {
+					mSubscriptionsById.remove(subscriptionId);
+					mSubscriptionsByKey.remove(subscription.mKey);
+
+					removed = true;
+					wasPending = !subscription.mReady;
+				}
+
+				stillShared = false;
+			}
+		}
+
+		// if there are other subscribers left that still need the data
+		if (stillShared) {
+			// keep the subscription on the server and just release this subscriber
+			if (listener != null) {
+				mCallbackProxy.forUnsubscribeListener(listener).onSuccess();
+			}
+
+			return;
+		}
+
+		// the `nosub` message from the server will not find the subscription anymore
+		if (wasPending) {
+			notifySubscriptionFinished(subscriptionId);
+		}
+
+		if (removed) {
+			notifySubscriptionStopped(subscriptionId);
+		}
+
 		// save a reference to the listener to be executed later
 		if (listener != null) {
 			mListeners.put(subscriptionId, listener);
@@ -1160,6 +1346,77 @@ public class Meteor {
 		send(data);
 	}
 
+	/**
+	 * Returns the canonical key for a subscription that identifies all subscriptions requesting the same data
+	 *
+	 * @param subscriptionName the name of the subscription
+	 * @param params the subscription parameters or `null`
+	 * @return the canonical key
+	 */
+	private static String getSubscriptionKey(final String subscriptionName, final Object[] params) {
+		final StringBuilder key = new StringBuilder();
+		key.append(subscriptionName);
+		key.append('\n');
+
+		if (params != null && params.length > 0) {
+			appendCanonicalJson(key, mObjectMapper.valueToTree(params));
+		}
+
+		return key.toString();
+	}
+
+	/**
+	 * Appends the given JSON to the builder with the keys of all objects in sorted order
+	 *
+	 * @param builder the builder to append to
+	 * @param json the JSON to append
+	 */
+	private static void appendCanonicalJson(final StringBuilder builder, final JsonNode json) {
+		if (json.isObject()) {
+			final List<String> fieldNames = new LinkedList<String>();
+			final Iterator<String> iterator = json.getFieldNames();
+
+			while (iterator.hasNext()) {
+				fieldNames.add(iterator.next());
+			}
+
+			Collections.sort(fieldNames);
+
+			builder.append('{');
+
+			boolean first = true;
+			for (String fieldName : fieldNames) {
+				if (!first) {
+					builder.append(',');
+				}
+
+				builder.append(new TextNode(fieldName).toString());
+				builder.append(':');
+				appendCanonicalJson(builder, json.get(fieldName));
+
+				first = false;
+			}
+
+			builder.append('}');
+		}
+		else if (json.isArray()) {
+			builder.append('[');
+
+			for (int i = 0; i < json.size(); i++) {
+				if (i > 0) {
+					builder.append(',');
+				}
+
+				appendCanonicalJson(builder, json.get(i));
+			}
+
+			builder.append(']');
+		}
+		else {
+			builder.append(json.toString());
+		}
+	}
+
 	/**
 	 * Creates an empty map for use as default parameter
 	 *
@@ -1247,6 +1504,28 @@ public class Meteor {
 		}
 	}
 
+	/**
+	 * Tells the data store that the initial data of a subscription is complete or will not arrive anymore
+	 *
+	 * @param subscriptionId the ID of the subscription
+	 */
+	private void notifySubscriptionFinished(final String subscriptionId) {
+		if (mDataStore instanceof SubscriptionAwareDataStore) {
+			((SubscriptionAwareDataStore) mDataStore).onSubscriptionFinished(subscriptionId);
+		}
+	}
+
+	/**
+	 * Tells the data store that a subscription has ended
+	 *
+	 * @param subscriptionId the ID of the subscription
+	 */
+	private void notifySubscriptionStopped(final String subscriptionId) {
+		if (mDataStore instanceof SubscriptionAwareDataStore) {
+			((SubscriptionAwareDataStore) mDataStore).onSubscriptionStopped(subscriptionId);
+		}
+	}
+
 	/**
 	 * Returns the data store that was set in the constructor and that contains all data received from the server
 	 *
@@ -1270,4 +1549,27 @@ public class Meteor {
 		}
 	}
 
+	/** Subscription on the server that is shared by all subscribers requesting the same data */
+	private static class Subscription {
+
+		/** The ID of the subscription on the server */
+		private final String mId;
+		/** The canonical key built from the name and parameters of the subscription */
+		private final String mKey;
+		/** The listeners waiting for the subscription to become ready */
+		private final List<SubscribeListener> mListeners;
+		/** The number of subscribers sharing this subscription */
+		private int mReferences;
+		/** Whether the server has reported the subscription as ready */
+		private boolean mReady;
+
+		private Subscription(final String id, final String key) {
+			mId = id;
+			mKey = key;
+			mListeners = new LinkedList<SubscribeListener>();
+			mReferences = 1;
+		}
+
+	}
+
 }
@@ -0,0 +1,47 @@
+package im.delight.android.ddp.db;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Listener that is notified whenever the set of documents matching a live query changes
+ *
+ * All callbacks are invoked synchronously on the thread that modifies the data, i.e. usually the thread receiving the data from the server
+ */
+public interface ChangeListener {
+
+	/**
+	 * Called when a document starts matching the query, including all documents that match when the live query is created
+	 *
+	 * @param document the document that has been added to the results
+	 */
+	void onAdded(Document document);
+
+	/**
+	 * Called when a document that matches the query has been modified and still matches the query
+	 *
+	 * @param document the document with its new fields
+	 */
+	void onChanged(Document document);
+
+	/**
+	 * Called when a document has stopped matching the query or has been removed
+	 *
+	 * @param documentId the ID of the document that has been removed from the results
+	 */
+	void onRemoved(String documentId);
+
+}
@@ -48,4 +48,13 @@ public interface Collection extends Query {
 	 */
 	int count();
 
+	/**
+	 * Returns the version of the collection, which is incremented whenever documents are added, changed or removed
+	 *
+	 * Comparing the version with a version obtained earlier tells whether the collection has changed in the meantime
+	 *
+	 * @return the version
+	 */
+	long getVersion();
+
 }
@@ -0,0 +1,48 @@
+package im.delight.android.ddp.db;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Position within the results of a query that can be advanced step by step
+ *
+ * The results are those matching at the time when the cursor has been created, regardless of any later changes to the database
+ */
+public interface Cursor {
+
+	/**
+	 * Returns whether there are more results
+	 *
+	 * @return whether there is a next document
+	 */
+	boolean hasNext();
+
+	/**
+	 * Returns the next result and advances the cursor
+	 *
+	 * @return the next document or `null` if there are no more results
+	 */
+	Document next();
+
+	/**
+	 * Returns the next results up to the specified number and advances the cursor past them
+	 *
+	 * @param limit the maximum number of documents to return
+	 * @return an array (never `null`) containing zero or more documents
+	 */
+	Document[] next(int limit);
+
+}
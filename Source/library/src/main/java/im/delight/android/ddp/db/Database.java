@@ -45,4 +45,15 @@ public interface Database extends DataStore {
 	 */
 	int count();
 
+	/**
+	 * Returns a read-only view of the database as it is at this point in time
+	 *
+	 * All collections and queries obtained from the view see the same consistent state, regardless of any later changes to this database
+	 *
+	 * Any attempt to modify the view throws an `UnsupportedOperationException`
+	 *
+	 * @return the view of the current state
+	 */
+	Database snapshot();
+
 }
@@ -26,6 +26,15 @@ public interface Document {
 	 */
 	String getId();
 
+	/**
+	 * Returns the version of the collection at the time when the document was last added or changed
+	 *
+	 * The version changes whenever the document changes, so comparing it with a version obtained earlier tells whether the document has changed in the meantime
+	 *
+	 * @return the version
+	 */
+	long getVersion();
+
 	/**
 	 * Returns the field with the specified name from the document
 	 *
@@ -34,6 +43,26 @@ public interface Document {
 	 */
 	Object getField(String name);
 
+	/**
+	 * Returns the field with the specified name from the document as a number
+	 *
+	 * Strings are parsed as numbers, while missing fields and all other values are returned as zero
+	 *
+	 * @param name the name of the field to return
+	 * @return the number
+	 */
+	double getDouble(String name);
+
+	/**
+	 * Returns the field with the specified name from the document as an integer
+	 *
+	 * Fractional numbers are truncated, strings are parsed as numbers, while missing fields and all other values are returned as zero
+	 *
+	 * @param name the name of the field to return
+	 * @return the integer
+	 */
+	long getLong(String name);
+
 	/**
 	 * Lists all fields from the document by returning their names
 	 *
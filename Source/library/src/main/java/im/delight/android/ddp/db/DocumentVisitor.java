@@ -0,0 +1,30 @@
+package im.delight.android.ddp.db;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Callback that receives the documents matching a query one after another */
+public interface DocumentVisitor {
+
+	/**
+	 * Called for each matching document
+	 *
+	 * @param document the document
+	 * @return whether to continue with the next document (`true`) or to stop (`false`)
+	 */
+	boolean visit(Document document);
+
+}
@@ -0,0 +1,41 @@
+package im.delight.android.ddp.db;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Map;
+
+/** Documents matching a query, divided into groups by the value of a field */
+public interface Grouping {
+
+	/**
+	 * Returns the number of documents in each group
+	 *
+	 * @return the counts by the values of the grouping field (where `null` stands for missing values)
+	 */
+	Map<Object, Integer> count();
+
+	/**
+	 * Returns the sum of the specified field for each group
+	 *
+	 * Values that are not numbers are ignored
+	 *
+	 * @param fieldName the name of the field to add up
+	 * @return the sums by the values of the grouping field (where `null` stands for missing values)
+	 */
+	Map<Object, Double> sum(String fieldName);
+
+}
@@ -0,0 +1,32 @@
+package im.delight.android.ddp.db;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Handle for a query that reports changes to its results until it is stopped */
+public interface LiveQuery {
+
+	/**
+	 * Returns the number of documents that currently match the query
+	 *
+	 * @return the number of matching documents
+	 */
+	int count();
+
+	/** Stops observing the query so that the listener will not be called anymore */
+	void stop();
+
+}
@@ -16,9 +16,20 @@ package im.delight.android.ddp.db;
  * limitations under the License.
  */
 
-/** A query can be executed to find a specified number of documents, after any number of requirements has been supplied before */
+/**
+ * A query can be executed to find a specified number of documents, after any number of requirements has been supplied before
+ *
+ * Field names may be paths to nested fields, separated by dots (e.g. `profile.address.city`)
+ *
+ * If a field is an array, a requirement is satisfied if the array itself or any of its elements satisfies it, as in MongoDB
+ */
 public interface Query {
 
+	/** Sort direction that puts the smallest values first */
+	int ASCENDING = 1;
+	/** Sort direction that puts the largest values first */
+	int DESCENDING = -1;
+
 	/**
 	 * Adds a filter to the query requiring the given field to have exactly the specified value
 	 *
@@ -107,6 +118,85 @@ public interface Query {
 	 */
 	Query whereNotIn(String fieldName, Object[] fieldValues);
 
+	/**
+	 * Adds a filter to the query requiring the given text field to contain all of the specified words
+	 *
+	 * Words are compared without regard to case, and a word ending with `*` matches all words that start with the preceding characters
+	 *
+	 * @param fieldName the name of the field to check
+	 * @param terms the words to search for, separated by spaces
+	 * @return this instance for chaining
+	 */
+	Query whereText(String fieldName, String terms);
+
+	/**
+	 * Adds a filter to the query requiring the given field to have a string value that starts with the specified prefix
+	 *
+	 * @param fieldName the name of the field to check
+	 * @param prefix the prefix to check against
+	 * @return this instance for chaining
+	 */
+	Query wherePrefix(String fieldName, String prefix);
+
+	/**
+	 * Adds a filter to the query requiring the given field to have a string value that contains a match for the specified regular expression
+	 *
+	 * @param fieldName the name of the field to check
+	 * @param regex the regular expression as accepted by {@link java.util.regex.Pattern}
+	 * @return this instance for chaining
+	 */
+	Query whereRegex(String fieldName, String regex);
+
+	/**
+	 * Adds a filter to the query requiring the coordinates in the given fields to be inside the specified box, including its edges
+	 *
+	 * @param latitudeFieldName the name of the field containing the latitude
+	 * @param longitudeFieldName the name of the field containing the longitude
+	 * @param minLatitude the southern edge of the box
+	 * @param minLongitude the western edge of the box
+	 * @param maxLatitude the northern edge of the box
+	 * @param maxLongitude the eastern edge of the box
+	 * @return this instance for chaining
+	 */
+	Query whereWithinBox(String latitudeFieldName, String longitudeFieldName, double minLatitude, double minLongitude, double maxLatitude, double maxLongitude);
+
+	/**
+	 * Restricts the query to the matching documents whose coordinates in the given fields are nearest to the specified point
+	 *
+	 * Unless the query is sorted explicitly, the results are sorted by their distance to the point, nearest first
+	 *
+	 * @param latitudeFieldName the name of the field containing the latitude
+	 * @param longitudeFieldName the name of the field containing the longitude
+	 * @param latitude the latitude of the point
+	 * @param longitude the longitude of the point
+	 * @param maxResults the maximum number of documents to select
+	 * @return this instance for chaining
+	 */
+	Query whereNear(String latitudeFieldName, String longitudeFieldName, double latitude, double longitude, int maxResults);
+
+	/**
+	 * Sorts the results of the query by the given field
+	 *
+	 * This may be called multiple times, where each additional field is used to sort entries that are equal in all previous fields
+	 *
+	 * Values are sorted by type first (`null`, numbers, strings, objects, arrays, booleans) and then by their value
+	 *
+	 * @param fieldName the name of the field to sort by
+	 * @param direction either {@link #ASCENDING} or {@link #DESCENDING}
+	 * @return this instance for chaining
+	 */
+	Query orderBy(String fieldName, int direction);
+
+	/**
+	 * Restricts the documents returned by the query to the specified fields
+	 *
+	 * The returned documents are lightweight copies that only contain the selected fields (if they exist) and the ID
+	 *
+	 * @param fieldNames the names of the fields to return
+	 * @return this instance for chaining
+	 */
+	Query fields(String... fieldNames);
+
 	/**
 	 * Executes the query and returns all matching entries
 	 *
@@ -138,4 +228,79 @@ public interface Query {
 	 */
 	Document findOne();
 
+	/**
+	 * Executes the query and passes the matching entries to the visitor one after another, without collecting them first
+	 *
+	 * The database must not be modified from within the visitor
+	 *
+	 * @param visitor the visitor that may stop the iteration at any time
+	 */
+	void forEach(DocumentVisitor visitor);
+
+	/**
+	 * Executes the query and returns a cursor that provides the matching entries one after another
+	 *
+	 * A cursor can be used to page through large results without skipping all previous entries again for every page
+	 *
+	 * @return the cursor positioned before the first match
+	 */
+	Cursor cursor();
+
+	/**
+	 * Returns the number of documents matching the query
+	 *
+	 * @return the number of matches
+	 */
+	int count();
+
+	/**
+	 * Returns the sum of the specified field across all documents matching the query
+	 *
+	 * Values that are not numbers are ignored
+	 *
+	 * @param fieldName the name of the field to add up
+	 * @return the sum or zero if there are no numbers
+	 */
+	double sum(String fieldName);
+
+	/**
+	 * Returns the smallest value of the specified field across all documents matching the query
+	 *
+	 * Values that are not numbers are ignored
+	 *
+	 * @param fieldName the name of the field
+	 * @return the smallest number or `NaN` if there are no numbers
+	 */
+	double min(String fieldName);
+
+	/**
+	 * Returns the largest value of the specified field across all documents matching the query
+	 *
+	 * Values that are not numbers are ignored
+	 *
+	 * @param fieldName the name of the field
+	 * @return the largest number or `NaN` if there are no numbers
+	 */
+	double max(String fieldName);
+
+	/**
+	 * Divides the documents matching the query into groups by the value of the specified field
+	 *
+	 * @param fieldName the name of the field to group by
+	 * @return the grouping that can be aggregated per group
+	 */
+	Grouping groupBy(String fieldName);
+
+	/**
+	 * Observes the documents matching this query and reports each document that is added, changed or removed
+	 *
+	 * The listener is first called with all documents that currently match, and afterwards only with the changes
+	 *
+	 * Sort order, limits and offsets do not apply to live queries
+	 *
+	 * @param listener the listener to notify
+	 * @return the live query that can be stopped
+	 */
+	LiveQuery observe(ChangeListener listener);
+
 }
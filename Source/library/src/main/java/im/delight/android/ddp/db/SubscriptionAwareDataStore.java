@@ -0,0 +1,51 @@
+package im.delight.android.ddp.db;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Storage for data that is additionally told when the initial data of subscriptions starts and stops arriving, and when subscriptions end
+ *
+ * This allows for loading the initial data in bulk, deferring expensive work until all documents have been received, and for releasing data that no subscription needs anymore
+ */
+public interface SubscriptionAwareDataStore extends DataStore {
+
+	/**
+	 * Receives notice that a subscription has been requested and that its initial documents are about to be sent
+	 *
+	 * @param subscriptionId the ID of the subscription
+	 */
+	void onSubscriptionStarted(String subscriptionId);
+
+	/**
+	 * Receives notice that all initial documents of a subscription have been sent, or that the subscription has failed or has been stopped
+	 *
+	 * This is called exactly once for every call to {@link #onSubscriptionStarted(String)}
+	 *
+	 * @param subscriptionId the ID of the subscription
+	 */
+	void onSubscriptionFinished(String subscriptionId);
+
+	/**
+	 * Receives notice that a subscription has ended, i.e. it has been stopped by the client or the server, or the connection has been closed
+	 *
+	 * This is called at most once for every call to {@link #onSubscriptionStarted(String)} and always after {@link #onSubscriptionFinished(String)}
+	 *
+	 * @param subscriptionId the ID of the subscription
+	 */
+	void onSubscriptionStopped(String subscriptionId);
+
+}
@@ -0,0 +1,240 @@
+package im.delight.android.ddp.db.disk;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.db.ChangeListener;
+import im.delight.android.ddp.db.Collection;
+import im.delight.android.ddp.db.Cursor;
+import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.DocumentVisitor;
+import im.delight.android.ddp.db.Grouping;
+import im.delight.android.ddp.db.LiveQuery;
+import im.delight.android.ddp.db.Query;
+import im.delight.android.ddp.db.memory.InMemoryQuery;
+
+/**
+ * Collection that is stored in the log of a disk-backed database
+ *
+ * Single documents are looked up by their ID without loading the rest of the collection
+ *
+ * Queries read the documents of the collection from disk one after another and only keep the matching documents in memory
+ */
+public final class DiskCollection implements Collection {
+
+	/** The database that the collection is stored in */
+	private final DiskDatabase mDatabase;
+	/** The name of the collection */
+	private final String mName;
+
+	/**
+	 * Creates a new collection that is stored on disk
+	 *
+	 * @param database the database that the collection is stored in
+	 * @param name the name of the collection
+	 */
+	DiskCollection(final DiskDatabase database, final String name) {
+		mDatabase = database;
+		mName = name;
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+
+	@Override
+	public Document getDocument(final String id) {
+		return mDatabase.getDocument(mName, id);
+	}
+
+	@Override
+	public String[] getDocumentIds() {
+		return mDatabase.getDocumentIds(mName);
+	}
+
+	@Override
+	public int count() {
+		return mDatabase.countDocuments(mName);
+	}
+
+	@Override
+	public long getVersion() {
+		return mDatabase.getCollectionVersion(mName);
+	}
+
+	@Override
+	public Query whereEqual(final String fieldName, final Object fieldValue) {
+		return scan().whereEqual(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereNotEqual(final String fieldName, final Object fieldValue) {
+		return scan().whereNotEqual(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereLessThan(final String fieldName, final double fieldValue) {
+		return scan().whereLessThan(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereLessThanOrEqual(final String fieldName, final double fieldValue) {
+		return scan().whereLessThanOrEqual(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereGreaterThan(final String fieldName, final double fieldValue) {
+		return scan().whereGreaterThan(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereGreaterThanOrEqual(final String fieldName, final double fieldValue) {
+		return scan().whereGreaterThanOrEqual(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereNull(final String fieldName) {
+		return scan().whereNull(fieldName);
+	}
+
+	@Override
+	public Query whereNotNull(final String fieldName) {
+		return scan().whereNotNull(fieldName);
+	}
+
+	@Override
+	public Query whereIn(final String fieldName, final Object[] fieldValues) {
+		return scan().whereIn(fieldName, fieldValues);
+	}
+
+	@Override
+	public Query whereNotIn(final String fieldName, final Object[] fieldValues) {
+		return scan().whereNotIn(fieldName, fieldValues);
+	}
+
+	@Override
+	public Query whereText(final String fieldName, final String terms) {
+		return scan().whereText(fieldName, terms);
+	}
+
+	@Override
+	public Query wherePrefix(final String fieldName, final String prefix) {
+		return scan().wherePrefix(fieldName, prefix);
+	}
+
+	@Override
+	public Query whereRegex(final String fieldName, final String regex) {
+		return scan().whereRegex(fieldName, regex);
+	}
+
+	@Override
+	public Query whereWithinBox(final String latitudeFieldName, final String longitudeFieldName, final double minLatitude, final double minLongitude, final double maxLatitude, final double maxLongitude) {
+		return scan().whereWithinBox(latitudeFieldName, longitudeFieldName, minLatitude, minLongitude, maxLatitude, maxLongitude);
+	}
+
+	@Override
+	public Query whereNear(final String latitudeFieldName, final String longitudeFieldName, final double latitude, final double longitude, final int maxResults) {
+		return scan().whereNear(latitudeFieldName, longitudeFieldName, latitude, longitude, maxResults);
+	}
+
+	@Override
+	public Query orderBy(final String fieldName, final int direction) {
+		return scan().orderBy(fieldName, direction);
+	}
+
+	@Override
+	public Query fields(final String... fieldNames) {
+		return scan().fields(fieldNames);
+	}
+
+	@Override
+	public Document[] find() {
+		return scan().find();
+	}
+
+	@Override
+	public Document[] find(final int limit) {
+		return scan().find(limit);
+	}
+
+	@Override
+	public Document[] find(final int limit, final int offset) {
+		return scan().find(limit, offset);
+	}
+
+	@Override
+	public Document findOne() {
+		return scan().findOne();
+	}
+
+	@Override
+	public void forEach(final DocumentVisitor visitor) {
+		scan().forEach(visitor);
+	}
+
+	@Override
+	public Cursor cursor() {
+		return scan().cursor();
+	}
+
+	@Override
+	public double sum(final String fieldName) {
+		return scan().sum(fieldName);
+	}
+
+	@Override
+	public double min(final String fieldName) {
+		return scan().min(fieldName);
+	}
+
+	@Override
+	public double max(final String fieldName) {
+		return scan().max(fieldName);
+	}
+
+	@Override
+	public Grouping groupBy(final String fieldName) {
+		return scan().groupBy(fieldName);
+	}
+
+	/**
+	 * Live queries are not supported for collections on disk
+	 *
+	 * @param listener the listener that would be notified
+	 * @return never returns
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public LiveQuery observe(final ChangeListener listener) {
+		throw new UnsupportedOperationException("Live queries are not supported by collections on disk");
+	}
+
+	/**
+	 * Creates a query that reads the documents of this collection from disk one after another
+	 *
+	 * @return the new query
+	 */
+	private Query scan() {
+		return InMemoryQuery.scan(mName, mDatabase.getDocumentSource(mName));
+	}
+
+	@Override
+	public String toString() {
+		return "DiskCollection("+mName+")";
+	}
+
+}
@@ -0,0 +1,1230 @@
+package im.delight.android.ddp.db.disk;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.Meteor;
+import im.delight.android.ddp.db.Collection;
+import im.delight.android.ddp.db.Database;
+import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.memory.DocumentSource;
+import im.delight.android.ddp.db.memory.InMemoryDatabase;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Database that is stored on disk so that collections may be larger than the available memory
+ *
+ * All changes are appended to a log file as records with a checksum, which means that writes never modify existing data
+ *
+ * Only the positions of the latest records for all documents (the key directory) are kept in memory, outside of the Java heap, together with a cache of recently used documents
+ *
+ * Queries read the documents of a collection from the log one after another and only keep the matching documents in memory
+ *
+ * Records that have been superseded by later changes are discarded by compacting the log, which happens automatically once they make up half of the file, but is postponed while queries are reading the log
+ *
+ * The key directory is written to an index file on compaction and when closing the database, so that it can be read on the next start instead of the whole log
+ *
+ * Changes are buffered in memory and written to the file in batches, so {@link #flush()} or {@link #close()} should be called when the app is paused
+ *
+ * The versions of collections and documents are only kept in memory and start at zero whenever the database is opened
+ *
+ * Incomplete records at the end of the log, e.g. after a crash, are discarded when opening the database
+ */
+public final class DiskDatabase implements Database {
+
+	private static final String TAG = "DiskDatabase";
+	/** The name of the log file in the directory of the database */
+	private static final String LOG_FILE_NAME = "data.log";
+	/** The name of the index file in the directory of the database */
+	private static final String INDEX_FILE_NAME = "index.map";
+	/** The magic number at the beginning of every log file (`DDPL`) */
+	private static final int LOG_MAGIC = 0x4444504C;
+	/** The magic number at the beginning of every index file (`DDPI`) */
+	private static final int INDEX_MAGIC = 0x44445049;
+	/** The version of the binary format of the log */
+	private static final int VERSION = 1;
+	/** The version of the binary format of the index */
+	private static final int INDEX_VERSION = 2;
+	/** The size of the header of the log (magic number, version and generation) */
+	private static final int HEADER_SIZE = 16;
+	/** The size of the header of every record (length of the payload and checksum) */
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_DELETE = 2;
+	/** The default number of documents that are kept in the cache */
+	private static final int DEFAULT_CACHE_SIZE = 256;
+	/** The number of bytes of changes that are buffered before they are written to the file */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	/** The number of bytes of consecutive records that queries read from the log at once */
+	private static final int READ_AHEAD_SIZE = 64 * 1024;
+	/** The minimum number of bytes in superseded records before the log is compacted automatically */
+	private static final long MIN_COMPACTION_GARBAGE = 4 * 1024 * 1024;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	/** Instance of Jackson library's ObjectMapper that converts the fields of documents from and to JSON */
+	private static final ObjectMapper mObjectMapper = new ObjectMapper();
+	/** The directory that the files of the database are stored in */
+	private final File mDirectory;
+	/** The log file */
+	private final File mLogFile;
+	/** The index file */
+	private final File mIndexFile;
+	/** The positions of the latest records of all documents by their IDs, grouped by the names of their collections */
+	private final Map<String, KeyDirectory> mCollections;
+	/** The most recently used documents by their collection names and IDs */
+	private final DocumentCache mCache;
+	/** The changes that have not been written to the file yet */
+	private final ByteArrayOutputStream mWriteBuffer;
+	/** The lock that guards all access to the files and the key directory */
+	private final Object mLock;
+	/** The lock that queries hold while reading the log, which must be acquired before {@link #mLock} and which prevents compactions */
+	private final ReentrantReadWriteLock mScanLock;
+	/** The open log file or `null` if the database has been closed */
+	private RandomAccessFile mFile;
+	/** The channel of the open log file */
+	private FileChannel mChannel;
+	/** The generation of the log which is changed by every compaction */
+	private long mGeneration;
+	/** The number of bytes that have been written to the log file */
+	private long mFlushedLength;
+	/** The number of bytes in records that have been superseded by later changes */
+	private long mGarbageBytes;
+
+	/**
+	 * Opens the database in the specified directory or creates a new database there
+	 *
+	 * @param directory the directory to store the files of the database in
+	 * @throws IOException if the files could not be read or written
+	 */
+	public DiskDatabase(final File directory) throws IOException {
+		this(directory, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Opens the database in the specified directory or creates a new database there
+	 *
+	 * @param directory the directory to store the files of the database in
+	 * @param cacheSize the maximum number of documents to keep in memory
+	 * @throws IOException if the files could not be read or written
+	 */
+	public DiskDatabase(final File directory, final int cacheSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create directory `"+directory+"`");
+		}
+
+		mDirectory = directory;
+		mLogFile = new File(directory, LOG_FILE_NAME);
+		mIndexFile = new File(directory, INDEX_FILE_NAME);
+		mCollections = new LinkedHashMap<String, KeyDirectory>();
+		mCache = new DocumentCache(cacheSize);
+		mWriteBuffer = new ByteArrayOutputStream(WRITE_BUFFER_SIZE);
+		mLock = new Object();
+		mScanLock = new ReentrantReadWriteLock();
+
+		open();
+	}
+
+	@Override
+	public Collection getCollection(final String name) {
+		return new DiskCollection(this, name);
+	}
+
+	@Override
+	public String[] getCollectionNames() {
+		synchronized (mLock) {
+			return mCollections.keySet().toArray(new String[mCollections.size()]);
+		}
+	}
+
+	@Override
+	public int count() {
+		synchronized (mLock) {
+			return mCollections.size();
+		}
+	}
+
+	/**
+	 * Returns a read-only view of the database as it is at this point in time
+	 *
+	 * All documents are loaded into memory for the view
+	 *
+	 * @return the view of the current state
+	 */
+	@Override
+	public Database snapshot() {
+		final InMemoryDatabase database = new InMemoryDatabase();
+
+		synchronized (mLock) {
+			checkOpen();
+
+			for (String collectionName : mCollections.keySet()) {
+				loadInto(database, collectionName);
+			}
+		}
+
+		return database.snapshot();
+	}
+
+	@Override
+	public void onDataAdded(final String collectionName, final String documentId, final Fields newValues) {
+		synchronized (mLock) {
+			checkOpen();
+
+			final KeyDirectory directory = getOrCreateDirectory(collectionName);
+
+			if (newValues != null) {
+				final Fields fields = new Fields();
+				fields.putAll(newValues);
+
+				try {
+					put(directory, collectionName, documentId, fields);
+					compactIfNecessary(directory);
+				}
+				catch (IOException e) {
+					throw fail("Could not add document `"+documentId+"` to collection `"+collectionName+"`", e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void onDataChanged(final String collectionName, final String documentId, final Fields updatedValues, final String[] removedValues) {
+		synchronized (mLock) {
+			checkOpen();
+
+			final KeyDirectory directory = mCollections.get(collectionName);
+			final int entry = directory == null ? -1 : directory.find(documentId.getBytes(UTF_8));
+
+			if (entry < 0) {
+				Meteor.log(TAG);
+				Meteor.log("  Cannot find document `"+documentId+"` to update in collection `"+collectionName+"`");
+
+				onDataAdded(collectionName, documentId, updatedValues);
+				return;
+			}
+
+			try {
+				final DiskDocument cached = mCache.get(getCacheKey(collectionName, documentId));
+				final Fields fields = cached != null ? cached.copyFields() : readFields(directory.getOffset(entry), directory.getLength(entry));
+
+				if (updatedValues != null) {
+					fields.putAll(updatedValues);
+				}
+
+				if (removedValues != null) {
+					for (String removedField : removedValues) {
+						fields.remove(removedField);
+					}
+				}
+
+				put(directory, collectionName, documentId, fields);
+				compactIfNecessary(directory);
+			}
+			catch (IOException e) {
+				throw fail("Could not change document `"+documentId+"` in collection `"+collectionName+"`", e);
+			}
+		}
+	}
+
+	@Override
+	public void onDataRemoved(final String collectionName, final String documentId) {
+		synchronized (mLock) {
+			checkOpen();
+
+			final KeyDirectory directory = mCollections.get(collectionName);
+			final byte[] id = documentId.getBytes(UTF_8);
+
+			if (directory == null || directory.find(id) < 0) {
+				Meteor.log(TAG);
+				Meteor.log("  Cannot find document `"+documentId+"` to delete in collection `"+collectionName+"`");
+				return;
+			}
+
+			try {
+				directory.incrementVersion();
+
+				final byte[] deletion = encodeRecord(RECORD_DELETE, collectionName, id, null);
+				append(deletion);
+
+				// neither the previous record nor the deletion itself are needed after the next compaction
+				mGarbageBytes += directory.remove(id) + deletion.length;
+				mCache.remove(getCacheKey(collectionName, documentId));
+
+				compactIfNecessary(directory);
+			}
+			catch (IOException e) {
+				throw fail("Could not delete document `"+documentId+"` from collection `"+collectionName+"`", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes all buffered changes to the log file and forces them to the storage device
+	 *
+	 * @throws IOException if the changes could not be written
+	 */
+	public void flush() throws IOException {
+		synchronized (mLock) {
+			checkOpen();
+
+			flushBuffer();
+			mChannel.force(false);
+		}
+	}
+
+	/**
+	 * Rewrites the log file so that it only contains the latest records of all documents
+	 *
+	 * This happens automatically once superseded records make up half of the file, so calling this method is usually not necessary
+	 *
+	 * Waits for queries that are currently reading the log on other threads to finish
+	 *
+	 * @throws IOException if the log file could not be rewritten
+	 * @throws IllegalStateException if called from within a visitor or while reading the results of a query on this thread
+	 */
+	public void compact() throws IOException {
+		if (mScanLock.getReadHoldCount() > 0) {
+			throw new IllegalStateException("The log cannot be compacted while the current thread is reading it");
+		}
+
+		mScanLock.writeLock().lock();
+
+		try {
+			synchronized (mLock) {
+				checkOpen();
+
+				compactLog();
+			}
+		}
+		finally {
+			mScanLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes all buffered changes and the index to disk and closes the files
+	 *
+	 * The database must not be used anymore afterwards
+	 *
+	 * @throws IOException if the changes or the index could not be written
+	 */
+	public void close() throws IOException {
+		synchronized (mLock) {
+			if (mFile == null) {
+				return;
+			}
+
+			try {
+				flushBuffer();
+				mChannel.force(false);
+				writeIndex();
+			}
+			finally {
+				mFile.close();
+				mFile = null;
+				mChannel = null;
+				mCache.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns the document with the specified ID from a collection
+	 *
+	 * @param collectionName the name of the collection
+	 * @param documentId the ID of the document
+	 * @return the document or `null`
+	 */
+	DiskDocument getDocument(final String collectionName, final String documentId) {
+		synchronized (mLock) {
+			checkOpen();
+
+			return findDocument(collectionName, documentId, true);
+		}
+	}
+
+	/**
+	 * Returns the IDs of all documents in a collection
+	 *
+	 * @param collectionName the name of the collection
+	 * @return the IDs
+	 */
+	String[] getDocumentIds(final String collectionName) {
+		synchronized (mLock) {
+			final KeyDirectory directory = mCollections.get(collectionName);
+
+			if (directory == null) {
+				return new String[0];
+			}
+
+			final String[] documentIds = new String[directory.size()];
+			final int end = directory.getEnd();
+			int i = 0;
+
+			for (int entry = 0; entry < end; entry++) {
+				if (directory.isLive(entry)) {
+					documentIds[i++] = directory.getId(entry);
+				}
+			}
+
+			return documentIds;
+		}
+	}
+
+	/**
+	 * Returns the number of documents in a collection
+	 *
+	 * @param collectionName the name of the collection
+	 * @return the count
+	 */
+	int countDocuments(final String collectionName) {
+		synchronized (mLock) {
+			final KeyDirectory directory = mCollections.get(collectionName);
+
+			return directory == null ? 0 : directory.size();
+		}
+	}
+
+	/**
+	 * Returns the version of a collection, which is incremented whenever documents are added, changed or removed
+	 *
+	 * @param collectionName the name of the collection
+	 * @return the version
+	 */
+	long getCollectionVersion(final String collectionName) {
+		synchronized (mLock) {
+			final KeyDirectory directory = mCollections.get(collectionName);
+
+			return directory == null ? 0 : directory.getVersion();
+		}
+	}
+
+	/**
+	 * Returns the documents of a collection for queries that read them from the log one after another
+	 *
+	 * The documents are not added to the cache
+	 *
+	 * @param collectionName the name of the collection
+	 * @return the documents
+	 */
+	DocumentSource getDocumentSource(final String collectionName) {
+		return new CollectionSource(collectionName);
+	}
+
+	/**
+	 * Adds all documents of a collection to the given database in memory
+	 *
+	 * @param database the database to add the documents to
+	 * @param collectionName the name of the collection
+	 */
+	private void loadInto(final InMemoryDatabase database, final String collectionName) {
+		final KeyDirectory directory = mCollections.get(collectionName);
+
+		if (directory == null) {
+			return;
+		}
+
+		try {
+			final int end = directory.getEnd();
+
+			for (int entry = 0; entry < end; entry++) {
+				if (directory.isLive(entry)) {
+					database.putDocument(collectionName, directory.getId(entry), readFields(directory.getOffset(entry), directory.getLength(entry)), directory.getVersion(entry));
+				}
+			}
+		}
+		catch (IOException e) {
+			throw fail("Could not read collection `"+collectionName+"`", e);
+		}
+	}
+
+	/**
+	 * Returns the document with the specified ID from a collection
+	 *
+	 * @param collectionName the name of the collection
+	 * @param documentId the ID of the document
+	 * @param cache whether to add the document to the cache if it has to be read from disk
+	 * @return the document or `null`
+	 */
+	private DiskDocument findDocument(final String collectionName, final String documentId, final boolean cache) {
+		final KeyDirectory directory = mCollections.get(collectionName);
+		final int entry = directory == null ? -1 : directory.find(documentId.getBytes(UTF_8));
+
+		if (entry < 0) {
+			return null;
+		}
+
+		final String cacheKey = getCacheKey(collectionName, documentId);
+		DiskDocument document = mCache.get(cacheKey);
+
+		if (document == null) {
+			try {
+				document = new DiskDocument(documentId, readFields(directory.getOffset(entry), directory.getLength(entry)), directory.getVersion(entry));
+			}
+			catch (IOException e) {
+				throw fail("Could not read document `"+documentId+"` from collection `"+collectionName+"`", e);
+			}
+
+			if (cache) {
+				mCache.put(cacheKey, document);
+			}
+		}
+
+		return document;
+	}
+
+	/**
+	 * Appends a record with the new fields of a document to the log and updates the key directory and the cache
+	 *
+	 * @param directory the key directory of the collection
+	 * @param collectionName the name of the collection
+	 * @param documentId the ID of the document
+	 * @param fields the new fields of the document which must not be modified afterwards
+	 * @throws IOException if the record could not be written
+	 */
+	private void put(final KeyDirectory directory, final String collectionName, final String documentId, final Fields fields) throws IOException {
+		final long version = directory.incrementVersion();
+		final byte[] id = documentId.getBytes(UTF_8);
+		final byte[] record = encodeRecord(RECORD_PUT, collectionName, id, fields);
+
+		mGarbageBytes += directory.put(id, append(record), record.length, version);
+		mCache.put(getCacheKey(collectionName, documentId), new DiskDocument(documentId, fields, version));
+	}
+
+	/**
+	 * Encodes a record including its header
+	 *
+	 * @param type the type of the record
+	 * @param collectionName the name of the collection
+	 * @param idBytes the ID of the document as UTF-8
+	 * @param fields the fields of the document or `null`
+	 * @return the record
+	 * @throws IOException if the fields could not be encoded
+	 */
+	private static byte[] encodeRecord(final byte type, final String collectionName, final byte[] idBytes, final Fields fields) throws IOException {
+		final byte[] collectionBytes = collectionName.getBytes(UTF_8);
+		final byte[] fieldBytes = fields == null ? new byte[0] : mObjectMapper.writeValueAsBytes(fields);
+		final int payloadLength = 1 + 4 + collectionBytes.length + 4 + idBytes.length + fieldBytes.length;
+
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadLength);
+		record.putInt(payloadLength);
+		record.putInt(0);
+		record.put(type);
+		record.putInt(collectionBytes.length);
+		record.put(collectionBytes);
+		record.putInt(idBytes.length);
+		record.put(idBytes);
+		record.put(fieldBytes);
+
+		final CRC32 checksum = new CRC32();
+		checksum.update(record.array(), RECORD_HEADER_SIZE, payloadLength);
+		record.putInt(4, (int) checksum.getValue());
+
+		return record.array();
+	}
+
+	/**
+	 * Appends a record to the log
+	 *
+	 * The record is buffered and only written to the file once the buffer is full
+	 *
+	 * @param record the record including its header
+	 * @return the position of the record
+	 * @throws IOException if the record could not be written
+	 */
+	private long append(final byte[] record) throws IOException {
+		final long offset = mFlushedLength + mWriteBuffer.size();
+		mWriteBuffer.write(record, 0, record.length);
+
+		if (mWriteBuffer.size() >= WRITE_BUFFER_SIZE) {
+			flushBuffer();
+		}
+
+		return offset;
+	}
+
+	/**
+	 * Reads the fields of a document from the record at the given position
+	 *
+	 * @param offset the position of the record
+	 * @param length the length of the record
+	 * @return the fields
+	 * @throws IOException if the record could not be read
+	 */
+	private Fields readFields(final long offset, final int length) throws IOException {
+		final byte[] record = readRecord(offset, length);
+		final ByteBuffer buffer = ByteBuffer.wrap(record);
+		buffer.position(RECORD_HEADER_SIZE + 1);
+
+		// skip the name of the collection and the ID of the document
+		buffer.position(buffer.position() + 4 + buffer.getInt());
+		buffer.position(buffer.position() + 4 + buffer.getInt());
+
+		return mObjectMapper.readValue(record, buffer.position(), record.length - buffer.position(), Fields.class);
+	}
+
+	/**
+	 * Reads the complete record at the given position, including its header
+	 *
+	 * @param offset the position of the record
+	 * @param length the length of the record
+	 * @return the record
+	 * @throws IOException if the record could not be read
+	 */
+	private byte[] readRecord(final long offset, final int length) throws IOException {
+		if (offset + length > mFlushedLength) {
+			flushBuffer();
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		readFully(buffer, offset);
+
+		return buffer.array();
+	}
+
+	/**
+	 * Fills the given buffer with the bytes of the log starting at the given position
+	 *
+	 * @param buffer the buffer to fill
+	 * @param offset the position in the log
+	 * @throws IOException if the log could not be read
+	 */
+	private void readFully(final ByteBuffer buffer, final long offset) throws IOException {
+		final int start = buffer.position();
+
+		while (buffer.hasRemaining()) {
+			if (mChannel.read(buffer, offset + buffer.position() - start) < 0) {
+				throw new EOFException("Record at position `"+offset+"` is truncated");
+			}
+		}
+	}
+
+	/**
+	 * Writes all buffered records to the log file
+	 *
+	 * @throws IOException if the records could not be written
+	 */
+	private void flushBuffer() throws IOException {
+		if (mWriteBuffer.size() == 0) {
+			return;
+		}
+
+		final ByteBuffer buffer = ByteBuffer.wrap(mWriteBuffer.toByteArray());
+
+		while (buffer.hasRemaining()) {
+			mChannel.write(buffer, mFlushedLength + buffer.position());
+		}
+
+		mFlushedLength += buffer.capacity();
+		mWriteBuffer.reset();
+	}
+
+	/**
+	 * Compacts the log if superseded records make up at least half of it, or discards the superseded entries of the modified collection's key directory
+	 *
+	 * Both are postponed while any query is reading the log
+	 *
+	 * @param directory the key directory of the collection that has been modified
+	 * @throws IOException if the log file could not be rewritten
+	 */
+	private void compactIfNecessary(final KeyDirectory directory) throws IOException {
+		final boolean compactLog = mGarbageBytes >= MIN_COMPACTION_GARBAGE && mGarbageBytes * 2 >= mFlushedLength + mWriteBuffer.size();
+
+		if ((compactLog || directory.needsVacuum()) && mScanLock.writeLock().tryLock()) {
+			try {
+				if (compactLog) {
+					compactLog();
+				}
+				else {
+					directory.vacuum();
+				}
+			}
+			finally {
+				mScanLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Copies the latest records of all documents to a new log file which then replaces the current log file
+	 *
+	 * @throws IOException if the log file could not be rewritten
+	 */
+	private void compactLog() throws IOException {
+		flushBuffer();
+
+		final long generation = Math.max(System.currentTimeMillis(), mGeneration + 1);
+		final Map<String, KeyDirectory> compacted = new LinkedHashMap<String, KeyDirectory>();
+		final File temporaryFile = new File(mLogFile.getPath() + ".tmp");
+		final FileOutputStream fileOut = new FileOutputStream(temporaryFile);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, WRITE_BUFFER_SIZE));
+
+		try {
+			out.writeInt(LOG_MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(generation);
+
+			long position = HEADER_SIZE;
+
+			for (Map.Entry<String, KeyDirectory> collection : mCollections.entrySet()) {
+				final KeyDirectory directory = collection.getValue();
+				final KeyDirectory copy = new KeyDirectory(directory.size(), directory.getVersion());
+				final int end = directory.getEnd();
+
+				// the records are read in the order in which they have been written
+				for (int entry = 0; entry < end; entry++) {
+					if (directory.isLive(entry)) {
+						final byte[] record = readRecord(directory.getOffset(entry), directory.getLength(entry));
+						out.write(record);
+
+						copy.copy(directory, entry, position);
+						position += record.length;
+					}
+				}
+
+				compacted.put(collection.getKey(), copy);
+			}
+
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+
+		mFile.close();
+
+		try {
+			replaceFile(temporaryFile, mLogFile);
+		}
+		finally {
+			mFile = new RandomAccessFile(mLogFile, "rw");
+			mChannel = mFile.getChannel();
+		}
+
+		mGeneration = generation;
+		mFlushedLength = mChannel.size();
+		mGarbageBytes = 0;
+		mCollections.clear();
+		mCollections.putAll(compacted);
+
+		writeIndex();
+	}
+
+	/**
+	 * Opens the log file and restores the key directory from the index file and the records that have been written after the index
+	 *
+	 * @throws IOException if the files could not be read
+	 */
+	private void open() throws IOException {
+		mFile = new RandomAccessFile(mLogFile, "rw");
+		mChannel = mFile.getChannel();
+
+		try {
+			final long start;
+
+			if (mChannel.size() < HEADER_SIZE) {
+				mGeneration = System.currentTimeMillis();
+
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(LOG_MAGIC);
+				header.putInt(VERSION);
+				header.putLong(mGeneration);
+				header.flip();
+
+				mChannel.truncate(0);
+				while (header.hasRemaining()) {
+					mChannel.write(header, header.position());
+				}
+
+				start = HEADER_SIZE;
+			}
+			else {
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+				while (header.hasRemaining()) {
+					mChannel.read(header, header.position());
+				}
+
+				header.flip();
+
+				if (header.getInt() != LOG_MAGIC) {
+					throw new IOException("File `"+mLogFile+"` is not a database log");
+				}
+
+				final int version = header.getInt();
+				if (version != VERSION) {
+					throw new IOException("Database log version `"+version+"` is not supported");
+				}
+
+				mGeneration = header.getLong();
+				start = readIndex();
+			}
+
+			scanLog(start);
+		}
+		catch (IOException e) {
+			mFile.close();
+			mFile = null;
+			mChannel = null;
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads all records from the given position to the end of the log and applies them to the key directory
+	 *
+	 * If an incomplete or corrupt record is found, the log is truncated before that record
+	 *
+	 * @param start the position to start at
+	 * @throws IOException if the log file could not be read
+	 */
+	private void scanLog(final long start) throws IOException {
+		final long size = mChannel.size();
+		// the stream must not be closed as that would close the channel as well
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(mChannel.position(start)), WRITE_BUFFER_SIZE));
+		final CRC32 checksum = new CRC32();
+		long position = start;
+
+		while (position + RECORD_HEADER_SIZE <= size) {
+			final int payloadLength = in.readInt();
+			final int expectedChecksum = in.readInt();
+
+			if (payloadLength < 1 || position + RECORD_HEADER_SIZE + payloadLength > size) {
+				break;
+			}
+
+			final byte[] payload = new byte[payloadLength];
+			in.readFully(payload);
+
+			checksum.reset();
+			checksum.update(payload, 0, payloadLength);
+
+			if ((int) checksum.getValue() != expectedChecksum) {
+				break;
+			}
+
+			final int length = RECORD_HEADER_SIZE + payloadLength;
+			final ByteBuffer buffer = ByteBuffer.wrap(payload);
+			final byte type = buffer.get();
+			final String collectionName = readString(buffer);
+			final byte[] id = new byte[buffer.getInt()];
+			buffer.get(id);
+
+			if (type == RECORD_PUT) {
+				mGarbageBytes += getOrCreateDirectory(collectionName).put(id, position, length, 0);
+			}
+			else if (type == RECORD_DELETE) {
+				final KeyDirectory directory = mCollections.get(collectionName);
+
+				mGarbageBytes += length;
+				if (directory != null) {
+					mGarbageBytes += directory.remove(id);
+				}
+			}
+			else {
+				throw new IOException("Unknown record type `"+type+"` in database log");
+			}
+
+			position += length;
+		}
+
+		if (position < size) {
+			Meteor.log(TAG);
+			Meteor.log("  Discarding "+(size - position)+" bytes of incomplete records at the end of the log");
+
+			mChannel.truncate(position);
+		}
+
+		mFlushedLength = position;
+	}
+
+	/**
+	 * Restores the key directory from the index file if it matches the current log
+	 *
+	 * @return the position in the log up to which the records are covered by the index
+	 * @throws IOException if the index file could not be read
+	 */
+	private long readIndex() throws IOException {
+		if (!mIndexFile.isFile()) {
+			return HEADER_SIZE;
+		}
+
+		final FileInputStream in = new FileInputStream(mIndexFile);
+
+		try {
+			final FileChannel channel = in.getChannel();
+			final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			// an index that has been written for an earlier generation of the log cannot be used
+			if (buffer.getInt() != INDEX_MAGIC || buffer.getInt() != INDEX_VERSION || buffer.getLong() != mGeneration) {
+				return HEADER_SIZE;
+			}
+
+			final long coveredLength = buffer.getLong();
+			if (coveredLength > mChannel.size()) {
+				return HEADER_SIZE;
+			}
+
+			mGarbageBytes = buffer.getLong();
+
+			final int numCollections = buffer.getInt();
+			for (int i = 0; i < numCollections; i++) {
+				getOrCreateDirectory(readString(buffer)).read(buffer);
+			}
+
+			return coveredLength;
+		}
+		catch (BufferUnderflowException e) {
+			Meteor.log(TAG);
+			Meteor.log("  Ignoring truncated index `"+mIndexFile+"`");
+
+			mCollections.clear();
+			mGarbageBytes = 0;
+
+			return HEADER_SIZE;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the key directory to the index file
+	 *
+	 * @throws IOException if the index file could not be written
+	 */
+	private void writeIndex() throws IOException {
+		flushBuffer();
+
+		final File temporaryFile = new File(mIndexFile.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), WRITE_BUFFER_SIZE));
+
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(mGeneration);
+			out.writeLong(mFlushedLength);
+			out.writeLong(mGarbageBytes);
+			out.writeInt(mCollections.size());
+
+			for (Map.Entry<String, KeyDirectory> collection : mCollections.entrySet()) {
+				writeString(out, collection.getKey());
+				collection.getValue().write(out);
+			}
+		}
+		finally {
+			out.close();
+		}
+
+		replaceFile(temporaryFile, mIndexFile);
+	}
+
+	/**
+	 * Returns the key directory of the collection with the specified name and creates it first if necessary
+	 *
+	 * @param collectionName the name of the collection
+	 * @return the key directory (never `null`)
+	 */
+	private KeyDirectory getOrCreateDirectory(final String collectionName) {
+		KeyDirectory directory = mCollections.get(collectionName);
+
+		if (directory == null) {
+			directory = new KeyDirectory(16, 0);
+			mCollections.put(collectionName, directory);
+		}
+
+		return directory;
+	}
+
+	/** Throws an exception if the database has been closed */
+	private void checkOpen() {
+		if (mFile == null) {
+			throw new IllegalStateException("The database has been closed");
+		}
+	}
+
+	private static String getCacheKey(final String collectionName, final String documentId) {
+		return collectionName + '\u0000' + documentId;
+	}
+
+	private static IllegalStateException fail(final String message, final IOException cause) {
+		Meteor.log(TAG);
+		Meteor.log("  "+message);
+
+		return new IllegalStateException(message, cause);
+	}
+
+	private static void replaceFile(final File source, final File target) throws IOException {
+		if (!source.renameTo(target)) {
+			// some file systems do not allow to replace existing files by renaming
+			if (!target.delete() || !source.renameTo(target)) {
+				throw new IOException("Could not replace file `"+target+"`");
+			}
+		}
+	}
+
+	private static void writeString(final DataOutputStream out, final String value) throws IOException {
+		final byte[] bytes = value.getBytes(UTF_8);
+
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(final ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+
+		return new String(bytes, UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return "DiskDatabase("+mDirectory+")";
+	}
+
+	/** The documents of a collection, which are read from the log one after another */
+	private final class CollectionSource implements DocumentSource {
+
+		private final String mCollectionName;
+
+		public CollectionSource(final String collectionName) {
+			mCollectionName = collectionName;
+		}
+
+		@Override
+		public int size() {
+			return countDocuments(mCollectionName);
+		}
+
+		@Override
+		public Lock getReadLock() {
+			return mScanLock.readLock();
+		}
+
+		@Override
+		public Iterator<Document> iterator() {
+			synchronized (mLock) {
+				checkOpen();
+
+				final KeyDirectory directory = mCollections.get(mCollectionName);
+
+				if (directory == null) {
+					return Collections.<Document>emptyList().iterator();
+				}
+
+				try {
+					// all records that are read must be in the file
+					flushBuffer();
+				}
+				catch (IOException e) {
+					throw fail("Could not read collection `"+mCollectionName+"`", e);
+				}
+
+				return new DocumentIterator(mCollectionName, directory);
+			}
+		}
+
+	}
+
+	/**
+	 * Iterator over the documents that have been in a collection when the iterator has been created, in the order of their records
+	 *
+	 * Consecutive records are read from the log in blocks of {@link #READ_AHEAD_SIZE} bytes, and the documents are only decoded when they are returned
+	 */
+	private final class DocumentIterator implements Iterator<Document> {
+
+		/** The maximum number of records per block */
+		private static final int MAX_BLOCK_RECORDS = 256;
+		private final String mCollectionName;
+		private final KeyDirectory mDirectory;
+		/** The number of entries in the key directory when the iterator has been created */
+		private final int mEnd;
+		/** The sequence number of the key directory when the iterator has been created */
+		private final long mSequence;
+		/** The generation of the log when the iterator has been created */
+		private final long mLogGeneration;
+		/** The positions of the records in the current block */
+		private final int[] mStarts;
+		/** The lengths of the records in the current block */
+		private final int[] mLengths;
+		/** The versions of the records in the current block */
+		private final long[] mVersions;
+		/** The current block */
+		private ByteBuffer mBlock;
+		/** The number of records in the current block */
+		private int mBlockSize;
+		/** The next record in the current block */
+		private int mBlockPosition;
+		/** The next entry of the key directory to read */
+		private int mPosition;
+
+		public DocumentIterator(final String collectionName, final KeyDirectory directory) {
+			mCollectionName = collectionName;
+			mDirectory = directory;
+			mEnd = directory.getEnd();
+			mSequence = directory.getSequence();
+			mLogGeneration = mGeneration;
+			mStarts = new int[MAX_BLOCK_RECORDS];
+			mLengths = new int[MAX_BLOCK_RECORDS];
+			mVersions = new long[MAX_BLOCK_RECORDS];
+			mBlock = ByteBuffer.allocate(READ_AHEAD_SIZE);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return mBlockPosition < mBlockSize || readBlock();
+		}
+
+		@Override
+		public Document next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			final int i = mBlockPosition++;
+			final byte[] record = mBlock.array();
+			final ByteBuffer buffer = ByteBuffer.wrap(record, mStarts[i] + RECORD_HEADER_SIZE + 1, mLengths[i] - RECORD_HEADER_SIZE - 1);
+
+			// skip the name of the collection
+			buffer.position(buffer.position() + 4 + buffer.getInt());
+
+			final String documentId = readString(buffer);
+
+			try {
+				return new DiskDocument(documentId, mObjectMapper.readValue(record, buffer.position(), mStarts[i] + mLengths[i] - buffer.position(), Fields.class), mVersions[i]);
+			}
+			catch (IOException e) {
+				throw fail("Could not read document `"+documentId+"` from collection `"+mCollectionName+"`", e);
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Reads the next block of records that have been live when the iterator has been created
+		 *
+		 * @return whether any records have been read
+		 */
+		private boolean readBlock() {
+			synchronized (mLock) {
+				checkOpen();
+
+				// the positions of the records are only valid for the same log
+				if (mGeneration != mLogGeneration) {
+					throw new ConcurrentModificationException("The log has been compacted while reading collection `"+mCollectionName+"`");
+				}
+
+				long blockOffset = -1;
+				int blockLength = 0;
+				mBlockSize = 0;
+				mBlockPosition = 0;
+
+				while (mPosition < mEnd && mBlockSize < MAX_BLOCK_RECORDS) {
+					if (mDirectory.isLiveAt(mPosition, mSequence)) {
+						final long offset = mDirectory.getOffset(mPosition);
+						final int length = mDirectory.getLength(mPosition);
+
+						if (blockOffset < 0) {
+							blockOffset = offset;
+
+							// a single record may be larger than a block
+							if (length > mBlock.capacity()) {
+								mBlock = ByteBuffer.allocate(length);
+							}
+						}
+						else if (offset < blockOffset + blockLength || offset + length > blockOffset + mBlock.capacity()) {
+							break;
+						}
+
+						mStarts[mBlockSize] = (int) (offset - blockOffset);
+						mLengths[mBlockSize] = length;
+						mVersions[mBlockSize] = mDirectory.getVersion(mPosition);
+						mBlockSize++;
+						blockLength = (int) (offset + length - blockOffset);
+					}
+
+					mPosition++;
+				}
+
+				if (mBlockSize == 0) {
+					return false;
+				}
+
+				try {
+					mBlock.clear();
+					mBlock.limit(blockLength);
+					readFully(mBlock, blockOffset);
+				}
+				catch (IOException e) {
+					throw fail("Could not read collection `"+mCollectionName+"`", e);
+				}
+
+				return true;
+			}
+		}
+
+	}
+
+	/** Cache that keeps the most recently used documents and discards the least recently used ones */
+	private static final class DocumentCache extends LinkedHashMap<String, DiskDocument> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int mMaxSize;
+
+		public DocumentCache(final int maxSize) {
+			super(16, 0.75f, true);
+			mMaxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, DiskDocument> eldest) {
+			return size() > mMaxSize;
+		}
+
+	}
+
+}
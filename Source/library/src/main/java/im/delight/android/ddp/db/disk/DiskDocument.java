@@ -0,0 +1,105 @@
+package im.delight.android.ddp.db.disk;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.memory.InMemoryQuery;
+
+/** Document that has been read from the log of a disk-backed database */
+final class DiskDocument implements Document {
+
+	/** The ID of the document */
+	private final String mId;
+	/** The fields of the document (must not be modified) */
+	private final Fields mFields;
+	/** The version of the collection when the document has been written */
+	private final long mVersion;
+
+	/**
+	 * Creates a new document that has been read from disk
+	 *
+	 * @param id the ID of the document
+	 * @param fields the fields of the document which are not copied and must not be modified afterwards
+	 * @param version the version of the collection when the document has been written
+	 */
+	DiskDocument(final String id, final Fields fields, final long version) {
+		mId = id;
+		mFields = fields;
+		mVersion = version;
+	}
+
+	@Override
+	public String getId() {
+		return mId;
+	}
+
+	@Override
+	public long getVersion() {
+		return mVersion;
+	}
+
+	@Override
+	public Object getField(final String name) {
+		return mFields.get(name);
+	}
+
+	@Override
+	public double getDouble(final String name) {
+		return InMemoryQuery.coerceNumber(mFields.get(name));
+	}
+
+	@Override
+	public long getLong(final String name) {
+		final Object value = mFields.get(name);
+
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			return ((Number) value).longValue();
+		}
+		else {
+			return (long) InMemoryQuery.coerceNumber(value);
+		}
+	}
+
+	@Override
+	public String[] getFieldNames() {
+		return mFields.keySet().toArray(new String[mFields.size()]);
+	}
+
+	@Override
+	public int count() {
+		return mFields.size();
+	}
+
+	/**
+	 * Returns a copy of the fields of this document
+	 *
+	 * @return the copy that may be modified
+	 */
+	Fields copyFields() {
+		final Fields fields = new Fields();
+		fields.putAll(mFields);
+
+		return fields;
+	}
+
+	@Override
+	public String toString() {
+		return mFields.toString();
+	}
+
+}
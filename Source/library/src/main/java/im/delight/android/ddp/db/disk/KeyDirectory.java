@@ -0,0 +1,588 @@
+package im.delight.android.ddp.db.disk;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Positions of the latest records of all documents in a collection, found by the IDs of the documents
+ *
+ * The entries and the IDs are stored outside of the Java heap in direct buffers, in the order in which the records have been appended to the log, and a hash table of entry numbers finds them by their IDs
+ *
+ * Superseded entries are only marked with the sequence number of the change that removed them, so that scans which have started before still see them, and are discarded by {@link #vacuum()}
+ *
+ * All methods must be called while holding the lock of the database
+ */
+final class KeyDirectory {
+
+	/** The sequence number of entries that have not been removed */
+	private static final long LIVE = Long.MAX_VALUE;
+	private static final int MIN_CAPACITY = 16;
+	/** The number of bytes per entry */
+	private static final int ENTRY_SIZE = 40;
+	/** The position of the record in the log (`long`) */
+	private static final int OFFSET = 0;
+	/** The length of the record including its header (`int`) */
+	private static final int LENGTH = 8;
+	/** The hash of the ID (`int`) */
+	private static final int HASH = 12;
+	/** The version of the collection when the record has been written (`long`) */
+	private static final int VERSION = 16;
+	/** The sequence number of the change that has removed the entry or {@link #LIVE} (`long`) */
+	private static final int REMOVED = 24;
+	/** The position of the ID in the buffer of IDs (`int`) */
+	private static final int ID_OFFSET = 32;
+	/** The length of the ID in bytes (`int`) */
+	private static final int ID_LENGTH = 36;
+	/** The minimum number of removed entries before they are worth discarding */
+	private static final int MIN_VACUUM_ENTRIES = 1024;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	/** The entries in the order of their records */
+	private ByteBuffer mEntries;
+	/** The number of entries including removed ones */
+	private int mEnd;
+	/** The IDs of the entries as UTF-8 */
+	private ByteBuffer mIds;
+	/** The number of bytes used in the buffer of IDs */
+	private int mIdsLength;
+	/** The numbers of the live entries plus one in all slots or zero for empty slots */
+	private ByteBuffer mTable;
+	/** The number of slots in the hash table minus one */
+	private int mMask;
+	/** The number of live entries */
+	private int mSize;
+	/** The number of entries that have been removed */
+	private int mRemoved;
+	/** The number of changes since the directory has been created */
+	private long mSequence;
+	/** The number of modifications of the collection since the database has been opened */
+	private long mVersion;
+
+	/**
+	 * Creates a new empty directory
+	 *
+	 * @param expectedSize the number of documents that the directory should have room for
+	 * @param version the number of modifications of the collection so far
+	 */
+	KeyDirectory(final int expectedSize, final long version) {
+		final int capacity = Math.max(MIN_CAPACITY, expectedSize);
+
+		mVersion = version;
+
+		mEntries = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE);
+		mIds = ByteBuffer.allocateDirect(capacity * 24);
+		allocateTable(capacity);
+	}
+
+	/**
+	 * Returns the number of live entries
+	 *
+	 * @return the count
+	 */
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * Returns the number of modifications of the collection since the database has been opened
+	 *
+	 * @return the version
+	 */
+	long getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * Increments the version of the collection
+	 *
+	 * @return the new version
+	 */
+	long incrementVersion() {
+		return ++mVersion;
+	}
+
+	/**
+	 * Returns the number of entries including removed ones, which is where entries that are added later start
+	 *
+	 * @return the number of entries
+	 */
+	int getEnd() {
+		return mEnd;
+	}
+
+	/**
+	 * Returns the sequence number of the latest change, which tells which entries have been live at this point
+	 *
+	 * @return the sequence number
+	 */
+	long getSequence() {
+		return mSequence;
+	}
+
+	/**
+	 * Returns the entry for the specified ID
+	 *
+	 * @param id the ID as UTF-8
+	 * @return the number of the entry or `-1`
+	 */
+	int find(final byte[] id) {
+		final int slot = findSlot(id, hash(id));
+
+		return slot < 0 ? -1 : getEntry(slot);
+	}
+
+	/**
+	 * Adds an entry for the specified ID and marks the previous entry for that ID as removed
+	 *
+	 * @param id the ID as UTF-8
+	 * @param offset the position of the record in the log
+	 * @param length the length of the record
+	 * @param version the version of the collection when the record has been written
+	 * @return the length of the superseded record or `0`
+	 */
+	int put(final byte[] id, final long offset, final int length, final long version) {
+		final int hash = hash(id);
+		final int slot = findSlot(id, hash);
+
+		mSequence++;
+
+		if (slot >= 0) {
+			final int previous = getEntry(slot);
+			final int entry = append(hash, offset, length, version, mEntries.getInt(previous * ENTRY_SIZE + ID_OFFSET), id.length);
+
+			// the slot is taken over by the new entry that has the same ID
+			mTable.putInt(slot * 4, entry + 1);
+
+			return markRemoved(previous);
+		}
+
+		final int idOffset = appendId(ByteBuffer.wrap(id));
+		insert(append(hash, offset, length, version, idOffset, id.length));
+
+		return 0;
+	}
+
+	/**
+	 * Marks the entry for the specified ID as removed
+	 *
+	 * @param id the ID as UTF-8
+	 * @return the length of the removed record or `0` if there has been no entry
+	 */
+	int remove(final byte[] id) {
+		int slot = findSlot(id, hash(id));
+
+		if (slot < 0) {
+			return 0;
+		}
+
+		mSequence++;
+
+		final int length = markRemoved(getEntry(slot));
+		mTable.putInt(slot * 4, 0);
+		mSize--;
+
+		// move following entries back so that no lookup stops at the new gap too early
+		int index = slot;
+
+		while (true) {
+			index = (index + 1) & mMask;
+
+			final int entry = getEntry(index);
+
+			if (entry < 0) {
+				break;
+			}
+
+			final int home = mEntries.getInt(entry * ENTRY_SIZE + HASH) & mMask;
+			final boolean reachable = slot <= index ? (slot < home && home <= index) : (slot < home || home <= index);
+
+			if (!reachable) {
+				mTable.putInt(slot * 4, entry + 1);
+				mTable.putInt(index * 4, 0);
+				slot = index;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Returns whether the specified entry has not been removed
+	 *
+	 * @param entry the number of the entry
+	 * @return whether the entry is live
+	 */
+	boolean isLive(final int entry) {
+		return mEntries.getLong(entry * ENTRY_SIZE + REMOVED) == LIVE;
+	}
+
+	/**
+	 * Returns whether the specified entry has been live after the change with the given sequence number
+	 *
+	 * @param entry the number of the entry
+	 * @param sequence the sequence number as returned by {@link #getSequence()}
+	 * @return whether the entry has been live at that point
+	 */
+	boolean isLiveAt(final int entry, final long sequence) {
+		return mEntries.getLong(entry * ENTRY_SIZE + REMOVED) > sequence;
+	}
+
+	long getOffset(final int entry) {
+		return mEntries.getLong(entry * ENTRY_SIZE + OFFSET);
+	}
+
+	int getLength(final int entry) {
+		return mEntries.getInt(entry * ENTRY_SIZE + LENGTH);
+	}
+
+	long getVersion(final int entry) {
+		return mEntries.getLong(entry * ENTRY_SIZE + VERSION);
+	}
+
+	/**
+	 * Returns the ID of the specified entry
+	 *
+	 * @param entry the number of the entry
+	 * @return the ID
+	 */
+	String getId(final int entry) {
+		final byte[] id = new byte[mEntries.getInt(entry * ENTRY_SIZE + ID_LENGTH)];
+		final ByteBuffer ids = mIds.duplicate();
+		ids.position(mEntries.getInt(entry * ENTRY_SIZE + ID_OFFSET));
+		ids.get(id);
+
+		return new String(id, UTF_8);
+	}
+
+	/**
+	 * Copies a live entry from another directory, e.g. after its record has been moved to a new log
+	 *
+	 * @param source the directory to copy from
+	 * @param entry the number of the entry in the other directory
+	 * @param offset the new position of the record
+	 */
+	void copy(final KeyDirectory source, final int entry, final long offset) {
+		final int idLength = source.mEntries.getInt(entry * ENTRY_SIZE + ID_LENGTH);
+		final ByteBuffer id = source.mIds.duplicate();
+		id.position(source.mEntries.getInt(entry * ENTRY_SIZE + ID_OFFSET));
+		id.limit(id.position() + idLength);
+
+		final int idOffset = appendId(id);
+		insert(append(source.mEntries.getInt(entry * ENTRY_SIZE + HASH), offset, source.getLength(entry), source.getVersion(entry), idOffset, idLength));
+	}
+
+	/**
+	 * Returns whether removed entries make up at least half of all entries so that {@link #vacuum()} should be called
+	 *
+	 * @return whether the directory should be vacuumed
+	 */
+	boolean needsVacuum() {
+		return mRemoved >= MIN_VACUUM_ENTRIES && mRemoved >= mSize;
+	}
+
+	/**
+	 * Discards all removed entries and the IDs that are not used anymore
+	 *
+	 * This changes the numbers of the entries and must not be called while any scan is running
+	 */
+	void vacuum() {
+		final ByteBuffer entries = mEntries;
+		final ByteBuffer ids = mIds;
+		final int end = mEnd;
+
+		mEntries = ByteBuffer.allocateDirect(Math.max(MIN_CAPACITY, mSize) * ENTRY_SIZE);
+		mIds = ByteBuffer.allocateDirect(Math.max(mIdsLength / Math.max(1, end) * mSize, MIN_CAPACITY));
+		mEnd = 0;
+		mIdsLength = 0;
+		mSize = 0;
+		mRemoved = 0;
+		allocateTable(mEntries.capacity() / ENTRY_SIZE);
+
+		for (int i = 0; i < end; i++) {
+			if (entries.getLong(i * ENTRY_SIZE + REMOVED) == LIVE) {
+				final int idLength = entries.getInt(i * ENTRY_SIZE + ID_LENGTH);
+				final ByteBuffer id = ids.duplicate();
+				id.position(entries.getInt(i * ENTRY_SIZE + ID_OFFSET));
+				id.limit(id.position() + idLength);
+
+				final int idOffset = appendId(id);
+				insert(append(entries.getInt(i * ENTRY_SIZE + HASH), entries.getLong(i * ENTRY_SIZE + OFFSET), entries.getInt(i * ENTRY_SIZE + LENGTH), entries.getLong(i * ENTRY_SIZE + VERSION), idOffset, idLength));
+			}
+		}
+	}
+
+	/**
+	 * Writes the positions and IDs of all live entries in the format that is read by {@link #read(ByteBuffer)}
+	 *
+	 * @param out the stream to write to
+	 * @throws IOException if the entries could not be written
+	 */
+	void write(final DataOutputStream out) throws IOException {
+		final byte[] id = new byte[256];
+		final ByteBuffer ids = mIds.duplicate();
+
+		out.writeInt(mSize);
+
+		for (int i = 0; i < mEnd; i++) {
+			if (isLive(i)) {
+				final int idLength = mEntries.getInt(i * ENTRY_SIZE + ID_LENGTH);
+				final byte[] buffer = idLength <= id.length ? id : new byte[idLength];
+				ids.position(mEntries.getInt(i * ENTRY_SIZE + ID_OFFSET));
+				ids.get(buffer, 0, idLength);
+
+				out.writeLong(getOffset(i));
+				out.writeInt(getLength(i));
+				out.writeInt(idLength);
+				out.write(buffer, 0, idLength);
+			}
+		}
+	}
+
+	/**
+	 * Adds the entries that have been written by {@link #write(DataOutputStream)}, copying the IDs directly from the given buffer
+	 *
+	 * @param buffer the buffer to read from
+	 * @throws BufferUnderflowException if the buffer ends too early
+	 */
+	void read(final ByteBuffer buffer) {
+		final int count = buffer.getInt();
+
+		// make room for all entries at once instead of growing the buffers and the table repeatedly
+		if (count > 0 && (long) mEnd + count <= Integer.MAX_VALUE / ENTRY_SIZE) {
+			mEntries = grow(mEntries, mEnd * ENTRY_SIZE, (mEnd + count) * ENTRY_SIZE);
+
+			if ((mSize + count) * 2 > mMask + 1) {
+				allocateTable(mSize + count);
+
+				for (int i = 0; i < mEnd; i++) {
+					if (isLive(i)) {
+						insertIntoTable(i);
+					}
+				}
+			}
+		}
+
+		for (int i = 0; i < count; i++) {
+			final long offset = buffer.getLong();
+			final int length = buffer.getInt();
+			final int idLength = buffer.getInt();
+
+			if (idLength < 0 || idLength > buffer.remaining()) {
+				throw new BufferUnderflowException();
+			}
+
+			final ByteBuffer id = buffer.slice();
+			id.limit(idLength);
+			buffer.position(buffer.position() + idLength);
+
+			final int idOffset = appendId(id);
+			final int hash = hash(mIds, idOffset, idLength);
+
+			// the IDs in the index are unique so that they do not have to be looked up first
+			insert(append(hash, offset, length, 0, idOffset, idLength));
+		}
+	}
+
+	private int getEntry(final int slot) {
+		return mTable.getInt(slot * 4) - 1;
+	}
+
+	/**
+	 * Returns the slot containing the live entry for the specified ID
+	 *
+	 * @param id the ID as UTF-8
+	 * @param hash the hash of the ID
+	 * @return the slot or `-1`
+	 */
+	private int findSlot(final byte[] id, final int hash) {
+		int index = hash & mMask;
+		int entry;
+
+		while ((entry = getEntry(index)) >= 0) {
+			if (mEntries.getInt(entry * ENTRY_SIZE + HASH) == hash && hasId(entry, id)) {
+				return index;
+			}
+
+			index = (index + 1) & mMask;
+		}
+
+		return -1;
+	}
+
+	private boolean hasId(final int entry, final byte[] id) {
+		if (mEntries.getInt(entry * ENTRY_SIZE + ID_LENGTH) != id.length) {
+			return false;
+		}
+
+		final int idOffset = mEntries.getInt(entry * ENTRY_SIZE + ID_OFFSET);
+
+		for (int i = 0; i < id.length; i++) {
+			if (mIds.get(idOffset + i) != id[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds the specified live entry to the hash table
+	 *
+	 * @param entry the number of the entry
+	 */
+	private void insert(final int entry) {
+		if ((mSize + 1) * 2 > mMask + 1) {
+			allocateTable(mSize + 1);
+
+			for (int i = 0; i < mEnd; i++) {
+				if (i != entry && isLive(i)) {
+					insertIntoTable(i);
+				}
+			}
+		}
+
+		insertIntoTable(entry);
+		mSize++;
+	}
+
+	private void insertIntoTable(final int entry) {
+		int index = mEntries.getInt(entry * ENTRY_SIZE + HASH) & mMask;
+
+		while (getEntry(index) >= 0) {
+			index = (index + 1) & mMask;
+		}
+
+		mTable.putInt(index * 4, entry + 1);
+	}
+
+	/**
+	 * Replaces the hash table with an empty one that has room for the given number of entries
+	 *
+	 * @param capacity the number of entries
+	 */
+	private void allocateTable(final int capacity) {
+		int slots = MIN_CAPACITY * 2;
+
+		while (slots < capacity * 2) {
+			slots *= 2;
+		}
+
+		// direct buffers are initialized with zeros, i.e. empty slots
+		mTable = ByteBuffer.allocateDirect(slots * 4);
+		mMask = slots - 1;
+	}
+
+	private int append(final int hash, final long offset, final int length, final long version, final int idOffset, final int idLength) {
+		if ((mEnd + 1) * ENTRY_SIZE > mEntries.capacity()) {
+			mEntries = grow(mEntries, mEnd * ENTRY_SIZE, (mEnd + 1) * ENTRY_SIZE);
+		}
+
+		final int position = mEnd * ENTRY_SIZE;
+		mEntries.putLong(position + OFFSET, offset);
+		mEntries.putInt(position + LENGTH, length);
+		mEntries.putInt(position + HASH, hash);
+		mEntries.putLong(position + VERSION, version);
+		mEntries.putLong(position + REMOVED, LIVE);
+		mEntries.putInt(position + ID_OFFSET, idOffset);
+		mEntries.putInt(position + ID_LENGTH, idLength);
+
+		return mEnd++;
+	}
+
+	/**
+	 * Copies the remaining bytes of the given buffer to the end of the buffer of IDs
+	 *
+	 * @param id the ID as UTF-8
+	 * @return the position of the ID
+	 */
+	private int appendId(final ByteBuffer id) {
+		final int length = id.remaining();
+
+		if (mIdsLength + length > mIds.capacity()) {
+			mIds = grow(mIds, mIdsLength, mIdsLength + length);
+		}
+
+		final ByteBuffer target = mIds.duplicate();
+		target.position(mIdsLength);
+		target.put(id);
+
+		final int idOffset = mIdsLength;
+		mIdsLength += length;
+
+		return idOffset;
+	}
+
+	private int markRemoved(final int entry) {
+		mEntries.putLong(entry * ENTRY_SIZE + REMOVED, mSequence);
+		mRemoved++;
+
+		return getLength(entry);
+	}
+
+	/**
+	 * Copies the used part of a buffer to a new buffer with at least twice the capacity
+	 *
+	 * @param buffer the buffer to copy
+	 * @param used the number of bytes in use
+	 * @param required the number of bytes required
+	 * @return the new buffer
+	 */
+	private static ByteBuffer grow(final ByteBuffer buffer, final int used, final int required) {
+		final ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, Math.max(required, buffer.capacity() * 2L)));
+		final ByteBuffer source = buffer.duplicate();
+		source.position(0);
+		source.limit(used);
+		grown.put(source);
+
+		return grown;
+	}
+
+	/**
+	 * Returns the hash of an ID that is stored in a buffer
+	 *
+	 * @param id the buffer containing the ID as UTF-8
+	 * @param offset the position of the ID
+	 * @param length the length of the ID
+	 * @return the hash
+	 */
+	private static int hash(final ByteBuffer id, final int offset, final int length) {
+		// the same as `Arrays.hashCode(byte[])`
+		int hash = 1;
+
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + id.get(offset + i);
+		}
+
+		return spread(hash);
+	}
+
+	private static int hash(final byte[] id) {
+		return spread(Arrays.hashCode(id));
+	}
+
+	private static int spread(final int hashCode) {
+		final int hash = hashCode * 0x9E3779B9;
+
+		return hash ^ (hash >>> 16);
+	}
+
+}
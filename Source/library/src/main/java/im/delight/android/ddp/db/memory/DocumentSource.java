@@ -0,0 +1,45 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.db.Document;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Documents of a collection that is not stored in memory, which queries read one after another instead of loading them all
+ *
+ * @see InMemoryQuery#scan(String, DocumentSource)
+ */
+public interface DocumentSource extends Iterable<Document> {
+
+	/**
+	 * Returns the number of documents
+	 *
+	 * @return the count
+	 */
+	int size();
+
+	/**
+	 * Returns the lock that is held while a query reads the documents
+	 *
+	 * The lock must be reentrant and the documents returned by an iterator that has been created while the lock is held must not change until the lock is released
+	 *
+	 * @return the lock
+	 */
+	Lock getReadLock();
+
+}
@@ -0,0 +1,478 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable table of the documents in a collection by their IDs, which iterates the documents in their insertion order
+ *
+ * Adding or removing a document returns a new table that shares all unchanged parts with the previous one, so a table can be handed to snapshots, cursors and other threads without copying, while the cost of each modification only grows logarithmically with the number of documents
+ *
+ * The documents are kept in two tries with 32 branches per node: one by the hash codes of their IDs for lookups and one by their insertion sequence for iteration
+ */
+final class DocumentTable extends AbstractCollection<InMemoryDocument> {
+
+	/** The number of bits of a key that select the branch on each level */
+	private static final int BITS = 5;
+	/** The mask for the bits that select the branch on each level */
+	private static final int MASK = (1 << BITS) - 1;
+	/** The shift of the lowest level of the trie by sequence, which is the level that holds the entries */
+	private static final int LEAF_SHIFT = 0;
+	/** The table without any documents */
+	public static final DocumentTable EMPTY = new DocumentTable(Node.EMPTY, Node.EMPTY, LEAF_SHIFT, 0, 0);
+	/** The trie by the hash codes of the IDs */
+	private final Node mIds;
+	/** The trie by the insertion sequence */
+	private final Node mOrder;
+	/** The shift of the root level of the trie by sequence, which grows with the number of insertions */
+	private final int mOrderShift;
+	/** The number of documents */
+	private final int mSize;
+	/** The sequence that is assigned to the next new document */
+	private final int mNextSequence;
+
+	private DocumentTable(final Node ids, final Node order, final int orderShift, final int size, final int nextSequence) {
+		mIds = ids;
+		mOrder = order;
+		mOrderShift = orderShift;
+		mSize = size;
+		mNextSequence = nextSequence;
+	}
+
+	/**
+	 * Returns the document with the specified ID
+	 *
+	 * @param id the ID of the document
+	 * @return the document or `null`
+	 */
+	public InMemoryDocument get(final String id) {
+		final Entry entry = getEntry(id);
+
+		return entry != null ? entry.mDocument : null;
+	}
+
+	/**
+	 * Returns a table that contains the given document in addition to the documents of this table
+	 *
+	 * A document with the same ID is replaced and the new document takes its position in the insertion order
+	 *
+	 * @param document the document to add
+	 * @return the new table
+	 */
+	public DocumentTable with(final InMemoryDocument document) {
+		final Entry existing = getEntry(document.getId());
+
+		if (existing != null) {
+			final Entry entry = new Entry(document, existing.mSequence);
+
+			return new DocumentTable(putId(mIds, 0, hash(document.getId()), entry), putOrder(mOrder, mOrderShift, entry), mOrderShift, mSize, mNextSequence);
+		}
+
+		// start over with consecutive sequences once all sequences have been used
+		if (mNextSequence == Integer.MAX_VALUE) {
+			return renumber().with(document);
+		}
+
+		final Entry entry = new Entry(document, mNextSequence);
+		Node order = mOrder;
+		int orderShift = mOrderShift;
+
+		// add a level above the root once the sequence does not fit into the trie anymore
+		if (orderShift + BITS < Integer.SIZE && (mNextSequence >>> (orderShift + BITS)) != 0) {
+			order = order.mChildren.length == 0 ? Node.EMPTY : new Node(1, new Object[] { order });
+			orderShift += BITS;
+		}
+
+		return new DocumentTable(putId(mIds, 0, hash(document.getId()), entry), putOrder(order, orderShift, entry), orderShift, mSize + 1, mNextSequence + 1);
+	}
+
+	/**
+	 * Returns a table that contains the documents of this table except for the document with the specified ID
+	 *
+	 * @param id the ID of the document to remove
+	 * @return the new table or this table if it does not contain the document
+	 */
+	public DocumentTable without(final String id) {
+		final Entry existing = getEntry(id);
+
+		if (existing == null) {
+			return this;
+		}
+
+		return new DocumentTable(removeId(mIds, 0, hash(id), id), removeOrder(mOrder, mOrderShift, existing.mSequence), mOrderShift, mSize - 1, mNextSequence);
+	}
+
+	@Override
+	public int size() {
+		return mSize;
+	}
+
+	@Override
+	public Iterator<InMemoryDocument> iterator() {
+		return new EntryIterator(mOrder);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		builder.append('{');
+
+		for (InMemoryDocument document : this) {
+			if (builder.length() > 1) {
+				builder.append(", ");
+			}
+
+			builder.append(document.getId());
+			builder.append('=');
+			builder.append(document);
+		}
+
+		builder.append('}');
+
+		return builder.toString();
+	}
+
+	private Entry getEntry(final String id) {
+		final int hash = hash(id);
+		Node node = mIds;
+
+		for (int shift = 0; shift < Integer.SIZE; shift += BITS) {
+			final int bit = 1 << ((hash >>> shift) & MASK);
+
+			if ((node.mBitmap & bit) == 0) {
+				return null;
+			}
+
+			final Object child = node.mChildren[node.indexOf(bit)];
+
+			if (child instanceof Entry) {
+				final Entry entry = (Entry) child;
+
+				return entry.mDocument.getId().equals(id) ? entry : null;
+			}
+
+			node = (Node) child;
+		}
+
+		// all bits of the hash code have been used, so the node is a list of entries with equal hash codes
+		for (Object child : node.mChildren) {
+			final Entry entry = (Entry) child;
+
+			if (entry.mDocument.getId().equals(id)) {
+				return entry;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns a copy of this table where the documents have consecutive sequences again
+	 *
+	 * @return the new table
+	 */
+	private DocumentTable renumber() {
+		DocumentTable table = EMPTY;
+
+		for (InMemoryDocument document : this) {
+			table = table.with(document);
+		}
+
+		return table;
+	}
+
+	private static int hash(final String id) {
+		final int hash = id.hashCode();
+
+		// spread the higher bits as the lower bits select the branches near the root
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Returns a copy of the given node of the trie by hash code with the given entry added or replaced
+	 *
+	 * @param node the node
+	 * @param shift the shift of the level of the node
+	 * @param hash the hash code of the ID of the entry
+	 * @param entry the entry
+	 * @return the new node
+	 */
+	private static Node putId(final Node node, final int shift, final int hash, final Entry entry) {
+		if (shift >= Integer.SIZE) {
+			for (int i = 0; i < node.mChildren.length; i++) {
+				if (((Entry) node.mChildren[i]).mDocument.getId().equals(entry.mDocument.getId())) {
+					return node.replace(i, entry);
+				}
+			}
+
+			return node.insert(0, node.mChildren.length, entry);
+		}
+
+		final int bit = 1 << ((hash >>> shift) & MASK);
+		final int index = node.indexOf(bit);
+
+		if ((node.mBitmap & bit) == 0) {
+			return node.insert(bit, index, entry);
+		}
+
+		final Object child = node.mChildren[index];
+
+		if (child instanceof Entry) {
+			final Entry existing = (Entry) child;
+
+			if (existing.mDocument.getId().equals(entry.mDocument.getId())) {
+				return node.replace(index, entry);
+			}
+
+			// both entries move one level down, where they may still share a branch
+			final Node subtree = putId(putId(Node.EMPTY, shift + BITS, hash(existing.mDocument.getId()), existing), shift + BITS, hash, entry);
+
+			return node.replace(index, subtree);
+		}
+
+		return node.replace(index, putId((Node) child, shift + BITS, hash, entry));
+	}
+
+	/**
+	 * Returns a copy of the given node of the trie by hash code without the entry with the given ID, which must be present
+	 *
+	 * @param node the node
+	 * @param shift the shift of the level of the node
+	 * @param hash the hash code of the ID
+	 * @param id the ID of the entry
+	 * @return the new node
+	 */
+	private static Node removeId(final Node node, final int shift, final int hash, final String id) {
+		if (shift >= Integer.SIZE) {
+			for (int i = 0; i < node.mChildren.length; i++) {
+				if (((Entry) node.mChildren[i]).mDocument.getId().equals(id)) {
+					return node.remove(0, i);
+				}
+			}
+
+			return node;
+		}
+
+		final int bit = 1 << ((hash >>> shift) & MASK);
+		final int index = node.indexOf(bit);
+		final Object child = node.mChildren[index];
+
+		if (child instanceof Entry) {
+			return node.remove(bit, index);
+		}
+
+		final Node subtree = removeId((Node) child, shift + BITS, hash, id);
+
+		if (subtree.mChildren.length == 0) {
+			return node.remove(bit, index);
+		}
+		// a single remaining entry can be stored on any level above, which keeps the trie shallow
+		else if (subtree.mChildren.length == 1 && subtree.mChildren[0] instanceof Entry) {
+			return node.replace(index, subtree.mChildren[0]);
+		}
+		else {
+			return node.replace(index, subtree);
+		}
+	}
+
+	/**
+	 * Returns a copy of the given node of the trie by sequence with the given entry added or replaced
+	 *
+	 * @param node the node
+	 * @param shift the shift of the level of the node
+	 * @param entry the entry
+	 * @return the new node
+	 */
+	private static Node putOrder(final Node node, final int shift, final Entry entry) {
+		final int bit = 1 << ((entry.mSequence >>> shift) & MASK);
+		final int index = node.indexOf(bit);
+		final boolean present = (node.mBitmap & bit) != 0;
+
+		if (shift == LEAF_SHIFT) {
+			return present ? node.replace(index, entry) : node.insert(bit, index, entry);
+		}
+		else if (present) {
+			return node.replace(index, putOrder((Node) node.mChildren[index], shift - BITS, entry));
+		}
+		else {
+			return node.insert(bit, index, putOrder(Node.EMPTY, shift - BITS, entry));
+		}
+	}
+
+	/**
+	 * Returns a copy of the given node of the trie by sequence without the entry with the given sequence, which must be present
+	 *
+	 * @param node the node
+	 * @param shift the shift of the level of the node
+	 * @param sequence the sequence of the entry
+	 * @return the new node
+	 */
+	private static Node removeOrder(final Node node, final int shift, final int sequence) {
+		final int bit = 1 << ((sequence >>> shift) & MASK);
+		final int index = node.indexOf(bit);
+
+		if (shift == LEAF_SHIFT) {
+			return node.remove(bit, index);
+		}
+
+		final Node subtree = removeOrder((Node) node.mChildren[index], shift - BITS, sequence);
+
+		return subtree.mChildren.length == 0 ? node.remove(bit, index) : node.replace(index, subtree);
+	}
+
+	/** Document together with its position in the insertion order */
+	private static final class Entry {
+
+		private final InMemoryDocument mDocument;
+		private final int mSequence;
+
+		public Entry(final InMemoryDocument document, final int sequence) {
+			mDocument = document;
+			mSequence = sequence;
+		}
+
+	}
+
+	/**
+	 * Node of a trie that only stores the branches that are present, in the order of the set bits of its bitmap
+	 *
+	 * Nodes below the last level of the trie by hash code have no bitmap and store a list of entries with equal hash codes
+	 */
+	private static final class Node {
+
+		public static final Node EMPTY = new Node(0, new Object[0]);
+		/** The bitmap of the branches that are present */
+		private final int mBitmap;
+		/** The child nodes or entries of the present branches */
+		private final Object[] mChildren;
+
+		public Node(final int bitmap, final Object[] children) {
+			mBitmap = bitmap;
+			mChildren = children;
+		}
+
+		/**
+		 * Returns the position of the branch with the given bit among the children
+		 *
+		 * @param bit the bit of the branch
+		 * @return the position
+		 */
+		public int indexOf(final int bit) {
+			return Integer.bitCount(mBitmap & (bit - 1));
+		}
+
+		public Node insert(final int bit, final int index, final Object child) {
+			final Object[] children = new Object[mChildren.length + 1];
+			System.arraycopy(mChildren, 0, children, 0, index);
+			children[index] = child;
+			System.arraycopy(mChildren, index, children, index + 1, mChildren.length - index);
+
+			return new Node(mBitmap | bit, children);
+		}
+
+		public Node replace(final int index, final Object child) {
+			final Object[] children = mChildren.clone();
+			children[index] = child;
+
+			return new Node(mBitmap, children);
+		}
+
+		public Node remove(final int bit, final int index) {
+			final Object[] children = new Object[mChildren.length - 1];
+			System.arraycopy(mChildren, 0, children, 0, index);
+			System.arraycopy(mChildren, index + 1, children, index, mChildren.length - index - 1);
+
+			return new Node(mBitmap & ~bit, children);
+		}
+
+	}
+
+	/** Iterator over the entries of the trie by sequence that walks the nodes depth-first */
+	private static final class EntryIterator implements Iterator<InMemoryDocument> {
+
+		/** The maximum number of levels of the trie by sequence */
+		private static final int MAX_DEPTH = (Integer.SIZE + BITS - 1) / BITS;
+		/** The nodes on the path to the next entry */
+		private final Node[] mNodes;
+		/** The position of the next child within each node on the path */
+		private final int[] mPositions;
+		/** The level of the current node or `-1` when the iteration is complete */
+		private int mDepth;
+		private Entry mNext;
+
+		public EntryIterator(final Node root) {
+			mNodes = new Node[MAX_DEPTH];
+			mPositions = new int[MAX_DEPTH];
+			mNodes[0] = root;
+			mDepth = 0;
+
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return mNext != null;
+		}
+
+		@Override
+		public InMemoryDocument next() {
+			if (mNext == null) {
+				throw new NoSuchElementException();
+			}
+
+			final InMemoryDocument document = mNext.mDocument;
+			advance();
+
+			return document;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void advance() {
+			while (mDepth >= 0) {
+				final Node node = mNodes[mDepth];
+
+				if (mPositions[mDepth] == node.mChildren.length) {
+					mDepth--;
+					continue;
+				}
+
+				final Object child = node.mChildren[mPositions[mDepth]++];
+
+				if (child instanceof Entry) {
+					mNext = (Entry) child;
+
+					return;
+				}
+
+				mDepth++;
+				mNodes[mDepth] = (Node) child;
+				mPositions[mDepth] = 0;
+			}
+
+			mNext = null;
+		}
+
+	}
+
+}
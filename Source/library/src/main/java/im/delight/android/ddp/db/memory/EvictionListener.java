@@ -0,0 +1,35 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Listener that is notified whenever an in-memory database evicts documents to stay within its memory budget */
+public interface EvictionListener {
+
+	/**
+	 * Called after documents of a collection have been evicted
+	 *
+	 * The collection itself is removed as well if no documents are left and it has no indexes or live queries
+	 *
+	 * This is called on the thread that modifies the database
+	 *
+	 * @param collectionName the name of the collection
+	 * @param documentCount the number of documents that have been evicted
+	 * @param estimatedSize the estimated number of bytes that the documents occupied
+	 */
+	void onDocumentsEvicted(String collectionName, int documentCount, long estimatedSize);
+
+}
@@ -0,0 +1,266 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.db.Document;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Path to a field that may be nested inside other fields, e.g. `profile.address.city`
+ *
+ * The path is split into its segments once so that documents can be checked without parsing the path again
+ *
+ * Arrays along the path are handled in the same way as in MongoDB: A segment that is applied to an array is applied to every object inside the array, unless the segment is a numeric position within the array, and an array at the end of the path provides both the array itself and each of its elements
+ */
+final class FieldPath {
+
+	/** The complete path as specified */
+	private final String mPath;
+	/** The names of the fields along the path */
+	private final String[] mSegments;
+	/** The segments parsed as positions within arrays or `-1` for segments that are not numeric */
+	private final int[] mPositions;
+
+	/**
+	 * Creates a new path from the specified string
+	 *
+	 * @param path the names of the fields along the path, separated by dots
+	 */
+	public FieldPath(final String path) {
+		mPath = path;
+		mSegments = path.split("\\.", -1);
+		mPositions = new int[mSegments.length];
+
+		for (int i = 0; i < mSegments.length; i++) {
+			mPositions[i] = parsePosition(mSegments[i]);
+		}
+	}
+
+	/**
+	 * Returns the complete path as specified
+	 *
+	 * @return the path
+	 */
+	public String getPath() {
+		return mPath;
+	}
+
+	/**
+	 * Returns the name of the top-level field that the path starts with
+	 *
+	 * @return the name of the field
+	 */
+	public String getRootName() {
+		return mSegments[0];
+	}
+
+	/**
+	 * Returns whether the path refers to a top-level field
+	 *
+	 * @return whether the path has a single segment
+	 */
+	public boolean isSimple() {
+		return mSegments.length == 1;
+	}
+
+	/**
+	 * Passes all values found at this path in the given document to the visitor until the visitor accepts one of them
+	 *
+	 * If the path cannot be followed to its end somewhere, `null` is passed for that part of the document
+	 *
+	 * @param document the document to search
+	 * @param visitor the visitor to pass the values to
+	 * @return whether the visitor has accepted a value
+	 */
+	public boolean visit(final Document document, final Visitor visitor) {
+		return visit(document.getField(mSegments[0]), 1, visitor);
+	}
+
+	/**
+	 * Returns all distinct values found at this path in the given document
+	 *
+	 * @param document the document to search
+	 * @return the values (at least one)
+	 */
+	public List<Object> collect(final Document document) {
+		final List<Object> values = new ArrayList<Object>(2);
+
+		visit(document, new Visitor() {
+
+			@Override
+			public boolean visit(final Object value) {
+				if (!values.contains(value)) {
+					values.add(value);
+				}
+
+				// continue with the next value
+				return false;
+			}
+
+		});
+
+		return values;
+	}
+
+	/**
+	 * Returns the single value at this path in the given document
+	 *
+	 * Arrays along the path are only followed if the path specifies a position within the array
+	 *
+	 * @param document the document to search
+	 * @return the value or `null`
+	 */
+	@SuppressWarnings("unchecked")
+	public Object getValue(final Document document) {
+		Object value = document.getField(mSegments[0]);
+
+		for (int i = 1; i < mSegments.length && value != null; i++) {
+			if (value instanceof Map) {
+				value = ((Map<String, Object>) value).get(mSegments[i]);
+			}
+			else if (value instanceof List && mPositions[i] >= 0 && mPositions[i] < ((List<Object>) value).size()) {
+				value = ((List<Object>) value).get(mPositions[i]);
+			}
+			else {
+				value = null;
+			}
+		}
+
+		return value;
+	}
+
+	/**
+	 * Returns the single value at this path in the given document if it is a number
+	 *
+	 * @param document the document to search
+	 * @return the number or `NaN` if the value is not a number
+	 */
+	public double getNumber(final Document document) {
+		// documents in memory can check top-level numbers without unboxing them
+		if (isSimple() && document instanceof InMemoryDocument) {
+			final InMemoryDocument inMemoryDocument = (InMemoryDocument) document;
+
+			return inMemoryDocument.isNumber(mPath) ? inMemoryDocument.getDouble(mPath) : Double.NaN;
+		}
+
+		final Object value = getValue(document);
+
+		return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+	}
+
+	/**
+	 * Returns the slot of the top-level field at this path if the given document stores its value as a primitive number
+	 *
+	 * @param document the document to search
+	 * @return the slot or a negative number if the value has to be checked as an object
+	 */
+	public int getNumberSlot(final Document document) {
+		if (isSimple() && document instanceof InMemoryDocument) {
+			final Shape shape = ((InMemoryDocument) document).getShape();
+			final int slot = shape.getSlot(mPath);
+
+			if (slot >= 0 && shape.getType(slot) != Shape.TYPE_OBJECT) {
+				return slot;
+			}
+		}
+
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean visit(final Object value, final int depth, final Visitor visitor) {
+		// if the end of the path has been reached
+		if (depth == mSegments.length) {
+			if (visitor.visit(value)) {
+				return true;
+			}
+
+			if (value instanceof List) {
+				for (Object element : (List<Object>) value) {
+					if (visitor.visit(element)) {
+						return true;
+					}
+				}
+			}
+
+			return false;
+		}
+
+		if (value instanceof Map) {
+			return visit(((Map<String, Object>) value).get(mSegments[depth]), depth + 1, visitor);
+		}
+		else if (value instanceof List) {
+			final List<Object> list = (List<Object>) value;
+
+			if (mPositions[depth] >= 0 && mPositions[depth] < list.size()) {
+				return visit(list.get(mPositions[depth]), depth + 1, visitor);
+			}
+
+			boolean foundObject = false;
+
+			for (Object element : list) {
+				if (element instanceof Map) {
+					foundObject = true;
+
+					if (visit(((Map<String, Object>) element).get(mSegments[depth]), depth + 1, visitor)) {
+						return true;
+					}
+				}
+			}
+
+			return !foundObject && visitor.visit(null);
+		}
+		else {
+			return visitor.visit(null);
+		}
+	}
+
+	private static int parsePosition(final String segment) {
+		if (segment.length() == 0 || segment.length() > 9) {
+			return -1;
+		}
+
+		for (int i = 0; i < segment.length(); i++) {
+			if (segment.charAt(i) < '0' || segment.charAt(i) > '9') {
+				return -1;
+			}
+		}
+
+		return Integer.parseInt(segment);
+	}
+
+	@Override
+	public String toString() {
+		return mPath;
+	}
+
+	/** Callback that receives the values found at a path */
+	interface Visitor {
+
+		/**
+		 * Checks a single value found at the path
+		 *
+		 * @param value the value
+		 * @return whether the value is accepted so that no more values have to be checked
+		 */
+		boolean visit(Object value);
+
+	}
+
+}
@@ -0,0 +1,63 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.db.Document;
+import java.util.Collection;
+
+/** Requirement that documents must satisfy in order to match a query */
+abstract class Filter {
+
+	/**
+	 * Returns whether the given document satisfies this filter
+	 *
+	 * @param document the document to check
+	 * @return whether the document matches
+	 */
+	public abstract boolean matches(Document document);
+
+	/**
+	 * Returns a subset of the collection's documents that contains at least all documents matching this filter
+	 *
+	 * This is usually provided by an index and allows for skipping all other documents
+	 *
+	 * @param collection the collection that is queried
+	 * @return the candidates or `null` if all documents have to be checked
+	 */
+	public Collection<InMemoryDocument> getCandidates(final InMemoryCollection collection) {
+		return null;
+	}
+
+	/**
+	 * Returns a normalized description of this filter that is used as a part of the key for cached results
+	 *
+	 * @return the description or `null` if results for this filter must not be cached
+	 */
+	public String getKey() {
+		return null;
+	}
+
+	/**
+	 * Returns whether the candidates provided by {@link #getCandidates(InMemoryCollection)} are exactly the documents matching this filter
+	 *
+	 * @return whether the candidates do not have to be checked again
+	 */
+	public boolean hasExactCandidates() {
+		return false;
+	}
+
+}
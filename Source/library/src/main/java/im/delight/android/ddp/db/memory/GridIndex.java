@@ -0,0 +1,463 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.Document;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Spatial index that assigns documents to the cells of a uniform grid by the coordinates in two numeric fields
+ *
+ * Documents without numbers in both fields are not indexed
+ *
+ * Distances are measured on a plane that is scaled to the latitude of the reference point, which is accurate for nearby points but does not wrap around at the antimeridian
+ */
+final class GridIndex extends Index {
+
+	/** The default width and height of each cell in degrees, which is about one kilometer along the meridians */
+	public static final double DEFAULT_CELL_SIZE = 0.01;
+	/** The path to the field containing the longitude */
+	private final FieldPath mLongitudePath;
+	/** The width and height of each cell in degrees */
+	private final double mCellSize;
+	/** The documents in each cell that is not empty, by the row and column of the cell */
+	private final Map<Long, InMemoryCollection.DocumentsMap> mCells;
+	private int mMinRow = Integer.MAX_VALUE;
+	private int mMaxRow = Integer.MIN_VALUE;
+	private int mMinColumn = Integer.MAX_VALUE;
+	private int mMaxColumn = Integer.MIN_VALUE;
+
+	/**
+	 * Creates a new grid index on the specified fields
+	 *
+	 * @param latitudeFieldName the name of the field containing the latitude
+	 * @param longitudeFieldName the name of the field containing the longitude
+	 * @param cellSize the width and height of each cell in degrees
+	 */
+	public GridIndex(final String latitudeFieldName, final String longitudeFieldName, final double cellSize) {
+		super(latitudeFieldName);
+
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("The cell size is `"+cellSize+"` but it must be greater than `0`");
+		}
+
+		mLongitudePath = new FieldPath(longitudeFieldName);
+		mCellSize = cellSize;
+		mCells = new HashMap<Long, InMemoryCollection.DocumentsMap>();
+	}
+
+	/**
+	 * Returns the path to the field containing the longitude
+	 *
+	 * @return the path
+	 */
+	public FieldPath getLongitudePath() {
+		return mLongitudePath;
+	}
+
+	@Override
+	public void add(final InMemoryDocument document) {
+		final double latitude = getPath().getNumber(document);
+		final double longitude = mLongitudePath.getNumber(document);
+
+		if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+			return;
+		}
+
+		final int row = getCell(latitude);
+		final int column = getCell(longitude);
+		final Long key = getKey(row, column);
+
+		InMemoryCollection.DocumentsMap cell = mCells.get(key);
+
+		if (cell == null) {
+			cell = new InMemoryCollection.DocumentsMap();
+			mCells.put(key, cell);
+
+			// the bounds only ever grow, which is sufficient to limit searches
+			mMinRow = Math.min(mMinRow, row);
+			mMaxRow = Math.max(mMaxRow, row);
+			mMinColumn = Math.min(mMinColumn, column);
+			mMaxColumn = Math.max(mMaxColumn, column);
+		}
+
+		cell.put(document.getId(), document);
+	}
+
+	@Override
+	public void remove(final InMemoryDocument document) {
+		final Long key = getKey(document);
+
+		if (key != null) {
+			final InMemoryCollection.DocumentsMap cell = mCells.get(key);
+
+			if (cell != null) {
+				cell.remove(document.getId());
+
+				if (cell.isEmpty()) {
+					mCells.remove(key);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void replace(final InMemoryDocument previousDocument, final InMemoryDocument document) {
+		final Long key = getKey(previousDocument);
+
+		if (key != null) {
+			final InMemoryCollection.DocumentsMap cell = mCells.get(key);
+
+			if (cell != null) {
+				cell.put(document.getId(), document);
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		mCells.clear();
+		mMinRow = Integer.MAX_VALUE;
+		mMaxRow = Integer.MIN_VALUE;
+		mMinColumn = Integer.MAX_VALUE;
+		mMaxColumn = Integer.MIN_VALUE;
+	}
+
+	@Override
+	public boolean isAffectedBy(final Fields updatedValues, final String[] removedValues) {
+		if (super.isAffectedBy(updatedValues, removedValues)) {
+			return true;
+		}
+
+		final String rootName = mLongitudePath.getRootName();
+
+		if (updatedValues != null && updatedValues.containsKey(rootName)) {
+			return true;
+		}
+
+		if (removedValues != null) {
+			for (String removedKey : removedValues) {
+				if (rootName.equals(removedKey)) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns the documents whose coordinates are inside the specified box, including its edges
+	 *
+	 * @param minLatitude the southern edge of the box
+	 * @param minLongitude the western edge of the box
+	 * @param maxLatitude the northern edge of the box
+	 * @param maxLongitude the eastern edge of the box
+	 * @return the matching documents
+	 */
+	public List<InMemoryDocument> findWithinBox(final double minLatitude, final double minLongitude, final double maxLatitude, final double maxLongitude) {
+		final List<InMemoryDocument> documents = new ArrayList<InMemoryDocument>();
+
+		if (!(minLatitude <= maxLatitude) || !(minLongitude <= maxLongitude) || mCells.isEmpty()) {
+			return documents;
+		}
+
+		final int minRow = Math.max(getCell(minLatitude), mMinRow);
+		final int maxRow = Math.min(getCell(maxLatitude), mMaxRow);
+		final int minColumn = Math.max(getCell(minLongitude), mMinColumn);
+		final int maxColumn = Math.min(getCell(maxLongitude), mMaxColumn);
+
+		if (minRow > maxRow || minColumn > maxColumn) {
+			return documents;
+		}
+
+		// visit either the cells within the box or all cells that are not empty, whichever are fewer
+		if ((long) (maxRow - minRow + 1) * (maxColumn - minColumn + 1) <= mCells.size()) {
+			for (int row = minRow; row <= maxRow; row++) {
+				for (int column = minColumn; column <= maxColumn; column++) {
+					final InMemoryCollection.DocumentsMap cell = mCells.get(getKey(row, column));
+
+					if (cell != null) {
+						addWithinBox(documents, cell, minLatitude, minLongitude, maxLatitude, maxLongitude);
+					}
+				}
+			}
+		}
+		else {
+			for (Map.Entry<Long, InMemoryCollection.DocumentsMap> cell : mCells.entrySet()) {
+				final int row = getRow(cell.getKey());
+				final int column = getColumn(cell.getKey());
+
+				if (row >= minRow && row <= maxRow && column >= minColumn && column <= maxColumn) {
+					addWithinBox(documents, cell.getValue(), minLatitude, minLongitude, maxLatitude, maxLongitude);
+				}
+			}
+		}
+
+		return documents;
+	}
+
+	/**
+	 * Returns the documents that are nearest to the specified point and accepted by the given filter
+	 *
+	 * The cells are visited in rings of growing size around the point until no unvisited cell can contain a nearer document
+	 *
+	 * @param latitude the latitude of the point
+	 * @param longitude the longitude of the point
+	 * @param maxResults the maximum number of documents to return
+	 * @param filter the filter that documents must satisfy
+	 * @return the documents sorted by their distance to the point, nearest first
+	 */
+	public List<Document> findNearest(final double latitude, final double longitude, final int maxResults, final Filter filter) {
+		final NearestCollector collector = new NearestCollector(latitude, longitude, maxResults, filter, getPath(), mLongitudePath);
+
+		if (mCells.isEmpty()) {
+			return collector.toList();
+		}
+
+		final int centerRow = getCell(latitude);
+		final int centerColumn = getCell(longitude);
+		final int maxRadius = Math.max(Math.max(centerRow - mMinRow, mMaxRow - centerRow), Math.max(centerColumn - mMinColumn, mMaxColumn - centerColumn));
+		// documents outside of a ring are at least this far away per ring in between
+		final double distancePerRing = mCellSize * Math.min(1, collector.getLongitudeScale());
+
+		for (int radius = 0; radius <= maxRadius; radius++) {
+			// if a ring would consist of more cells than there are cells that are not empty
+			if (8L * radius > mCells.size()) {
+				for (Map.Entry<Long, InMemoryCollection.DocumentsMap> cell : mCells.entrySet()) {
+					final int distance = Math.max(Math.abs(getRow(cell.getKey()) - centerRow), Math.abs(getColumn(cell.getKey()) - centerColumn));
+
+					if (distance >= radius) {
+						collector.addAll(cell.getValue());
+					}
+				}
+
+				break;
+			}
+
+			if (radius == 0) {
+				addCell(collector, centerRow, centerColumn);
+			}
+			else {
+				for (int i = -radius; i <= radius; i++) {
+					addCell(collector, centerRow - radius, centerColumn + i);
+					addCell(collector, centerRow + radius, centerColumn + i);
+				}
+
+				for (int i = -radius + 1; i < radius; i++) {
+					addCell(collector, centerRow + i, centerColumn - radius);
+					addCell(collector, centerRow + i, centerColumn + radius);
+				}
+			}
+
+			if (collector.isFull() && collector.getWorstDistance() <= distancePerRing * radius) {
+				break;
+			}
+		}
+
+		return collector.toList();
+	}
+
+	/**
+	 * Returns the documents that are nearest to the specified point and accepted by the given filter by checking all of the given documents
+	 *
+	 * @param documents the documents to check
+	 * @param latitudePath the path to the field containing the latitude
+	 * @param longitudePath the path to the field containing the longitude
+	 * @param latitude the latitude of the point
+	 * @param longitude the longitude of the point
+	 * @param maxResults the maximum number of documents to return
+	 * @param filter the filter that documents must satisfy
+	 * @return the documents sorted by their distance to the point, nearest first
+	 */
+	public static List<Document> scanNearest(final Iterable<? extends Document> documents, final FieldPath latitudePath, final FieldPath longitudePath, final double latitude, final double longitude, final int maxResults, final Filter filter) {
+		final NearestCollector collector = new NearestCollector(latitude, longitude, maxResults, filter, latitudePath, longitudePath);
+
+		for (Document document : documents) {
+			collector.add(document);
+		}
+
+		return collector.toList();
+	}
+
+	private void addCell(final NearestCollector collector, final int row, final int column) {
+		final InMemoryCollection.DocumentsMap cell = mCells.get(getKey(row, column));
+
+		if (cell != null) {
+			collector.addAll(cell);
+		}
+	}
+
+	private void addWithinBox(final List<InMemoryDocument> documents, final InMemoryCollection.DocumentsMap cell, final double minLatitude, final double minLongitude, final double maxLatitude, final double maxLongitude) {
+		for (InMemoryDocument document : cell.values()) {
+			final double latitude = getPath().getNumber(document);
+			final double longitude = mLongitudePath.getNumber(document);
+
+			if (latitude >= minLatitude && latitude <= maxLatitude && longitude >= minLongitude && longitude <= maxLongitude) {
+				documents.add(document);
+			}
+		}
+	}
+
+	private int getCell(final double coordinate) {
+		return (int) Math.floor(coordinate / mCellSize);
+	}
+
+	private Long getKey(final InMemoryDocument document) {
+		final double latitude = getPath().getNumber(document);
+		final double longitude = mLongitudePath.getNumber(document);
+
+		if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+			return null;
+		}
+
+		return getKey(getCell(latitude), getCell(longitude));
+	}
+
+	private static Long getKey(final int row, final int column) {
+		return ((long) row << 32) | (column & 0xFFFFFFFFL);
+	}
+
+	private static int getRow(final long key) {
+		return (int) (key >> 32);
+	}
+
+	private static int getColumn(final long key) {
+		return (int) key;
+	}
+
+	/** Bounded heap that keeps the documents nearest to a point */
+	private static final class NearestCollector {
+
+		private final double mLatitude;
+		private final double mLongitude;
+		/** The factor that converts differences in longitude to distances at the latitude of the point */
+		private final double mLongitudeScale;
+		private final int mMaxResults;
+		private final Filter mFilter;
+		private final FieldPath mLatitudePath;
+		private final FieldPath mLongitudePath;
+		/** The nearest documents found so far with the farthest of them at the head */
+		private final PriorityQueue<Neighbor> mHeap;
+
+		public NearestCollector(final double latitude, final double longitude, final int maxResults, final Filter filter, final FieldPath latitudePath, final FieldPath longitudePath) {
+			mLatitude = latitude;
+			mLongitude = longitude;
+			mLongitudeScale = Math.cos(Math.toRadians(latitude));
+			mMaxResults = maxResults;
+			mFilter = filter;
+			mLatitudePath = latitudePath;
+			mLongitudePath = longitudePath;
+			mHeap = new PriorityQueue<Neighbor>(Math.min(maxResults, 64) + 1, new Comparator<Neighbor>() {
+
+				@Override
+				public int compare(final Neighbor lhs, final Neighbor rhs) {
+					return Double.compare(rhs.mDistance, lhs.mDistance);
+				}
+
+			});
+		}
+
+		public double getLongitudeScale() {
+			return mLongitudeScale;
+		}
+
+		public boolean isFull() {
+			return mHeap.size() >= mMaxResults;
+		}
+
+		public double getWorstDistance() {
+			return Math.sqrt(mHeap.peek().mDistance);
+		}
+
+		public void addAll(final InMemoryCollection.DocumentsMap cell) {
+			for (InMemoryDocument document : cell.values()) {
+				add(document);
+			}
+		}
+
+		public void add(final Document document) {
+			final double latitude = mLatitudePath.getNumber(document);
+			final double longitude = mLongitudePath.getNumber(document);
+
+			if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+				return;
+			}
+
+			final double dy = latitude - mLatitude;
+			final double dx = (longitude - mLongitude) * mLongitudeScale;
+			final double distance = dx * dx + dy * dy;
+
+			if (isFull() && distance >= mHeap.peek().mDistance) {
+				return;
+			}
+
+			if (!mFilter.matches(document)) {
+				return;
+			}
+
+			if (isFull()) {
+				mHeap.poll();
+			}
+
+			mHeap.add(new Neighbor(document, distance));
+		}
+
+		public List<Document> toList() {
+			final List<Neighbor> neighbors = new ArrayList<Neighbor>(mHeap);
+
+			Collections.sort(neighbors, new Comparator<Neighbor>() {
+
+				@Override
+				public int compare(final Neighbor lhs, final Neighbor rhs) {
+					return Double.compare(lhs.mDistance, rhs.mDistance);
+				}
+
+			});
+
+			final List<Document> documents = new ArrayList<Document>(neighbors.size());
+
+			for (Neighbor neighbor : neighbors) {
+				documents.add(neighbor.mDocument);
+			}
+
+			return documents;
+		}
+
+	}
+
+	private static final class Neighbor {
+
+		private final Document mDocument;
+		/** The squared distance to the point */
+		private final double mDistance;
+
+		public Neighbor(final Document document, final double distance) {
+			mDocument = document;
+			mDistance = distance;
+		}
+
+	}
+
+}
@@ -0,0 +1,405 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index that maps each value of a field to the documents having exactly that value (or an array containing that value)
+ *
+ * Values of type `Integer`, `Long` and `Double` are kept in separate tables by their bits, so that documents storing them as primitives can be indexed without boxing
+ */
+final class HashIndex extends Index {
+
+	/** Marker for documents whose values have to be collected by following the path */
+	private static final Object MULTIPLE_KEYS = new Object();
+	/** The documents for each value of the indexed field that is not stored as a primitive number, where `null` represents missing fields as well */
+	private final Map<Object, InMemoryCollection.DocumentsMap> mBuckets;
+	/** The documents for each primitive number of the indexed field, by the type of the number */
+	private final NumberBuckets[] mNumberBuckets;
+	/** The number of documents that are contained in more than one bucket */
+	private int mMultiKeyCount;
+
+	/**
+	 * Creates a new hash index on the specified field
+	 *
+	 * @param fieldName the name of the field to index
+	 */
+	public HashIndex(final String fieldName) {
+		super(fieldName);
+
+		mBuckets = new HashMap<Object, InMemoryCollection.DocumentsMap>();
+		mNumberBuckets = new NumberBuckets[] { null, new NumberBuckets(), new NumberBuckets(), new NumberBuckets() };
+	}
+
+	@Override
+	public void add(final InMemoryDocument document) {
+		final int slot = getPath().getNumberSlot(document);
+
+		if (slot >= 0) {
+			mNumberBuckets[document.getShape().getType(slot)].add(document.getNumberBits(slot), document);
+			return;
+		}
+
+		final Object key = getSingleKey(document);
+
+		if (key != MULTIPLE_KEYS) {
+			addEntry(key, document);
+		}
+		else {
+			final List<Object> keys = getPath().collect(document);
+
+			if (keys.size() > 1) {
+				mMultiKeyCount++;
+			}
+
+			for (Object each : keys) {
+				addEntry(each, document);
+			}
+		}
+	}
+
+	@Override
+	public void remove(final InMemoryDocument document) {
+		final int slot = getPath().getNumberSlot(document);
+
+		if (slot >= 0) {
+			mNumberBuckets[document.getShape().getType(slot)].remove(document.getNumberBits(slot), document);
+			return;
+		}
+
+		final Object key = getSingleKey(document);
+
+		if (key != MULTIPLE_KEYS) {
+			removeEntry(key, document);
+		}
+		else {
+			final List<Object> keys = getPath().collect(document);
+
+			if (keys.size() > 1) {
+				mMultiKeyCount--;
+			}
+
+			for (Object each : keys) {
+				removeEntry(each, document);
+			}
+		}
+	}
+
+	@Override
+	public void replace(final InMemoryDocument previousDocument, final InMemoryDocument document) {
+		final int slot = getPath().getNumberSlot(previousDocument);
+
+		if (slot >= 0) {
+			mNumberBuckets[previousDocument.getShape().getType(slot)].replace(previousDocument.getNumberBits(slot), document);
+			return;
+		}
+
+		final Object key = getSingleKey(previousDocument);
+
+		if (key != MULTIPLE_KEYS) {
+			replaceEntry(key, document);
+		}
+		else {
+			for (Object each : getPath().collect(previousDocument)) {
+				replaceEntry(each, document);
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		mBuckets.clear();
+
+		for (int type = Shape.TYPE_INTEGER; type <= Shape.TYPE_DOUBLE; type++) {
+			mNumberBuckets[type] = new NumberBuckets();
+		}
+
+		mMultiKeyCount = 0;
+	}
+
+	/**
+	 * Returns whether any document is contained in more than one bucket
+	 *
+	 * @return whether documents may have several values
+	 */
+	public boolean isMultiKey() {
+		return mMultiKeyCount > 0;
+	}
+
+	/**
+	 * Returns the documents for each value of the indexed field
+	 *
+	 * @return a new map with the documents by value (the buckets must not be modified)
+	 */
+	public Map<Object, InMemoryCollection.DocumentsMap> getBuckets() {
+		final Map<Object, InMemoryCollection.DocumentsMap> buckets = new HashMap<Object, InMemoryCollection.DocumentsMap>(mBuckets);
+
+		for (int type = Shape.TYPE_INTEGER; type <= Shape.TYPE_DOUBLE; type++) {
+			mNumberBuckets[type].copyTo(buckets, (byte) type);
+		}
+
+		return buckets;
+	}
+
+	/**
+	 * Returns the documents that have exactly the specified value in the indexed field
+	 *
+	 * @param value the value to look up
+	 * @return the matching documents or `null`
+	 */
+	public InMemoryCollection.DocumentsMap get(final Object value) {
+		final byte type = Shape.getType(value);
+
+		if (type != Shape.TYPE_OBJECT) {
+			return mNumberBuckets[type].get(Shape.getNumberBits(value));
+		}
+
+		return mBuckets.get(value);
+	}
+
+	/**
+	 * Returns the value of a top-level field that is not an array, which is the only key for the document
+	 *
+	 * @param document the document to get the key for
+	 * @return the key or {@link #MULTIPLE_KEYS} if the keys have to be collected
+	 */
+	private Object getSingleKey(final InMemoryDocument document) {
+		if (getPath().isSimple()) {
+			final Object value = document.getField(getFieldName());
+
+			if (!(value instanceof List)) {
+				return value;
+			}
+		}
+
+		return MULTIPLE_KEYS;
+	}
+
+	private void addEntry(final Object key, final InMemoryDocument document) {
+		final byte type = Shape.getType(key);
+
+		if (type != Shape.TYPE_OBJECT) {
+			mNumberBuckets[type].add(Shape.getNumberBits(key), document);
+			return;
+		}
+
+		InMemoryCollection.DocumentsMap bucket = mBuckets.get(key);
+
+		if (bucket == null) {
+			bucket = new InMemoryCollection.DocumentsMap();
+			mBuckets.put(key, bucket);
+		}
+
+		bucket.put(document.getId(), document);
+	}
+
+	private void removeEntry(final Object key, final InMemoryDocument document) {
+		final byte type = Shape.getType(key);
+
+		if (type != Shape.TYPE_OBJECT) {
+			mNumberBuckets[type].remove(Shape.getNumberBits(key), document);
+			return;
+		}
+
+		final InMemoryCollection.DocumentsMap bucket = mBuckets.get(key);
+
+		if (bucket != null) {
+			bucket.remove(document.getId());
+
+			if (bucket.isEmpty()) {
+				mBuckets.remove(key);
+			}
+		}
+	}
+
+	private void replaceEntry(final Object key, final InMemoryDocument document) {
+		final byte type = Shape.getType(key);
+
+		if (type != Shape.TYPE_OBJECT) {
+			mNumberBuckets[type].replace(Shape.getNumberBits(key), document);
+			return;
+		}
+
+		final InMemoryCollection.DocumentsMap bucket = mBuckets.get(key);
+
+		if (bucket != null) {
+			// replacing an existing key keeps the position of the entry
+			bucket.put(document.getId(), document);
+		}
+	}
+
+	/** Hash table with open addressing that maps the bits of primitive numbers of one type to their documents */
+	private static final class NumberBuckets {
+
+		private static final int INITIAL_CAPACITY = 16;
+		/** The bits of the numbers, where a slot is empty if its bucket is `null` */
+		private long[] mKeys;
+		private InMemoryCollection.DocumentsMap[] mValues;
+		private int mSize;
+
+		public NumberBuckets() {
+			mKeys = new long[INITIAL_CAPACITY];
+			mValues = new InMemoryCollection.DocumentsMap[INITIAL_CAPACITY];
+		}
+
+		public InMemoryCollection.DocumentsMap get(final long key) {
+			final int index = find(key);
+
+			return index >= 0 ? mValues[index] : null;
+		}
+
+		public void add(final long key, final InMemoryDocument document) {
+			int index = find(key);
+
+			if (index < 0) {
+				if ((mSize + 1) * 4 > mKeys.length * 3) {
+					grow();
+				}
+
+				index = find(key);
+				// the table always has empty slots, so the insertion point is encoded as with binary search
+				index = -index - 1;
+				mKeys[index] = key;
+				mValues[index] = new InMemoryCollection.DocumentsMap();
+				mSize++;
+			}
+
+			mValues[index].put(document.getId(), document);
+		}
+
+		public void remove(final long key, final InMemoryDocument document) {
+			final int index = find(key);
+
+			if (index >= 0) {
+				mValues[index].remove(document.getId());
+
+				if (mValues[index].isEmpty()) {
+					delete(index);
+				}
+			}
+		}
+
+		public void replace(final long key, final InMemoryDocument document) {
+			final int index = find(key);
+
+			if (index >= 0) {
+				// replacing an existing key keeps the position of the entry
+				mValues[index].put(document.getId(), document);
+			}
+		}
+
+		/**
+		 * Adds all buckets to the given map with their numbers boxed again
+		 *
+		 * @param buckets the map to add the buckets to
+		 * @param type the type of the numbers in this table
+		 */
+		public void copyTo(final Map<Object, InMemoryCollection.DocumentsMap> buckets, final byte type) {
+			for (int i = 0; i < mKeys.length; i++) {
+				if (mValues[i] != null) {
+					final Object key;
+
+					if (type == Shape.TYPE_INTEGER) {
+						key = Integer.valueOf((int) mKeys[i]);
+					}
+					else if (type == Shape.TYPE_LONG) {
+						key = Long.valueOf(mKeys[i]);
+					}
+					else {
+						key = Double.valueOf(Double.longBitsToDouble(mKeys[i]));
+					}
+
+					buckets.put(key, mValues[i]);
+				}
+			}
+		}
+
+		/**
+		 * Returns the slot of the specified key
+		 *
+		 * @param key the key to search
+		 * @return the slot or `-(insertion point) - 1` if the key is not contained
+		 */
+		private int find(final long key) {
+			final int mask = mKeys.length - 1;
+			int index = hash(key) & mask;
+
+			while (mValues[index] != null) {
+				if (mKeys[index] == key) {
+					return index;
+				}
+
+				index = (index + 1) & mask;
+			}
+
+			return -index - 1;
+		}
+
+		/**
+		 * Empties the specified slot and moves subsequent entries of the same run back so that no tombstones are needed
+		 *
+		 * @param index the slot to empty
+		 */
+		private void delete(int index) {
+			final int mask = mKeys.length - 1;
+			int next = (index + 1) & mask;
+
+			while (mValues[next] != null) {
+				final int home = hash(mKeys[next]) & mask;
+
+				// move the entry if its home slot is not between the empty slot and its current slot (cyclically)
+				if (((next - home) & mask) >= ((next - index) & mask)) {
+					mKeys[index] = mKeys[next];
+					mValues[index] = mValues[next];
+					index = next;
+				}
+
+				next = (next + 1) & mask;
+			}
+
+			mValues[index] = null;
+			mSize--;
+		}
+
+		private void grow() {
+			final long[] keys = mKeys;
+			final InMemoryCollection.DocumentsMap[] values = mValues;
+
+			mKeys = new long[keys.length * 2];
+			mValues = new InMemoryCollection.DocumentsMap[values.length * 2];
+
+			for (int i = 0; i < keys.length; i++) {
+				if (values[i] != null) {
+					final int index = -find(keys[i]) - 1;
+					mKeys[index] = keys[i];
+					mValues[index] = values[i];
+				}
+			}
+		}
+
+		private static int hash(final long key) {
+			final int hash = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+
+			return hash ^ (hash >>> 16);
+		}
+
+	}
+
+}
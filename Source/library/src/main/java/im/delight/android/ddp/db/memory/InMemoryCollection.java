@@ -16,28 +16,116 @@ package im.delight.android.ddp.db.memory;
  * limitations under the License.
  */
 
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.ChangeListener;
 import im.delight.android.ddp.db.Collection;
+import im.delight.android.ddp.db.Cursor;
 import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.DocumentVisitor;
+import im.delight.android.ddp.db.Grouping;
+import im.delight.android.ddp.db.LiveQuery;
 import im.delight.android.ddp.db.Query;
 
-/** Collection that is stored in memory */
+/**
+ * Collection that is stored in memory
+ *
+ * Any number of threads may read from the collection while a single thread modifies it
+ *
+ * Reading single documents does not require any lock, as the table of documents is immutable and replaced on every modification, while queries hold the read lock because the indexes are modified in place
+ */
 public final class InMemoryCollection implements Collection {
 
 	/** The name of the collection */
 	private final String mName;
-	/** The map of documents backing the collection */
-	private final DocumentsMap mDocuments;
+	/** The documents of the collection, which are never modified but replaced, so that they can be read without locking and shared without copying */
+	private volatile DocumentTable mDocuments;
+	/** The shape without any fields from which the shapes of all documents are derived */
+	private final Shape mRootShape;
+	/** All secondary indexes that must be maintained when documents are modified */
+	private final List<Index> mIndexes;
+	/** The hash indexes by the names of their fields */
+	private final Map<String, HashIndex> mHashIndexes;
+	/** The sorted indexes by the names of their fields */
+	private final Map<String, SortedIndex> mSortedIndexes;
+	/** The text indexes by the names of their fields */
+	private final Map<String, TextIndex> mTextIndexes;
+	/** The string indexes by the names of their fields */
+	private final Map<String, StringIndex> mStringIndexes;
+	/** The grid indexes by the names of their latitude and longitude fields */
+	private final Map<String, GridIndex> mGridIndexes;
+	/** The live queries that must be notified when documents are modified */
+	private final List<InMemoryLiveQuery> mLiveQueries;
+	/** The lock that allows concurrent readers while a single writer modifies the collection */
+	private final ReentrantReadWriteLock mLock;
+	/** The number of modifications so far, which is also used to detect outdated results in the cache */
+	private long mVersion;
+	/** The cache for the results of queries on this collection */
+	private final QueryCache mQueryCache;
+	/** Whether documents are being loaded in bulk, so that indexes and live queries are only updated at the end */
+	private boolean mBulkLoading;
+	/** The IDs of the documents modified during the current bulk load that live queries must be notified about */
+	private final Set<String> mBulkChanges;
+	/** The estimated number of bytes occupied by the documents */
+	private volatile long mEstimatedSize;
+	/** The time of the last access to this collection on the clock of the database, used to find collections that have not been used for a while */
+	private volatile long mLastAccess;
+
+	/**
+	 * Creates a new collection that is stored in memory
+	 *
+	 * @param name the name of the collection to create
+	 * @param queryCache the cache for the results of queries
+	 */
+	protected InMemoryCollection(final String name, final QueryCache queryCache) {
+		this(name, 0, queryCache);
+	}
 
 	/**
 	 * Creates a new collection that is stored in memory
 	 *
 	 * @param name the name of the collection to create
+	 * @param version the version to start at, which must be higher than that of any collection with the same name before
+	 * @param queryCache the cache for the results of queries
 	 */
-	protected InMemoryCollection(final String name) {
+	protected InMemoryCollection(final String name, final long version, final QueryCache queryCache) {
+		this(name, DocumentTable.EMPTY, version, queryCache);
+	}
+
+	/**
+	 * Creates a new collection that is stored in memory
+	 *
+	 * @param name the name of the collection to create
+	 * @param documents the documents of the collection
+	 * @param version the number of modifications of the documents so far
+	 * @param queryCache the cache for the results of queries
+	 */
+	private InMemoryCollection(final String name, final DocumentTable documents, final long version, final QueryCache queryCache) {
 		mName = name;
-		mDocuments = new DocumentsMap();
+		mDocuments = documents;
+		mVersion = version;
+		mQueryCache = queryCache;
+		mRootShape = Shape.createRoot();
+		mIndexes = new LinkedList<Index>();
+		mHashIndexes = new HashMap<String, HashIndex>();
+		mSortedIndexes = new HashMap<String, SortedIndex>();
+		mTextIndexes = new HashMap<String, TextIndex>();
+		mStringIndexes = new HashMap<String, StringIndex>();
+		mGridIndexes = new HashMap<String, GridIndex>();
+		// live queries may be stopped by their listeners while they are being notified
+		mLiveQueries = new CopyOnWriteArrayList<InMemoryLiveQuery>();
+		mLock = new ReentrantReadWriteLock();
+		mBulkChanges = new LinkedHashSet<String>();
 	}
 
 	@Override
@@ -52,7 +140,15 @@ public final class InMemoryCollection implements Collection {
 
 	@Override
 	public String[] getDocumentIds() {
-		return mDocuments.keySet().toArray(new String[mDocuments.size()]);
+		final DocumentTable documents = mDocuments;
+		final String[] documentIds = new String[documents.size()];
+		int i = 0;
+
+		for (InMemoryDocument document : documents) {
+			documentIds[i++] = document.getId();
+		}
+
+		return documentIds;
 	}
 
 	@Override
@@ -62,80 +158,767 @@ public final class InMemoryCollection implements Collection {
 
 	@Override
 	public Query whereEqual(final String fieldName, final Object fieldValue) {
-		return new InMemoryQuery(mDocuments).whereEqual(fieldName, fieldValue);
+		return new InMemoryQuery(this).whereEqual(fieldName, fieldValue);
 	}
 
 	@Override
 	public Query whereNotEqual(final String fieldName, final Object fieldValue) {
-		return new InMemoryQuery(mDocuments).whereNotEqual(fieldName, fieldValue);
+		return new InMemoryQuery(this).whereNotEqual(fieldName, fieldValue);
 	}
 
 	@Override
 	public Query whereLessThan(final String fieldName, final double fieldValue) {
-		return new InMemoryQuery(mDocuments).whereLessThan(fieldName, fieldValue);
+		return new InMemoryQuery(this).whereLessThan(fieldName, fieldValue);
 	}
 
 	@Override
 	public Query whereLessThanOrEqual(final String fieldName, final double fieldValue) {
-		return new InMemoryQuery(mDocuments).whereLessThanOrEqual(fieldName, fieldValue);
+		return new InMemoryQuery(this).whereLessThanOrEqual(fieldName, fieldValue);
 	}
 
 	@Override
 	public Query whereGreaterThan(final String fieldName, final double fieldValue) {
-		return new InMemoryQuery(mDocuments).whereGreaterThan(fieldName, fieldValue);
+		return new InMemoryQuery(this).whereGreaterThan(fieldName, fieldValue);
 	}
 
 	@Override
 	public Query whereGreaterThanOrEqual(final String fieldName, final double fieldValue) {
-		return new InMemoryQuery(mDocuments).whereGreaterThanOrEqual(fieldName, fieldValue);
+		return new InMemoryQuery(this).whereGreaterThanOrEqual(fieldName, fieldValue);
 	}
 
 	@Override
 	public Query whereNull(final String fieldName) {
-		return new InMemoryQuery(mDocuments).whereNull(fieldName);
+		return new InMemoryQuery(this).whereNull(fieldName);
 	}
 
 	@Override
 	public Query whereNotNull(final String fieldName) {
-		return new InMemoryQuery(mDocuments).whereNotNull(fieldName);
+		return new InMemoryQuery(this).whereNotNull(fieldName);
 	}
 
 	@Override
 	public Query whereIn(String fieldName, Object[] fieldValues) {
-		return new InMemoryQuery(mDocuments).whereIn(fieldName, fieldValues);
+		return new InMemoryQuery(this).whereIn(fieldName, fieldValues);
 	}
 
 	@Override
 	public Query whereNotIn(String fieldName, Object[] fieldValues) {
-		return new InMemoryQuery(mDocuments).whereNotIn(fieldName, fieldValues);
+		return new InMemoryQuery(this).whereNotIn(fieldName, fieldValues);
+	}
+
+	@Override
+	public Query whereText(String fieldName, String terms) {
+		return new InMemoryQuery(this).whereText(fieldName, terms);
+	}
+
+	@Override
+	public Query wherePrefix(String fieldName, String prefix) {
+		return new InMemoryQuery(this).wherePrefix(fieldName, prefix);
+	}
+
+	@Override
+	public Query whereRegex(String fieldName, String regex) {
+		return new InMemoryQuery(this).whereRegex(fieldName, regex);
+	}
+
+	@Override
+	public Query whereWithinBox(String latitudeFieldName, String longitudeFieldName, double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+		return new InMemoryQuery(this).whereWithinBox(latitudeFieldName, longitudeFieldName, minLatitude, minLongitude, maxLatitude, maxLongitude);
+	}
+
+	@Override
+	public Query whereNear(String latitudeFieldName, String longitudeFieldName, double latitude, double longitude, int maxResults) {
+		return new InMemoryQuery(this).whereNear(latitudeFieldName, longitudeFieldName, latitude, longitude, maxResults);
+	}
+
+	@Override
+	public Query orderBy(final String fieldName, final int direction) {
+		return new InMemoryQuery(this).orderBy(fieldName, direction);
+	}
+
+	@Override
+	public double sum(final String fieldName) {
+		return new InMemoryQuery(this).sum(fieldName);
+	}
+
+	@Override
+	public double min(final String fieldName) {
+		return new InMemoryQuery(this).min(fieldName);
+	}
+
+	@Override
+	public double max(final String fieldName) {
+		return new InMemoryQuery(this).max(fieldName);
+	}
+
+	@Override
+	public Grouping groupBy(final String fieldName) {
+		return new InMemoryQuery(this).groupBy(fieldName);
+	}
+
+	@Override
+	public void forEach(final DocumentVisitor visitor) {
+		new InMemoryQuery(this).forEach(visitor);
+	}
+
+	@Override
+	public Cursor cursor() {
+		return new InMemoryQuery(this).cursor();
+	}
+
+	@Override
+	public Query fields(final String... fieldNames) {
+		return new InMemoryQuery(this).fields(fieldNames);
+	}
+
+	@Override
+	public LiveQuery observe(final ChangeListener listener) {
+		return new InMemoryQuery(this).observe(listener);
 	}
 
 	@Override
 	public Document[] find() {
-		return new InMemoryQuery(mDocuments).find();
+		return new InMemoryQuery(this).find();
 	}
 
 	@Override
 	public Document[] find(int limit) {
-		return new InMemoryQuery(mDocuments).find(limit);
+		return new InMemoryQuery(this).find(limit);
 	}
 
 	@Override
 	public Document[] find(int limit, int offset) {
-		return new InMemoryQuery(mDocuments).find(limit, offset);
+		return new InMemoryQuery(this).find(limit, offset);
 	}
 
 	@Override
 	public Document findOne() {
-		return new InMemoryQuery(mDocuments).findOne();
+		return new InMemoryQuery(this).findOne();
+	}
+
+	/**
+	 * Creates an index on the specified field that speeds up `whereEqual` and `whereIn` queries
+	 *
+	 * Nothing happens if an index on that field exists already
+	 *
+	 * @param fieldName the name of the field to index
+	 */
+	protected void ensureIndex(final String fieldName) {
+		mLock.writeLock().lock();
+
+		try {
+			if (!mHashIndexes.containsKey(fieldName)) {
+				final HashIndex index = new HashIndex(fieldName);
+
+				for (InMemoryDocument document : mDocuments) {
+					index.add(document);
+				}
+
+				mHashIndexes.put(fieldName, index);
+				mIndexes.add(index);
+				// results may be returned in a different order now
+				mVersion++;
+			}
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Creates an index on the specified numeric field that speeds up `whereLessThan`, `whereLessThanOrEqual`, `whereGreaterThan` and `whereGreaterThanOrEqual` queries
+	 *
+	 * Nothing happens if a sorted index on that field exists already
+	 *
+	 * @param fieldName the name of the field to index
+	 */
+	protected void ensureSortedIndex(final String fieldName) {
+		mLock.writeLock().lock();
+
+		try {
+			if (!mSortedIndexes.containsKey(fieldName)) {
+				final SortedIndex index = new SortedIndex(fieldName);
+
+				for (InMemoryDocument document : mDocuments) {
+					index.add(document);
+				}
+
+				mSortedIndexes.put(fieldName, index);
+				mIndexes.add(index);
+				mVersion++;
+			}
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Creates an index on the words in the specified text field that speeds up `whereText` queries
+	 *
+	 * Nothing happens if a text index on that field exists already
+	 *
+	 * @param fieldName the name of the field to index
+	 */
+	protected void ensureTextIndex(final String fieldName) {
+		mLock.writeLock().lock();
+
+		try {
+			if (!mTextIndexes.containsKey(fieldName)) {
+				final TextIndex index = new TextIndex(fieldName);
+
+				for (InMemoryDocument document : mDocuments) {
+					index.add(document);
+				}
+
+				mTextIndexes.put(fieldName, index);
+				mIndexes.add(index);
+				mVersion++;
+			}
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Creates an index on the specified string field that speeds up `wherePrefix` queries and `whereRegex` queries anchored at the start
+	 *
+	 * Nothing happens if a string index on that field exists already
+	 *
+	 * @param fieldName the name of the field to index
+	 */
+	protected void ensureStringIndex(final String fieldName) {
+		mLock.writeLock().lock();
+
+		try {
+			if (!mStringIndexes.containsKey(fieldName)) {
+				final StringIndex index = new StringIndex(fieldName);
+
+				for (InMemoryDocument document : mDocuments) {
+					index.add(document);
+				}
+
+				mStringIndexes.put(fieldName, index);
+				mIndexes.add(index);
+				mVersion++;
+			}
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Creates an index on the coordinates in the specified fields that speeds up `whereWithinBox` and `whereNear` queries
+	 *
+	 * Nothing happens if a grid index on those fields exists already
+	 *
+	 * @param latitudeFieldName the name of the field containing the latitude
+	 * @param longitudeFieldName the name of the field containing the longitude
+	 * @param cellSize the width and height of each cell of the grid in degrees
+	 */
+	protected void ensureGridIndex(final String latitudeFieldName, final String longitudeFieldName, final double cellSize) {
+		mLock.writeLock().lock();
+
+		try {
+			final String key = getGridIndexKey(latitudeFieldName, longitudeFieldName);
+
+			if (!mGridIndexes.containsKey(key)) {
+				final GridIndex index = new GridIndex(latitudeFieldName, longitudeFieldName, cellSize);
+
+				for (InMemoryDocument document : mDocuments) {
+					index.add(document);
+				}
+
+				mGridIndexes.put(key, index);
+				mIndexes.add(index);
+				mVersion++;
+			}
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Starts loading documents in bulk, which defers all work on indexes and live queries until {@link #endBulkLoad()}
+	 *
+	 * Queries do not use any indexes until the bulk load has ended
+	 */
+	protected void beginBulkLoad() {
+		mLock.writeLock().lock();
+
+		try {
+			mBulkLoading = true;
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Ends loading documents in bulk by rebuilding all indexes and notifying the live queries about each modified document once
+	 */
+	protected void endBulkLoad() {
+		mLock.writeLock().lock();
+
+		try {
+			if (!mBulkLoading) {
+				return;
+			}
+
+			mBulkLoading = false;
+
+			for (Index index : mIndexes) {
+				index.rebuild(mDocuments);
+			}
+
+			// results may be returned in a different order now
+			mVersion++;
+
+			for (String id : mBulkChanges) {
+				final InMemoryDocument document = mDocuments.get(id);
+
+				for (InMemoryLiveQuery liveQuery : mLiveQueries) {
+					if (document != null) {
+						liveQuery.onDocumentPut(document);
+					}
+					else {
+						liveQuery.onDocumentRemoved(id);
+					}
+				}
+			}
+
+			mBulkChanges.clear();
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns whether a bulk load is in progress and remembers the modified document for the live queries in that case
+	 *
+	 * The write lock must be held by the caller
+	 *
+	 * @param id the ID of the modified document
+	 * @return whether indexes and live queries must not be updated now
+	 */
+	private boolean isBulkLoading(final String id) {
+		if (!mBulkLoading) {
+			return false;
+		}
+
+		// live queries that are started later see the current documents anyway
+		if (!mLiveQueries.isEmpty()) {
+			mBulkChanges.add(id);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds the document with the specified ID and fields, replacing any existing document with the same ID
+	 *
+	 * @param id the ID of the document
+	 * @param fields the fields of the document
+	 */
+	protected void putDocument(final String id, final Fields fields) {
+		putDocument(id, fields, -1);
+	}
+
+	/**
+	 * Adds the document with the specified ID and fields, replacing any existing document with the same ID
+	 *
+	 * @param id the ID of the document
+	 * @param fields the fields of the document
+	 * @param version the version of the document or `-1` to use the next version of this collection
+	 */
+	protected void putDocument(final String id, final Fields fields, final long version) {
+		mLock.writeLock().lock();
+
+		try {
+			final InMemoryDocument existingDocument = mDocuments.get(id);
+
+			if (existingDocument != null) {
+				mEstimatedSize -= existingDocument.estimateSize();
+			}
+
+			if (existingDocument != null && !mBulkLoading) {
+				for (Index index : mIndexes) {
+					index.remove(existingDocument);
+				}
+			}
+
+			// the version of the collection must never be lower than the versions of its documents
+			mVersion = Math.max(mVersion + 1, version);
+
+			final InMemoryDocument document = InMemoryDocument.create(id, fields, mRootShape, version < 0 ? mVersion : version);
+			mDocuments = mDocuments.with(document);
+			mEstimatedSize += document.estimateSize();
+
+			if (isBulkLoading(id)) {
+				return;
+			}
+
+			for (Index index : mIndexes) {
+				index.add(document);
+			}
+
+			for (InMemoryLiveQuery liveQuery : mLiveQueries) {
+				liveQuery.onDocumentPut(document);
+			}
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Updates the fields of the document with the specified ID
+	 *
+	 * The existing document is not modified but replaced with a new document
+	 *
+	 * @param id the ID of the document
+	 * @param updatedValues the modified fields of the document or `null`
+	 * @param removedValues the deleted fields of the document or `null`
+	 * @return whether the document existed and could be updated
+	 */
+	protected boolean updateDocument(final String id, final Fields updatedValues, final String[] removedValues) {
+		mLock.writeLock().lock();
+
+		try {
+			final InMemoryDocument previousDocument = mDocuments.get(id);
+
+			if (previousDocument == null) {
+				return false;
+			}
+
+			mVersion++;
+
+			final InMemoryDocument document = previousDocument.withChanges(updatedValues, removedValues, mRootShape, mVersion);
+			mDocuments = mDocuments.with(document);
+			mEstimatedSize += document.estimateSize() - previousDocument.estimateSize();
+
+			if (isBulkLoading(id)) {
+				return true;
+			}
+
+			for (Index index : mIndexes) {
+				if (index.isAffectedBy(updatedValues, removedValues)) {
+					index.remove(previousDocument);
+					index.add(document);
+				}
+				else {
+					index.replace(previousDocument, document);
+				}
+			}
+
+			for (InMemoryLiveQuery liveQuery : mLiveQueries) {
+				liveQuery.onDocumentUpdated(document, updatedValues, removedValues);
+			}
+
+			return true;
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the document with the specified ID
+	 *
+	 * @param id the ID of the document
+	 */
+	protected void removeDocument(final String id) {
+		mLock.writeLock().lock();
+
+		try {
+			final InMemoryDocument document = mDocuments.get(id);
+
+			if (document == null) {
+				return;
+			}
+
+			mDocuments = mDocuments.without(id);
+			mVersion++;
+			mEstimatedSize -= document.estimateSize();
+
+			if (!isBulkLoading(id)) {
+				for (Index index : mIndexes) {
+					index.remove(document);
+				}
+
+				for (InMemoryLiveQuery liveQuery : mLiveQueries) {
+					liveQuery.onDocumentRemoved(id);
+				}
+			}
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all documents from this collection and its indexes, notifying the live queries about each removed document
+	 *
+	 * @return the number of removed documents
+	 */
+	protected int evict() {
+		mLock.writeLock().lock();
+
+		try {
+			final DocumentTable documents = mDocuments;
+
+			mDocuments = DocumentTable.EMPTY;
+			mEstimatedSize = 0;
+			mVersion++;
+
+			for (Index index : mIndexes) {
+				index.clear();
+			}
+
+			mBulkChanges.clear();
+
+			for (InMemoryDocument document : documents) {
+				for (InMemoryLiveQuery liveQuery : mLiveQueries) {
+					liveQuery.onDocumentRemoved(document.getId());
+				}
+			}
+
+			return documents.size();
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the specified documents from this collection and its indexes, notifying the live queries about each removed document
+	 *
+	 * @param documentIds the IDs of the documents to remove
+	 * @return the estimated number of bytes that the removed documents occupied
+	 */
+	protected long evict(final List<String> documentIds) {
+		mLock.writeLock().lock();
+
+		try {
+			final long previousSize = mEstimatedSize;
+
+			// clearing the indexes is much cheaper than removing every document from them
+			if (documentIds.size() == mDocuments.size()) {
+				evict();
+			}
+			else {
+				for (String documentId : documentIds) {
+					removeDocument(documentId);
+				}
+			}
+
+			return previousSize - mEstimatedSize;
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the estimated number of bytes occupied by the documents in this collection
+	 *
+	 * @return the estimated size in bytes
+	 */
+	protected long getEstimatedSize() {
+		return mEstimatedSize;
+	}
+
+	/**
+	 * Returns the time of the last access to this collection
+	 *
+	 * @return the time on the clock of the database
+	 */
+	protected long getLastAccess() {
+		return mLastAccess;
+	}
+
+	/**
+	 * Records an access to this collection
+	 *
+	 * @param time the current time on the clock of the database
+	 */
+	protected void setLastAccess(final long time) {
+		mLastAccess = time;
+	}
+
+	/**
+	 * Returns whether this collection has any indexes or live queries that must be kept even when it is empty
+	 *
+	 * @return whether there are indexes or live queries
+	 */
+	protected boolean hasIndexesOrLiveQueries() {
+		mLock.readLock().lock();
+
+		try {
+			return !mIndexes.isEmpty() || !mLiveQueries.isEmpty();
+		}
+		finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of this collection that shares the current documents
+	 *
+	 * The copy does not have any indexes or live queries and must not be modified
+	 *
+	 * The table of documents is immutable and thus never copied, so creating the copy is cheap
+	 *
+	 * @param queryCache the cache for the results of queries on the copy
+	 * @return the copy
+	 */
+	protected InMemoryCollection share(final QueryCache queryCache) {
+		mLock.readLock().lock();
+
+		try {
+			return new InMemoryCollection(mName, mDocuments, mVersion, queryCache);
+		}
+		finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns an iterator over the current documents that is not affected by any later modifications
+	 *
+	 * The table of documents is immutable and thus never copied, so creating the iterator is cheap
+	 *
+	 * @return the iterator that may be used without holding a lock
+	 */
+	protected Iterator<InMemoryDocument> iterateDocuments() {
+		return mDocuments.iterator();
+	}
+
+	/**
+	 * Registers a live query that is notified whenever documents are modified
+	 *
+	 * @param liveQuery the live query to add
+	 */
+	protected void addLiveQuery(final InMemoryLiveQuery liveQuery) {
+		mLiveQueries.add(liveQuery);
+	}
+
+	/**
+	 * Unregisters a live query so that it is not notified anymore
+	 *
+	 * @param liveQuery the live query to remove
+	 */
+	protected void removeLiveQuery(final InMemoryLiveQuery liveQuery) {
+		mLiveQueries.remove(liveQuery);
+	}
+
+	/**
+	 * Returns the version of this collection, which is incremented whenever documents are added, changed or removed
+	 *
+	 * The version is incremented when an index is created as well
+	 *
+	 * @return the version
+	 */
+	@Override
+	public long getVersion() {
+		mLock.readLock().lock();
+
+		try {
+			return mVersion;
+		}
+		finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the cache for the results of queries on this collection
+	 *
+	 * @return the cache
+	 */
+	protected QueryCache getQueryCache() {
+		return mQueryCache;
+	}
+
+	/**
+	 * Returns the lock that must be held while reading the documents or indexes of this collection
+	 *
+	 * @return the read lock
+	 */
+	protected Lock getReadLock() {
+		return mLock.readLock();
+	}
+
+	/**
+	 * Returns the hash index on the specified field
+	 *
+	 * @param fieldName the name of the field
+	 * @return the index or `null`
+	 */
+	protected HashIndex getHashIndex(final String fieldName) {
+		// indexes are out of date during a bulk load
+		return mBulkLoading ? null : mHashIndexes.get(fieldName);
+	}
+
+	/**
+	 * Returns the sorted index on the specified field
+	 *
+	 * @param fieldName the name of the field
+	 * @return the index or `null`
+	 */
+	protected SortedIndex getSortedIndex(final String fieldName) {
+		// indexes are out of date during a bulk load
+		return mBulkLoading ? null : mSortedIndexes.get(fieldName);
+	}
+
+	/**
+	 * Returns the text index on the specified field
+	 *
+	 * @param fieldName the name of the field
+	 * @return the index or `null`
+	 */
+	protected TextIndex getTextIndex(final String fieldName) {
+		// indexes are out of date during a bulk load
+		return mBulkLoading ? null : mTextIndexes.get(fieldName);
+	}
+
+	/**
+	 * Returns the string index on the specified field
+	 *
+	 * @param fieldName the name of the field
+	 * @return the index or `null`
+	 */
+	protected StringIndex getStringIndex(final String fieldName) {
+		// indexes are out of date during a bulk load
+		return mBulkLoading ? null : mStringIndexes.get(fieldName);
+	}
+
+	/**
+	 * Returns the grid index on the specified fields
+	 *
+	 * @param latitudeFieldName the name of the field containing the latitude
+	 * @param longitudeFieldName the name of the field containing the longitude
+	 * @return the index or `null`
+	 */
+	protected GridIndex getGridIndex(final String latitudeFieldName, final String longitudeFieldName) {
+		// indexes are out of date during a bulk load
+		return mBulkLoading ? null : mGridIndexes.get(getGridIndexKey(latitudeFieldName, longitudeFieldName));
+	}
+
+	private static String getGridIndexKey(final String latitudeFieldName, final String longitudeFieldName) {
+		return latitudeFieldName + '\0' + longitudeFieldName;
 	}
 
 	/**
-	 * Returns the raw map of documents backing this collection
+	 * Returns the current documents of this collection, which are not affected by any later modifications
 	 *
-	 * @return the raw map of documents
+	 * @return the documents in their insertion order
 	 */
-	protected DocumentsMap getDocumentsMap() {
+	protected DocumentTable getDocuments() {
 		return mDocuments;
 	}
 
@@ -144,7 +927,7 @@ public final class InMemoryCollection implements Collection {
 		return mDocuments.toString();
 	}
 
-	/** Data type for the map backing the collection */
+	/** Data type for the maps of documents in the buckets and cells of indexes */
 	protected static class DocumentsMap extends LinkedHashMap<String, InMemoryDocument> {
 
 		public DocumentsMap() {
@@ -0,0 +1,111 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.db.Cursor;
+import im.delight.android.ddp.db.Document;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Cursor over the results of a query on a collection that is stored in memory
+ *
+ * The documents are checked against the filters only when the cursor is advanced
+ */
+final class InMemoryCursor implements Cursor {
+
+	/** The documents that may match, which are not affected by modifications of the collection */
+	private final Iterator<? extends Document> mSource;
+	/** The filters that documents must satisfy */
+	private final List<Filter> mFilters;
+	/** The names of the fields to return or `null` if complete documents are returned */
+	private final String[] mProjection;
+	/** The next matching document or `null` if it has not been found yet */
+	private Document mNext;
+
+	/**
+	 * Creates a new cursor
+	 *
+	 * @param source the documents that may match
+	 * @param filters the filters that documents must satisfy, which must not be modified afterwards
+	 * @param projection the names of the fields to return or `null`
+	 */
+	public InMemoryCursor(final Iterator<? extends Document> source, final List<Filter> filters, final String[] projection) {
+		mSource = source;
+		mFilters = filters;
+		mProjection = projection;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (mNext == null && mSource.hasNext()) {
+			final Document candidate = mSource.next();
+
+			if (matches(candidate)) {
+				mNext = candidate;
+			}
+		}
+
+		return mNext != null;
+	}
+
+	@Override
+	public Document next() {
+		if (!hasNext()) {
+			return null;
+		}
+
+		final Document document = mNext;
+		mNext = null;
+
+		if (mProjection != null) {
+			return ProjectedDocument.create(document, mProjection);
+		}
+		else {
+			return document;
+		}
+	}
+
+	@Override
+	public Document[] next(final int limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("The limit is `"+limit+"` but it must be greater than `0`");
+		}
+
+		final List<Document> results = new ArrayList<Document>(Math.min(limit, 16));
+
+		while (results.size() < limit && hasNext()) {
+			results.add(next());
+		}
+
+		return results.toArray(new Document[results.size()]);
+	}
+
+	private boolean matches(final Document document) {
+		final int numFilters = mFilters.size();
+
+		for (int i = 0; i < numFilters; i++) {
+			if (!mFilters.get(i).matches(document)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+}
@@ -19,28 +19,104 @@ package im.delight.android.ddp.db.memory;
 import im.delight.android.ddp.Meteor;
 import im.delight.android.ddp.db.Collection;
 import im.delight.android.ddp.db.Database;
+import im.delight.android.ddp.db.Query;
+import im.delight.android.ddp.db.SubscriptionAwareDataStore;
 import im.delight.android.ddp.Fields;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** Database that is stored in memory */
-public final class InMemoryDatabase implements Database {
+/**
+ * Database that is stored in memory
+ *
+ * The database may be read from any number of threads while a single thread (usually the one receiving data from the server) modifies it
+ *
+ * Collections that receive many documents while the initial data of subscriptions is arriving are loaded in bulk, i.e. their indexes are rebuilt and their live queries are notified only once the subscriptions that have delivered data to them are ready
+ *
+ * The subscriptions that have delivered each document are recorded, so that the documents of a single subscription can be queried
+ *
+ * If a memory budget is set, the collections that have not been used for the longest time and that have not received data while any subscription was active are evicted whenever the estimated size of all documents exceeds the budget
+ */
+public final class InMemoryDatabase implements Database, SubscriptionAwareDataStore {
 
 	private static final String TAG = "InMemoryDatabase";
+	/** The fraction of the memory budget (as `1 / n`) that is freed in addition to the excess whenever documents are evicted */
+	private static final int EVICTION_HEADROOM_RATIO = 10;
 	/** The collections contained in the database */
 	private final CollectionsMap mCollections;
+	/** Whether this database is a snapshot that must not be modified */
+	private final boolean mReadOnly;
+	/** The lock that prevents snapshots from being taken while a change is applied to a collection */
+	private final Object mSnapshotLock;
+	/** The cache for the results of queries on all collections */
+	private final QueryCache mQueryCache;
+	/** The IDs of the subscriptions whose initial data is still arriving */
+	private final Set<String> mPendingSubscriptions;
+	/** The number of snapshots that are currently being read */
+	private int mSnapshotLoads;
+	/** The loads that have written to each collection while subscriptions were pending or snapshots were being read, by the names of the collections */
+	private final Map<String, BulkLoad> mBulkLoads;
+	/** The IDs of the active subscriptions that have delivered data, by the names of the collections that the data has been added to */
+	private final Map<String, Set<String>> mCollectionOwners;
+	/** The maximum estimated number of bytes for all documents or `0` if there is no limit */
+	private volatile long mMemoryBudget;
+	/** The logical clock that orders the accesses to collections */
+	private final AtomicLong mAccessClock;
+	/** The listener to notify about evicted documents or `null` */
+	private volatile EvictionListener mEvictionListener;
+	/** The last versions of the collections that have been evicted and removed, by their names */
+	private final Map<String, Long> mEvictedVersions;
+	/** The subscriptions that have delivered each document */
+	private final Ownership mOwnership;
+	/** Whether documents are removed as soon as the last subscription that has delivered them ends */
+	private volatile boolean mRemoveOrphanedDocuments;
 
 	/** Creates a new database that is stored in memory */
 	public InMemoryDatabase() {
-		mCollections = new CollectionsMap();
+		this(new CollectionsMap(), false, new QueryCache(QueryCache.DEFAULT_MAX_SIZE));
+	}
+
+	/**
+	 * Creates a new database that is stored in memory
+	 *
+	 * @param collections the collections contained in the database
+	 * @param readOnly whether the database must not be modified
+	 * @param queryCache the cache for the results of queries on all collections
+	 */
+	private InMemoryDatabase(final CollectionsMap collections, final boolean readOnly, final QueryCache queryCache) {
+		mCollections = collections;
+		mReadOnly = readOnly;
+		mSnapshotLock = new Object();
+		mQueryCache = queryCache;
+		mPendingSubscriptions = new HashSet<String>();
+		mBulkLoads = new HashMap<String, BulkLoad>();
+		mCollectionOwners = new HashMap<String, Set<String>>();
+		mAccessClock = new AtomicLong();
+		mEvictedVersions = new HashMap<String, Long>();
+		mOwnership = new Ownership();
 	}
 
 	@Override
 	public Collection getCollection(final String name) {
-		if (mCollections.containsKey(name)) {
-			return mCollections.get(name);
+		final InMemoryCollection collection = mCollections.get(name);
+
+		if (collection != null) {
+			collection.setLastAccess(mAccessClock.incrementAndGet());
+
+			return collection;
 		}
 		else {
-			return new InMemoryCollection(name);
+			return new InMemoryCollection(name, mQueryCache);
 		}
 	}
 
@@ -55,50 +131,716 @@ public final class InMemoryDatabase implements Database {
 	}
 
 	@Override
-	public void onDataAdded(final String collectionName, final String documentId, final Fields newValues) {
-		if (!mCollections.containsKey(collectionName)) {
-			mCollections.put(collectionName, new InMemoryCollection(collectionName));
+	public Database snapshot() {
+		final CollectionsMap collections = new CollectionsMap();
+		// the snapshot has no indexes and may thus return results in a different order, so it needs its own cache
+		final QueryCache queryCache = new QueryCache(mQueryCache.getMaxSize());
+
+		synchronized (mSnapshotLock) {
+			for (InMemoryCollection collection : mCollections.values()) {
+				collections.put(collection.getName(), collection.share(queryCache));
+			}
 		}
 
-		final InMemoryCollection.DocumentsMap collectionData = mCollections.get(collectionName).getDocumentsMap();
+		return new InMemoryDatabase(collections, true, queryCache);
+	}
+
+	@Override
+	public void onDataAdded(final String collectionName, final String documentId, final Fields newValues) {
+		checkWritable();
 
-		if (newValues != null) {
-			collectionData.put(documentId, new InMemoryDocument(documentId, newValues));
+		synchronized (mSnapshotLock) {
+			final InMemoryCollection collection = getOrCreateCollection(collectionName);
+
+			if (newValues != null) {
+				prepareWrite(collection);
+				collection.putDocument(documentId, newValues);
+				onCollectionModified(collection, documentId);
+			}
 		}
 	}
 
 	@Override
 	public void onDataChanged(final String collectionName, final String documentId, final Fields updatedValues, final String[] removedValues) {
-		if (mCollections.containsKey(collectionName)) {
-			final InMemoryCollection.DocumentsMap collectionData = mCollections.get(collectionName).getDocumentsMap();
-			final Fields documentData = collectionData.get(documentId).getFields();
+		checkWritable();
 
-			if (updatedValues != null) {
-				documentData.putAll(updatedValues);
+		synchronized (mSnapshotLock) {
+			final InMemoryCollection collection = mCollections.get(collectionName);
+
+			if (collection != null) {
+				prepareWrite(collection);
 			}
 
-			if (removedValues != null) {
-				for (String removedKey : removedValues) {
-					documentData.remove(removedKey);
-				}
+			if (collection == null || !collection.updateDocument(documentId, updatedValues, removedValues)) {
+				Meteor.log(TAG);
+				Meteor.log("  Cannot find document `"+documentId+"` to update in collection `"+collectionName+"`");
+
+				onDataAdded(collectionName, documentId, updatedValues);
+			}
+			else {
+				onCollectionModified(collection, documentId);
 			}
 		}
-		else {
-			Meteor.log(TAG);
-			Meteor.log("  Cannot find document `"+documentId+"` to update in collection `"+collectionName+"`");
+	}
+
+	@Override
+	public void onDataRemoved(final String collectionName, final String documentId) {
+		checkWritable();
 
-			onDataAdded(collectionName, documentId, updatedValues);
+		synchronized (mSnapshotLock) {
+			final InMemoryCollection collection = mCollections.get(collectionName);
+
+			if (collection != null) {
+				prepareWrite(collection);
+				collection.removeDocument(documentId);
+				mOwnership.release(collectionName, documentId);
+			}
+			else {
+				Meteor.log(TAG);
+				Meteor.log("  Cannot find document `"+documentId+"` to delete in collection `"+collectionName+"`");
+			}
 		}
 	}
 
 	@Override
-	public void onDataRemoved(final String collectionName, final String documentId) {
-		if (mCollections.containsKey(collectionName)) {
-			mCollections.get(collectionName).getDocumentsMap().remove(documentId);
+	public void onSubscriptionStarted(final String subscriptionId) {
+		checkWritable();
+
+		synchronized (mSnapshotLock) {
+			mOwnership.register(subscriptionId);
+			mPendingSubscriptions.add(subscriptionId);
 		}
-		else {
+	}
+
+	@Override
+	public void onSubscriptionFinished(final String subscriptionId) {
+		checkWritable();
+
+		synchronized (mSnapshotLock) {
+			if (mPendingSubscriptions.remove(subscriptionId)) {
+				finishBulkLoads(subscriptionId);
+				enforceMemoryBudget();
+			}
+		}
+	}
+
+	@Override
+	public void onSubscriptionStopped(final String subscriptionId) {
+		checkWritable();
+
+		synchronized (mSnapshotLock) {
+			final Map<String, List<String>> orphans = mOwnership.unregister(subscriptionId);
+
+			if (mRemoveOrphanedDocuments) {
+				for (Map.Entry<String, List<String>> entry : orphans.entrySet()) {
+					final InMemoryCollection collection = mCollections.get(entry.getKey());
+
+					if (collection != null) {
+						for (String documentId : entry.getValue()) {
+							collection.removeDocument(documentId);
+						}
+					}
+				}
+			}
+
+			final Iterator<Set<String>> owners = mCollectionOwners.values().iterator();
+
+			while (owners.hasNext()) {
+				final Set<String> subscriptionIds = owners.next();
+				subscriptionIds.remove(subscriptionId);
+
+				if (subscriptionIds.isEmpty()) {
+					owners.remove();
+				}
+			}
+
+			enforceMemoryBudget();
+		}
+	}
+
+	/**
+	 * Returns a query for the documents in a collection that have been delivered by the specified subscription
+	 *
+	 * The server does not tell which subscription sends a document, so a document is attributed to all subscriptions whose initial data is arriving at that time, or else to all active subscriptions that have delivered data to the same collection before
+	 *
+	 * The attribution is therefore only approximate when subscriptions overlap, i.e. a document may be returned for a subscription that does not publish it
+	 *
+	 * The returned query cannot be observed, because documents are attributed without any change to the documents themselves
+	 *
+	 * @param collectionName the name of the collection
+	 * @param subscriptionId the ID of the subscription as returned by {@link Meteor#subscribe(String)}
+	 * @return the query
+	 */
+	public Query queryBySubscription(final String collectionName, final String subscriptionId) {
+		InMemoryCollection collection = mCollections.get(collectionName);
+
+		if (collection == null) {
+			collection = new InMemoryCollection(collectionName, mQueryCache);
+		}
+
+		return new InMemoryQuery(collection).whereOwnedBy(mOwnership, subscriptionId);
+	}
+
+	/**
+	 * Sets whether documents are removed as soon as the last subscription that has delivered them ends
+	 *
+	 * The server sends a `removed` message for every document that is not published anymore when a subscription ends, so this is usually only necessary if the connection is not going to be resumed
+	 *
+	 * Documents that another subscription publishes as well may not be sent again by the server for that subscription and may thus be attributed to the ending subscription only, so they would be removed although they are still published
+	 *
+	 * @param removeOrphanedDocuments whether to remove documents without subscriptions
+	 */
+	public void setRemoveOrphanedDocuments(final boolean removeOrphanedDocuments) {
+		mRemoveOrphanedDocuments = removeOrphanedDocuments;
+	}
+
+	/**
+	 * Sets the maximum estimated number of bytes that the documents in all collections may occupy
+	 *
+	 * Whenever the estimated size exceeds the budget, documents are evicted until the size is a little below the budget, starting with the collection that has been accessed least recently via {@link #getCollection(String)} or modified least recently, and within each collection with the documents that have been modified least recently
+	 *
+	 * Documents that have been delivered by a subscription are never evicted while that subscription is active
+	 *
+	 * Data that arrives after all subscriptions have become ready is attributed to the subscriptions that have delivered data to the same collection before, or else to all active subscriptions
+	 *
+	 * The sizes are rough estimates of the memory used on the heap, so the budget should leave some headroom
+	 *
+	 * @param bytes the budget in bytes or `0` for no limit
+	 */
+	public void setMemoryBudget(final long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("The memory budget is `"+bytes+"` but it must not be negative");
+		}
+
+		synchronized (mSnapshotLock) {
+			mMemoryBudget = bytes;
+
+			if (!mReadOnly) {
+				enforceMemoryBudget();
+			}
+		}
+	}
+
+	/**
+	 * Returns the maximum estimated number of bytes that the documents in all collections may occupy
+	 *
+	 * @return the budget in bytes or `0` if there is no limit
+	 */
+	public long getMemoryBudget() {
+		return mMemoryBudget;
+	}
+
+	/**
+	 * Returns the estimated number of bytes that the documents in all collections occupy
+	 *
+	 * @return the estimated size in bytes
+	 */
+	public long getEstimatedSize() {
+		long size = 0;
+
+		for (InMemoryCollection collection : mCollections.values()) {
+			size += collection.getEstimatedSize();
+		}
+
+		return size;
+	}
+
+	/**
+	 * Returns the estimated number of bytes that the documents in a collection occupy
+	 *
+	 * @param collectionName the name of the collection
+	 * @return the estimated size in bytes
+	 */
+	public long getEstimatedSize(final String collectionName) {
+		final InMemoryCollection collection = mCollections.get(collectionName);
+
+		return collection != null ? collection.getEstimatedSize() : 0;
+	}
+
+	/**
+	 * Sets the listener that is notified whenever documents are evicted to stay within the memory budget
+	 *
+	 * @param listener the listener or `null`
+	 */
+	public void setEvictionListener(final EvictionListener listener) {
+		mEvictionListener = listener;
+	}
+
+	/**
+	 * Records that the given document has been added or modified and evicts documents if the memory budget is exceeded
+	 *
+	 * Must be called while holding the snapshot lock
+	 *
+	 * @param collection the modified collection
+	 * @param documentId the ID of the modified document
+	 */
+	private void onCollectionModified(final InMemoryCollection collection, final String documentId) {
+		collection.setLastAccess(mAccessClock.incrementAndGet());
+
+		// the data that arrives while subscriptions are pending belongs to these subscriptions
+		if (!mPendingSubscriptions.isEmpty()) {
+			addCollectionOwners(collection.getName(), mPendingSubscriptions);
+			mOwnership.claim(collection.getName(), documentId, mPendingSubscriptions);
+		}
+		else if (!mOwnership.isEmpty() && !mOwnership.isOwned(collection.getName(), documentId)) {
+			// documents published later belong to all subscriptions that have delivered data to the collection before
+			final Set<String> owners = mCollectionOwners.get(collection.getName());
+
+			if (owners != null) {
+				mOwnership.claim(collection.getName(), documentId, owners);
+			}
+			// or else to any of the active subscriptions, which cannot be told apart
+			else {
+				final List<String> subscriptionIds = mOwnership.getSubscriptionIds();
+
+				addCollectionOwners(collection.getName(), subscriptionIds);
+				mOwnership.claim(collection.getName(), documentId, subscriptionIds);
+			}
+		}
+
+		if (mMemoryBudget > 0) {
+			enforceMemoryBudget();
+		}
+	}
+
+	/**
+	 * Records that the specified subscriptions have delivered data to a collection
+	 *
+	 * Must be called while holding the snapshot lock
+	 *
+	 * @param collectionName the name of the collection
+	 * @param subscriptionIds the IDs of the subscriptions
+	 */
+	private void addCollectionOwners(final String collectionName, final java.util.Collection<String> subscriptionIds) {
+		Set<String> owners = mCollectionOwners.get(collectionName);
+
+		if (owners == null) {
+			owners = new HashSet<String>();
+			mCollectionOwners.put(collectionName, owners);
+		}
+
+		owners.addAll(subscriptionIds);
+	}
+
+	/**
+	 * Evicts the least recently used documents that no active subscription owns until the estimated size is within the memory budget
+	 *
+	 * Must be called while holding the snapshot lock
+	 */
+	private void enforceMemoryBudget() {
+		final long budget = mMemoryBudget;
+
+		if (budget <= 0) {
+			return;
+		}
+
+		long size = getEstimatedSize();
+
+		if (size <= budget) {
+			return;
+		}
+
+		// evicting a little more than necessary saves the following writes from evicting again right away
+		final long target = budget - budget / EVICTION_HEADROOM_RATIO;
+		final List<InMemoryCollection> candidates = new ArrayList<InMemoryCollection>();
+
+		for (InMemoryCollection collection : mCollections.values()) {
+			// collections that are being loaded in bulk are checked again at the end of the load
+			if (!mBulkLoads.containsKey(collection.getName()) && collection.getEstimatedSize() > 0) {
+				candidates.add(collection);
+			}
+		}
+
+		Collections.sort(candidates, new Comparator<InMemoryCollection>() {
+
+			@Override
+			public int compare(final InMemoryCollection lhs, final InMemoryCollection rhs) {
+				return lhs.getLastAccess() < rhs.getLastAccess() ? -1 : (lhs.getLastAccess() == rhs.getLastAccess() ? 0 : 1);
+			}
+
+		});
+
+		final EvictionListener listener = mEvictionListener;
+
+		for (InMemoryCollection collection : candidates) {
+			if (size <= target) {
+				break;
+			}
+
+			final List<String> documentIds = getEvictableDocumentIds(collection, size - target);
+
+			if (documentIds.isEmpty()) {
+				continue;
+			}
+
+			final long evictedSize = collection.evict(documentIds);
+			size -= evictedSize;
+
+			// the cached results refer to the evicted documents
+			mQueryCache.invalidate(collection.getName());
+
+			// empty collections are only kept for the indexes or live queries that have been set up
+			if (collection.count() == 0 && !collection.hasIndexesOrLiveQueries()) {
+				mCollections.remove(collection.getName());
+
+				// a collection created with the same name later must not reach versions that results have been cached for
+				mEvictedVersions.put(collection.getName(), collection.getVersion());
+			}
+
 			Meteor.log(TAG);
-			Meteor.log("  Cannot find document `"+documentId+"` to delete in collection `"+collectionName+"`");
+			Meteor.log("  Evicted "+documentIds.size()+" documents from collection `"+collection.getName()+"`");
+
+			if (listener != null) {
+				listener.onDocumentsEvicted(collection.getName(), documentIds.size(), evictedSize);
+			}
+		}
+	}
+
+	/**
+	 * Returns the IDs of the documents in a collection that no active subscription owns, starting with the documents that have been modified least recently, until their estimated size reaches the specified number of bytes
+	 *
+	 * Must be called while holding the snapshot lock
+	 *
+	 * @param collection the collection
+	 * @param bytes the estimated number of bytes to free
+	 * @return the IDs of the documents to evict
+	 */
+	private List<String> getEvictableDocumentIds(final InMemoryCollection collection, final long bytes) {
+		final List<InMemoryDocument> documents = new ArrayList<InMemoryDocument>();
+
+		for (InMemoryDocument document : collection.getDocuments()) {
+			// documents of active subscriptions must be complete when the server sends changes
+			if (!mOwnership.isOwned(collection.getName(), document.getId())) {
+				documents.add(document);
+			}
+		}
+
+		// the version of a document is the version of its collection when the document has been modified last
+		Collections.sort(documents, new Comparator<InMemoryDocument>() {
+
+			@Override
+			public int compare(final InMemoryDocument lhs, final InMemoryDocument rhs) {
+				return lhs.getVersion() < rhs.getVersion() ? -1 : (lhs.getVersion() == rhs.getVersion() ? 0 : 1);
+			}
+
+		});
+
+		final List<String> documentIds = new ArrayList<String>();
+		long size = 0;
+
+		for (InMemoryDocument document : documents) {
+			if (size >= bytes) {
+				break;
+			}
+
+			documentIds.add(document.getId());
+			size += document.estimateSize();
+		}
+
+		return documentIds;
+	}
+
+	/**
+	 * Returns whether documents are currently being loaded in bulk, e.g. because the initial data of a subscription is still arriving
+	 *
+	 * @return whether a bulk load is in progress
+	 */
+	public boolean isBulkLoading() {
+		synchronized (mSnapshotLock) {
+			return isLoading();
+		}
+	}
+
+	/**
+	 * Returns whether the initial data of any subscription is arriving or any snapshot is being read
+	 *
+	 * Must be called while holding the snapshot lock
+	 *
+	 * @return whether a load is in progress
+	 */
+	private boolean isLoading() {
+		return !mPendingSubscriptions.isEmpty() || mSnapshotLoads > 0;
+	}
+
+	/**
+	 * Records a write to the given collection during a load and switches the collection to loading documents in bulk once enough documents have been written
+	 *
+	 * Must be called while holding the snapshot lock
+	 *
+	 * @param collection the collection that is about to be modified
+	 */
+	private void prepareWrite(final InMemoryCollection collection) {
+		if (!isLoading()) {
+			return;
+		}
+
+		BulkLoad bulkLoad = mBulkLoads.get(collection.getName());
+
+		if (bulkLoad == null) {
+			bulkLoad = new BulkLoad(collection.count());
+			mBulkLoads.put(collection.getName(), bulkLoad);
+		}
+
+		bulkLoad.mSubscriptionIds.addAll(mPendingSubscriptions);
+		bulkLoad.mSnapshot |= mSnapshotLoads > 0;
+
+		// rebuilding the indexes only pays off if a large part of the collection is written
+		if (!bulkLoad.mStarted && ++bulkLoad.mWrites > bulkLoad.mInitialSize / BulkLoad.MIN_WRITE_RATIO) {
+			collection.beginBulkLoad();
+			bulkLoad.mStarted = true;
+		}
+	}
+
+	/**
+	 * Ends loading documents in bulk in all collections that have only been written to by the specified load
+	 *
+	 * Must be called while holding the snapshot lock
+	 *
+	 * @param subscriptionId the ID of the subscription that is ready or `null` if the last snapshot has been read
+	 */
+	private void finishBulkLoads(final String subscriptionId) {
+		final Iterator<Map.Entry<String, BulkLoad>> entries = mBulkLoads.entrySet().iterator();
+
+		while (entries.hasNext()) {
+			final Map.Entry<String, BulkLoad> entry = entries.next();
+			final BulkLoad bulkLoad = entry.getValue();
+
+			if (subscriptionId != null) {
+				bulkLoad.mSubscriptionIds.remove(subscriptionId);
+			}
+			else {
+				bulkLoad.mSnapshot = false;
+			}
+
+			if (bulkLoad.mSubscriptionIds.isEmpty() && !bulkLoad.mSnapshot) {
+				entries.remove();
+
+				final InMemoryCollection collection = mCollections.get(entry.getKey());
+
+				if (bulkLoad.mStarted && collection != null) {
+					collection.endBulkLoad();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a document that has been copied from another database and keeps its version
+	 *
+	 * The version of the collection is raised to at least the version of the document
+	 *
+	 * @param collectionName the name of the collection that the document is added to
+	 * @param documentId the ID of the document that is being added
+	 * @param fields the fields of the document
+	 * @param version the version of the document
+	 */
+	public void putDocument(final String collectionName, final String documentId, final Fields fields, final long version) {
+		checkWritable();
+
+		synchronized (mSnapshotLock) {
+			final InMemoryCollection collection = getOrCreateCollection(collectionName);
+
+			prepareWrite(collection);
+			collection.putDocument(documentId, fields, version);
+		}
+	}
+
+	/** Throws an exception if this database is a snapshot that must not be modified */
+	private void checkWritable() {
+		if (mReadOnly) {
+			throw new UnsupportedOperationException("Snapshots of a database cannot be modified");
+		}
+	}
+
+	/**
+	 * Creates an index on the specified field of a collection that speeds up `whereEqual` and `whereIn` queries
+	 *
+	 * The index is kept up to date automatically whenever documents are added, changed or removed
+	 *
+	 * If the collection does not exist yet, an empty collection is created
+	 *
+	 * @param collectionName the name of the collection
+	 * @param fieldName the name of the field to index
+	 */
+	public void ensureIndex(final String collectionName, final String fieldName) {
+		getOrCreateCollection(collectionName).ensureIndex(fieldName);
+	}
+
+	/**
+	 * Creates a sorted index on the specified numeric field of a collection that speeds up range queries
+	 *
+	 * Range queries are `whereLessThan`, `whereLessThanOrEqual`, `whereGreaterThan` and `whereGreaterThanOrEqual`
+	 *
+	 * The index is kept up to date automatically whenever documents are added, changed or removed
+	 *
+	 * If the collection does not exist yet, an empty collection is created
+	 *
+	 * @param collectionName the name of the collection
+	 * @param fieldName the name of the field to index
+	 */
+	public void ensureSortedIndex(final String collectionName, final String fieldName) {
+		getOrCreateCollection(collectionName).ensureSortedIndex(fieldName);
+	}
+
+	/**
+	 * Creates an index on the words in the specified text field of a collection that speeds up `whereText` queries
+	 *
+	 * The index is kept up to date automatically whenever documents are added, changed or removed
+	 *
+	 * If the collection does not exist yet, an empty collection is created
+	 *
+	 * @param collectionName the name of the collection
+	 * @param fieldName the name of the field to index
+	 */
+	public void ensureTextIndex(final String collectionName, final String fieldName) {
+		getOrCreateCollection(collectionName).ensureTextIndex(fieldName);
+	}
+
+	/**
+	 * Creates a sorted index on the specified string field of a collection that speeds up `wherePrefix` queries and `whereRegex` queries anchored at the start
+	 *
+	 * The index is kept up to date automatically whenever documents are added, changed or removed
+	 *
+	 * If the collection does not exist yet, an empty collection is created
+	 *
+	 * @param collectionName the name of the collection
+	 * @param fieldName the name of the field to index
+	 */
+	public void ensureStringIndex(final String collectionName, final String fieldName) {
+		getOrCreateCollection(collectionName).ensureStringIndex(fieldName);
+	}
+
+	/**
+	 * Creates an index on the coordinates in the specified fields of a collection that speeds up `whereWithinBox` and `whereNear` queries
+	 *
+	 * The index is kept up to date automatically whenever documents are added, changed or removed
+	 *
+	 * If the collection does not exist yet, an empty collection is created
+	 *
+	 * @param collectionName the name of the collection
+	 * @param latitudeFieldName the name of the field containing the latitude
+	 * @param longitudeFieldName the name of the field containing the longitude
+	 */
+	public void ensureGridIndex(final String collectionName, final String latitudeFieldName, final String longitudeFieldName) {
+		ensureGridIndex(collectionName, latitudeFieldName, longitudeFieldName, GridIndex.DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * Creates an index on the coordinates in the specified fields of a collection that speeds up `whereWithinBox` and `whereNear` queries
+	 *
+	 * The cells of the grid should be about as large as the typical query box, so that each query only has to visit a few cells
+	 *
+	 * The index is kept up to date automatically whenever documents are added, changed or removed
+	 *
+	 * If the collection does not exist yet, an empty collection is created
+	 *
+	 * @param collectionName the name of the collection
+	 * @param latitudeFieldName the name of the field containing the latitude
+	 * @param longitudeFieldName the name of the field containing the longitude
+	 * @param cellSize the width and height of each cell of the grid in degrees
+	 */
+	public void ensureGridIndex(final String collectionName, final String latitudeFieldName, final String longitudeFieldName, final double cellSize) {
+		getOrCreateCollection(collectionName).ensureGridIndex(latitudeFieldName, longitudeFieldName, cellSize);
+	}
+
+	/**
+	 * Returns the collection with the specified name and creates it first if necessary
+	 *
+	 * @param name the name of the collection
+	 * @return the collection (never `null`)
+	 */
+	private InMemoryCollection getOrCreateCollection(final String name) {
+		InMemoryCollection collection = mCollections.get(name);
+
+		if (collection == null) {
+			// the collection must not be created while an evicted collection with the same name is being removed
+			synchronized (mSnapshotLock) {
+				final Long evictedVersion = mEvictedVersions.get(name);
+				final InMemoryCollection newCollection = new InMemoryCollection(name, evictedVersion != null ? evictedVersion : 0, mQueryCache);
+				collection = mCollections.putIfAbsent(name, newCollection);
+
+				if (collection == null) {
+					collection = newCollection;
+					mEvictedVersions.remove(name);
+				}
+			}
+		}
+
+		return collection;
+	}
+
+	/**
+	 * Sets the maximum number of query results that are cached
+	 *
+	 * Results of `find`, `findOne` and `count` are cached until the collection that they have been computed from is modified
+	 *
+	 * @param maxSize the maximum number of results or `0` to disable the cache
+	 */
+	public void setQueryCacheSize(final int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("The maximum size is `"+maxSize+"` but it must be greater than or equal to `0`");
+		}
+
+		mQueryCache.setMaxSize(maxSize);
+	}
+
+	/**
+	 * Returns the number of queries that have been answered from the cache
+	 *
+	 * @return the number of hits
+	 */
+	public long getQueryCacheHits() {
+		return mQueryCache.getHits();
+	}
+
+	/**
+	 * Returns the number of queries that could not be answered from the cache and had to be executed
+	 *
+	 * @return the number of misses
+	 */
+	public long getQueryCacheMisses() {
+		return mQueryCache.getMisses();
+	}
+
+	/**
+	 * Writes a snapshot of the whole database to the specified file
+	 *
+	 * The snapshot can be loaded again with {@link #loadSnapshot(File)}, e.g. to show cached data immediately after a cold start
+	 *
+	 * @param file the file to write to
+	 * @throws IOException if the snapshot could not be written
+	 */
+	public void saveSnapshot(final File file) throws IOException {
+		Snapshot.write(mCollections, file);
+	}
+
+	/**
+	 * Reads a snapshot from the specified file and adds all of its documents to the database
+	 *
+	 * Documents that are sent by the server afterwards replace the documents from the snapshot
+	 *
+	 * Documents that have been removed on the server in the meantime are not removed automatically
+	 *
+	 * @param file the file to read from
+	 * @throws IOException if the file could not be read or is not a valid snapshot
+	 */
+	public void loadSnapshot(final File file) throws IOException {
+		checkWritable();
+
+		synchronized (mSnapshotLock) {
+			mSnapshotLoads++;
+		}
+
+		try {
+			Snapshot.read(file, this);
+		}
+		finally {
+			synchronized (mSnapshotLock) {
+				if (--mSnapshotLoads == 0) {
+					finishBulkLoads(null);
+					enforceMemoryBudget();
+				}
+			}
 		}
 	}
 
@@ -107,7 +849,30 @@ public final class InMemoryDatabase implements Database {
 		return mCollections.toString();
 	}
 
-	/** Data type for the map backing the database */
-	private static class CollectionsMap extends HashMap<String, InMemoryCollection> { }
+	/** The writes to a single collection during the loads that are in progress */
+	private static final class BulkLoad {
+
+		/** The collection is loaded in bulk once more than this fraction of its initial documents has been written */
+		private static final int MIN_WRITE_RATIO = 8;
+		/** The IDs of the pending subscriptions that have been active during writes to the collection */
+		private final Set<String> mSubscriptionIds;
+		/** Whether the collection has been written to while a snapshot was being read */
+		private boolean mSnapshot;
+		/** The number of documents in the collection before the first write */
+		private final int mInitialSize;
+		/** The number of writes so far */
+		private int mWrites;
+		/** Whether the collection is loading documents in bulk */
+		private boolean mStarted;
+
+		public BulkLoad(final int initialSize) {
+			mSubscriptionIds = new HashSet<String>();
+			mInitialSize = initialSize;
+		}
+
+	}
+
+	/** Data type for the map backing the database, which may be read while collections are added */
+	private static class CollectionsMap extends ConcurrentHashMap<String, InMemoryCollection> { }
 
 }
@@ -18,33 +18,90 @@ package im.delight.android.ddp.db.memory;
 
 import im.delight.android.ddp.Fields;
 import im.delight.android.ddp.db.Document;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
-/** Document that is stored in memory */
+/**
+ * Document that is stored in memory
+ *
+ * Documents are never modified after they have been added to a collection, so that they can be read without locking
+ *
+ * Whenever a document changes, the collection replaces it with a new instance
+ *
+ * The names of the fields are stored in a {@link Shape} that is shared by all documents with the same fields, while the document itself only stores the values
+ *
+ * Values of type `Integer`, `Long` and `Double` are stored as primitives and only boxed again when they are requested via {@link #getField(String)}
+ */
 public final class InMemoryDocument implements Document {
 
+	private static final Object[] NO_OBJECTS = new Object[0];
+	private static final long[] NO_NUMBERS = new long[0];
 	/** The ID of the document */
 	private final String mId;
-	/** The fields of the document */
-	private final Fields mFields;
+	/** The layout of the fields of the document */
+	private final Shape mShape;
+	/** The values that are stored as objects */
+	private final Object[] mObjects;
+	/** The values that are stored as primitive numbers (with `double` values as their raw bits) */
+	private final long[] mNumbers;
+	/** The version of the collection when this document was created */
+	private final long mVersion;
 
 	/**
 	 * Creates a new document that is stored in memory
 	 *
 	 * @param id the ID of the document to create
+	 * @param shape the layout of the fields of the document
+	 * @param values the values of the fields in the order of the slots of the shape
+	 * @param version the version of the collection when the document is created
 	 */
-	protected InMemoryDocument(final String id) {
-		this(id, new Fields());
+	private InMemoryDocument(final String id, final Shape shape, final Object[] values, final long version) {
+		mId = id;
+		mShape = shape;
+		mVersion = version;
+		mObjects = shape.getObjectCount() > 0 ? new Object[shape.getObjectCount()] : NO_OBJECTS;
+		mNumbers = shape.getNumberCount() > 0 ? new long[shape.getNumberCount()] : NO_NUMBERS;
+
+		for (int i = 0; i < values.length; i++) {
+			final int position = shape.getPosition(i);
+
+			switch (shape.getType(i)) {
+				case Shape.TYPE_INTEGER:
+				case Shape.TYPE_LONG:
+					mNumbers[position] = ((Number) values[i]).longValue();
+					break;
+				case Shape.TYPE_DOUBLE:
+					mNumbers[position] = Double.doubleToRawLongBits((Double) values[i]);
+					break;
+				default:
+					mObjects[position] = values[i];
+			}
+		}
 	}
 
 	/**
 	 * Creates a new document that is stored in memory
 	 *
 	 * @param id the ID of the document to create
-	 * @param fields the initial fields for the document to create
+	 * @param fields the fields of the document to create
+	 * @param rootShape the root shape of the collection that the document belongs to
+	 * @param version the version of the collection when the document is created
+	 * @return the new document
 	 */
-	protected InMemoryDocument(final String id, final Fields fields) {
-		mId = id;
-		mFields = fields;
+	protected static InMemoryDocument create(final String id, final Fields fields, final Shape rootShape, final long version) {
+		final String[] fieldNames = fields.keySet().toArray(new String[fields.size()]);
+		Arrays.sort(fieldNames);
+
+		final Object[] values = new Object[fieldNames.length];
+		final byte[] types = new byte[fieldNames.length];
+
+		for (int i = 0; i < fieldNames.length; i++) {
+			values[i] = fields.get(fieldNames[i]);
+			types[i] = Shape.getType(values[i]);
+		}
+
+		return new InMemoryDocument(id, rootShape.get(fieldNames, types), values, version);
 	}
 
 	@Override
@@ -52,33 +109,289 @@ public final class InMemoryDocument implements Document {
 		return mId;
 	}
 
+	@Override
+	public long getVersion() {
+		return mVersion;
+	}
+
 	@Override
 	public Object getField(final String name) {
-		return mFields.get(name);
+		final int slot = mShape.getSlot(name);
+
+		return slot >= 0 ? getValue(slot) : null;
+	}
+
+	@Override
+	public double getDouble(final String name) {
+		final int slot = mShape.getSlot(name);
+
+		if (slot < 0) {
+			return 0;
+		}
+
+		final int position = mShape.getPosition(slot);
+
+		switch (mShape.getType(slot)) {
+			case Shape.TYPE_INTEGER:
+			case Shape.TYPE_LONG:
+				return mNumbers[position];
+			case Shape.TYPE_DOUBLE:
+				return Double.longBitsToDouble(mNumbers[position]);
+			default:
+				return InMemoryQuery.coerceNumber(mObjects[position]);
+		}
+	}
+
+	@Override
+	public long getLong(final String name) {
+		final int slot = mShape.getSlot(name);
+
+		if (slot < 0) {
+			return 0;
+		}
+
+		final int position = mShape.getPosition(slot);
+
+		switch (mShape.getType(slot)) {
+			case Shape.TYPE_INTEGER:
+			case Shape.TYPE_LONG:
+				return mNumbers[position];
+			case Shape.TYPE_DOUBLE:
+				return (long) Double.longBitsToDouble(mNumbers[position]);
+			default:
+				return (long) InMemoryQuery.coerceNumber(mObjects[position]);
+		}
 	}
 
 	@Override
 	public String[] getFieldNames() {
-		return mFields.keySet().toArray(new String[mFields.size()]);
+		return mShape.getFieldNames();
 	}
 
 	@Override
 	public int count() {
-		return mFields.size();
+		return mShape.size();
+	}
+
+	/**
+	 * Returns whether the document contains the field with the specified name (even if its value is `null`)
+	 *
+	 * @param name the name of the field
+	 * @return whether the field exists
+	 */
+	protected boolean hasField(final String name) {
+		return mShape.getSlot(name) >= 0;
+	}
+
+	/**
+	 * Returns whether the field with the specified name holds a number
+	 *
+	 * @param name the name of the field
+	 * @return whether the value is a number
+	 */
+	protected boolean isNumber(final String name) {
+		final int slot = mShape.getSlot(name);
+
+		if (slot < 0) {
+			return false;
+		}
+		else if (mShape.getType(slot) != Shape.TYPE_OBJECT) {
+			return true;
+		}
+		else {
+			return mObjects[mShape.getPosition(slot)] instanceof Number;
+		}
+	}
+
+	/**
+	 * Returns the layout of the fields of this document
+	 *
+	 * @return the shape
+	 */
+	protected Shape getShape() {
+		return mShape;
+	}
+
+	/**
+	 * Returns the value of the field in the specified slot
+	 *
+	 * @param slot the slot of the field
+	 * @return the value
+	 */
+	protected Object getValue(final int slot) {
+		final int position = mShape.getPosition(slot);
+
+		switch (mShape.getType(slot)) {
+			case Shape.TYPE_INTEGER:
+				return Integer.valueOf((int) mNumbers[position]);
+			case Shape.TYPE_LONG:
+				return Long.valueOf(mNumbers[position]);
+			case Shape.TYPE_DOUBLE:
+				return Double.valueOf(Double.longBitsToDouble(mNumbers[position]));
+			default:
+				return mObjects[position];
+		}
+	}
+
+	/**
+	 * Returns the bits of the primitive number in the specified slot in the same form as {@link Shape#getNumberBits(Object)}
+	 *
+	 * @param slot the slot of a field whose type is not {@link Shape#TYPE_OBJECT}
+	 * @return the bits
+	 */
+	protected long getNumberBits(final int slot) {
+		final long bits = mNumbers[mShape.getPosition(slot)];
+
+		if (mShape.getType(slot) == Shape.TYPE_DOUBLE) {
+			// all representations of `NaN` are equal
+			return Double.doubleToLongBits(Double.longBitsToDouble(bits));
+		}
+		else {
+			return bits;
+		}
+	}
+
+	/**
+	 * Creates a new version of this document with the specified changes applied
+	 *
+	 * @param updatedValues the modified fields of the document or `null`
+	 * @param removedValues the deleted fields of the document or `null`
+	 * @param rootShape the root shape of the collection that the document belongs to
+	 * @param version the version of the collection when the new document is created
+	 * @return the new document
+	 */
+	protected InMemoryDocument withChanges(final Fields updatedValues, final String[] removedValues, final Shape rootShape, final long version) {
+		// if no fields are removed, check whether only existing fields are updated with values of the same type so that the shape can be kept
+		if (removedValues == null || removedValues.length == 0) {
+			final Object[] values = new Object[mShape.size()];
+			boolean sameShape = true;
+
+			for (int i = 0; i < values.length; i++) {
+				values[i] = getValue(i);
+			}
+
+			if (updatedValues != null) {
+				for (Map.Entry<String, Object> entry : updatedValues.entrySet()) {
+					final int slot = mShape.getSlot(entry.getKey());
+
+					if (slot < 0 || mShape.getType(slot) != Shape.getType(entry.getValue())) {
+						sameShape = false;
+						break;
+					}
+
+					values[slot] = entry.getValue();
+				}
+			}
+
+			if (sameShape) {
+				return new InMemoryDocument(mId, mShape, values, version);
+			}
+		}
+
+		final Fields fields = toFields();
+
+		if (updatedValues != null) {
+			fields.putAll(updatedValues);
+		}
+
+		if (removedValues != null) {
+			for (String removedKey : removedValues) {
+				fields.remove(removedKey);
+			}
+		}
+
+		return create(mId, fields, rootShape, version);
+	}
+
+	/**
+	 * Returns a copy of the fields of this document
+	 *
+	 * @return the new map of fields
+	 */
+	protected Fields toFields() {
+		final Fields fields = new Fields();
+
+		for (int i = 0; i < mShape.size(); i++) {
+			fields.put(mShape.getFieldName(i), getValue(i));
+		}
+
+		return fields;
 	}
 
 	/**
-	 * Returns the raw map of fields backing this document
+	 * Returns a rough estimate of the number of bytes that this document occupies on the heap, not counting the shape shared with other documents
 	 *
-	 * @return the raw map of fields
+	 * @return the estimated size in bytes
 	 */
-	protected Fields getFields() {
-		return mFields;
+	protected long estimateSize() {
+		// the document itself, its two arrays and the entry in the map of documents
+		long size = 24 + 16 + 4 * mObjects.length + 16 + 8 * mNumbers.length + 40 + estimateValueSize(mId);
+
+		for (Object value : mObjects) {
+			size += estimateValueSize(value);
+		}
+
+		return size;
+	}
+
+	/**
+	 * Returns a rough estimate of the number of bytes that the given value occupies on the heap
+	 *
+	 * @param value the value to estimate the size of
+	 * @return the estimated size in bytes
+	 */
+	@SuppressWarnings("unchecked")
+	private static long estimateValueSize(final Object value) {
+		if (value == null || value instanceof Boolean) {
+			// references to shared instances
+			return 0;
+		}
+		else if (value instanceof String) {
+			return 40 + 2 * ((String) value).length();
+		}
+		else if (value instanceof Map) {
+			final Map<String, Object> map = (Map<String, Object>) value;
+			long size = 56 + 4 * map.size();
+
+			for (Map.Entry<String, Object> entry : map.entrySet()) {
+				size += 40 + estimateValueSize(entry.getKey()) + estimateValueSize(entry.getValue());
+			}
+
+			return size;
+		}
+		else if (value instanceof List) {
+			final List<Object> list = (List<Object>) value;
+			long size = 40 + 4 * list.size();
+
+			for (Object element : list) {
+				size += estimateValueSize(element);
+			}
+
+			return size;
+		}
+		else {
+			return 24;
+		}
 	}
 
 	@Override
 	public String toString() {
-		return mFields.toString();
+		final StringBuilder builder = new StringBuilder();
+		builder.append('{');
+
+		for (int i = 0; i < mShape.size(); i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+
+			builder.append(mShape.getFieldName(i));
+			builder.append('=');
+			builder.append(getValue(i));
+		}
+
+		builder.append('}');
+
+		return builder.toString();
 	}
 
 }
@@ -0,0 +1,132 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.Grouping;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/** Grouping of the documents matching a query on a collection that is stored in memory */
+final class InMemoryGrouping implements Grouping {
+
+	/** The query whose matching documents are grouped */
+	private final InMemoryQuery mQuery;
+	/** The path to the field to group by */
+	private final FieldPath mPath;
+
+	/**
+	 * Creates a new grouping
+	 *
+	 * @param query the query whose matching documents are grouped
+	 * @param path the path to the field to group by
+	 */
+	public InMemoryGrouping(final InMemoryQuery query, final FieldPath path) {
+		mQuery = query;
+		mPath = path;
+	}
+
+	@Override
+	public Map<Object, Integer> count() {
+		final Map<Object, Integer> counts = new LinkedHashMap<Object, Integer>();
+
+		// if all documents are grouped and there is an index that assigns each document to exactly one value
+		if (!mQuery.hasFilters() && mPath.isSimple()) {
+			final InMemoryCollection collection = mQuery.getCollection();
+			final Lock lock = collection.getReadLock();
+			lock.lock();
+
+			try {
+				final HashIndex index = collection.getHashIndex(mPath.getPath());
+
+				if (index != null && !index.isMultiKey()) {
+					for (Map.Entry<Object, InMemoryCollection.DocumentsMap> bucket : index.getBuckets().entrySet()) {
+						counts.put(bucket.getKey(), bucket.getValue().size());
+					}
+
+					return counts;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		final Map<Object, int[]> groups = new HashMap<Object, int[]>();
+
+		mQuery.accumulate(new InMemoryQuery.Accumulator() {
+
+			@Override
+			public void add(final Document document) {
+				final Object key = mPath.getValue(document);
+				int[] count = groups.get(key);
+
+				if (count == null) {
+					count = new int[1];
+					groups.put(key, count);
+				}
+
+				count[0]++;
+			}
+
+		});
+
+		for (Map.Entry<Object, int[]> group : groups.entrySet()) {
+			counts.put(group.getKey(), group.getValue()[0]);
+		}
+
+		return counts;
+	}
+
+	@Override
+	public Map<Object, Double> sum(final String fieldName) {
+		final FieldPath valuePath = new FieldPath(fieldName);
+		final Map<Object, double[]> groups = new HashMap<Object, double[]>();
+
+		mQuery.accumulate(new InMemoryQuery.Accumulator() {
+
+			@Override
+			public void add(final Document document) {
+				final Object key = mPath.getValue(document);
+				double[] sum = groups.get(key);
+
+				if (sum == null) {
+					sum = new double[1];
+					groups.put(key, sum);
+				}
+
+				final double number = valuePath.getNumber(document);
+
+				if (!Double.isNaN(number)) {
+					sum[0] += number;
+				}
+			}
+
+		});
+
+		final Map<Object, Double> sums = new LinkedHashMap<Object, Double>();
+
+		for (Map.Entry<Object, double[]> group : groups.entrySet()) {
+			sums.put(group.getKey(), group.getValue()[0]);
+		}
+
+		return sums;
+	}
+
+}
@@ -0,0 +1,196 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.ChangeListener;
+import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.LiveQuery;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Live query on a collection that is stored in memory
+ *
+ * The IDs of the matching documents are kept so that each modification only has to be checked against the modified document
+ */
+final class InMemoryLiveQuery implements LiveQuery {
+
+	/** The collection that is observed */
+	private final InMemoryCollection mCollection;
+	/** The filters that documents must satisfy */
+	private final List<Filter> mFilters;
+	/** The names of the fields to report or `null` if complete documents are reported */
+	private final String[] mProjection;
+	/** The listener to notify about changes */
+	private final ChangeListener mListener;
+	/** The IDs of all documents that currently match */
+	private final Set<String> mMatches;
+	/** Whether the live query has been stopped */
+	private volatile boolean mStopped;
+
+	/**
+	 * Creates a new live query
+	 *
+	 * @param collection the collection to observe
+	 * @param filters the filters that documents must satisfy
+	 * @param projection the names of the fields to report or `null`
+	 * @param listener the listener to notify about changes
+	 */
+	InMemoryLiveQuery(final InMemoryCollection collection, final List<Filter> filters, final String[] projection, final ChangeListener listener) {
+		mCollection = collection;
+		mFilters = new ArrayList<Filter>(filters);
+		mProjection = projection;
+		mListener = listener;
+		mMatches = new HashSet<String>();
+	}
+
+	/**
+	 * Reports the documents that match initially
+	 *
+	 * @param documents the documents to check
+	 */
+	void start(final Iterable<InMemoryDocument> documents) {
+		for (InMemoryDocument document : documents) {
+			if (matches(document)) {
+				mMatches.add(document.getId());
+				mListener.onAdded(project(document));
+			}
+		}
+	}
+
+	@Override
+	public int count() {
+		return mStopped ? 0 : mMatches.size();
+	}
+
+	@Override
+	public void stop() {
+		if (!mStopped) {
+			mStopped = true;
+			mCollection.removeLiveQuery(this);
+		}
+	}
+
+	/**
+	 * Must be called after a document has been added or replaced
+	 *
+	 * @param document the new document
+	 */
+	void onDocumentPut(final InMemoryDocument document) {
+		onDocumentModified(document, null, null, true);
+	}
+
+	/**
+	 * Must be called after some fields of a document have been updated
+	 *
+	 * @param document the modified document
+	 * @param updatedValues the modified fields of the document or `null`
+	 * @param removedValues the deleted fields of the document or `null`
+	 */
+	void onDocumentUpdated(final InMemoryDocument document, final Fields updatedValues, final String[] removedValues) {
+		onDocumentModified(document, updatedValues, removedValues, false);
+	}
+
+	/**
+	 * Must be called after a document has been removed
+	 *
+	 * @param documentId the ID of the removed document
+	 */
+	void onDocumentRemoved(final String documentId) {
+		if (!mStopped && mMatches.remove(documentId)) {
+			mListener.onRemoved(documentId);
+		}
+	}
+
+	private void onDocumentModified(final InMemoryDocument document, final Fields updatedValues, final String[] removedValues, final boolean replaced) {
+		if (mStopped) {
+			return;
+		}
+
+		final String id = document.getId();
+		final boolean matchedBefore = mMatches.contains(id);
+		final boolean matchesNow = matches(document);
+
+		if (matchesNow) {
+			if (!matchedBefore) {
+				mMatches.add(id);
+				mListener.onAdded(project(document));
+			}
+			else if (replaced || isProjectionAffectedBy(updatedValues, removedValues)) {
+				mListener.onChanged(project(document));
+			}
+		}
+		else if (matchedBefore) {
+			mMatches.remove(id);
+			mListener.onRemoved(id);
+		}
+	}
+
+	/**
+	 * Returns whether an update modifies any of the fields that are reported
+	 *
+	 * @param updatedValues the modified fields of the document or `null`
+	 * @param removedValues the deleted fields of the document or `null`
+	 * @return whether any reported field has been modified
+	 */
+	private boolean isProjectionAffectedBy(final Fields updatedValues, final String[] removedValues) {
+		if (mProjection == null) {
+			return true;
+		}
+
+		for (String fieldName : mProjection) {
+			if (updatedValues != null && updatedValues.containsKey(fieldName)) {
+				return true;
+			}
+
+			if (removedValues != null) {
+				for (String removedKey : removedValues) {
+					if (fieldName.equals(removedKey)) {
+						return true;
+					}
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private boolean matches(final InMemoryDocument document) {
+		final int numFilters = mFilters.size();
+
+		for (int i = 0; i < numFilters; i++) {
+			if (!mFilters.get(i).matches(document)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private Document project(final InMemoryDocument document) {
+		if (mProjection != null) {
+			return ProjectedDocument.create(document, mProjection);
+		}
+		else {
+			return document;
+		}
+	}
+
+}
@@ -16,25 +16,78 @@ package im.delight.android.ddp.db.memory;
  * limitations under the License.
  */
 
+import im.delight.android.ddp.db.ChangeListener;
+import im.delight.android.ddp.db.Cursor;
 import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.DocumentVisitor;
+import im.delight.android.ddp.db.Grouping;
+import im.delight.android.ddp.db.LiveQuery;
 import im.delight.android.ddp.db.Query;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
-
-/** Query that operates on a collection stored in memory */
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+
+/**
+ * Query that operates on a collection stored in memory
+ *
+ * Filters are only collected when they are added and evaluated lazily in a single pass when the query is executed
+ *
+ * Collections that are stored elsewhere can be queried with {@link #scan(String, DocumentSource)}, which checks their documents one after another without indexes
+ */
 public final class InMemoryQuery implements Query {
 
-	private static final double PICO_DOUBLE = 0.000000000001;
-	private final InMemoryCollection.DocumentsMap mDocuments;
+	/** The collection that this query operates on */
+	private final InMemoryCollection mCollection;
+	/** The documents that are read one after another instead of the documents of the collection, or `null` */
+	private final DocumentSource mSource;
+	/** The filters that documents must satisfy in order to match this query */
+	private final List<Filter> mFilters;
+	/** The fields to sort the results by or `null` if the results are not sorted */
+	private List<SortKey> mSortKeys;
+	/** The names of the fields to return or `null` if complete documents are returned */
+	private String[] mProjection;
+	/** The point that the results must be nearest to or `null` if the results are not restricted by distance */
+	private NearPoint mNearPoint;
 
 	/**
 	 * Creates a new query that operates on a collection stored in memory
 	 *
-	 * @param documents the map of documents that this new query should operate on
+	 * @param collection the collection that this new query should operate on
+	 */
+	protected InMemoryQuery(final InMemoryCollection collection) {
+		this(collection, null);
+	}
+
+	private InMemoryQuery(final InMemoryCollection collection, final DocumentSource source) {
+		mCollection = collection;
+		mSource = source;
+		mFilters = new ArrayList<Filter>(4);
+	}
+
+	/**
+	 * Creates a new query that checks the documents of a collection that is not stored in memory one after another
+	 *
+	 * The query holds the source's read lock while it reads the documents and only keeps the matching documents in memory
+	 *
+	 * Results are neither cached nor can the query be observed
+	 *
+	 * @param collectionName the name of the collection
+	 * @param source the documents of the collection
+	 * @return the new query
 	 */
-	protected InMemoryQuery(final InMemoryCollection.DocumentsMap documents) {
-		// create a shallow copy of the map containing the documents
-		mDocuments = new InMemoryCollection.DocumentsMap(documents);
+	public static Query scan(final String collectionName, final DocumentSource source) {
+		// the empty collection has neither indexes nor a cache, so that every operation reads the source
+		return new InMemoryQuery(new InMemoryCollection(collectionName, new QueryCache(0)), source);
 	}
 
 	@Override
@@ -43,16 +96,7 @@ public final class InMemoryQuery implements Query {
 			return whereNull(fieldName);
 		}
 
-		final Iterator<InMemoryDocument> iterator = mDocuments.values().iterator();
-
-		InMemoryDocument entry;
-		while (iterator.hasNext()) {
-			entry = iterator.next();
-
-			if (entry.getField(fieldName) == null || !entry.getField(fieldName).equals(fieldValue)) {
-				iterator.remove();
-			}
-		}
+		mFilters.add(new EqualFilter(fieldName, fieldValue));
 
 		return this;
 	}
@@ -63,161 +107,164 @@ public final class InMemoryQuery implements Query {
 			return whereNotNull(fieldName);
 		}
 
-		final Iterator<InMemoryDocument> iterator = mDocuments.values().iterator();
-
-		InMemoryDocument entry;
-		while (iterator.hasNext()) {
-			entry = iterator.next();
-
-			if (entry.getField(fieldName) != null && entry.getField(fieldName).equals(fieldValue)) {
-				iterator.remove();
-			}
-		}
+		mFilters.add(new NotEqualFilter(fieldName, fieldValue));
 
 		return this;
 	}
 
 	@Override
 	public Query whereLessThan(final String fieldName, final double fieldValue) {
-		final Iterator<InMemoryDocument> iterator = mDocuments.values().iterator();
-
-		InMemoryDocument entry;
-		while (iterator.hasNext()) {
-			entry = iterator.next();
-
-			if (coerceNumber(entry.getField(fieldName)) >= fieldValue) {
-				iterator.remove();
-			}
-		}
+		mFilters.add(new RangeFilter(fieldName, fieldValue, false, false));
 
 		return this;
 	}
 
 	@Override
 	public Query whereLessThanOrEqual(final String fieldName, final double fieldValue) {
-		return whereLessThan(fieldName, fieldValue + PICO_DOUBLE);
+		mFilters.add(new RangeFilter(fieldName, fieldValue, false, true));
+
+		return this;
 	}
 
 	@Override
 	public Query whereGreaterThan(final String fieldName, final double fieldValue) {
-		final Iterator<InMemoryDocument> iterator = mDocuments.values().iterator();
-
-		InMemoryDocument entry;
-		while (iterator.hasNext()) {
-			entry = iterator.next();
-
-			if (coerceNumber(entry.getField(fieldName)) <= fieldValue) {
-				iterator.remove();
-			}
-		}
+		mFilters.add(new RangeFilter(fieldName, fieldValue, true, false));
 
 		return this;
 	}
 
 	@Override
 	public Query whereGreaterThanOrEqual(final String fieldName, final double fieldValue) {
-		return whereGreaterThan(fieldName, fieldValue - PICO_DOUBLE);
+		mFilters.add(new RangeFilter(fieldName, fieldValue, true, true));
+
+		return this;
 	}
 
 	@Override
 	public Query whereNull(final String fieldName) {
-		final Iterator<InMemoryDocument> iterator = mDocuments.values().iterator();
-
-		InMemoryDocument entry;
-		while (iterator.hasNext()) {
-			entry = iterator.next();
-
-			if (entry.getField(fieldName) != null) {
-				iterator.remove();
-			}
-		}
+		mFilters.add(new NullFilter(fieldName, true));
 
 		return this;
 	}
 
 	@Override
 	public Query whereNotNull(final String fieldName) {
-		final Iterator<InMemoryDocument> iterator = mDocuments.values().iterator();
+		mFilters.add(new NullFilter(fieldName, false));
 
-		InMemoryDocument entry;
-		while (iterator.hasNext()) {
-			entry = iterator.next();
+		return this;
+	}
 
-			if (entry.getField(fieldName) == null) {
-				iterator.remove();
-			}
+	@Override
+	public Query whereIn(String fieldName, Object[] fieldValues) {
+		if (fieldValues == null || fieldValues.length == 0) {
+			return whereNull(fieldName);
 		}
 
+		mFilters.add(new InFilter(fieldName, fieldValues, true));
+
 		return this;
 	}
 
 	@Override
-	public Query whereIn(String fieldName, Object[] fieldValues) {
+	public Query whereNotIn(String fieldName, Object[] fieldValues) {
 		if (fieldValues == null || fieldValues.length == 0) {
-			return whereNull(fieldName);
+			return whereNotNull(fieldName);
 		}
 
-		final Iterator<InMemoryDocument> iterator = mDocuments.values().iterator();
+		mFilters.add(new InFilter(fieldName, fieldValues, false));
 
-		InMemoryDocument entry;
-		while (iterator.hasNext()) {
-			entry = iterator.next();
+		return this;
+	}
 
-			boolean found = false;
+	@Override
+	public Query whereText(final String fieldName, final String terms) {
+		mFilters.add(new TextFilter(fieldName, terms == null ? "" : terms));
 
-			if (entry.getField(fieldName) != null) {
-				for (Object fieldValue : fieldValues) {
-					if (entry.getField(fieldName).equals(fieldValue)) {
-						found = true;
+		return this;
+	}
 
-						break;
-					}
-				}
-			}
+	@Override
+	public Query wherePrefix(final String fieldName, final String prefix) {
+		if (prefix == null) {
+			throw new IllegalArgumentException("The prefix must not be `null`");
+		}
 
-			if (!found) {
-				iterator.remove();
-			}
+		mFilters.add(new PrefixFilter(fieldName, prefix));
+
+		return this;
+	}
+
+	@Override
+	public Query whereRegex(final String fieldName, final String regex) {
+		if (regex == null) {
+			throw new IllegalArgumentException("The regular expression must not be `null`");
 		}
 
+		mFilters.add(new RegexFilter(fieldName, Pattern.compile(regex)));
+
 		return this;
 	}
 
 	@Override
-	public Query whereNotIn(String fieldName, Object[] fieldValues) {
-		if (fieldValues == null || fieldValues.length == 0) {
-			return whereNotNull(fieldName);
+	public Query whereWithinBox(final String latitudeFieldName, final String longitudeFieldName, final double minLatitude, final double minLongitude, final double maxLatitude, final double maxLongitude) {
+		mFilters.add(new BoxFilter(latitudeFieldName, longitudeFieldName, minLatitude, minLongitude, maxLatitude, maxLongitude));
+
+		return this;
+	}
+
+	@Override
+	public Query whereNear(final String latitudeFieldName, final String longitudeFieldName, final double latitude, final double longitude, final int maxResults) {
+		if (maxResults <= 0) {
+			throw new IllegalArgumentException("The maximum number of results is `"+maxResults+"` but it must be greater than `0`");
 		}
 
-		final Iterator<InMemoryDocument> iterator = mDocuments.values().iterator();
+		mNearPoint = new NearPoint(latitudeFieldName, longitudeFieldName, latitude, longitude, maxResults);
+
+		return this;
+	}
+
+	/**
+	 * Adds a filter to the query requiring the documents to have been delivered by the specified subscription
+	 *
+	 * @param ownership the subscriptions that have delivered each document
+	 * @param subscriptionId the ID of the subscription
+	 * @return this instance for chaining
+	 */
+	InMemoryQuery whereOwnedBy(final Ownership ownership, final String subscriptionId) {
+		mFilters.add(new OwnerFilter(mCollection.getName(), ownership, subscriptionId));
+
+		return this;
+	}
 
-		InMemoryDocument entry;
-		while (iterator.hasNext()) {
-			entry = iterator.next();
+	@Override
+	public Query orderBy(final String fieldName, final int direction) {
+		if (direction != ASCENDING && direction != DESCENDING) {
+			throw new IllegalArgumentException("The direction is `"+direction+"` but it must be either `"+ASCENDING+"` or `"+DESCENDING+"`");
+		}
 
-			boolean found = false;
+		if (mSortKeys == null) {
+			mSortKeys = new ArrayList<SortKey>(2);
+		}
 
-			if (entry.getField(fieldName) != null) {
-				for (Object fieldValue : fieldValues) {
-					if (entry.getField(fieldName).equals(fieldValue)) {
-						found = true;
+		mSortKeys.add(new SortKey(fieldName, direction));
 
-						break;
-					}
-				}
-			}
+		return this;
+	}
 
-			if (found) {
-				iterator.remove();
-			}
+	@Override
+	public Query fields(final String... fieldNames) {
+		if (fieldNames == null) {
+			throw new IllegalArgumentException("The field names must not be `null`");
 		}
 
+		mProjection = fieldNames.clone();
+
 		return this;
 	}
 
 	@Override
 	public Document[] find() {
-		return mDocuments.values().toArray(new Document[mDocuments.size()]);
+		return executeCached(Integer.MAX_VALUE, 0);
 	}
 
 	@Override
@@ -239,108 +286,1772 @@ public final class InMemoryQuery implements Query {
 			throw new IllegalArgumentException("The offset is `"+offset+"` but it must be greater than or equal to `0`");
 		}
 
-		final int numResults = Math.min(mDocuments.size() - offset, limit);
+		return executeCached(limit, offset);
+	}
+
+	@Override
+	public Document findOne() {
+		final Lock lock = getReadLock();
+		lock.lock();
+
+		try {
+			final String cacheKey = getCacheKey("findOne");
+
+			if (cacheKey != null) {
+				// the result is wrapped in an array so that `null` can be cached as well
+				Document[] result = (Document[]) getCachedResult(cacheKey);
 
-		if (numResults <= 0) {
-			return new Document[0];
+				if (result == null) {
+					result = new Document[] { findOneUncached() };
+					putCachedResult(cacheKey, result);
+				}
+
+				return result[0];
+			}
+
+			return findOneUncached();
 		}
+		finally {
+			lock.unlock();
+		}
+	}
 
-		final Document[] results = new Document[numResults];
+	/**
+	 * Returns the first matching document without using the cache
+	 *
+	 * The read lock must be held by the caller
+	 *
+	 * @return the document or `null`
+	 */
+	private Document findOneUncached() {
+		if (mSortKeys != null) {
+			final Document[] results = executeSorted(1, 0);
 
-		final Iterator<InMemoryDocument> iterator = mDocuments.values().iterator();
+			return results.length > 0 ? results[0] : null;
+		}
 
-		// until the initial offset has been reached
-		for (int i = 0; i < offset; i++) {
-			// if more entries are available
-			if (iterator.hasNext()) {
-				// discard the next entry
-				iterator.next();
+		for (Document document : getSource()) {
+			if (matches(document)) {
+				return project(document);
 			}
-			// if another entry was expected but there was none
-			else {
-				// return an error
-				throw new IllegalStateException("Expected `"+numResults+"` entries but there were only `"+i+"`");
+		}
+
+		return null;
+	}
+
+	@Override
+	public LiveQuery observe(final ChangeListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("The listener must not be `null`");
+		}
+
+		if (mNearPoint != null) {
+			throw new UnsupportedOperationException("Queries restricted to the nearest documents cannot be observed");
+		}
+
+		if (mSource != null) {
+			throw new UnsupportedOperationException("Queries on collections that are not stored in memory cannot be observed");
+		}
+
+		for (Filter filter : mFilters) {
+			// claims change without any change to the documents that live queries would be notified about
+			if (filter instanceof OwnerFilter) {
+				throw new UnsupportedOperationException("Queries by subscription cannot be observed");
 			}
 		}
 
-		// until the number of elements to be returned has been reached
-		for (int i = 0; i < numResults; i++) {
-			// if more entries are available
-			if (iterator.hasNext()) {
-				// get the next entry and put it into the result list
-				results[i] = iterator.next();
+		final Lock lock = getReadLock();
+		lock.lock();
+
+		try {
+			final InMemoryLiveQuery liveQuery = new InMemoryLiveQuery(mCollection, mFilters, mProjection, listener);
+
+			// the documents cannot change before the live query has been registered
+			final Collection<InMemoryDocument> candidates = getFilterCandidates();
+			liveQuery.start(candidates != null ? candidates : mCollection.getDocuments());
+
+			mCollection.addLiveQuery(liveQuery);
+
+			return liveQuery;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void forEach(final DocumentVisitor visitor) {
+		if (visitor == null) {
+			throw new IllegalArgumentException("The visitor must not be `null`");
+		}
+
+		final Lock lock = getReadLock();
+		lock.lock();
+
+		try {
+			if (mSortKeys != null) {
+				for (Document document : sortMatches(getSource())) {
+					if (!visitor.visit(project(document))) {
+						break;
+					}
+				}
 			}
-			// if another entry was expected but there was none
 			else {
-				// return an error
-				throw new IllegalStateException("Expected `"+numResults+"` entries but there were only `"+(offset + i)+"`");
+				for (Document document : getSource()) {
+					if (matches(document) && !visitor.visit(project(document))) {
+						break;
+					}
+				}
 			}
 		}
+		finally {
+			lock.unlock();
+		}
+	}
 
-		return results;
+	@Override
+	public Cursor cursor() {
+		final Lock lock = getReadLock();
+		lock.lock();
+
+		try {
+			if (mSortKeys != null) {
+				return new InMemoryCursor(sortMatches(getSource()).iterator(), Collections.<Filter>emptyList(), mProjection);
+			}
+
+			final Collection<? extends Document> candidates = getCandidates();
+
+			if (candidates != null) {
+				// indexes are modified in place and thus their contents have to be copied
+				return new InMemoryCursor(new ArrayList<Document>(candidates).iterator(), new ArrayList<Filter>(mFilters), mProjection);
+			}
+			else if (mSource != null) {
+				// the source may change once the lock has been released, so only the matching documents are kept
+				return new InMemoryCursor(collectMatches(mSource).iterator(), Collections.<Filter>emptyList(), mProjection);
+			}
+			else {
+				// filters may still be added to this query after the cursor has been created
+				return new InMemoryCursor(mCollection.iterateDocuments(), new ArrayList<Filter>(mFilters), mProjection);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
-	public Document findOne() {
-		// if there are entries available
+	public int count() {
+		final Lock lock = getReadLock();
+		lock.lock();
+
 		try {
-			// return the first entry
-			return mDocuments.values().iterator().next();
+			if (!hasFilters()) {
+				return mSource != null ? mSource.size() : mCollection.getDocuments().size();
+			}
+
+			final String cacheKey = getCacheKey("count");
+
+			if (cacheKey != null) {
+				Integer result = (Integer) getCachedResult(cacheKey);
+
+				if (result == null) {
+					result = countUncached();
+					putCachedResult(cacheKey, result);
+				}
+
+				return result;
+			}
+
+			return countUncached();
 		}
-		catch (NoSuchElementException e) {
-			return null;
+		finally {
+			lock.unlock();
 		}
 	}
 
 	/**
-	 * Forces the given object, no matter what type, to be a (primitive) number
+	 * Counts the matching documents without using the cache
 	 *
-	 * @param value the object to convert to a number
-	 * @return the number coerced from the specified object
+	 * The read lock must be held by the caller
+	 *
+	 * @return the number of matching documents
 	 */
-	private static double coerceNumber(final Object value) {
-		if (value == null) {
-			return 0;
+	private int countUncached() {
+		if (mNearPoint != null) {
+			return getNearest().size();
 		}
 
-		Number number;
+		// if a single filter can be answered by an index
+		if (mFilters.size() == 1 && mFilters.get(0).hasExactCandidates()) {
+			final Collection<InMemoryDocument> candidates = mFilters.get(0).getCandidates(mCollection);
 
-		if (value instanceof Byte) {
-			number = (Byte) value;
-		}
-		else if (value instanceof Short) {
-			number = (Short) value;
-		}
-		else if (value instanceof Integer) {
-			number = (Integer) value;
-		}
-		else if (value instanceof Long) {
-			number = (Long) value;
-		}
-		else if (value instanceof Float) {
-			number = (Float) value;
+			if (candidates != null) {
+				return candidates.size();
+			}
 		}
-		else if (value instanceof Double) {
-			number = (Double) value;
+
+		int count = 0;
+
+		for (Document document : getSource()) {
+			if (matches(document)) {
+				count++;
+			}
 		}
-		else if (value instanceof String) {
+
+		return count;
+	}
+
+	@Override
+	public double sum(final String fieldName) {
+		final FieldPath path = new FieldPath(fieldName);
+		final double[] sum = new double[1];
+
+		accumulate(new Accumulator() {
+
+			@Override
+			public void add(final Document document) {
+				final double number = path.getNumber(document);
+
+				if (!Double.isNaN(number)) {
+					sum[0] += number;
+				}
+			}
+
+		});
+
+		return sum[0];
+	}
+
+	@Override
+	public double min(final String fieldName) {
+		return getExtreme(fieldName, true);
+	}
+
+	@Override
+	public double max(final String fieldName) {
+		return getExtreme(fieldName, false);
+	}
+
+	@Override
+	public Grouping groupBy(final String fieldName) {
+		return new InMemoryGrouping(this, new FieldPath(fieldName));
+	}
+
+	/**
+	 * Returns the smallest or largest number in the specified field across all matching documents
+	 *
+	 * @param fieldName the name of the field
+	 * @param smallest whether to return the smallest (`true`) or the largest number (`false`)
+	 * @return the number or `NaN` if there are no numbers
+	 */
+	private double getExtreme(final String fieldName, final boolean smallest) {
+		final FieldPath path = new FieldPath(fieldName);
+
+		if (!hasFilters()) {
+			final Lock lock = getReadLock();
+			lock.lock();
+
 			try {
-				number = Double.parseDouble((String) value);
+				final SortedIndex index = mCollection.getSortedIndex(fieldName);
+
+				// if there is an index that contains exactly the numbers of all documents in sorted order
+				if (index != null && index.isNumeric() && index.isSingleKey() && path.isSimple()) {
+					final int end = index.findFirstNaN();
+
+					if (end == 0) {
+						return Double.NaN;
+					}
+					else {
+						return index.getKey(smallest ? 0 : end - 1);
+					}
+				}
 			}
-			catch (NumberFormatException e) {
-				return 0;
+			finally {
+				lock.unlock();
 			}
 		}
-		else {
-			return 0;
-		}
 
-		return number.doubleValue();
+		final double[] extreme = new double[] { Double.NaN };
+
+		accumulate(new Accumulator() {
+
+			@Override
+			public void add(final Document document) {
+				final double number = path.getNumber(document);
+
+				if (Double.isNaN(extreme[0]) || (smallest ? number < extreme[0] : number > extreme[0])) {
+					extreme[0] = number;
+				}
+			}
+
+		});
+
+		return extreme[0];
 	}
 
-	@Override
-	public String toString() {
-		return mDocuments.toString();
+	/**
+	 * Passes every matching document to the specified accumulator in a single pass, without collecting the results
+	 *
+	 * @param accumulator the accumulator to pass the documents to
+	 */
+	void accumulate(final Accumulator accumulator) {
+		final Lock lock = getReadLock();
+		lock.lock();
+
+		try {
+			for (Document document : getSource()) {
+				if (matches(document)) {
+					accumulator.add(document);
+				}
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether the query has any filters
+	 *
+	 * @return whether there are filters
+	 */
+	boolean hasFilters() {
+		return !mFilters.isEmpty() || mNearPoint != null;
+	}
+
+	/**
+	 * Returns the collection that is queried
+	 *
+	 * @return the collection
+	 */
+	InMemoryCollection getCollection() {
+		return mCollection;
+	}
+
+	/**
+	 * Returns the results from the cache if the collection has not been modified since they have been computed, or executes the query otherwise
+	 *
+	 * @param limit the maximum number of entries to return
+	 * @param offset the number of matching entries to skip at the beginning
+	 * @return an array (never `null`) containing zero or more matches
+	 */
+	private Document[] executeCached(final int limit, final int offset) {
+		final Lock lock = getReadLock();
+		lock.lock();
+
+		try {
+			final String cacheKey = getCacheKey("find "+limit+" "+offset);
+
+			if (cacheKey == null) {
+				return execute(limit, offset);
+			}
+
+			Document[] results = (Document[]) getCachedResult(cacheKey);
+
+			if (results == null) {
+				results = execute(limit, offset);
+				putCachedResult(cacheKey, results);
+			}
+
+			// the cached array must not be modified by the caller
+			return results.clone();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the normalized description of this query that cached results are stored under
+	 *
+	 * @param operation the operation that is executed on the query
+	 * @return the description or `null` if the results must not be cached
+	 */
+	private String getCacheKey(final String operation) {
+		if (!mCollection.getQueryCache().isEnabled()) {
+			return null;
+		}
+
+		final StringBuilder key = new StringBuilder(operation);
+
+		for (Filter filter : mFilters) {
+			final String filterKey = filter.getKey();
+
+			if (filterKey == null) {
+				return null;
+			}
+
+			key.append(" where ").append(filterKey);
+		}
+
+		if (mNearPoint != null) {
+			key.append(" near ");
+			appendKey(key, mNearPoint.mLatitudePath.getPath());
+			key.append(' ');
+			appendKey(key, mNearPoint.mLongitudePath.getPath());
+			key.append(' ').append(mNearPoint.mLatitude).append(' ').append(mNearPoint.mLongitude).append(' ').append(mNearPoint.mMaxResults);
+		}
+
+		if (mSortKeys != null) {
+			for (SortKey sortKey : mSortKeys) {
+				key.append(" orderBy ");
+				appendKey(key, sortKey.mPath.getPath());
+				key.append(' ').append(sortKey.mDirection);
+			}
+		}
+
+		if (mProjection != null) {
+			key.append(" fields");
+
+			for (String fieldName : mProjection) {
+				key.append(' ');
+				appendKey(key, fieldName);
+			}
+		}
+
+		return key.toString();
+	}
+
+	/**
+	 * Returns the cached result for the current version of the collection
+	 *
+	 * The read lock must be held by the caller
+	 *
+	 * @param cacheKey the normalized description of the query
+	 * @return the result or `null`
+	 */
+	private Object getCachedResult(final String cacheKey) {
+		return mCollection.getQueryCache().get(mCollection.getName(), cacheKey, mCollection.getVersion());
+	}
+
+	/**
+	 * Stores the result for the current version of the collection
+	 *
+	 * The read lock must be held by the caller
+	 *
+	 * @param cacheKey the normalized description of the query
+	 * @param result the result which must not be modified afterwards
+	 */
+	private void putCachedResult(final String cacheKey, final Object result) {
+		mCollection.getQueryCache().put(mCollection.getName(), cacheKey, mCollection.getVersion(), result);
+	}
+
+	/**
+	 * Appends an unambiguous description of the given value to a key for cached results
+	 *
+	 * Strings are prefixed with their length and all other values with their type
+	 *
+	 * @param key the key to append to
+	 * @param value the value to describe
+	 * @return whether the value could be described (`true`) or must not be used in a key (`false`)
+	 */
+	private static boolean appendKey(final StringBuilder key, final Object value) {
+		if (value == null) {
+			key.append("null");
+		}
+		else if (value instanceof String) {
+			key.append(((String) value).length()).append(':').append((String) value);
+		}
+		else if (value instanceof Number || value instanceof Boolean) {
+			// the type is included since e.g. `Integer` and `Long` values are never equal
+			key.append(value.getClass().getSimpleName()).append(':').append(value);
+		}
+		else {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Executes the query in a single pass and stops as soon as enough matching entries have been found
+	 *
+	 * @param limit the maximum number of entries to return
+	 * @param offset the number of matching entries to skip at the beginning
+	 * @return an array (never `null`) containing zero or more matches
+	 */
+	private Document[] execute(final int limit, final int offset) {
+		final Lock lock = getReadLock();
+		lock.lock();
+
+		try {
+			if (mSortKeys != null) {
+				return executeSorted(limit, offset);
+			}
+
+			final ResultCollector results = new ResultCollector(limit, offset, mProjection);
+
+			for (Document document : getSource()) {
+				if (matches(document) && !results.add(document)) {
+					break;
+				}
+			}
+
+			return results.toArray();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Executes the query and returns the matching entries in the requested order
+	 *
+	 * If the only sort key has a sorted index, the documents are read from the index in their final order and execution stops as soon as enough entries have been found
+	 *
+	 * Otherwise, if there is a limit, only the best `limit + offset` entries are kept in a bounded heap while checking the documents
+	 *
+	 * @param limit the maximum number of entries to return
+	 * @param offset the number of matching entries to skip at the beginning
+	 * @return an array (never `null`) containing zero or more matches
+	 */
+	private Document[] executeSorted(final int limit, final int offset) {
+		Collection<? extends Document> source = getCandidates();
+
+		// if no index narrows down the documents to check
+		if (source == null) {
+			final SortedIndex index = mSortKeys.size() == 1 ? mCollection.getSortedIndex(mSortKeys.get(0).mPath.getPath()) : null;
+
+			// if there is an index that provides the requested order, listing each document exactly once
+			if (index != null && index.isNumeric() && index.isSingleKey() && index.getPath().isSimple()) {
+				return executeOrdered(index, mSortKeys.get(0).mDirection == ASCENDING, limit, offset);
+			}
+
+		}
+
+		final int capacity = (int) Math.min((long) limit + offset, Integer.MAX_VALUE);
+		final List<Document> results;
+
+		// if all matching entries are needed
+		if (capacity == Integer.MAX_VALUE) {
+			results = sortMatches(source != null ? source : getAllDocuments());
+		}
+		else {
+			final Comparator<Document> comparator = new Comparator<Document>() {
+
+				@Override
+				public int compare(final Document lhs, final Document rhs) {
+					return compareDocuments(lhs, rhs);
+				}
+
+			};
+
+			// the heap keeps the worst of the best entries found so far at its head
+			final PriorityQueue<Document> heap = new PriorityQueue<Document>(Math.min(capacity, 64) + 1, Collections.reverseOrder(comparator));
+
+			for (Document document : source != null ? source : getAllDocuments()) {
+				if (matches(document)) {
+					if (heap.size() < capacity) {
+						heap.add(document);
+					}
+					else if (compareDocuments(document, heap.peek()) < 0) {
+						heap.poll();
+						heap.add(document);
+					}
+				}
+			}
+
+			results = new ArrayList<Document>(heap);
+			Collections.sort(results, comparator);
+		}
+
+		final ResultCollector collector = new ResultCollector(limit, offset, mProjection);
+
+		for (Document document : results) {
+			if (!collector.add(document)) {
+				break;
+			}
+		}
+
+		return collector.toArray();
+	}
+
+	/**
+	 * Returns all matching documents from the given source in sorted order
+	 *
+	 * @param source the documents to check
+	 * @return the sorted matches
+	 */
+	private List<Document> sortMatches(final Iterable<? extends Document> source) {
+		final List<Document> results = collectMatches(source);
+
+		Collections.sort(results, new Comparator<Document>() {
+
+			@Override
+			public int compare(final Document lhs, final Document rhs) {
+				return compareDocuments(lhs, rhs);
+			}
+
+		});
+
+		return results;
+	}
+
+	/**
+	 * Returns all matching documents from the given source in their original order
+	 *
+	 * @param source the documents to check
+	 * @return the matches
+	 */
+	private List<Document> collectMatches(final Iterable<? extends Document> source) {
+		final List<Document> results = new ArrayList<Document>();
+
+		for (Document document : source) {
+			if (matches(document)) {
+				results.add(document);
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Executes the query by reading the documents from a sorted index in the requested order
+	 *
+	 * @param index the index to read the documents from
+	 * @param ascending whether to read the index in ascending (`true`) or descending (`false`) order
+	 * @param limit the maximum number of entries to return
+	 * @param offset the number of matching entries to skip at the beginning
+	 * @return an array (never `null`) containing zero or more matches
+	 */
+	private Document[] executeOrdered(final SortedIndex index, final boolean ascending, final int limit, final int offset) {
+		final ResultCollector results = new ResultCollector(limit, offset, mProjection);
+		final int size = index.size();
+
+		if (ascending) {
+			for (InMemoryDocument document : index.getDocuments(0, size)) {
+				if (matches(document) && !results.add(document)) {
+					break;
+				}
+			}
+		}
+		else {
+			int end = size;
+			int start;
+			InMemoryDocument document;
+
+			groups:
+			while (end > 0) {
+				// find the group of entries with equal keys at the end so that these can be read in the order of their IDs
+				start = end - 1;
+				while (start > 0 && Double.compare(index.getKey(start - 1), index.getKey(end - 1)) == 0) {
+					start--;
+				}
+
+				for (int i = start; i < end; i++) {
+					document = index.getDocument(i);
+
+					if (matches(document) && !results.add(document)) {
+						break groups;
+					}
+				}
+
+				end = start;
+			}
+		}
+
+		return results.toArray();
+	}
+
+	/**
+	 * Compares two documents according to the sort keys of this query
+	 *
+	 * Documents that are equal in all sort keys are ordered by their IDs, so that the order does not depend on how the documents have been found, e.g. by which index
+	 *
+	 * @param lhs the first document
+	 * @param rhs the second document
+	 * @return a negative number, zero or a positive number if the first document is sorted before, equal to or after the second document
+	 */
+	private int compareDocuments(final Document lhs, final Document rhs) {
+		final int numSortKeys = mSortKeys.size();
+		SortKey sortKey;
+		int result;
+
+		for (int i = 0; i < numSortKeys; i++) {
+			sortKey = mSortKeys.get(i);
+			result = compareValues(sortKey.mPath.getValue(lhs), sortKey.mPath.getValue(rhs));
+
+			if (result != 0) {
+				return result * sortKey.mDirection;
+			}
+		}
+
+		return lhs.getId().compareTo(rhs.getId());
+	}
+
+	/**
+	 * Returns the given document restricted to the selected fields, if any
+	 *
+	 * @param document the document to return
+	 * @return the document or its projection
+	 */
+	private Document project(final Document document) {
+		if (mProjection != null) {
+			return ProjectedDocument.create(document, mProjection);
+		}
+		else {
+			return document;
+		}
+	}
+
+	/**
+	 * Returns whether the given document satisfies all filters of this query
+	 *
+	 * @param document the document to check
+	 * @return whether the document matches
+	 */
+	private boolean matches(final Document document) {
+		final int numFilters = mFilters.size();
+
+		for (int i = 0; i < numFilters; i++) {
+			if (!mFilters.get(i).matches(document)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the lock that must be held while reading the documents
+	 *
+	 * @return the lock of the collection or of the source that is read instead
+	 */
+	private Lock getReadLock() {
+		return mSource != null ? mSource.getReadLock() : mCollection.getReadLock();
+	}
+
+	/**
+	 * Returns all documents of the collection
+	 *
+	 * @return the documents of the collection in memory or the source that is read instead
+	 */
+	private Iterable<? extends Document> getAllDocuments() {
+		if (mSource != null) {
+			return mSource;
+		}
+		else {
+			return mCollection.getDocuments();
+		}
+	}
+
+	/**
+	 * Returns the smallest set of documents that must be checked, which is either provided by an index or the whole collection
+	 *
+	 * @return the documents to check
+	 */
+	private Iterable<? extends Document> getSource() {
+		final Collection<? extends Document> candidates = getCandidates();
+
+		if (candidates == null) {
+			return getAllDocuments();
+		}
+		else {
+			return candidates;
+		}
+	}
+
+	/**
+	 * Returns the smallest set of documents provided by an index for any of the filters of this query
+	 *
+	 * If the query is restricted to the nearest documents, these are returned in the order of their distance
+	 *
+	 * @return the documents to check or `null` if no index can be used
+	 */
+	private Collection<? extends Document> getCandidates() {
+		if (mNearPoint != null) {
+			return getNearest();
+		}
+
+		return getFilterCandidates();
+	}
+
+	/**
+	 * Returns the matching documents nearest to the point that the query is restricted to, nearest first
+	 *
+	 * @return the nearest documents
+	 */
+	private List<Document> getNearest() {
+		final Filter filter = new Filter() {
+
+			@Override
+			public boolean matches(final Document document) {
+				return InMemoryQuery.this.matches(document);
+			}
+
+		};
+
+		final GridIndex index = mCollection.getGridIndex(mNearPoint.mLatitudePath.getPath(), mNearPoint.mLongitudePath.getPath());
+		final Collection<InMemoryDocument> candidates = getFilterCandidates();
+
+		// if the filters narrow down the documents more than the distance to the point
+		if (index == null || (candidates != null && candidates.size() <= mNearPoint.mMaxResults * 16L)) {
+			return GridIndex.scanNearest(candidates != null ? candidates : getAllDocuments(), mNearPoint.mLatitudePath, mNearPoint.mLongitudePath, mNearPoint.mLatitude, mNearPoint.mLongitude, mNearPoint.mMaxResults, filter);
+		}
+		else {
+			return index.findNearest(mNearPoint.mLatitude, mNearPoint.mLongitude, mNearPoint.mMaxResults, filter);
+		}
+	}
+
+	/**
+	 * Returns the smallest set of documents provided by an index for any of the filters of this query
+	 *
+	 * @return the documents to check or `null` if no index can be used
+	 */
+	private Collection<InMemoryDocument> getFilterCandidates() {
+		Collection<InMemoryDocument> source = null;
+
+		final int numFilters = mFilters.size();
+		Collection<InMemoryDocument> candidates;
+
+		for (int i = 0; i < numFilters; i++) {
+			candidates = mFilters.get(i).getCandidates(mCollection);
+
+			if (candidates != null && (source == null || candidates.size() < source.size())) {
+				source = candidates;
+			}
+		}
+
+		return source;
+	}
+
+	/**
+	 * Forces the given object, no matter what type, to be a (primitive) number
+	 *
+	 * @param value the object to convert to a number
+	 * @return the number coerced from the specified object
+	 */
+	public static double coerceNumber(final Object value) {
+		if (value == null) {
+			return 0;
+		}
+
+		Number number;
+
+		if (value instanceof Byte) {
+			number = (Byte) value;
+		}
+		else if (value instanceof Short) {
+			number = (Short) value;
+		}
+		else if (value instanceof Integer) {
+			number = (Integer) value;
+		}
+		else if (value instanceof Long) {
+			number = (Long) value;
+		}
+		else if (value instanceof Float) {
+			number = (Float) value;
+		}
+		else if (value instanceof Double) {
+			number = (Double) value;
+		}
+		else if (value instanceof String) {
+			try {
+				number = Double.parseDouble((String) value);
+			}
+			catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		else {
+			return 0;
+		}
+
+		return number.doubleValue();
+	}
+
+	/**
+	 * Compares two values of any type
+	 *
+	 * Values are sorted by type first (`null`, numbers, strings, objects, arrays, booleans) and then by their value
+	 *
+	 * @param lhs the first value
+	 * @param rhs the second value
+	 * @return a negative number, zero or a positive number if the first value is less than, equal to or greater than the second value
+	 */
+	@SuppressWarnings("unchecked")
+	static int compareValues(final Object lhs, final Object rhs) {
+		final int lhsType = getTypeOrder(lhs);
+		final int rhsType = getTypeOrder(rhs);
+
+		if (lhsType != rhsType) {
+			return lhsType < rhsType ? -1 : 1;
+		}
+
+		if (lhs instanceof Number) {
+			return Double.compare(((Number) lhs).doubleValue(), ((Number) rhs).doubleValue());
+		}
+		else if (lhs instanceof String) {
+			return ((String) lhs).compareTo((String) rhs);
+		}
+		else if (lhs instanceof Boolean) {
+			return ((Boolean) lhs).compareTo((Boolean) rhs);
+		}
+		else if (lhs instanceof List) {
+			final List<Object> lhsList = (List<Object>) lhs;
+			final List<Object> rhsList = (List<Object>) rhs;
+			final int length = Math.min(lhsList.size(), rhsList.size());
+
+			int result;
+			for (int i = 0; i < length; i++) {
+				result = compareValues(lhsList.get(i), rhsList.get(i));
+
+				if (result != 0) {
+					return result;
+				}
+			}
+
+			return lhsList.size() - rhsList.size();
+		}
+		else {
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the rank of the given value's type in the sort order
+	 *
+	 * @param value the value to get the type's rank for
+	 * @return the rank
+	 */
+	private static int getTypeOrder(final Object value) {
+		if (value == null) {
+			return 0;
+		}
+		else if (value instanceof Number) {
+			return 1;
+		}
+		else if (value instanceof String) {
+			return 2;
+		}
+		else if (value instanceof Map) {
+			return 3;
+		}
+		else if (value instanceof List) {
+			return 4;
+		}
+		else if (value instanceof Boolean) {
+			return 5;
+		}
+		else {
+			return 6;
+		}
+	}
+
+	@Override
+	public String toString() {
+		final Map<String, Document> results = new LinkedHashMap<String, Document>();
+
+		for (Document document : find()) {
+			results.put(document.getId(), document);
+		}
+
+		return results.toString();
+	}
+
+	/** Receives the documents matching a query one at a time */
+	abstract static class Accumulator {
+
+		/**
+		 * Adds the given matching document
+		 *
+		 * @param document the document
+		 */
+		public abstract void add(Document document);
+
+	}
+
+	/** Field that the results are sorted by */
+	private static final class SortKey {
+
+		private final FieldPath mPath;
+		/** Either {@link Query#ASCENDING} or {@link Query#DESCENDING} */
+		private final int mDirection;
+
+		public SortKey(final String fieldName, final int direction) {
+			mPath = new FieldPath(fieldName);
+			mDirection = direction;
+		}
+
+	}
+
+	/** Collects the matching entries after skipping the offset until the limit has been reached */
+	private static final class ResultCollector {
+
+		private final int mLimit;
+		private final int mOffset;
+		/** The names of the fields to return or `null` if complete documents are returned */
+		private final String[] mProjection;
+		private final List<Document> mResults;
+		private int mSkipped;
+
+		public ResultCollector(final int limit, final int offset, final String[] projection) {
+			mLimit = limit;
+			mOffset = offset;
+			mProjection = projection;
+			mResults = new ArrayList<Document>(Math.min(limit, 16));
+		}
+
+		/**
+		 * Adds the given matching entry unless it is still within the offset
+		 *
+		 * @param document the matching entry
+		 * @return whether more entries are needed (`true`) or the limit has been reached (`false`)
+		 */
+		public boolean add(final Document document) {
+			// until the initial offset has been reached
+			if (mSkipped < mOffset) {
+				// discard the entry
+				mSkipped++;
+			}
+			else if (mProjection != null) {
+				mResults.add(ProjectedDocument.create(document, mProjection));
+			}
+			else {
+				mResults.add(document);
+			}
+
+			// whether the number of elements to be returned has not been reached yet
+			return mResults.size() < mLimit;
+		}
+
+		public Document[] toArray() {
+			return mResults.toArray(new Document[mResults.size()]);
+		}
+
+	}
+
+	/** Filter requiring a field to have exactly the specified value */
+	private static final class EqualFilter extends Filter implements FieldPath.Visitor {
+
+		private final FieldPath mPath;
+		private final Object mFieldValue;
+		/** The type that the value would be stored as in a document */
+		private final byte mNumberType;
+		/** The bits of the value if it is stored as a primitive number */
+		private final long mNumberBits;
+
+		public EqualFilter(final String fieldName, final Object fieldValue) {
+			mPath = new FieldPath(fieldName);
+			mFieldValue = fieldValue;
+			mNumberType = Shape.getType(fieldValue);
+			mNumberBits = mNumberType != Shape.TYPE_OBJECT ? Shape.getNumberBits(fieldValue) : 0;
+		}
+
+		@Override
+		public boolean matches(final Document document) {
+			final int slot = mPath.getNumberSlot(document);
+
+			// primitive numbers can be compared without boxing them
+			if (slot >= 0) {
+				final InMemoryDocument inMemoryDocument = (InMemoryDocument) document;
+
+				return inMemoryDocument.getShape().getType(slot) == mNumberType && inMemoryDocument.getNumberBits(slot) == mNumberBits;
+			}
+
+			return mPath.visit(document, this);
+		}
+
+		@Override
+		public boolean visit(final Object value) {
+			return value != null && value.equals(mFieldValue);
+		}
+
+		@Override
+		public Collection<InMemoryDocument> getCandidates(final InMemoryCollection collection) {
+			return getBucket(collection.getHashIndex(mPath.getPath()), mFieldValue);
+		}
+
+		@Override
+		public boolean hasExactCandidates() {
+			return true;
+		}
+
+		@Override
+		public String getKey() {
+			final StringBuilder key = new StringBuilder("eq ");
+			appendKey(key, mPath.getPath());
+			key.append(' ');
+
+			return appendKey(key, mFieldValue) ? key.toString() : null;
+		}
+
+	}
+
+	/** Filter requiring a field to have a value other than the specified one */
+	private static final class NotEqualFilter extends Filter implements FieldPath.Visitor {
+
+		private final FieldPath mPath;
+		private final Object mFieldValue;
+
+		public NotEqualFilter(final String fieldName, final Object fieldValue) {
+			mPath = new FieldPath(fieldName);
+			mFieldValue = fieldValue;
+		}
+
+		@Override
+		public boolean matches(final Document document) {
+			// none of the values may be equal
+			return !mPath.visit(document, this);
+		}
+
+		@Override
+		public boolean visit(final Object value) {
+			return value != null && value.equals(mFieldValue);
+		}
+
+		@Override
+		public String getKey() {
+			final StringBuilder key = new StringBuilder("ne ");
+			appendKey(key, mPath.getPath());
+			key.append(' ');
+
+			return appendKey(key, mFieldValue) ? key.toString() : null;
+		}
+
+	}
+
+	/** Filter requiring a field to have a value below or above the specified bound */
+	private static final class RangeFilter extends Filter implements FieldPath.Visitor {
+
+		private final FieldPath mPath;
+		private final double mBound;
+		/** Whether values must be above the bound (`true`) or below the bound (`false`) */
+		private final boolean mAbove;
+		/** Whether values equal to the bound are accepted */
+		private final boolean mInclusive;
+
+		public RangeFilter(final String fieldName, final double bound, final boolean above, final boolean inclusive) {
+			mPath = new FieldPath(fieldName);
+			mBound = bound;
+			mAbove = above;
+			mInclusive = inclusive;
+		}
+
+		@Override
+		public boolean matches(final Document document) {
+			// if the value is a top-level number, which can be checked without visiting the path
+			if (mPath.isSimple()) {
+				final double number = mPath.getNumber(document);
+
+				if (!Double.isNaN(number)) {
+					return isInRange(number);
+				}
+			}
+
+			return mPath.visit(document, this);
+		}
+
+		@Override
+		public boolean visit(final Object value) {
+			// only the elements of arrays are compared with the bound
+			return !(value instanceof List) && isInRange(coerceNumber(value));
+		}
+
+		private boolean isInRange(final double number) {
+			if (mAbove) {
+				return mInclusive ? number >= mBound : number > mBound;
+			}
+			else {
+				return mInclusive ? number <= mBound : number < mBound;
+			}
+		}
+
+		@Override
+		public Collection<InMemoryDocument> getCandidates(final InMemoryCollection collection) {
+			final SortedIndex index = collection.getSortedIndex(mPath.getPath());
+
+			if (index == null) {
+				return null;
+			}
+
+			final Collection<InMemoryDocument> candidates;
+
+			if (mAbove) {
+				candidates = index.getDocuments(index.findFirstAbove(mBound, mInclusive), index.findFirstNaN());
+			}
+			else {
+				candidates = index.getDocuments(0, index.findFirstAbove(mBound, !mInclusive));
+			}
+
+			// documents with arrays may appear more than once
+			return index.isSingleKey() ? candidates : distinct(candidates);
+		}
+
+		@Override
+		public boolean hasExactCandidates() {
+			return true;
+		}
+
+		@Override
+		public String getKey() {
+			final StringBuilder key = new StringBuilder(mAbove ? (mInclusive ? "gte " : "gt ") : (mInclusive ? "lte " : "lt "));
+			appendKey(key, mPath.getPath());
+			key.append(' ').append(mBound);
+
+			return key.toString();
+		}
+
+	}
+
+	/** Filter requiring a field to have `null` as its value (or no value) or, alternatively, a value other than `null` */
+	private static final class NullFilter extends Filter implements FieldPath.Visitor {
+
+		private final FieldPath mPath;
+		/** Whether the value must be `null` (`true`) or must not be `null` (`false`) */
+		private final boolean mNull;
+
+		public NullFilter(final String fieldName, final boolean isNull) {
+			mPath = new FieldPath(fieldName);
+			mNull = isNull;
+		}
+
+		@Override
+		public boolean matches(final Document document) {
+			return mPath.visit(document, this) == mNull;
+		}
+
+		@Override
+		public boolean visit(final Object value) {
+			return value == null;
+		}
+
+		@Override
+		public Collection<InMemoryDocument> getCandidates(final InMemoryCollection collection) {
+			if (mNull) {
+				return getBucket(collection.getHashIndex(mPath.getPath()), null);
+			}
+			else {
+				return null;
+			}
+		}
+
+		@Override
+		public boolean hasExactCandidates() {
+			return true;
+		}
+
+		@Override
+		public String getKey() {
+			final StringBuilder key = new StringBuilder(mNull ? "null " : "notNull ");
+			appendKey(key, mPath.getPath());
+
+			return key.toString();
+		}
+
+	}
+
+	/** Filter requiring a field to have one of the specified values or, alternatively, none of them */
+	private static final class InFilter extends Filter implements FieldPath.Visitor {
+
+		private final FieldPath mPath;
+		private final Object[] mFieldValues;
+		/** Whether the value must be one of the values (`true`) or none of them (`false`) */
+		private final boolean mContained;
+
+		/** The types that the values would be stored as in a document */
+		private final byte[] mNumberTypes;
+		/** The bits of the values that are stored as primitive numbers */
+		private final long[] mNumberBits;
+
+		public InFilter(final String fieldName, final Object[] fieldValues, final boolean contained) {
+			mPath = new FieldPath(fieldName);
+			mFieldValues = fieldValues.clone();
+			mContained = contained;
+			mNumberTypes = new byte[mFieldValues.length];
+			mNumberBits = new long[mFieldValues.length];
+
+			for (int i = 0; i < mFieldValues.length; i++) {
+				mNumberTypes[i] = Shape.getType(mFieldValues[i]);
+
+				if (mNumberTypes[i] != Shape.TYPE_OBJECT) {
+					mNumberBits[i] = Shape.getNumberBits(mFieldValues[i]);
+				}
+			}
+		}
+
+		@Override
+		public boolean matches(final Document document) {
+			final int slot = mPath.getNumberSlot(document);
+
+			// primitive numbers can be compared without boxing them
+			if (slot >= 0) {
+				final InMemoryDocument inMemoryDocument = (InMemoryDocument) document;
+				final byte type = inMemoryDocument.getShape().getType(slot);
+				final long bits = inMemoryDocument.getNumberBits(slot);
+
+				for (int i = 0; i < mNumberTypes.length; i++) {
+					if (mNumberTypes[i] == type && mNumberBits[i] == bits) {
+						return mContained;
+					}
+				}
+
+				return !mContained;
+			}
+
+			return mPath.visit(document, this) == mContained;
+		}
+
+		@Override
+		public boolean visit(final Object value) {
+			if (value != null) {
+				for (Object fieldValue : mFieldValues) {
+					if (value.equals(fieldValue)) {
+						return true;
+					}
+				}
+			}
+
+			return false;
+		}
+
+		@Override
+		public Collection<InMemoryDocument> getCandidates(final InMemoryCollection collection) {
+			final HashIndex index = collection.getHashIndex(mPath.getPath());
+
+			if (index == null || !mContained) {
+				return null;
+			}
+
+			final Set<Object> visitedValues = new HashSet<Object>();
+			final List<InMemoryDocument> candidates = new ArrayList<InMemoryDocument>();
+
+			for (Object fieldValue : mFieldValues) {
+				// `null` does not match any document here and each bucket must only be added once
+				if (fieldValue != null && visitedValues.add(fieldValue)) {
+					final InMemoryCollection.DocumentsMap bucket = index.get(fieldValue);
+
+					if (bucket != null) {
+						candidates.addAll(bucket.values());
+					}
+				}
+			}
+
+			// documents with arrays may be contained in several buckets
+			return index.isMultiKey() ? distinct(candidates) : candidates;
+		}
+
+		@Override
+		public boolean hasExactCandidates() {
+			return true;
+		}
+
+		@Override
+		public String getKey() {
+			final StringBuilder key = new StringBuilder(mContained ? "in " : "notIn ");
+			appendKey(key, mPath.getPath());
+			key.append(' ').append(mFieldValues.length);
+
+			for (Object fieldValue : mFieldValues) {
+				key.append(' ');
+
+				if (!appendKey(key, fieldValue)) {
+					return null;
+				}
+			}
+
+			return key.toString();
+		}
+
+	}
+
+	/** Filter requiring a text field to contain all of the specified words or words starting with the specified prefixes */
+	private static final class TextFilter extends Filter {
+
+		private final FieldPath mPath;
+		/** The words to search for in lower case */
+		private final String[] mWords;
+		/** Whether each word may also be the beginning of a longer word */
+		private final boolean[] mPrefixes;
+
+		public TextFilter(final String fieldName, final String terms) {
+			mPath = new FieldPath(fieldName);
+
+			// the asterisks are removed by the tokenizer so that they must be detected first
+			final List<String> words = new ArrayList<String>();
+			final List<Boolean> prefixes = new ArrayList<Boolean>();
+
+			for (String term : terms.split("\\s+")) {
+				final List<String> termWords = TextIndex.tokenize(term);
+
+				for (int i = 0; i < termWords.size(); i++) {
+					words.add(termWords.get(i));
+					prefixes.add(i == termWords.size() - 1 && term.endsWith("*"));
+				}
+			}
+
+			mWords = words.toArray(new String[words.size()]);
+			mPrefixes = new boolean[mWords.length];
+
+			for (int i = 0; i < mPrefixes.length; i++) {
+				mPrefixes[i] = prefixes.get(i);
+			}
+		}
+
+		@Override
+		public boolean matches(final Document document) {
+			if (mWords.length == 0) {
+				return true;
+			}
+
+			final Set<String> words = TextIndex.getWords(mPath, document);
+
+			for (int i = 0; i < mWords.length; i++) {
+				if (!contains(words, mWords[i], mPrefixes[i])) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		private static boolean contains(final Set<String> words, final String word, final boolean prefix) {
+			if (!prefix) {
+				return words.contains(word);
+			}
+
+			for (String candidate : words) {
+				if (candidate.startsWith(word)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		@Override
+		public Collection<InMemoryDocument> getCandidates(final InMemoryCollection collection) {
+			final TextIndex index = collection.getTextIndex(mPath.getPath());
+
+			if (index == null || mWords.length == 0) {
+				return null;
+			}
+
+			return index.find(mWords, mPrefixes);
+		}
+
+		@Override
+		public boolean hasExactCandidates() {
+			return true;
+		}
+
+		@Override
+		public String getKey() {
+			final StringBuilder key = new StringBuilder("text ");
+			appendKey(key, mPath.getPath());
+			key.append(' ').append(mWords.length);
+
+			for (int i = 0; i < mWords.length; i++) {
+				key.append(' ');
+				appendKey(key, mWords[i]);
+				key.append(mPrefixes[i] ? '*' : ' ');
+			}
+
+			return key.toString();
+		}
+
+	}
+
+	/** Filter requiring a field to have a string value that starts with the specified prefix */
+	private static final class PrefixFilter extends Filter implements FieldPath.Visitor {
+
+		private final FieldPath mPath;
+		private final String mPrefix;
+
+		public PrefixFilter(final String fieldName, final String prefix) {
+			mPath = new FieldPath(fieldName);
+			mPrefix = prefix;
+		}
+
+		@Override
+		public boolean matches(final Document document) {
+			return mPath.visit(document, this);
+		}
+
+		@Override
+		public boolean visit(final Object value) {
+			return value instanceof String && ((String) value).startsWith(mPrefix);
+		}
+
+		@Override
+		public Collection<InMemoryDocument> getCandidates(final InMemoryCollection collection) {
+			return findByPrefix(collection.getStringIndex(mPath.getPath()), mPrefix);
+		}
+
+		@Override
+		public boolean hasExactCandidates() {
+			return true;
+		}
+
+		@Override
+		public String getKey() {
+			final StringBuilder key = new StringBuilder("prefix ");
+			appendKey(key, mPath.getPath());
+			key.append(' ');
+			appendKey(key, mPrefix);
+
+			return key.toString();
+		}
+
+	}
+
+	/** Filter requiring a field to have a string value that contains a match for a regular expression */
+	private static final class RegexFilter extends Filter implements FieldPath.Visitor {
+
+		/** The characters that have a special meaning in regular expressions */
+		private static final String SPECIAL_CHARACTERS = "\\[](){}.*+?^$|";
+		private final FieldPath mPath;
+		private final Pattern mPattern;
+		/** The literal text that all matches start with if the expression is anchored at the start, or `null` */
+		private final String mPrefix;
+
+		public RegexFilter(final String fieldName, final Pattern pattern) {
+			mPath = new FieldPath(fieldName);
+			mPattern = pattern;
+			mPrefix = getLiteralPrefix(pattern);
+		}
+
+		/**
+		 * Returns the literal text at the start of an expression that is anchored with `^` and has neither flags nor alternatives
+		 *
+		 * @param pattern the compiled expression
+		 * @return the literal text or `null`
+		 */
+		private static String getLiteralPrefix(final Pattern pattern) {
+			final String regex = pattern.pattern();
+
+			// alternatives may not be anchored or may start with other text
+			if (pattern.flags() != 0 || !regex.startsWith("^") || regex.indexOf('|') >= 0) {
+				return null;
+			}
+
+			int end = 1;
+
+			while (end < regex.length() && SPECIAL_CHARACTERS.indexOf(regex.charAt(end)) < 0) {
+				end++;
+			}
+
+			// a quantifier would apply to the last literal character, making it optional
+			if (end < regex.length() && "*?{".indexOf(regex.charAt(end)) >= 0) {
+				end--;
+			}
+
+			return end > 1 ? regex.substring(1, end) : null;
+		}
+
+		@Override
+		public boolean matches(final Document document) {
+			return mPath.visit(document, this);
+		}
+
+		@Override
+		public boolean visit(final Object value) {
+			return value instanceof String && mPattern.matcher((String) value).find();
+		}
+
+		@Override
+		public Collection<InMemoryDocument> getCandidates(final InMemoryCollection collection) {
+			if (mPrefix == null) {
+				return null;
+			}
+
+			return findByPrefix(collection.getStringIndex(mPath.getPath()), mPrefix);
+		}
+
+		@Override
+		public String getKey() {
+			final StringBuilder key = new StringBuilder("regex ");
+			appendKey(key, mPath.getPath());
+			key.append(' ');
+			appendKey(key, mPattern.pattern());
+
+			return key.toString();
+		}
+
+	}
+
+	/** Filter requiring documents to have been delivered by a subscription */
+	private static final class OwnerFilter extends Filter {
+
+		private final String mCollectionName;
+		private final Ownership mOwnership;
+		private final String mSubscriptionId;
+
+		public OwnerFilter(final String collectionName, final Ownership ownership, final String subscriptionId) {
+			mCollectionName = collectionName;
+			mOwnership = ownership;
+			mSubscriptionId = subscriptionId;
+		}
+
+		@Override
+		public boolean matches(final Document document) {
+			return mOwnership.isOwnedBy(mCollectionName, document.getId(), mSubscriptionId);
+		}
+
+		@Override
+		public Collection<InMemoryDocument> getCandidates(final InMemoryCollection collection) {
+			final List<String> documentIds = mOwnership.getDocumentIds(mCollectionName, mSubscriptionId);
+			final DocumentTable documents = collection.getDocuments();
+			final List<InMemoryDocument> candidates = new ArrayList<InMemoryDocument>(documentIds.size());
+
+			for (String documentId : documentIds) {
+				final InMemoryDocument document = documents.get(documentId);
+
+				if (document != null) {
+					candidates.add(document);
+				}
+			}
+
+			return candidates;
+		}
+
+		@Override
+		public boolean hasExactCandidates() {
+			return true;
+		}
+
+		// the owners may change without modifying the collection, so the results are never cached
+
+	}
+
+	/** Filter requiring the coordinates in two fields to be inside a box */
+	private static final class BoxFilter extends Filter {
+
+		private final FieldPath mLatitudePath;
+		private final FieldPath mLongitudePath;
+		private final double mMinLatitude;
+		private final double mMinLongitude;
+		private final double mMaxLatitude;
+		private final double mMaxLongitude;
+
+		public BoxFilter(final String latitudeFieldName, final String longitudeFieldName, final double minLatitude, final double minLongitude, final double maxLatitude, final double maxLongitude) {
+			mLatitudePath = new FieldPath(latitudeFieldName);
+			mLongitudePath = new FieldPath(longitudeFieldName);
+			mMinLatitude = minLatitude;
+			mMinLongitude = minLongitude;
+			mMaxLatitude = maxLatitude;
+			mMaxLongitude = maxLongitude;
+		}
+
+		@Override
+		public boolean matches(final Document document) {
+			final double latitude = mLatitudePath.getNumber(document);
+
+			if (!(latitude >= mMinLatitude && latitude <= mMaxLatitude)) {
+				return false;
+			}
+
+			final double longitude = mLongitudePath.getNumber(document);
+
+			return longitude >= mMinLongitude && longitude <= mMaxLongitude;
+		}
+
+		@Override
+		public Collection<InMemoryDocument> getCandidates(final InMemoryCollection collection) {
+			final GridIndex index = collection.getGridIndex(mLatitudePath.getPath(), mLongitudePath.getPath());
+
+			if (index == null) {
+				return null;
+			}
+
+			return index.findWithinBox(mMinLatitude, mMinLongitude, mMaxLatitude, mMaxLongitude);
+		}
+
+		@Override
+		public boolean hasExactCandidates() {
+			return true;
+		}
+
+		@Override
+		public String getKey() {
+			final StringBuilder key = new StringBuilder("box ");
+			appendKey(key, mLatitudePath.getPath());
+			key.append(' ');
+			appendKey(key, mLongitudePath.getPath());
+			key.append(' ').append(mMinLatitude).append(' ').append(mMinLongitude).append(' ').append(mMaxLatitude).append(' ').append(mMaxLongitude);
+
+			return key.toString();
+		}
+
+	}
+
+	/** The point that the results of a query must be nearest to */
+	private static final class NearPoint {
+
+		private final FieldPath mLatitudePath;
+		private final FieldPath mLongitudePath;
+		private final double mLatitude;
+		private final double mLongitude;
+		private final int mMaxResults;
+
+		public NearPoint(final String latitudeFieldName, final String longitudeFieldName, final double latitude, final double longitude, final int maxResults) {
+			mLatitudePath = new FieldPath(latitudeFieldName);
+			mLongitudePath = new FieldPath(longitudeFieldName);
+			mLatitude = latitude;
+			mLongitude = longitude;
+			mMaxResults = maxResults;
+		}
+
+	}
+
+	/**
+	 * Returns the distinct documents with a string value starting with the given prefix from a string index
+	 *
+	 * @param index the index to read from or `null`
+	 * @param prefix the prefix to look up
+	 * @return the documents or `null` if there is no index
+	 */
+	private static Collection<InMemoryDocument> findByPrefix(final StringIndex index, final String prefix) {
+		if (index == null) {
+			return null;
+		}
+
+		final Collection<InMemoryDocument> candidates = index.findByPrefix(prefix);
+
+		// documents with arrays may be contained in several buckets
+		return index.isMultiKey() ? distinct(candidates) : candidates;
+	}
+
+	/**
+	 * Returns the given documents without any duplicates
+	 *
+	 * @param documents the documents that may contain duplicates
+	 * @return the distinct documents in their original order
+	 */
+	private static Collection<InMemoryDocument> distinct(final Collection<InMemoryDocument> documents) {
+		final Map<InMemoryDocument, Boolean> visited = new IdentityHashMap<InMemoryDocument, Boolean>();
+		final List<InMemoryDocument> distinctDocuments = new ArrayList<InMemoryDocument>(documents.size());
+
+		for (InMemoryDocument document : documents) {
+			if (visited.put(document, Boolean.TRUE) == null) {
+				distinctDocuments.add(document);
+			}
+		}
+
+		return distinctDocuments;
+	}
+
+	/**
+	 * Returns the documents from the specified index that have exactly the given value
+	 *
+	 * @param index the index to look up the value in or `null`
+	 * @param fieldValue the value to look up
+	 * @return the documents or `null` if there is no index
+	 */
+	private static Collection<InMemoryDocument> getBucket(final HashIndex index, final Object fieldValue) {
+		if (index == null) {
+			return null;
+		}
+
+		final InMemoryCollection.DocumentsMap bucket = index.get(fieldValue);
+
+		if (bucket == null) {
+			return Collections.emptyList();
+		}
+		else {
+			return bucket.values();
+		}
 	}
 
 }
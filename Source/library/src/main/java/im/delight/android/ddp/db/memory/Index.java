@@ -0,0 +1,122 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import java.util.Collection;
+
+/**
+ * Secondary index on a single field of the documents in a collection stored in memory
+ *
+ * The field may be nested inside other fields, and documents having several values at that path (i.e. arrays) are indexed under each of these values
+ */
+abstract class Index {
+
+	/** The path to the field that is indexed */
+	private final FieldPath mPath;
+
+	/**
+	 * Creates a new index on the specified field
+	 *
+	 * @param fieldName the name of or the path to the field to index
+	 */
+	protected Index(final String fieldName) {
+		mPath = new FieldPath(fieldName);
+	}
+
+	/**
+	 * Returns the name of or the path to the field that is indexed
+	 *
+	 * @return the name of the field
+	 */
+	public String getFieldName() {
+		return mPath.getPath();
+	}
+
+	/**
+	 * Returns the path to the field that is indexed
+	 *
+	 * @return the path
+	 */
+	public FieldPath getPath() {
+		return mPath;
+	}
+
+	/**
+	 * Adds the given document to the index
+	 *
+	 * @param document the document to add
+	 */
+	public abstract void add(InMemoryDocument document);
+
+	/**
+	 * Removes the given document from the index
+	 *
+	 * @param document the document to remove
+	 */
+	public abstract void remove(InMemoryDocument document);
+
+	/**
+	 * Replaces a document with a new version of itself that has the same value in the indexed field
+	 *
+	 * @param previousDocument the document that is currently in the index
+	 * @param document the new version of the document
+	 */
+	public abstract void replace(InMemoryDocument previousDocument, InMemoryDocument document);
+
+	/** Removes all documents from the index */
+	public abstract void clear();
+
+	/**
+	 * Replaces the contents of the index with the given documents
+	 *
+	 * @param documents the documents to index
+	 */
+	public void rebuild(final Collection<InMemoryDocument> documents) {
+		clear();
+
+		for (InMemoryDocument document : documents) {
+			add(document);
+		}
+	}
+
+	/**
+	 * Returns whether the index must be updated when the specified fields of a document change
+	 *
+	 * @param updatedValues the modified fields of the document or `null`
+	 * @param removedValues the deleted fields of the document or `null`
+	 * @return whether the indexed field is affected
+	 */
+	public boolean isAffectedBy(final Fields updatedValues, final String[] removedValues) {
+		final String rootName = mPath.getRootName();
+
+		if (updatedValues != null && updatedValues.containsKey(rootName)) {
+			return true;
+		}
+
+		if (removedValues != null) {
+			for (String removedKey : removedValues) {
+				if (rootName.equals(removedKey)) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+}
@@ -0,0 +1,371 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records which subscriptions have delivered each document
+ *
+ * Every active subscription is assigned a slot, and the owners of each document are stored as a bit set with one bit per slot
+ *
+ * Every slot additionally keeps the documents it has claimed so that releasing a subscription takes time proportional to the number of its documents
+ *
+ * All methods are synchronized since the data may be read while it is being modified
+ */
+final class Ownership {
+
+	private static final long[] NO_OWNERS = new long[0];
+	/** The slots of the active subscriptions by their IDs */
+	private final Map<String, Integer> mSlots;
+	/** The slots that are currently assigned */
+	private final BitSet mUsedSlots;
+	/** The owners of each document as one bit per slot, by the name of the collection and the ID of the document */
+	private final Map<String, Map<String, long[]>> mOwners;
+	/** The documents that have been claimed by each slot, by the name of the collection */
+	private final List<Map<String, Claims>> mClaims;
+
+	public Ownership() {
+		mSlots = new HashMap<String, Integer>();
+		mUsedSlots = new BitSet();
+		mOwners = new HashMap<String, Map<String, long[]>>();
+		mClaims = new ArrayList<Map<String, Claims>>();
+	}
+
+	/**
+	 * Assigns a slot to the specified subscription
+	 *
+	 * @param subscriptionId the ID of the subscription
+	 */
+	public synchronized void register(final String subscriptionId) {
+		if (mSlots.containsKey(subscriptionId)) {
+			return;
+		}
+
+		// reuse the lowest free slot so that the bit sets stay short
+		final int slot = mUsedSlots.nextClearBit(0);
+		mUsedSlots.set(slot);
+		mSlots.put(subscriptionId, slot);
+
+		while (mClaims.size() <= slot) {
+			mClaims.add(null);
+		}
+
+		mClaims.set(slot, new HashMap<String, Claims>());
+	}
+
+	/**
+	 * Returns whether any subscriptions are registered
+	 *
+	 * @return whether there are subscriptions
+	 */
+	public synchronized boolean isEmpty() {
+		return mSlots.isEmpty();
+	}
+
+	/**
+	 * Returns the IDs of all registered subscriptions
+	 *
+	 * @return the IDs of the subscriptions
+	 */
+	public synchronized List<String> getSubscriptionIds() {
+		return new ArrayList<String>(mSlots.keySet());
+	}
+
+	/**
+	 * Adds the specified subscriptions to the owners of a document
+	 *
+	 * @param collectionName the name of the collection that the document belongs to
+	 * @param documentId the ID of the document
+	 * @param subscriptionIds the IDs of the subscriptions that have delivered the document
+	 */
+	public synchronized void claim(final String collectionName, final String documentId, final Collection<String> subscriptionIds) {
+		Map<String, long[]> owners = mOwners.get(collectionName);
+
+		if (owners == null) {
+			owners = new HashMap<String, long[]>();
+			mOwners.put(collectionName, owners);
+		}
+
+		long[] bits = owners.get(documentId);
+
+		for (String subscriptionId : subscriptionIds) {
+			final Integer slot = mSlots.get(subscriptionId);
+
+			if (slot == null) {
+				continue;
+			}
+
+			final int word = slot >> 6;
+			final long mask = 1L << slot;
+
+			if (bits == null || bits.length <= word) {
+				final long[] newBits = new long[word + 1];
+
+				if (bits != null) {
+					System.arraycopy(bits, 0, newBits, 0, bits.length);
+				}
+
+				bits = newBits;
+				owners.put(documentId, bits);
+			}
+
+			if ((bits[word] & mask) == 0) {
+				bits[word] |= mask;
+				getClaims(slot, collectionName).add(documentId);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the owners of a document that has been removed
+	 *
+	 * @param collectionName the name of the collection that the document belonged to
+	 * @param documentId the ID of the document
+	 */
+	public synchronized void release(final String collectionName, final String documentId) {
+		final Map<String, long[]> owners = mOwners.get(collectionName);
+
+		if (owners == null) {
+			return;
+		}
+
+		final long[] bits = owners.remove(documentId);
+
+		if (bits == null) {
+			return;
+		}
+
+		for (int word = 0; word < bits.length; word++) {
+			long remaining = bits[word];
+
+			while (remaining != 0) {
+				final int slot = (word << 6) + Long.numberOfTrailingZeros(remaining);
+				remaining &= remaining - 1;
+
+				final Claims claims = mClaims.get(slot).get(collectionName);
+
+				if (claims != null) {
+					claims.remove(owners, slot);
+				}
+			}
+		}
+
+		if (owners.isEmpty()) {
+			mOwners.remove(collectionName);
+		}
+	}
+
+	/**
+	 * Returns whether any active subscription has delivered a document
+	 *
+	 * @param collectionName the name of the collection that the document belongs to
+	 * @param documentId the ID of the document
+	 * @return whether the document has any owners
+	 */
+	public synchronized boolean isOwned(final String collectionName, final String documentId) {
+		return getBits(collectionName, documentId) != NO_OWNERS;
+	}
+
+	/**
+	 * Returns whether the specified subscription has delivered a document
+	 *
+	 * @param collectionName the name of the collection that the document belongs to
+	 * @param documentId the ID of the document
+	 * @param subscriptionId the ID of the subscription
+	 * @return whether the subscription owns the document
+	 */
+	public synchronized boolean isOwnedBy(final String collectionName, final String documentId, final String subscriptionId) {
+		final Integer slot = mSlots.get(subscriptionId);
+
+		return slot != null && isSet(getBits(collectionName, documentId), slot);
+	}
+
+	/**
+	 * Returns the IDs of the documents that the specified subscription has delivered to a collection
+	 *
+	 * @param collectionName the name of the collection
+	 * @param subscriptionId the ID of the subscription
+	 * @return the IDs of the documents (empty if the subscription is not active)
+	 */
+	public synchronized List<String> getDocumentIds(final String collectionName, final String subscriptionId) {
+		final Integer slot = mSlots.get(subscriptionId);
+		final Claims claims = slot != null ? mClaims.get(slot).get(collectionName) : null;
+
+		if (claims == null) {
+			return new ArrayList<String>(0);
+		}
+
+		return claims.getValid(mOwners.get(collectionName), slot);
+	}
+
+	/**
+	 * Removes a subscription from the owners of all of its documents and frees its slot
+	 *
+	 * @param subscriptionId the ID of the subscription
+	 * @return the IDs of the documents that do not have any owners left, by the names of their collections
+	 */
+	public synchronized Map<String, List<String>> unregister(final String subscriptionId) {
+		final Map<String, List<String>> orphans = new LinkedHashMap<String, List<String>>();
+		final Integer slot = mSlots.remove(subscriptionId);
+
+		if (slot == null) {
+			return orphans;
+		}
+
+		final int word = slot >> 6;
+		final long mask = 1L << slot;
+
+		for (Map.Entry<String, Claims> entry : mClaims.get(slot).entrySet()) {
+			final String collectionName = entry.getKey();
+			final Map<String, long[]> owners = mOwners.get(collectionName);
+			final List<String> collectionOrphans = new ArrayList<String>();
+
+			for (String documentId : entry.getValue().getValid(owners, slot)) {
+				final long[] bits = owners.get(documentId);
+				bits[word] &= ~mask;
+
+				if (isEmpty(bits)) {
+					owners.remove(documentId);
+					collectionOrphans.add(documentId);
+				}
+			}
+
+			if (owners != null && owners.isEmpty()) {
+				mOwners.remove(collectionName);
+			}
+
+			if (!collectionOrphans.isEmpty()) {
+				orphans.put(collectionName, collectionOrphans);
+			}
+		}
+
+		mClaims.set(slot, null);
+		mUsedSlots.clear(slot);
+
+		return orphans;
+	}
+
+	private Claims getClaims(final int slot, final String collectionName) {
+		final Map<String, Claims> claimsByCollection = mClaims.get(slot);
+		Claims claims = claimsByCollection.get(collectionName);
+
+		if (claims == null) {
+			claims = new Claims();
+			claimsByCollection.put(collectionName, claims);
+		}
+
+		return claims;
+	}
+
+	private long[] getBits(final String collectionName, final String documentId) {
+		final Map<String, long[]> owners = mOwners.get(collectionName);
+		final long[] bits = owners != null ? owners.get(documentId) : null;
+
+		return bits != null ? bits : NO_OWNERS;
+	}
+
+	private static boolean isSet(final long[] bits, final int slot) {
+		final int word = slot >> 6;
+
+		return word < bits.length && (bits[word] & (1L << slot)) != 0;
+	}
+
+	private static boolean isEmpty(final long[] bits) {
+		for (long word : bits) {
+			if (word != 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Documents claimed by a single slot in a single collection
+	 *
+	 * Documents that lose their owners are not removed from the list immediately but skipped when the list is read, and the list is compacted once most of its entries are outdated
+	 */
+	private static final class Claims {
+
+		private List<String> mDocumentIds;
+		/** The number of entries that are still valid */
+		private int mValidCount;
+
+		public Claims() {
+			mDocumentIds = new ArrayList<String>();
+		}
+
+		public void add(final String documentId) {
+			mDocumentIds.add(documentId);
+			mValidCount++;
+		}
+
+		public void remove(final Map<String, long[]> owners, final int slot) {
+			mValidCount--;
+
+			if (mDocumentIds.size() > 2 * mValidCount + 16) {
+				mDocumentIds = collectValid(owners, slot);
+			}
+		}
+
+		public List<String> getValid(final Map<String, long[]> owners, final int slot) {
+			if (owners == null) {
+				return new ArrayList<String>(0);
+			}
+
+			// if no document has lost its owners since it has been claimed, all entries are valid and distinct
+			if (mDocumentIds.size() == mValidCount) {
+				return new ArrayList<String>(mDocumentIds);
+			}
+
+			return collectValid(owners, slot);
+		}
+
+		/**
+		 * Returns the distinct documents that are still owned
+		 *
+		 * @param owners the owners of the documents in the collection
+		 * @param slot the slot that must own the documents
+		 * @return the IDs of the documents
+		 */
+		private List<String> collectValid(final Map<String, long[]> owners, final int slot) {
+			final Set<String> documentIds = new LinkedHashSet<String>(mValidCount * 4 / 3 + 1);
+
+			for (String documentId : mDocumentIds) {
+				final long[] bits = owners.get(documentId);
+
+				// documents that have been removed and added again are listed twice
+				if (bits != null && isSet(bits, slot)) {
+					documentIds.add(documentId);
+				}
+			}
+
+			return new ArrayList<String>(documentIds);
+		}
+
+	}
+
+}
@@ -0,0 +1,175 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.db.Document;
+
+/**
+ * Document that only holds a selection of the fields of another document
+ *
+ * The values are copied into a compact array and the array of field names is shared by all projections of documents that have all the selected fields
+ */
+final class ProjectedDocument implements Document {
+
+	/** The ID of the document */
+	private final String mId;
+	/** The names of the fields (shared, must not be modified) */
+	private final String[] mFieldNames;
+	/** The values of the fields in the same order as their names */
+	private final Object[] mValues;
+	/** The version of the original document */
+	private final long mVersion;
+
+	private ProjectedDocument(final String id, final String[] fieldNames, final Object[] values, final long version) {
+		mId = id;
+		mFieldNames = fieldNames;
+		mValues = values;
+		mVersion = version;
+	}
+
+	/**
+	 * Creates a projection of the given document that only contains the specified fields
+	 *
+	 * Fields that do not exist in the document are omitted
+	 *
+	 * @param document the document to create a projection of
+	 * @param fieldNames the names of the fields to select
+	 * @return the projection
+	 */
+	public static ProjectedDocument create(final Document document, final String[] fieldNames) {
+		int numExisting = 0;
+
+		for (String fieldName : fieldNames) {
+			if (hasField(document, fieldName)) {
+				numExisting++;
+			}
+		}
+
+		final String[] names;
+
+		// if the document has all of the selected fields
+		if (numExisting == fieldNames.length) {
+			// share the array of names
+			names = fieldNames;
+		}
+		else {
+			names = new String[numExisting];
+
+			int i = 0;
+			for (String fieldName : fieldNames) {
+				if (hasField(document, fieldName)) {
+					names[i++] = fieldName;
+				}
+			}
+		}
+
+		final Object[] values = new Object[names.length];
+
+		for (int i = 0; i < names.length; i++) {
+			values[i] = document.getField(names[i]);
+		}
+
+		return new ProjectedDocument(document.getId(), names, values, document.getVersion());
+	}
+
+	/**
+	 * Returns whether the given document has a field with the specified name, even if its value is `null`
+	 *
+	 * @param document the document to check
+	 * @param name the name of the field
+	 * @return whether the field exists
+	 */
+	private static boolean hasField(final Document document, final String name) {
+		if (document instanceof InMemoryDocument) {
+			return ((InMemoryDocument) document).hasField(name);
+		}
+
+		if (document.getField(name) != null) {
+			return true;
+		}
+
+		for (String fieldName : document.getFieldNames()) {
+			if (fieldName.equals(name)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	@Override
+	public String getId() {
+		return mId;
+	}
+
+	@Override
+	public long getVersion() {
+		return mVersion;
+	}
+
+	@Override
+	public Object getField(final String name) {
+		for (int i = 0; i < mFieldNames.length; i++) {
+			if (mFieldNames[i].equals(name)) {
+				return mValues[i];
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public double getDouble(final String name) {
+		return InMemoryQuery.coerceNumber(getField(name));
+	}
+
+	@Override
+	public long getLong(final String name) {
+		return (long) InMemoryQuery.coerceNumber(getField(name));
+	}
+
+	@Override
+	public String[] getFieldNames() {
+		return mFieldNames.clone();
+	}
+
+	@Override
+	public int count() {
+		return mFieldNames.length;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		builder.append('{');
+
+		for (int i = 0; i < mFieldNames.length; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+
+			builder.append(mFieldNames[i]);
+			builder.append('=');
+			builder.append(mValues[i]);
+		}
+
+		builder.append('}');
+
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,169 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache for the results of recently executed queries
+ *
+ * Every result is stored together with the version of its collection and is only returned as long as the collection has not been modified since
+ *
+ * The least recently used results are discarded once the maximum size has been reached
+ */
+final class QueryCache {
+
+	/** The default maximum number of results that are kept */
+	static final int DEFAULT_MAX_SIZE = 64;
+	/** The cached results by the names of their collections and the keys of their queries */
+	private final LinkedHashMap<String, CachedResult> mEntries;
+	/** The maximum number of results that are kept */
+	private int mMaxSize;
+	/** The number of lookups that have returned a result */
+	private long mHits;
+	/** The number of lookups that have not returned a result */
+	private long mMisses;
+
+	/**
+	 * Creates a new empty cache
+	 *
+	 * @param maxSize the maximum number of results that are kept
+	 */
+	QueryCache(final int maxSize) {
+		mEntries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, CachedResult> eldest) {
+				return size() > mMaxSize;
+			}
+
+		};
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Returns whether results are cached at all
+	 *
+	 * @return whether the cache is enabled
+	 */
+	synchronized boolean isEnabled() {
+		return mMaxSize > 0;
+	}
+
+	/**
+	 * Returns the maximum number of results that are kept
+	 *
+	 * @return the maximum size
+	 */
+	synchronized int getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * Changes the maximum number of results that are kept and discards results if necessary
+	 *
+	 * @param maxSize the new maximum size or `0` to disable the cache
+	 */
+	synchronized void setMaxSize(final int maxSize) {
+		mMaxSize = maxSize;
+
+		if (mEntries.size() > maxSize) {
+			mEntries.clear();
+		}
+	}
+
+	/**
+	 * Returns the cached result of a query
+	 *
+	 * @param collectionName the name of the collection that the query operates on
+	 * @param queryKey the normalized description of the query
+	 * @param version the current version of the collection
+	 * @return the result or `null` if no result is cached for the current version
+	 */
+	synchronized Object get(final String collectionName, final String queryKey, final long version) {
+		final CachedResult entry = mEntries.get(getKey(collectionName, queryKey));
+
+		if (entry != null && entry.mVersion == version) {
+			mHits++;
+
+			return entry.mResult;
+		}
+		else {
+			mMisses++;
+
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the result of a query
+	 *
+	 * @param collectionName the name of the collection that the query operates on
+	 * @param queryKey the normalized description of the query
+	 * @param version the version of the collection that the result has been computed for
+	 * @param result the result which must not be modified afterwards
+	 */
+	synchronized void put(final String collectionName, final String queryKey, final long version, final Object result) {
+		if (mMaxSize > 0) {
+			mEntries.put(getKey(collectionName, queryKey), new CachedResult(version, result));
+		}
+	}
+
+	/**
+	 * Discards all results of queries on the specified collection
+	 *
+	 * @param collectionName the name of the collection
+	 */
+	synchronized void invalidate(final String collectionName) {
+		final String prefix = getKey(collectionName, "");
+		final Iterator<String> keys = mEntries.keySet().iterator();
+
+		while (keys.hasNext()) {
+			if (keys.next().startsWith(prefix)) {
+				keys.remove();
+			}
+		}
+	}
+
+	synchronized long getHits() {
+		return mHits;
+	}
+
+	synchronized long getMisses() {
+		return mMisses;
+	}
+
+	private static String getKey(final String collectionName, final String queryKey) {
+		return collectionName + '\u0000' + queryKey;
+	}
+
+	/** Result of a query together with the version of the collection that it has been computed for */
+	private static final class CachedResult {
+
+		private final long mVersion;
+		private final Object mResult;
+
+		public CachedResult(final long version, final Object result) {
+			mVersion = version;
+			mResult = result;
+		}
+
+	}
+
+}
@@ -0,0 +1,268 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Layout shared by all documents of a collection that have the same set of fields with the same types
+ *
+ * A shape maps each field name to a position in one of the two arrays of a document, so that the documents themselves do not need to store any keys
+ *
+ * Values of type `Integer`, `Long` and `Double` are stored as primitives in an array of `long` values, all other values are stored in an array of objects
+ *
+ * The field names are kept in sorted order so that the same set of fields always results in the same shape
+ *
+ * Shapes are immutable except for their transitions, which must only be accessed by the thread modifying the collection
+ *
+ * The number of transitions per shape is limited so that fields with dynamic names (e.g. IDs used as keys) do not fill the cache with shapes that are never shared
+ */
+final class Shape {
+
+	static final byte TYPE_OBJECT = 0;
+	static final byte TYPE_INTEGER = 1;
+	static final byte TYPE_LONG = 2;
+	static final byte TYPE_DOUBLE = 3;
+	/** The number of different types that fields can be stored as */
+	private static final int TYPE_COUNT = 4;
+	/** The maximum number of field names that the transitions of a single shape are cached for */
+	private static final int MAX_TRANSITIONS = 64;
+	/** The names of the fields in sorted order, where the position of each name is its slot */
+	private final String[] mFieldNames;
+	/** The types of the values in the order of the slots */
+	private final byte[] mTypes;
+	/** The positions of the values in either the array of objects or the array of numbers, in the order of the slots */
+	private final int[] mPositions;
+	/** The number of values that are stored as objects */
+	private final int mObjectCount;
+	/** The number of values that are stored as primitive numbers */
+	private final int mNumberCount;
+	/** The shapes that have one additional field after all fields of this shape, by the name of that field and then by its type (created lazily) */
+	private Map<String, Shape[]> mTransitions;
+
+	/**
+	 * Creates a new shape with the specified fields
+	 *
+	 * @param fieldNames the names of the fields in sorted order
+	 * @param types the types of the values in the same order
+	 * @param positions the positions of the values in the same order
+	 * @param objectCount the number of values that are stored as objects
+	 * @param numberCount the number of values that are stored as primitive numbers
+	 */
+	private Shape(final String[] fieldNames, final byte[] types, final int[] positions, final int objectCount, final int numberCount) {
+		mFieldNames = fieldNames;
+		mTypes = types;
+		mPositions = positions;
+		mObjectCount = objectCount;
+		mNumberCount = numberCount;
+	}
+
+	/**
+	 * Creates a new shape without any fields that serves as the root for all other shapes of a collection
+	 *
+	 * @return the new shape
+	 */
+	public static Shape createRoot() {
+		return new Shape(new String[0], new byte[0], new int[0], 0, 0);
+	}
+
+	/**
+	 * Returns the type that a value is stored as
+	 *
+	 * @param value the value
+	 * @return the type
+	 */
+	public static byte getType(final Object value) {
+		if (value instanceof Integer) {
+			return TYPE_INTEGER;
+		}
+		else if (value instanceof Long) {
+			return TYPE_LONG;
+		}
+		else if (value instanceof Double) {
+			return TYPE_DOUBLE;
+		}
+		else {
+			return TYPE_OBJECT;
+		}
+	}
+
+	/**
+	 * Returns the bits that a value of a primitive type is compared by, where doubles are normalized as in {@link Double#equals(Object)}
+	 *
+	 * @param value the value whose type is not {@link #TYPE_OBJECT}
+	 * @return the bits
+	 */
+	public static long getNumberBits(final Object value) {
+		if (value instanceof Double) {
+			return Double.doubleToLongBits((Double) value);
+		}
+		else {
+			return ((Number) value).longValue();
+		}
+	}
+
+	/**
+	 * Returns the shape that has the specified fields and is derived from this root shape
+	 *
+	 * @param fieldNames the names of the fields in sorted order
+	 * @param types the types of the values in the same order
+	 * @return the shape (never `null`)
+	 */
+	public Shape get(final String[] fieldNames, final byte[] types) {
+		Shape shape = this;
+
+		for (int i = 0; i < fieldNames.length; i++) {
+			shape = shape.withField(fieldNames[i], types[i]);
+		}
+
+		return shape;
+	}
+
+	/**
+	 * Returns the slot of the field with the specified name
+	 *
+	 * @param fieldName the name of the field
+	 * @return the slot or a negative number if this shape does not have the field
+	 */
+	public int getSlot(final String fieldName) {
+		if (fieldName == null) {
+			return -1;
+		}
+
+		return Arrays.binarySearch(mFieldNames, fieldName);
+	}
+
+	/**
+	 * Returns the name of the field in the specified slot
+	 *
+	 * @param slot the slot of the field
+	 * @return the name of the field
+	 */
+	public String getFieldName(final int slot) {
+		return mFieldNames[slot];
+	}
+
+	/**
+	 * Returns a copy of the names of all fields in slot order
+	 *
+	 * @return the names of the fields
+	 */
+	public String[] getFieldNames() {
+		return mFieldNames.clone();
+	}
+
+	/**
+	 * Returns the type of the value in the specified slot
+	 *
+	 * @param slot the slot of the field
+	 * @return the type
+	 */
+	public byte getType(final int slot) {
+		return mTypes[slot];
+	}
+
+	/**
+	 * Returns the position of the value in the specified slot within the array of objects or the array of numbers
+	 *
+	 * @param slot the slot of the field
+	 * @return the position
+	 */
+	public int getPosition(final int slot) {
+		return mPositions[slot];
+	}
+
+	/**
+	 * Returns the number of values that are stored as objects
+	 *
+	 * @return the number of objects
+	 */
+	public int getObjectCount() {
+		return mObjectCount;
+	}
+
+	/**
+	 * Returns the number of values that are stored as primitive numbers
+	 *
+	 * @return the number of primitive numbers
+	 */
+	public int getNumberCount() {
+		return mNumberCount;
+	}
+
+	/**
+	 * Returns the number of fields
+	 *
+	 * @return the number of fields
+	 */
+	public int size() {
+		return mFieldNames.length;
+	}
+
+	/**
+	 * Returns the shape that has all fields of this shape plus the specified field, which must be sorted after all existing fields
+	 *
+	 * @param fieldName the name of the additional field
+	 * @param type the type of the additional field
+	 * @return the shape (never `null`)
+	 */
+	private Shape withField(final String fieldName, final byte type) {
+		if (mTransitions == null) {
+			mTransitions = new HashMap<String, Shape[]>(4);
+		}
+
+		Shape[] shapesByType = mTransitions.get(fieldName);
+
+		if (shapesByType == null && mTransitions.size() < MAX_TRANSITIONS) {
+			shapesByType = new Shape[TYPE_COUNT];
+			mTransitions.put(fieldName, shapesByType);
+		}
+
+		Shape shape = shapesByType == null ? null : shapesByType[type];
+
+		if (shape == null) {
+			final int size = mFieldNames.length;
+
+			final String[] fieldNames = Arrays.copyOf(mFieldNames, size + 1);
+			fieldNames[size] = fieldName;
+
+			final byte[] types = Arrays.copyOf(mTypes, size + 1);
+			types[size] = type;
+
+			final int[] positions = Arrays.copyOf(mPositions, size + 1);
+
+			if (type == TYPE_OBJECT) {
+				positions[size] = mObjectCount;
+				shape = new Shape(fieldNames, types, positions, mObjectCount + 1, mNumberCount);
+			}
+			else {
+				positions[size] = mNumberCount;
+				shape = new Shape(fieldNames, types, positions, mObjectCount, mNumberCount + 1);
+			}
+
+			// otherwise the shape is not cached and only used by the document that it has been created for
+			if (shapesByType != null) {
+				shapesByType[type] = shape;
+			}
+		}
+
+		return shape;
+	}
+
+}
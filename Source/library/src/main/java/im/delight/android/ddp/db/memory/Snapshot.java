@@ -0,0 +1,416 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the contents of an in-memory database
+ *
+ * A snapshot starts with a header (magic number and format version), followed by a table of all field names that are referenced by index afterwards, and then the collections with their documents
+ */
+final class Snapshot {
+
+	/** The magic number at the beginning of every snapshot file (`DDPS`) */
+	private static final int MAGIC = 0x44445053;
+	/** The version of the binary format that is written */
+	private static final int VERSION = 2;
+	/** The oldest version of the binary format that can still be read */
+	private static final int MIN_VERSION = 1;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_FALSE = 1;
+	private static final byte TYPE_TRUE = 2;
+	private static final byte TYPE_INTEGER = 3;
+	private static final byte TYPE_LONG = 4;
+	private static final byte TYPE_DOUBLE = 5;
+	private static final byte TYPE_STRING = 6;
+	private static final byte TYPE_LIST = 7;
+	private static final byte TYPE_MAP = 8;
+	private static final byte TYPE_BIG_INTEGER = 9;
+	private static final byte TYPE_BIG_DECIMAL = 10;
+	/** Integer written as a zig-zag encoded variable-length number, which replaces {@link #TYPE_INTEGER} since version 2 */
+	private static final byte TYPE_VAR_INTEGER = 11;
+	/** Long written as a zig-zag encoded variable-length number, which replaces {@link #TYPE_LONG} since version 2 */
+	private static final byte TYPE_VAR_LONG = 12;
+
+	private Snapshot() { }
+
+	/**
+	 * Writes a snapshot of the given collections to the specified file
+	 *
+	 * The snapshot is written to a temporary file first which then replaces the target file
+	 *
+	 * @param collections the collections to write
+	 * @param file the file to write to
+	 * @throws IOException if the file could not be written
+	 */
+	static void write(final Map<String, InMemoryCollection> collections, final File file) throws IOException {
+		// take the current tables of documents first, which are never modified
+		final Map<String, DocumentTable> documentsByCollection = new LinkedHashMap<String, DocumentTable>();
+		for (InMemoryCollection collection : collections.values()) {
+			documentsByCollection.put(collection.getName(), collection.getDocuments());
+		}
+
+		// collect the names of all fields so that each name is only stored once
+		final Map<String, Integer> names = new LinkedHashMap<String, Integer>();
+		for (DocumentTable documents : documentsByCollection.values()) {
+			for (InMemoryDocument document : documents) {
+				for (int i = 0; i < document.count(); i++) {
+					collectNames(names, document.getShape().getFieldName(i), document.getValue(i));
+				}
+			}
+		}
+
+		final File temporaryFile = new File(file.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 64 * 1024));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			writeVarInt(out, names.size());
+			for (String name : names.keySet()) {
+				writeString(out, name);
+			}
+
+			writeVarInt(out, documentsByCollection.size());
+			for (Map.Entry<String, DocumentTable> collection : documentsByCollection.entrySet()) {
+				final DocumentTable documents = collection.getValue();
+
+				writeString(out, collection.getKey());
+				writeVarInt(out, documents.size());
+
+				for (InMemoryDocument document : documents) {
+					final Shape shape = document.getShape();
+
+					writeString(out, document.getId());
+					writeVarInt(out, shape.size());
+
+					for (int i = 0; i < shape.size(); i++) {
+						writeVarInt(out, names.get(shape.getFieldName(i)));
+						writeValue(out, names, document.getValue(i));
+					}
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+
+		if (!temporaryFile.renameTo(file)) {
+			// some file systems do not allow to replace existing files by renaming
+			if (!file.delete() || !temporaryFile.renameTo(file)) {
+				throw new IOException("Could not replace snapshot file `"+file+"`");
+			}
+		}
+	}
+
+	/**
+	 * Reads a snapshot from the specified file and passes all documents to the given database
+	 *
+	 * @param file the file to read from
+	 * @param database the database to add the documents to
+	 * @throws IOException if the file could not be read or is not a valid snapshot
+	 */
+	static void read(final File file, final InMemoryDatabase database) throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+
+		try {
+			final FileChannel channel = in.getChannel();
+			final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("File `"+file+"` is not a snapshot");
+			}
+
+			final int version = buffer.getInt();
+			if (version < MIN_VERSION || version > VERSION) {
+				throw new IOException("Snapshot version `"+version+"` is not supported");
+			}
+
+			// the same string instances are shared by all documents
+			final String[] names = new String[readVarInt(buffer)];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = readString(buffer);
+			}
+
+			final int numCollections = readVarInt(buffer);
+			for (int i = 0; i < numCollections; i++) {
+				final String collectionName = readString(buffer);
+				final int numDocuments = readVarInt(buffer);
+
+				for (int k = 0; k < numDocuments; k++) {
+					final String documentId = readString(buffer);
+					final int numFields = readVarInt(buffer);
+					final Fields fields = new Fields();
+
+					for (int m = 0; m < numFields; m++) {
+						final String fieldName = names[readVarInt(buffer)];
+						fields.put(fieldName, readValue(buffer, names));
+					}
+
+					database.onDataAdded(collectionName, documentId, fields);
+				}
+			}
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Snapshot `"+file+"` is truncated");
+		}
+		catch (IndexOutOfBoundsException e) {
+			throw new IOException("Snapshot `"+file+"` is corrupt");
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void collectNames(final Map<String, Integer> names, final String name, final Object value) {
+		if (!names.containsKey(name)) {
+			names.put(name, names.size());
+		}
+
+		if (value instanceof Map) {
+			for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+				collectNames(names, entry.getKey(), entry.getValue());
+			}
+		}
+		else if (value instanceof List) {
+			for (Object element : (List<Object>) value) {
+				if (element instanceof Map || element instanceof List) {
+					collectNames(names, name, element);
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void writeValue(final DataOutputStream out, final Map<String, Integer> names, final Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(TYPE_NULL);
+		}
+		else if (value instanceof Boolean) {
+			out.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+		}
+		else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			final int number = ((Number) value).intValue();
+
+			out.writeByte(TYPE_VAR_INTEGER);
+			writeVarInt(out, (number << 1) ^ (number >> 31));
+		}
+		else if (value instanceof Long) {
+			final long number = (Long) value;
+
+			out.writeByte(TYPE_VAR_LONG);
+			writeVarLong(out, (number << 1) ^ (number >> 63));
+		}
+		else if (value instanceof Double || value instanceof Float) {
+			out.writeByte(TYPE_DOUBLE);
+			out.writeDouble(((Number) value).doubleValue());
+		}
+		else if (value instanceof String) {
+			out.writeByte(TYPE_STRING);
+			writeString(out, (String) value);
+		}
+		else if (value instanceof java.math.BigInteger) {
+			out.writeByte(TYPE_BIG_INTEGER);
+			writeString(out, value.toString());
+		}
+		else if (value instanceof java.math.BigDecimal) {
+			out.writeByte(TYPE_BIG_DECIMAL);
+			writeString(out, value.toString());
+		}
+		else if (value instanceof List) {
+			final List<Object> list = (List<Object>) value;
+
+			out.writeByte(TYPE_LIST);
+			writeVarInt(out, list.size());
+
+			for (Object element : list) {
+				writeValue(out, names, element);
+			}
+		}
+		else if (value instanceof Map) {
+			final Map<String, Object> map = (Map<String, Object>) value;
+
+			out.writeByte(TYPE_MAP);
+			writeVarInt(out, map.size());
+
+			for (Map.Entry<String, Object> entry : map.entrySet()) {
+				writeVarInt(out, names.get(entry.getKey()));
+				writeValue(out, names, entry.getValue());
+			}
+		}
+		else {
+			throw new IOException("Values of type `"+value.getClass().getName()+"` cannot be written to a snapshot");
+		}
+	}
+
+	private static Object readValue(final ByteBuffer buffer, final String[] names) throws IOException {
+		final byte type = buffer.get();
+
+		switch (type) {
+			case TYPE_NULL:
+				return null;
+			case TYPE_FALSE:
+				return Boolean.FALSE;
+			case TYPE_TRUE:
+				return Boolean.TRUE;
+			case TYPE_INTEGER:
+				return buffer.getInt();
+			case TYPE_LONG:
+				return buffer.getLong();
+			case TYPE_VAR_INTEGER:
+				final int encodedInteger = readVarInt(buffer);
+				return (encodedInteger >>> 1) ^ -(encodedInteger & 1);
+			case TYPE_VAR_LONG:
+				final long encodedLong = readVarLong(buffer);
+				return (encodedLong >>> 1) ^ -(encodedLong & 1);
+			case TYPE_DOUBLE:
+				return buffer.getDouble();
+			case TYPE_STRING:
+				return readString(buffer);
+			case TYPE_BIG_INTEGER:
+				return new java.math.BigInteger(readString(buffer));
+			case TYPE_BIG_DECIMAL:
+				return new java.math.BigDecimal(readString(buffer));
+			case TYPE_LIST:
+				final int numElements = readVarInt(buffer);
+				final List<Object> list = new ArrayList<Object>(numElements);
+
+				for (int i = 0; i < numElements; i++) {
+					list.add(readValue(buffer, names));
+				}
+
+				return list;
+			case TYPE_MAP:
+				final int numEntries = readVarInt(buffer);
+				final Map<String, Object> map = new LinkedHashMap<String, Object>(Math.max(4, numEntries * 4 / 3 + 1));
+
+				for (int i = 0; i < numEntries; i++) {
+					final String key = names[readVarInt(buffer)];
+					map.put(key, readValue(buffer, names));
+				}
+
+				return map;
+			default:
+				throw new IOException("Unknown value type `"+type+"` in snapshot");
+		}
+	}
+
+	private static void writeString(final DataOutputStream out, final String value) throws IOException {
+		final byte[] bytes = value.getBytes(UTF_8);
+
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(final ByteBuffer buffer) {
+		final int length = readVarInt(buffer);
+
+		if (buffer.hasArray()) {
+			final String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+			buffer.position(buffer.position() + length);
+
+			return value;
+		}
+		else {
+			final byte[] bytes = new byte[length];
+			buffer.get(bytes);
+
+			return new String(bytes, UTF_8);
+		}
+	}
+
+	/**
+	 * Writes an integer as an unsigned number using between one and five bytes
+	 *
+	 * @param out the stream to write to
+	 * @param value the integer to write
+	 * @throws IOException if the value could not be written
+	 */
+	private static void writeVarInt(final DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(final ByteBuffer buffer) {
+		int value = 0;
+		int shift = 0;
+		byte current;
+
+		do {
+			current = buffer.get();
+			value |= (current & 0x7F) << shift;
+			shift += 7;
+		}
+		while ((current & 0x80) != 0);
+
+		return value;
+	}
+
+	/**
+	 * Writes a long as an unsigned number using between one and ten bytes
+	 *
+	 * @param out the stream to write to
+	 * @param value the long to write
+	 * @throws IOException if the value could not be written
+	 */
+	private static void writeVarLong(final DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(final ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte current;
+
+		do {
+			current = buffer.get();
+			value |= (long) (current & 0x7F) << shift;
+			shift += 7;
+		}
+		while ((current & 0x80) != 0);
+
+		return value;
+	}
+
+}
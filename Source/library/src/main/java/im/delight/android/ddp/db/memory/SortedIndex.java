@@ -0,0 +1,764 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Index that keeps the documents sorted by the numeric value of a field
+ *
+ * Values are coerced to numbers in the same way as in queries, i.e. missing and non-numeric values are sorted as zero
+ *
+ * Documents with arrays at the indexed path have one entry for each element of the array, and none for empty arrays
+ *
+ * The keys are stored as primitive `double` values in ascending order (with `NaN` at the end), and entries with equal keys are ordered by the IDs of their documents
+ *
+ * The entries are split into chunks of limited size so that adding or removing an entry only moves the entries of a single chunk, while the positions of the chunks are kept up to date for access by position in logarithmic time
+ */
+final class SortedIndex extends Index {
+
+	/** The maximum number of entries in a chunk, which is split in half when it is exceeded */
+	private static final int MAX_CHUNK_SIZE = 512;
+	/** The number of entries below which a chunk is merged with one of its neighbors if possible */
+	private static final int MIN_CHUNK_SIZE = MAX_CHUNK_SIZE / 4;
+	/** The chunks in the order of their entries, where there is always at least one (possibly empty) chunk */
+	private Chunk[] mChunks;
+	/** The position of the first entry of each chunk */
+	private int[] mChunkStarts;
+	/** The number of chunks */
+	private int mChunkCount;
+	/** The number of entries */
+	private int mSize;
+	/** The number of entries whose value is not a number (including missing values) */
+	private int mNonNumericCount;
+	/** The number of documents that do not have exactly one entry, i.e. documents with arrays */
+	private int mMultiKeyCount;
+	/** The entries that are appended in any order while the index is rebuilt, to be sorted afterwards, or `null` */
+	private Chunk mAppended;
+
+	/**
+	 * Creates a new sorted index on the specified field
+	 *
+	 * @param fieldName the name of the field to index
+	 */
+	public SortedIndex(final String fieldName) {
+		super(fieldName);
+
+		clear();
+	}
+
+	@Override
+	public void add(final InMemoryDocument document) {
+		// if the value is a top-level number, which is the most common case
+		if (getPath().isSimple() && document.isNumber(getFieldName())) {
+			addEntry(document.getDouble(getFieldName()), true, document);
+		}
+		else {
+			final List<Object> values = getValues(document);
+
+			if (values.size() != 1) {
+				mMultiKeyCount++;
+			}
+
+			for (Object value : values) {
+				addEntry(InMemoryQuery.coerceNumber(value), value instanceof Number, document);
+			}
+		}
+	}
+
+	@Override
+	public void remove(final InMemoryDocument document) {
+		if (getPath().isSimple() && document.isNumber(getFieldName())) {
+			removeEntry(document.getDouble(getFieldName()), true, document);
+		}
+		else {
+			final List<Object> values = getValues(document);
+
+			if (values.size() != 1) {
+				mMultiKeyCount--;
+			}
+
+			for (Object value : values) {
+				removeEntry(InMemoryQuery.coerceNumber(value), value instanceof Number, document);
+			}
+		}
+	}
+
+	@Override
+	public void replace(final InMemoryDocument previousDocument, final InMemoryDocument document) {
+		if (getPath().isSimple() && previousDocument.isNumber(getFieldName())) {
+			replaceEntry(previousDocument.getDouble(getFieldName()), previousDocument, document);
+		}
+		else {
+			for (Object value : getValues(previousDocument)) {
+				replaceEntry(InMemoryQuery.coerceNumber(value), previousDocument, document);
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		mChunks = new Chunk[] { new Chunk(Chunk.INITIAL_CAPACITY) };
+		mChunkStarts = new int[1];
+		mChunkCount = 1;
+		mSize = 0;
+		mNonNumericCount = 0;
+		mMultiKeyCount = 0;
+	}
+
+	@Override
+	public void rebuild(final Collection<InMemoryDocument> documents) {
+		clear();
+
+		// appending all entries and sorting them once is much faster than inserting each entry at its position
+		final Chunk appended = new Chunk(Math.max(documents.size(), Chunk.INITIAL_CAPACITY));
+		mAppended = appended;
+
+		try {
+			for (InMemoryDocument document : documents) {
+				add(document);
+			}
+		}
+		finally {
+			mAppended = null;
+		}
+
+		sort(appended.mKeys, appended.mDocuments, new double[appended.mSize], new InMemoryDocument[appended.mSize], 0, appended.mSize);
+
+		// the chunks are only filled by half so that the following insertions do not split them right away
+		final int chunkSize = MAX_CHUNK_SIZE / 2;
+		final int chunkCount = Math.max(1, (appended.mSize + chunkSize - 1) / chunkSize);
+
+		mChunks = new Chunk[chunkCount];
+		mChunkStarts = new int[chunkCount];
+		mChunkCount = chunkCount;
+
+		for (int i = 0; i < chunkCount; i++) {
+			final int start = i * chunkSize;
+			final int size = Math.min(chunkSize, appended.mSize - start);
+
+			mChunks[i] = new Chunk(Math.max(size, Chunk.INITIAL_CAPACITY));
+			System.arraycopy(appended.mKeys, start, mChunks[i].mKeys, 0, size);
+			System.arraycopy(appended.mDocuments, start, mChunks[i].mDocuments, 0, size);
+			mChunks[i].mSize = size;
+			mChunkStarts[i] = start;
+		}
+
+		mSize = appended.mSize;
+	}
+
+	/**
+	 * Returns the number of entries in the index
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Returns whether all documents have a number in the indexed field so that the index reflects the natural order of the values
+	 *
+	 * @return whether all values are numbers
+	 */
+	public boolean isNumeric() {
+		return mNonNumericCount == 0;
+	}
+
+	/**
+	 * Returns whether every document has exactly one entry so that the index lists each document once
+	 *
+	 * @return whether there is one entry per document
+	 */
+	public boolean isSingleKey() {
+		return mMultiKeyCount == 0;
+	}
+
+	/**
+	 * Returns the document at the specified position in the sort order
+	 *
+	 * @param position the position of the entry
+	 * @return the document
+	 */
+	public InMemoryDocument getDocument(final int position) {
+		final int chunk = findChunk(position);
+
+		return mChunks[chunk].mDocuments[position - mChunkStarts[chunk]];
+	}
+
+	/**
+	 * Returns the key at the specified position in the sort order
+	 *
+	 * @param position the position of the entry
+	 * @return the key
+	 */
+	public double getKey(final int position) {
+		final int chunk = findChunk(position);
+
+		return mChunks[chunk].mKeys[position - mChunkStarts[chunk]];
+	}
+
+	/**
+	 * Returns a view of the documents in the specified range of positions
+	 *
+	 * @param start the first position (inclusive)
+	 * @param end the last position (exclusive)
+	 * @return the documents in ascending order of their keys
+	 */
+	public List<InMemoryDocument> getDocuments(final int start, final int end) {
+		return new AbstractList<InMemoryDocument>() {
+
+			@Override
+			public InMemoryDocument get(final int location) {
+				return getDocument(start + location);
+			}
+
+			@Override
+			public int size() {
+				return end - start;
+			}
+
+			@Override
+			public Iterator<InMemoryDocument> iterator() {
+				// walking the chunks avoids looking up the chunk of each position
+				return new EntryIterator(start, end);
+			}
+
+		};
+	}
+
+	/**
+	 * Returns the position of the first entry whose key is greater than (or equal to) the specified value
+	 *
+	 * @param value the value to compare against
+	 * @param inclusive whether entries with a key equal to the value should be included
+	 * @return the position of the entry or the number of entries with a non-`NaN` key if there is no such entry
+	 */
+	public int findFirstAbove(final double value, final boolean inclusive) {
+		int low = 0;
+		int high = findFirstNaN();
+
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			final double key = getKey(middle);
+
+			if (inclusive ? key < value : key <= value) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Returns the position of the first entry whose key is `NaN`
+	 *
+	 * @return the position of the entry or the number of entries if there is no such entry
+	 */
+	public int findFirstNaN() {
+		int low = 0;
+		int high = mSize;
+
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+
+			if (Double.isNaN(getKey(middle))) {
+				high = middle;
+			}
+			else {
+				low = middle + 1;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Returns the values at the path of this index that are not arrays, each of which results in one entry
+	 *
+	 * @param document the document to get the values from
+	 * @return the values
+	 */
+	private List<Object> getValues(final InMemoryDocument document) {
+		final List<Object> values = getPath().collect(document);
+		final Iterator<Object> iterator = values.iterator();
+
+		while (iterator.hasNext()) {
+			// only the elements of arrays are compared with numbers
+			if (iterator.next() instanceof List) {
+				iterator.remove();
+			}
+		}
+
+		return values;
+	}
+
+	private void addEntry(final double key, final boolean numeric, final InMemoryDocument document) {
+		if (!numeric) {
+			mNonNumericCount++;
+		}
+
+		if (mAppended != null) {
+			mAppended.insert(mAppended.mSize, key, document);
+
+			return;
+		}
+
+		int chunk = findChunkAfter(key, document);
+		int position = mChunks[chunk].findEnd(key, document);
+
+		if (mChunks[chunk].mSize == MAX_CHUNK_SIZE) {
+			splitChunk(chunk);
+
+			if (position > mChunks[chunk].mSize) {
+				position -= mChunks[chunk].mSize;
+				chunk++;
+			}
+		}
+
+		mChunks[chunk].insert(position, key, document);
+		mSize++;
+
+		for (int i = chunk + 1; i < mChunkCount; i++) {
+			mChunkStarts[i]++;
+		}
+	}
+
+	private void removeEntry(final double key, final boolean numeric, final InMemoryDocument document) {
+		// the entry is among the entries with the same key and ID, i.e. usually the first of these
+		for (int chunk = findChunkFrom(key, document); chunk < mChunkCount; chunk++) {
+			final Chunk entries = mChunks[chunk];
+
+			for (int i = entries.findStart(key, document); i < entries.mSize; i++) {
+				if (compareEntries(entries.mKeys[i], entries.mDocuments[i], key, document) != 0) {
+					return;
+				}
+				else if (entries.mDocuments[i] == document) {
+					entries.delete(i);
+					mSize--;
+
+					for (int k = chunk + 1; k < mChunkCount; k++) {
+						mChunkStarts[k]--;
+					}
+
+					if (!numeric) {
+						mNonNumericCount--;
+					}
+
+					if (entries.mSize < MIN_CHUNK_SIZE) {
+						mergeChunk(chunk);
+					}
+
+					return;
+				}
+			}
+		}
+	}
+
+	private void replaceEntry(final double key, final InMemoryDocument previousDocument, final InMemoryDocument document) {
+		// the entry is among the entries with the same key and ID, i.e. usually the first of these
+		for (int chunk = findChunkFrom(key, previousDocument); chunk < mChunkCount; chunk++) {
+			final Chunk entries = mChunks[chunk];
+
+			for (int i = entries.findStart(key, previousDocument); i < entries.mSize; i++) {
+				if (compareEntries(entries.mKeys[i], entries.mDocuments[i], key, previousDocument) != 0) {
+					return;
+				}
+				else if (entries.mDocuments[i] == previousDocument) {
+					entries.mDocuments[i] = document;
+
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the chunk that contains the entry at the specified position
+	 *
+	 * @param position the position of the entry
+	 * @return the index of the chunk
+	 */
+	private int findChunk(final int position) {
+		int low = 0;
+		int high = mChunkCount - 1;
+
+		// find the last chunk that starts at or before the position, skipping empty chunks
+		while (low < high) {
+			final int middle = (low + high + 1) >>> 1;
+
+			if (mChunkStarts[middle] <= position) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Returns the first chunk that may contain entries that are equal to or sorted after the given entry
+	 *
+	 * @param key the key of the entry
+	 * @param document the document of the entry
+	 * @return the index of the chunk
+	 */
+	private int findChunkFrom(final double key, final InMemoryDocument document) {
+		int low = 0;
+		int high = mChunkCount - 1;
+
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			final Chunk chunk = mChunks[middle];
+
+			if (chunk.mSize == 0 || compareEntries(chunk.mKeys[chunk.mSize - 1], chunk.mDocuments[chunk.mSize - 1], key, document) < 0) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Returns the chunk that the given entry is inserted into, which is the first chunk whose last entry is sorted after the entry, or else the last chunk
+	 *
+	 * @param key the key of the new entry
+	 * @param document the document of the new entry
+	 * @return the index of the chunk
+	 */
+	private int findChunkAfter(final double key, final InMemoryDocument document) {
+		int low = 0;
+		int high = mChunkCount - 1;
+
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			final Chunk chunk = mChunks[middle];
+
+			if (chunk.mSize == 0 || compareEntries(chunk.mKeys[chunk.mSize - 1], chunk.mDocuments[chunk.mSize - 1], key, document) <= 0) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Moves the second half of the entries of the specified chunk to a new chunk right after it
+	 *
+	 * @param chunk the index of the chunk to split
+	 */
+	private void splitChunk(final int chunk) {
+		final Chunk entries = mChunks[chunk];
+		final int half = entries.mSize / 2;
+		final Chunk next = new Chunk(MAX_CHUNK_SIZE);
+
+		System.arraycopy(entries.mKeys, half, next.mKeys, 0, entries.mSize - half);
+		System.arraycopy(entries.mDocuments, half, next.mDocuments, 0, entries.mSize - half);
+		next.mSize = entries.mSize - half;
+
+		for (int i = half; i < entries.mSize; i++) {
+			entries.mDocuments[i] = null;
+		}
+
+		entries.mSize = half;
+
+		insertChunk(chunk + 1, next, mChunkStarts[chunk] + half);
+	}
+
+	/**
+	 * Merges the specified chunk, which has become small, with one of its neighbors if their entries fit into half a chunk
+	 *
+	 * @param chunk the index of the chunk
+	 */
+	private void mergeChunk(final int chunk) {
+		if (mChunks[chunk].mSize == 0 && mChunkCount > 1) {
+			deleteChunk(chunk);
+		}
+		else if (chunk + 1 < mChunkCount && mChunks[chunk].mSize + mChunks[chunk + 1].mSize <= MAX_CHUNK_SIZE / 2) {
+			mChunks[chunk].append(mChunks[chunk + 1]);
+			deleteChunk(chunk + 1);
+		}
+		else if (chunk > 0 && mChunks[chunk - 1].mSize + mChunks[chunk].mSize <= MAX_CHUNK_SIZE / 2) {
+			mChunks[chunk - 1].append(mChunks[chunk]);
+			deleteChunk(chunk);
+		}
+	}
+
+	private void insertChunk(final int index, final Chunk chunk, final int start) {
+		if (mChunkCount == mChunks.length) {
+			final Chunk[] chunks = new Chunk[mChunkCount * 2];
+			System.arraycopy(mChunks, 0, chunks, 0, mChunkCount);
+			mChunks = chunks;
+
+			final int[] chunkStarts = new int[mChunkCount * 2];
+			System.arraycopy(mChunkStarts, 0, chunkStarts, 0, mChunkCount);
+			mChunkStarts = chunkStarts;
+		}
+
+		System.arraycopy(mChunks, index, mChunks, index + 1, mChunkCount - index);
+		System.arraycopy(mChunkStarts, index, mChunkStarts, index + 1, mChunkCount - index);
+		mChunks[index] = chunk;
+		mChunkStarts[index] = start;
+		mChunkCount++;
+	}
+
+	private void deleteChunk(final int index) {
+		// the chunk is empty or its entries have been moved to its predecessor, so the starts of all other chunks are still valid
+		System.arraycopy(mChunks, index + 1, mChunks, index, mChunkCount - index - 1);
+		System.arraycopy(mChunkStarts, index + 1, mChunkStarts, index, mChunkCount - index - 1);
+		mChunkCount--;
+		mChunks[mChunkCount] = null;
+	}
+
+	/**
+	 * Compares two entries by their keys and then by the IDs of their documents
+	 *
+	 * @param lhsKey the key of the first entry
+	 * @param lhsDocument the document of the first entry
+	 * @param rhsKey the key of the second entry
+	 * @param rhsDocument the document of the second entry
+	 * @return a negative number, zero or a positive number if the first entry is sorted before, equal to or after the second entry
+	 */
+	private static int compareEntries(final double lhsKey, final InMemoryDocument lhsDocument, final double rhsKey, final InMemoryDocument rhsDocument) {
+		final int result = Double.compare(lhsKey, rhsKey);
+
+		if (result != 0) {
+			return result;
+		}
+
+		return lhsDocument.getId().compareTo(rhsDocument.getId());
+	}
+
+	/**
+	 * Sorts the entries in the given range by their keys and the IDs of their documents using a merge sort
+	 *
+	 * @param keys the keys of the entries
+	 * @param documents the documents of the entries
+	 * @param bufferKeys the temporary storage for keys with at least the size of the range
+	 * @param bufferDocuments the temporary storage for documents with at least the size of the range
+	 * @param start the first position of the range
+	 * @param end the position after the range
+	 */
+	private static void sort(final double[] keys, final InMemoryDocument[] documents, final double[] bufferKeys, final InMemoryDocument[] bufferDocuments, final int start, final int end) {
+		if (end - start < 2) {
+			return;
+		}
+
+		final int middle = (start + end) >>> 1;
+
+		sort(keys, documents, bufferKeys, bufferDocuments, start, middle);
+		sort(keys, documents, bufferKeys, bufferDocuments, middle, end);
+
+		// if both halves are in order already
+		if (compareEntries(keys[middle - 1], documents[middle - 1], keys[middle], documents[middle]) <= 0) {
+			return;
+		}
+
+		System.arraycopy(keys, start, bufferKeys, start, end - start);
+		System.arraycopy(documents, start, bufferDocuments, start, end - start);
+
+		int left = start;
+		int right = middle;
+
+		for (int i = start; i < end; i++) {
+			if (right >= end || (left < middle && compareEntries(bufferKeys[left], bufferDocuments[left], bufferKeys[right], bufferDocuments[right]) <= 0)) {
+				keys[i] = bufferKeys[left];
+				documents[i] = bufferDocuments[left];
+				left++;
+			}
+			else {
+				keys[i] = bufferKeys[right];
+				documents[i] = bufferDocuments[right];
+				right++;
+			}
+		}
+	}
+
+	/** Iterator over the documents in a range of positions that walks the chunks in order */
+	private final class EntryIterator implements Iterator<InMemoryDocument> {
+
+		/** The number of documents that are still to be returned */
+		private int mRemaining;
+		private int mChunk;
+		/** The position of the next document within the current chunk */
+		private int mOffset;
+
+		public EntryIterator(final int start, final int end) {
+			mRemaining = end - start;
+
+			if (mRemaining > 0) {
+				mChunk = findChunk(start);
+				mOffset = start - mChunkStarts[mChunk];
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return mRemaining > 0;
+		}
+
+		@Override
+		public InMemoryDocument next() {
+			if (mRemaining <= 0) {
+				throw new NoSuchElementException();
+			}
+
+			while (mOffset >= mChunks[mChunk].mSize) {
+				mChunk++;
+				mOffset = 0;
+			}
+
+			mRemaining--;
+
+			return mChunks[mChunk].mDocuments[mOffset++];
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	/** Sorted run of entries with its keys and documents in two parallel arrays */
+	private static final class Chunk {
+
+		private static final int INITIAL_CAPACITY = 16;
+		private double[] mKeys;
+		private InMemoryDocument[] mDocuments;
+		private int mSize;
+
+		public Chunk(final int capacity) {
+			mKeys = new double[capacity];
+			mDocuments = new InMemoryDocument[capacity];
+		}
+
+		/**
+		 * Inserts an entry at the specified position, growing the arrays if necessary
+		 *
+		 * @param position the position of the new entry
+		 * @param key the key of the entry
+		 * @param document the document of the entry
+		 */
+		public void insert(final int position, final double key, final InMemoryDocument document) {
+			if (mSize == mKeys.length) {
+				final int newCapacity = mKeys.length * 2;
+
+				final double[] newKeys = new double[newCapacity];
+				System.arraycopy(mKeys, 0, newKeys, 0, mSize);
+				mKeys = newKeys;
+
+				final InMemoryDocument[] newDocuments = new InMemoryDocument[newCapacity];
+				System.arraycopy(mDocuments, 0, newDocuments, 0, mSize);
+				mDocuments = newDocuments;
+			}
+
+			System.arraycopy(mKeys, position, mKeys, position + 1, mSize - position);
+			System.arraycopy(mDocuments, position, mDocuments, position + 1, mSize - position);
+
+			mKeys[position] = key;
+			mDocuments[position] = document;
+			mSize++;
+		}
+
+		public void delete(final int position) {
+			System.arraycopy(mKeys, position + 1, mKeys, position, mSize - position - 1);
+			System.arraycopy(mDocuments, position + 1, mDocuments, position, mSize - position - 1);
+
+			mSize--;
+			mDocuments[mSize] = null;
+		}
+
+		/**
+		 * Appends all entries of the given chunk, which must be sorted after the entries of this chunk
+		 *
+		 * @param other the chunk whose entries to append
+		 */
+		public void append(final Chunk other) {
+			for (int i = 0; i < other.mSize; i++) {
+				insert(mSize, other.mKeys[i], other.mDocuments[i]);
+			}
+		}
+
+		/**
+		 * Returns the position of the first entry that is equal to or sorted after the given entry
+		 *
+		 * @param key the key of the entry
+		 * @param document the document of the entry
+		 * @return the position
+		 */
+		public int findStart(final double key, final InMemoryDocument document) {
+			int low = 0;
+			int high = mSize;
+
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+
+				if (compareEntries(mKeys[middle], mDocuments[middle], key, document) < 0) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+
+			return low;
+		}
+
+		/**
+		 * Returns the position of the first entry that is sorted after the given entry
+		 *
+		 * @param key the key of the entry
+		 * @param document the document of the entry
+		 * @return the position
+		 */
+		public int findEnd(final double key, final InMemoryDocument document) {
+			int low = 0;
+			int high = mSize;
+
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+
+				if (compareEntries(mKeys[middle], mDocuments[middle], key, document) <= 0) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+
+			return low;
+		}
+
+	}
+
+}
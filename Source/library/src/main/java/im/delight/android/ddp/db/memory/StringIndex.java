@@ -0,0 +1,162 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index that keeps the documents sorted by the string values of a field, so that all values starting with a prefix are adjacent
+ *
+ * Documents with arrays at the indexed path are listed under each string in the array, and values other than strings are not indexed
+ */
+final class StringIndex extends Index {
+
+	/** The documents for each string value of the indexed field in the natural order of the strings */
+	private final TreeMap<String, InMemoryCollection.DocumentsMap> mBuckets;
+	/** The number of documents that are contained in more than one bucket */
+	private int mMultiKeyCount;
+
+	/**
+	 * Creates a new string index on the specified field
+	 *
+	 * @param fieldName the name of the field to index
+	 */
+	public StringIndex(final String fieldName) {
+		super(fieldName);
+
+		mBuckets = new TreeMap<String, InMemoryCollection.DocumentsMap>();
+	}
+
+	@Override
+	public void add(final InMemoryDocument document) {
+		final List<String> keys = getKeys(document);
+
+		if (keys.size() > 1) {
+			mMultiKeyCount++;
+		}
+
+		for (String key : keys) {
+			InMemoryCollection.DocumentsMap bucket = mBuckets.get(key);
+
+			if (bucket == null) {
+				bucket = new InMemoryCollection.DocumentsMap();
+				mBuckets.put(key, bucket);
+			}
+
+			bucket.put(document.getId(), document);
+		}
+	}
+
+	@Override
+	public void remove(final InMemoryDocument document) {
+		final List<String> keys = getKeys(document);
+
+		if (keys.size() > 1) {
+			mMultiKeyCount--;
+		}
+
+		for (String key : keys) {
+			final InMemoryCollection.DocumentsMap bucket = mBuckets.get(key);
+
+			if (bucket != null) {
+				bucket.remove(document.getId());
+
+				if (bucket.isEmpty()) {
+					mBuckets.remove(key);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void replace(final InMemoryDocument previousDocument, final InMemoryDocument document) {
+		for (String key : getKeys(previousDocument)) {
+			final InMemoryCollection.DocumentsMap bucket = mBuckets.get(key);
+
+			if (bucket != null) {
+				// replacing an existing key keeps the position of the entry
+				bucket.put(document.getId(), document);
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		mBuckets.clear();
+		mMultiKeyCount = 0;
+	}
+
+	/**
+	 * Returns whether any document is contained in more than one bucket
+	 *
+	 * @return whether documents may have several values
+	 */
+	public boolean isMultiKey() {
+		return mMultiKeyCount > 0;
+	}
+
+	/**
+	 * Returns the documents having a string value that starts with the specified prefix
+	 *
+	 * Only the matching values are visited, in their natural order
+	 *
+	 * @param prefix the prefix to look up
+	 * @return the matching documents, which may contain duplicates if the index is multi-key
+	 */
+	public List<InMemoryDocument> findByPrefix(final String prefix) {
+		final List<InMemoryDocument> documents = new ArrayList<InMemoryDocument>();
+
+		for (Map.Entry<String, InMemoryCollection.DocumentsMap> bucket : mBuckets.tailMap(prefix, true).entrySet()) {
+			if (!bucket.getKey().startsWith(prefix)) {
+				break;
+			}
+
+			documents.addAll(bucket.getValue().values());
+		}
+
+		return documents;
+	}
+
+	private List<String> getKeys(final InMemoryDocument document) {
+		final List<String> keys = new ArrayList<String>(1);
+
+		if (getPath().isSimple()) {
+			final Object value = document.getField(getFieldName());
+
+			if (value instanceof String) {
+				keys.add((String) value);
+
+				return keys;
+			}
+			else if (!(value instanceof List)) {
+				return keys;
+			}
+		}
+
+		for (Object value : getPath().collect(document)) {
+			if (value instanceof String) {
+				keys.add((String) value);
+			}
+		}
+
+		return keys;
+	}
+
+}
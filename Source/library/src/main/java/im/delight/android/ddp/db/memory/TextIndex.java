@@ -0,0 +1,312 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.db.Document;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Inverted index that maps each word in a text field to the documents containing that word
+ *
+ * Texts are split into words at all characters other than letters and digits, and words are compared without regard to case
+ *
+ * Every indexed document is assigned a number, and each word stores the numbers of its documents in a sorted array of primitives
+ */
+final class TextIndex extends Index {
+
+	/** The numbers of the documents containing each word, with the words in their natural order for prefix searches */
+	private final TreeMap<String, Postings> mPostings;
+	/** The numbers assigned to the documents by their IDs */
+	private final Map<String, Integer> mNumbers;
+	/** The documents by their numbers, where unused numbers are `null` */
+	private InMemoryDocument[] mDocuments;
+	/** The numbers of removed documents that can be assigned again */
+	private int[] mFreeNumbers;
+	/** The number of entries in {@link #mFreeNumbers} */
+	private int mFreeCount;
+	/** The lowest number that has never been assigned */
+	private int mNextNumber;
+
+	/**
+	 * Creates a new text index on the specified field
+	 *
+	 * @param fieldName the name of the field to index
+	 */
+	public TextIndex(final String fieldName) {
+		super(fieldName);
+
+		mPostings = new TreeMap<String, Postings>();
+		mNumbers = new HashMap<String, Integer>();
+		mDocuments = new InMemoryDocument[16];
+		mFreeNumbers = new int[16];
+	}
+
+	@Override
+	public void add(final InMemoryDocument document) {
+		final Set<String> words = getWords(getPath(), document);
+
+		if (words.isEmpty()) {
+			return;
+		}
+
+		final int number;
+
+		if (mFreeCount > 0) {
+			number = mFreeNumbers[--mFreeCount];
+		}
+		else {
+			number = mNextNumber++;
+
+			if (number == mDocuments.length) {
+				mDocuments = Arrays.copyOf(mDocuments, number * 2);
+			}
+		}
+
+		mNumbers.put(document.getId(), number);
+		mDocuments[number] = document;
+
+		for (String word : words) {
+			Postings postings = mPostings.get(word);
+
+			if (postings == null) {
+				postings = new Postings();
+				mPostings.put(word, postings);
+			}
+
+			postings.add(number);
+		}
+	}
+
+	@Override
+	public void remove(final InMemoryDocument document) {
+		final Integer number = mNumbers.remove(document.getId());
+
+		if (number == null) {
+			return;
+		}
+
+		for (String word : getWords(getPath(), document)) {
+			final Postings postings = mPostings.get(word);
+
+			if (postings != null) {
+				postings.remove(number);
+
+				if (postings.isEmpty()) {
+					mPostings.remove(word);
+				}
+			}
+		}
+
+		mDocuments[number] = null;
+
+		if (mFreeCount == mFreeNumbers.length) {
+			mFreeNumbers = Arrays.copyOf(mFreeNumbers, mFreeCount * 2);
+		}
+
+		mFreeNumbers[mFreeCount++] = number;
+	}
+
+	@Override
+	public void replace(final InMemoryDocument previousDocument, final InMemoryDocument document) {
+		final Integer number = mNumbers.get(previousDocument.getId());
+
+		if (number != null) {
+			mDocuments[number] = document;
+		}
+	}
+
+	@Override
+	public void clear() {
+		mPostings.clear();
+		mNumbers.clear();
+		mDocuments = new InMemoryDocument[16];
+		mFreeCount = 0;
+		mNextNumber = 0;
+	}
+
+	/**
+	 * Returns the documents that contain all of the specified words
+	 *
+	 * @param words the words in lower case
+	 * @param prefixes whether each word may also be the beginning of a longer word
+	 * @return the matching documents
+	 */
+	public List<InMemoryDocument> find(final String[] words, final boolean[] prefixes) {
+		BitSet matches = null;
+
+		for (int i = 0; i < words.length; i++) {
+			final BitSet wordMatches = new BitSet(mNextNumber);
+
+			if (prefixes[i]) {
+				// all words in the range from the prefix up to the prefix followed by the highest character
+				final SortedMap<String, Postings> range = mPostings.subMap(words[i], words[i] + Character.MAX_VALUE);
+
+				for (Postings postings : range.values()) {
+					postings.addTo(wordMatches);
+				}
+			}
+			else {
+				final Postings postings = mPostings.get(words[i]);
+
+				if (postings != null) {
+					postings.addTo(wordMatches);
+				}
+			}
+
+			if (matches == null) {
+				matches = wordMatches;
+			}
+			else {
+				matches.and(wordMatches);
+			}
+
+			if (matches.isEmpty()) {
+				break;
+			}
+		}
+
+		final List<InMemoryDocument> documents = new ArrayList<InMemoryDocument>(matches == null ? 0 : matches.cardinality());
+
+		if (matches != null) {
+			for (int number = matches.nextSetBit(0); number >= 0; number = matches.nextSetBit(number + 1)) {
+				documents.add(mDocuments[number]);
+			}
+		}
+
+		return documents;
+	}
+
+	/**
+	 * Returns the distinct words in all texts at the given path in the document
+	 *
+	 * @param path the path to the field
+	 * @param document the document to search
+	 * @return the words in lower case
+	 */
+	public static Set<String> getWords(final FieldPath path, final Document document) {
+		final Set<String> words = new LinkedHashSet<String>();
+
+		path.visit(document, new FieldPath.Visitor() {
+
+			@Override
+			public boolean visit(final Object value) {
+				if (value instanceof String) {
+					words.addAll(tokenize((String) value));
+				}
+
+				// continue with the next value
+				return false;
+			}
+
+		});
+
+		return words;
+	}
+
+	/**
+	 * Splits the given text into words in lower case
+	 *
+	 * @param text the text to split
+	 * @return the words in their original order
+	 */
+	public static List<String> tokenize(final String text) {
+		final List<String> words = new ArrayList<String>();
+		final String lowerCaseText = text.toLowerCase(Locale.ROOT);
+		int start = -1;
+
+		for (int i = 0; i <= lowerCaseText.length(); i++) {
+			final boolean isWordCharacter = i < lowerCaseText.length() && Character.isLetterOrDigit(lowerCaseText.charAt(i));
+
+			if (isWordCharacter && start < 0) {
+				start = i;
+			}
+			else if (!isWordCharacter && start >= 0) {
+				words.add(lowerCaseText.substring(start, i));
+				start = -1;
+			}
+		}
+
+		return words;
+	}
+
+	/** Sorted set of document numbers that is stored in an array of primitives */
+	private static final class Postings {
+
+		private int[] mNumbers;
+		private int mSize;
+
+		public Postings() {
+			mNumbers = new int[2];
+		}
+
+		public void add(final int number) {
+			// numbers are usually assigned in ascending order, so the common case is appending
+			if (mSize == 0 || mNumbers[mSize - 1] < number) {
+				ensureCapacity();
+				mNumbers[mSize++] = number;
+				return;
+			}
+
+			final int position = Arrays.binarySearch(mNumbers, 0, mSize, number);
+
+			if (position < 0) {
+				final int insertion = -(position + 1);
+				ensureCapacity();
+				System.arraycopy(mNumbers, insertion, mNumbers, insertion + 1, mSize - insertion);
+				mNumbers[insertion] = number;
+				mSize++;
+			}
+		}
+
+		public void remove(final int number) {
+			final int position = Arrays.binarySearch(mNumbers, 0, mSize, number);
+
+			if (position >= 0) {
+				System.arraycopy(mNumbers, position + 1, mNumbers, position, mSize - position - 1);
+				mSize--;
+			}
+		}
+
+		public boolean isEmpty() {
+			return mSize == 0;
+		}
+
+		public void addTo(final BitSet numbers) {
+			for (int i = 0; i < mSize; i++) {
+				numbers.set(mNumbers[i]);
+			}
+		}
+
+		private void ensureCapacity() {
+			if (mSize == mNumbers.length) {
+				mNumbers = Arrays.copyOf(mNumbers, mSize + (mSize >> 1) + 1);
+			}
+		}
+
+	}
+
+}
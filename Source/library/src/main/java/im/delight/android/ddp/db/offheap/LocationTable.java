@@ -0,0 +1,210 @@
+package im.delight.android.ddp.db.offheap;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Hash table from the IDs of documents to the locations of their records
+ *
+ * The table only consists of primitive arrays, while the IDs themselves are compared with the copies in the records
+ */
+final class LocationTable {
+
+	/** The location that is returned for IDs that are not contained in the table */
+	static final long NONE = -1;
+	private static final int INITIAL_CAPACITY = 16;
+	/** The collection that the records are stored in */
+	private final OffHeapCollection mCollection;
+	/** The hashes of the IDs in all slots */
+	private int[] mHashes;
+	/** The locations of the records in all slots or {@link #NONE} for empty slots */
+	private long[] mLocations;
+	/** The number of occupied slots */
+	private int mSize;
+
+	/**
+	 * Creates a new empty table
+	 *
+	 * @param collection the collection that the records are stored in
+	 */
+	LocationTable(final OffHeapCollection collection) {
+		mCollection = collection;
+		mHashes = new int[INITIAL_CAPACITY];
+		mLocations = new long[INITIAL_CAPACITY];
+		Arrays.fill(mLocations, NONE);
+	}
+
+	/**
+	 * Returns the number of IDs in the table
+	 *
+	 * @return the count
+	 */
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * Returns the location of the record for the specified ID
+	 *
+	 * @param id the ID as UTF-8
+	 * @param hash the hash of the ID as returned by {@link #hash(byte[])}
+	 * @return the location or {@link #NONE}
+	 */
+	long get(final byte[] id, final int hash) {
+		final int slot = findSlot(id, hash);
+
+		return slot < 0 ? NONE : mLocations[slot];
+	}
+
+	/**
+	 * Sets the location of the record for the specified ID
+	 *
+	 * @param id the ID as UTF-8
+	 * @param hash the hash of the ID as returned by {@link #hash(byte[])}
+	 * @param location the new location
+	 * @return the previous location or {@link #NONE}
+	 */
+	long put(final byte[] id, final int hash, final long location) {
+		final int slot = findSlot(id, hash);
+
+		if (slot >= 0) {
+			final long previous = mLocations[slot];
+			mLocations[slot] = location;
+
+			return previous;
+		}
+
+		if ((mSize + 1) * 2 > mLocations.length) {
+			resize(mLocations.length * 2);
+		}
+
+		final int mask = mLocations.length - 1;
+		int index = hash & mask;
+
+		while (mLocations[index] != NONE) {
+			index = (index + 1) & mask;
+		}
+
+		mHashes[index] = hash;
+		mLocations[index] = location;
+		mSize++;
+
+		return NONE;
+	}
+
+	/**
+	 * Removes the specified ID from the table
+	 *
+	 * @param id the ID as UTF-8
+	 * @param hash the hash of the ID as returned by {@link #hash(byte[])}
+	 * @return the previous location or {@link #NONE}
+	 */
+	long remove(final byte[] id, final int hash) {
+		int slot = findSlot(id, hash);
+
+		if (slot < 0) {
+			return NONE;
+		}
+
+		final long previous = mLocations[slot];
+		final int mask = mLocations.length - 1;
+		mLocations[slot] = NONE;
+		mSize--;
+
+		// move following entries back so that no lookup stops at the new gap too early
+		int index = slot;
+
+		while (true) {
+			index = (index + 1) & mask;
+
+			if (mLocations[index] == NONE) {
+				break;
+			}
+
+			final int home = mHashes[index] & mask;
+			final boolean reachable = slot <= index ? (slot < home && home <= index) : (slot < home || home <= index);
+
+			if (!reachable) {
+				mHashes[slot] = mHashes[index];
+				mLocations[slot] = mLocations[index];
+				mLocations[index] = NONE;
+				slot = index;
+			}
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Returns the slot containing the specified ID
+	 *
+	 * @param id the ID as UTF-8
+	 * @param hash the hash of the ID
+	 * @return the slot or `-1`
+	 */
+	private int findSlot(final byte[] id, final int hash) {
+		final int mask = mLocations.length - 1;
+		int index = hash & mask;
+
+		while (mLocations[index] != NONE) {
+			if (mHashes[index] == hash && mCollection.hasId(mLocations[index], id)) {
+				return index;
+			}
+
+			index = (index + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	private void resize(final int capacity) {
+		final int[] oldHashes = mHashes;
+		final long[] oldLocations = mLocations;
+		final int mask = capacity - 1;
+
+		mHashes = new int[capacity];
+		mLocations = new long[capacity];
+		Arrays.fill(mLocations, NONE);
+
+		for (int i = 0; i < oldLocations.length; i++) {
+			if (oldLocations[i] != NONE) {
+				int index = oldHashes[i] & mask;
+
+				while (mLocations[index] != NONE) {
+					index = (index + 1) & mask;
+				}
+
+				mHashes[index] = oldHashes[i];
+				mLocations[index] = oldLocations[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the hash of the specified ID
+	 *
+	 * @param id the ID as UTF-8
+	 * @return the hash
+	 */
+	static int hash(final byte[] id) {
+		final int hash = Arrays.hashCode(id) * 0x9E3779B9;
+
+		return hash ^ (hash >>> 16);
+	}
+
+}
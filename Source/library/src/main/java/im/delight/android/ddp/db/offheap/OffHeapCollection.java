@@ -0,0 +1,656 @@
+package im.delight.android.ddp.db.offheap;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.ChangeListener;
+import im.delight.android.ddp.db.Collection;
+import im.delight.android.ddp.db.Cursor;
+import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.DocumentVisitor;
+import im.delight.android.ddp.db.Grouping;
+import im.delight.android.ddp.db.LiveQuery;
+import im.delight.android.ddp.db.Query;
+import im.delight.android.ddp.db.memory.DocumentSource;
+import im.delight.android.ddp.db.memory.InMemoryDatabase;
+import im.delight.android.ddp.db.memory.InMemoryQuery;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Collection whose documents are stored as serialized records in direct buffers outside of the Java heap
+ *
+ * New records are appended to the last buffer (slab), while records that have been replaced or removed are only marked as dead
+ *
+ * Once dead records make up half of all slabs, the live records are copied to new slabs
+ *
+ * Single documents are looked up by their ID without decoding any other documents, and their fields are only decoded when they are requested
+ *
+ * Queries check the records one after another and only decode the fields that they need
+ *
+ * Any number of threads may read from the collection while a single thread modifies it
+ */
+public final class OffHeapCollection implements Collection {
+
+	/** The name of the collection */
+	private final String mName;
+	/** The minimum size of newly allocated slabs */
+	private final int mSlabSize;
+	/** The slabs containing the records */
+	private List<ByteBuffer> mSlabs;
+	/** The number of bytes used in each slab */
+	private int[] mSlabLengths;
+	/** The locations of the records by the IDs of their documents */
+	private LocationTable mLocations;
+	/** The number of bytes used in all slabs */
+	private long mUsedBytes;
+	/** The number of bytes used by dead records */
+	private long mGarbageBytes;
+	/** The number of modifications so far */
+	private long mVersion;
+	/** The lock that allows concurrent readers while a single writer modifies the collection */
+	private final ReentrantReadWriteLock mLock;
+
+	/**
+	 * Creates a new collection that is stored off-heap
+	 *
+	 * @param name the name of the collection to create
+	 * @param slabSize the minimum size of the buffers that are allocated for records
+	 */
+	OffHeapCollection(final String name, final int slabSize) {
+		mName = name;
+		mSlabSize = slabSize;
+		mSlabs = new ArrayList<ByteBuffer>();
+		mSlabLengths = new int[4];
+		mLocations = new LocationTable(this);
+		mLock = new ReentrantReadWriteLock();
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+
+	@Override
+	public Document getDocument(final String id) {
+		final byte[] idBytes = id.getBytes(RecordFormat.UTF_8);
+		mLock.readLock().lock();
+
+		try {
+			final long location = mLocations.get(idBytes, LocationTable.hash(idBytes));
+
+			if (location == LocationTable.NONE) {
+				return null;
+			}
+
+			return new OffHeapDocument(getSlab(location), getOffset(location));
+		}
+		finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String[] getDocumentIds() {
+		mLock.readLock().lock();
+
+		try {
+			final List<OffHeapDocument> documents = getDocuments();
+			final String[] ids = new String[documents.size()];
+
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = documents.get(i).getId();
+			}
+
+			return ids;
+		}
+		finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int count() {
+		mLock.readLock().lock();
+
+		try {
+			return mLocations.size();
+		}
+		finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long getVersion() {
+		mLock.readLock().lock();
+
+		try {
+			return mVersion;
+		}
+		finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Query whereEqual(final String fieldName, final Object fieldValue) {
+		return scan().whereEqual(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereNotEqual(final String fieldName, final Object fieldValue) {
+		return scan().whereNotEqual(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereLessThan(final String fieldName, final double fieldValue) {
+		return scan().whereLessThan(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereLessThanOrEqual(final String fieldName, final double fieldValue) {
+		return scan().whereLessThanOrEqual(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereGreaterThan(final String fieldName, final double fieldValue) {
+		return scan().whereGreaterThan(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereGreaterThanOrEqual(final String fieldName, final double fieldValue) {
+		return scan().whereGreaterThanOrEqual(fieldName, fieldValue);
+	}
+
+	@Override
+	public Query whereNull(final String fieldName) {
+		return scan().whereNull(fieldName);
+	}
+
+	@Override
+	public Query whereNotNull(final String fieldName) {
+		return scan().whereNotNull(fieldName);
+	}
+
+	@Override
+	public Query whereIn(final String fieldName, final Object[] fieldValues) {
+		return scan().whereIn(fieldName, fieldValues);
+	}
+
+	@Override
+	public Query whereNotIn(final String fieldName, final Object[] fieldValues) {
+		return scan().whereNotIn(fieldName, fieldValues);
+	}
+
+	@Override
+	public Query whereText(final String fieldName, final String terms) {
+		return scan().whereText(fieldName, terms);
+	}
+
+	@Override
+	public Query wherePrefix(final String fieldName, final String prefix) {
+		return scan().wherePrefix(fieldName, prefix);
+	}
+
+	@Override
+	public Query whereRegex(final String fieldName, final String regex) {
+		return scan().whereRegex(fieldName, regex);
+	}
+
+	@Override
+	public Query whereWithinBox(final String latitudeFieldName, final String longitudeFieldName, final double minLatitude, final double minLongitude, final double maxLatitude, final double maxLongitude) {
+		return scan().whereWithinBox(latitudeFieldName, longitudeFieldName, minLatitude, minLongitude, maxLatitude, maxLongitude);
+	}
+
+	@Override
+	public Query whereNear(final String latitudeFieldName, final String longitudeFieldName, final double latitude, final double longitude, final int maxResults) {
+		return scan().whereNear(latitudeFieldName, longitudeFieldName, latitude, longitude, maxResults);
+	}
+
+	@Override
+	public Query orderBy(final String fieldName, final int direction) {
+		return scan().orderBy(fieldName, direction);
+	}
+
+	@Override
+	public Query fields(final String... fieldNames) {
+		return scan().fields(fieldNames);
+	}
+
+	@Override
+	public Document[] find() {
+		return scan().find();
+	}
+
+	@Override
+	public Document[] find(final int limit) {
+		return scan().find(limit);
+	}
+
+	@Override
+	public Document[] find(final int limit, final int offset) {
+		return scan().find(limit, offset);
+	}
+
+	@Override
+	public Document findOne() {
+		mLock.readLock().lock();
+
+		try {
+			for (int i = 0; i < mSlabs.size(); i++) {
+				final ByteBuffer slab = mSlabs.get(i);
+
+				for (int offset = 0; offset < mSlabLengths[i]; offset += slab.getInt(offset)) {
+					if (slab.get(offset + RecordFormat.STATE_OFFSET) == RecordFormat.STATE_LIVE) {
+						return new OffHeapDocument(slab, offset);
+					}
+				}
+			}
+
+			return null;
+		}
+		finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void forEach(final DocumentVisitor visitor) {
+		scan().forEach(visitor);
+	}
+
+	@Override
+	public Cursor cursor() {
+		return scan().cursor();
+	}
+
+	@Override
+	public double sum(final String fieldName) {
+		return scan().sum(fieldName);
+	}
+
+	@Override
+	public double min(final String fieldName) {
+		return scan().min(fieldName);
+	}
+
+	@Override
+	public double max(final String fieldName) {
+		return scan().max(fieldName);
+	}
+
+	@Override
+	public Grouping groupBy(final String fieldName) {
+		return scan().groupBy(fieldName);
+	}
+
+	/**
+	 * Live queries are not supported for collections that are stored off-heap
+	 *
+	 * @param listener the listener that would be notified
+	 * @return never returns
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public LiveQuery observe(final ChangeListener listener) {
+		throw new UnsupportedOperationException("Live queries are not supported by collections stored off-heap");
+	}
+
+	/**
+	 * Adds a new document to the collection or replaces the existing document with the same ID
+	 *
+	 * @param id the ID of the document
+	 * @param fields the fields of the document
+	 */
+	protected void putDocument(final String id, final Fields fields) {
+		final byte[] record = RecordFormat.encode(id, fields);
+		mLock.writeLock().lock();
+
+		try {
+			mVersion++;
+			putRecord(record, mVersion);
+			compactIfNecessary();
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Updates the fields of an existing document
+	 *
+	 * @param id the ID of the document
+	 * @param updatedValues the fields that have been added or modified
+	 * @param removedValues the names of the fields that have been removed
+	 * @return whether the document has been found
+	 */
+	protected boolean updateDocument(final String id, final Fields updatedValues, final String[] removedValues) {
+		final byte[] idBytes = id.getBytes(RecordFormat.UTF_8);
+		mLock.writeLock().lock();
+
+		try {
+			final long location = mLocations.get(idBytes, LocationTable.hash(idBytes));
+
+			if (location == LocationTable.NONE) {
+				return false;
+			}
+
+			final Fields fields = RecordFormat.decodeFields(getSlab(location), getOffset(location));
+
+			if (updatedValues != null) {
+				fields.putAll(updatedValues);
+			}
+
+			if (removedValues != null) {
+				for (String removedField : removedValues) {
+					fields.remove(removedField);
+				}
+			}
+
+			mVersion++;
+			putRecord(RecordFormat.encode(id, fields), mVersion);
+			compactIfNecessary();
+
+			return true;
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the document with the specified ID from the collection
+	 *
+	 * @param id the ID of the document
+	 */
+	protected void removeDocument(final String id) {
+		final byte[] idBytes = id.getBytes(RecordFormat.UTF_8);
+		mLock.writeLock().lock();
+
+		try {
+			final long location = mLocations.remove(idBytes, LocationTable.hash(idBytes));
+
+			if (location != LocationTable.NONE) {
+				mVersion++;
+				markDead(location);
+				compactIfNecessary();
+			}
+		}
+		finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds all documents of this collection to the given database in memory
+	 *
+	 * @param database the database to add the documents to
+	 */
+	void loadInto(final InMemoryDatabase database) {
+		mLock.readLock().lock();
+
+		try {
+			for (int i = 0; i < mSlabs.size(); i++) {
+				final ByteBuffer slab = mSlabs.get(i);
+
+				for (int offset = 0; offset < mSlabLengths[i]; offset += slab.getInt(offset)) {
+					if (slab.get(offset + RecordFormat.STATE_OFFSET) == RecordFormat.STATE_LIVE) {
+						database.putDocument(mName, RecordFormat.getId(slab, offset), RecordFormat.decodeFields(slab, offset), slab.getLong(offset + RecordFormat.VERSION_OFFSET));
+					}
+				}
+			}
+		}
+		finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns whether the record at the given location belongs to the document with the specified ID
+	 *
+	 * @param location the location of the record
+	 * @param id the ID as UTF-8
+	 * @return whether the IDs are equal
+	 */
+	boolean hasId(final long location, final byte[] id) {
+		final ByteBuffer slab = getSlab(location);
+		final int offset = getOffset(location);
+
+		return slab.getInt(offset + RecordFormat.ID_OFFSET) == id.length && RecordFormat.equalBytes(slab, offset + RecordFormat.ID_OFFSET + 4, id);
+	}
+
+	/**
+	 * Creates a query that checks the records of this collection one after another
+	 *
+	 * @return the new query
+	 */
+	private Query scan() {
+		return InMemoryQuery.scan(mName, new Records());
+	}
+
+	/**
+	 * Returns views of all live documents in the order that they have been written in
+	 *
+	 * @return the documents
+	 */
+	private List<OffHeapDocument> getDocuments() {
+		final List<OffHeapDocument> documents = new ArrayList<OffHeapDocument>(mLocations.size());
+
+		for (int i = 0; i < mSlabs.size(); i++) {
+			final ByteBuffer slab = mSlabs.get(i);
+
+			for (int offset = 0; offset < mSlabLengths[i]; offset += slab.getInt(offset)) {
+				if (slab.get(offset + RecordFormat.STATE_OFFSET) == RecordFormat.STATE_LIVE) {
+					documents.add(new OffHeapDocument(slab, offset));
+				}
+			}
+		}
+
+		return documents;
+	}
+
+	/**
+	 * Appends a record and points the ID of its document to it
+	 *
+	 * @param record the record
+	 * @param version the version of the document
+	 */
+	private void putRecord(final byte[] record, final long version) {
+		final long location = allocate(record.length);
+		final ByteBuffer target = getSlab(location).duplicate();
+		target.position(getOffset(location));
+		target.put(record);
+		target.putLong(getOffset(location) + RecordFormat.VERSION_OFFSET, version);
+
+		final byte[] idBytes = Arrays.copyOfRange(record, RecordFormat.ID_OFFSET + 4, RecordFormat.ID_OFFSET + 4 + target.getInt(getOffset(location) + RecordFormat.ID_OFFSET));
+		final long previous = mLocations.put(idBytes, LocationTable.hash(idBytes), location);
+
+		if (previous != LocationTable.NONE) {
+			markDead(previous);
+		}
+	}
+
+	/**
+	 * Reserves space for a record at the end of the last slab or in a new slab
+	 *
+	 * @param length the length of the record
+	 * @return the location of the space
+	 */
+	private long allocate(final int length) {
+		int index = mSlabs.size() - 1;
+
+		if (index < 0 || mSlabLengths[index] + length > mSlabs.get(index).capacity()) {
+			mSlabs.add(ByteBuffer.allocateDirect(Math.max(mSlabSize, length)));
+			index++;
+
+			if (index == mSlabLengths.length) {
+				mSlabLengths = Arrays.copyOf(mSlabLengths, index * 2);
+			}
+		}
+
+		final int offset = mSlabLengths[index];
+		mSlabLengths[index] += length;
+		mUsedBytes += length;
+
+		return ((long) index << 32) | offset;
+	}
+
+	/**
+	 * Marks the record at the given location as dead
+	 *
+	 * Documents that have been read from the record before remain valid
+	 *
+	 * @param location the location of the record
+	 */
+	private void markDead(final long location) {
+		final ByteBuffer slab = getSlab(location);
+		final int offset = getOffset(location);
+
+		slab.put(offset + RecordFormat.STATE_OFFSET, RecordFormat.STATE_DEAD);
+		mGarbageBytes += slab.getInt(offset);
+	}
+
+	/** Copies all live records to new slabs if dead records make up at least half of the used space */
+	private void compactIfNecessary() {
+		if (mGarbageBytes < mSlabSize || mGarbageBytes * 2 < mUsedBytes) {
+			return;
+		}
+
+		final List<ByteBuffer> oldSlabs = mSlabs;
+		final int[] oldSlabLengths = mSlabLengths;
+
+		mSlabs = new ArrayList<ByteBuffer>();
+		mSlabLengths = new int[4];
+		mLocations = new LocationTable(this);
+		mUsedBytes = 0;
+		mGarbageBytes = 0;
+
+		// the old slabs are not modified anymore, so documents that have been read from them remain valid
+		for (int i = 0; i < oldSlabs.size(); i++) {
+			final ByteBuffer slab = oldSlabs.get(i).duplicate();
+
+			for (int offset = 0; offset < oldSlabLengths[i]; offset += slab.getInt(offset)) {
+				if (slab.get(offset + RecordFormat.STATE_OFFSET) == RecordFormat.STATE_LIVE) {
+					final byte[] record = new byte[slab.getInt(offset)];
+					slab.position(offset);
+					slab.get(record);
+
+					putRecord(record, slab.getLong(offset + RecordFormat.VERSION_OFFSET));
+				}
+			}
+		}
+	}
+
+	private ByteBuffer getSlab(final long location) {
+		return mSlabs.get((int) (location >>> 32));
+	}
+
+	private static int getOffset(final long location) {
+		return (int) location;
+	}
+
+	@Override
+	public String toString() {
+		return "OffHeapCollection("+mName+", "+count()+" documents)";
+	}
+
+	/** The live records of the collection as documents for queries */
+	private final class Records implements DocumentSource {
+
+		@Override
+		public int size() {
+			return count();
+		}
+
+		@Override
+		public Lock getReadLock() {
+			return mLock.readLock();
+		}
+
+		@Override
+		public Iterator<Document> iterator() {
+			return new RecordIterator(mSlabs, mSlabLengths.clone());
+		}
+
+	}
+
+	/** Iterator over the live records in the slabs, in the order that they have been written in */
+	private static final class RecordIterator implements Iterator<Document> {
+
+		/** The slabs, which are not modified except for marking records as dead */
+		private final List<ByteBuffer> mSlabs;
+		/** The number of bytes used in each slab when the iterator has been created */
+		private final int[] mSlabLengths;
+		private int mSlabIndex;
+		/** The position of the next record to check in the current slab */
+		private int mOffset;
+		/** The next live record or `null` if it has not been found yet */
+		private OffHeapDocument mNext;
+
+		public RecordIterator(final List<ByteBuffer> slabs, final int[] slabLengths) {
+			mSlabs = slabs;
+			mSlabLengths = slabLengths;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (mNext == null && mSlabIndex < mSlabs.size()) {
+				final ByteBuffer slab = mSlabs.get(mSlabIndex);
+
+				if (mOffset >= mSlabLengths[mSlabIndex]) {
+					mSlabIndex++;
+					mOffset = 0;
+				}
+				else {
+					if (slab.get(mOffset + RecordFormat.STATE_OFFSET) == RecordFormat.STATE_LIVE) {
+						mNext = new OffHeapDocument(slab, mOffset);
+					}
+
+					mOffset += slab.getInt(mOffset);
+				}
+			}
+
+			return mNext != null;
+		}
+
+		@Override
+		public Document next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			final Document document = mNext;
+			mNext = null;
+
+			return document;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
@@ -0,0 +1,169 @@
+package im.delight.android.ddp.db.offheap;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.Meteor;
+import im.delight.android.ddp.db.Collection;
+import im.delight.android.ddp.db.Database;
+import im.delight.android.ddp.db.memory.InMemoryDatabase;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Database whose documents are stored in direct buffers outside of the Java heap
+ *
+ * This keeps the number of objects on the heap low for large collections, which shortens pauses for garbage collection
+ *
+ * The database may be read from any number of threads while a single thread (usually the one receiving data from the server) modifies it
+ */
+public final class OffHeapDatabase implements Database {
+
+	private static final String TAG = "OffHeapDatabase";
+	/** The default minimum size of the buffers that are allocated for records */
+	private static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+	/** The collections contained in the database */
+	private final ConcurrentHashMap<String, OffHeapCollection> mCollections;
+	/** The minimum size of the buffers that are allocated for records */
+	private final int mSlabSize;
+	/** The lock that prevents snapshots from being taken while a change is applied to a collection */
+	private final Object mSnapshotLock;
+
+	/** Creates a new database that is stored off-heap */
+	public OffHeapDatabase() {
+		this(DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * Creates a new database that is stored off-heap
+	 *
+	 * @param slabSize the minimum size in bytes of the buffers that are allocated for records
+	 */
+	public OffHeapDatabase(final int slabSize) {
+		mCollections = new ConcurrentHashMap<String, OffHeapCollection>();
+		mSlabSize = slabSize;
+		mSnapshotLock = new Object();
+	}
+
+	@Override
+	public Collection getCollection(final String name) {
+		final OffHeapCollection collection = mCollections.get(name);
+
+		if (collection != null) {
+			return collection;
+		}
+		else {
+			return new OffHeapCollection(name, mSlabSize);
+		}
+	}
+
+	@Override
+	public String[] getCollectionNames() {
+		return mCollections.keySet().toArray(new String[mCollections.size()]);
+	}
+
+	@Override
+	public int count() {
+		return mCollections.size();
+	}
+
+	/**
+	 * Returns a read-only view of the database as it is at this point in time
+	 *
+	 * All documents are decoded into memory for the view
+	 *
+	 * @return the view of the current state
+	 */
+	@Override
+	public Database snapshot() {
+		final InMemoryDatabase database = new InMemoryDatabase();
+
+		synchronized (mSnapshotLock) {
+			for (OffHeapCollection collection : mCollections.values()) {
+				collection.loadInto(database);
+			}
+		}
+
+		return database.snapshot();
+	}
+
+	@Override
+	public void onDataAdded(final String collectionName, final String documentId, final Fields newValues) {
+		synchronized (mSnapshotLock) {
+			final OffHeapCollection collection = getOrCreateCollection(collectionName);
+
+			if (newValues != null) {
+				collection.putDocument(documentId, newValues);
+			}
+		}
+	}
+
+	@Override
+	public void onDataChanged(final String collectionName, final String documentId, final Fields updatedValues, final String[] removedValues) {
+		synchronized (mSnapshotLock) {
+			final OffHeapCollection collection = mCollections.get(collectionName);
+
+			if (collection == null || !collection.updateDocument(documentId, updatedValues, removedValues)) {
+				Meteor.log(TAG);
+				Meteor.log("  Cannot find document `"+documentId+"` to update in collection `"+collectionName+"`");
+
+				onDataAdded(collectionName, documentId, updatedValues);
+			}
+		}
+	}
+
+	@Override
+	public void onDataRemoved(final String collectionName, final String documentId) {
+		synchronized (mSnapshotLock) {
+			final OffHeapCollection collection = mCollections.get(collectionName);
+
+			if (collection != null) {
+				collection.removeDocument(documentId);
+			}
+			else {
+				Meteor.log(TAG);
+				Meteor.log("  Cannot find document `"+documentId+"` to delete in collection `"+collectionName+"`");
+			}
+		}
+	}
+
+	/**
+	 * Returns the collection with the specified name and creates it first if necessary
+	 *
+	 * @param name the name of the collection
+	 * @return the collection (never `null`)
+	 */
+	private OffHeapCollection getOrCreateCollection(final String name) {
+		OffHeapCollection collection = mCollections.get(name);
+
+		if (collection == null) {
+			final OffHeapCollection newCollection = new OffHeapCollection(name, mSlabSize);
+			collection = mCollections.putIfAbsent(name, newCollection);
+
+			if (collection == null) {
+				collection = newCollection;
+			}
+		}
+
+		return collection;
+	}
+
+	@Override
+	public String toString() {
+		return mCollections.toString();
+	}
+
+}
@@ -0,0 +1,173 @@
+package im.delight.android.ddp.db.offheap;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.memory.InMemoryQuery;
+import java.nio.ByteBuffer;
+
+/**
+ * Document that is read from a record in an off-heap buffer
+ *
+ * Fields are only decoded when they are requested, and records are never overwritten, so the document does not change when the collection is modified
+ */
+final class OffHeapDocument implements Document {
+
+	/** The buffer containing the record (must only be read with absolute methods) */
+	private final ByteBuffer mSlab;
+	/** The position of the record in the buffer */
+	private final int mOffset;
+	/** The ID of the document or `null` if it has not been decoded yet */
+	private String mId;
+
+	/**
+	 * Creates a new view of the document in the specified record
+	 *
+	 * @param slab the buffer containing the record
+	 * @param offset the position of the record in the buffer
+	 */
+	OffHeapDocument(final ByteBuffer slab, final int offset) {
+		mSlab = slab;
+		mOffset = offset;
+	}
+
+	@Override
+	public String getId() {
+		// queries often check many documents without ever needing their IDs
+		if (mId == null) {
+			mId = RecordFormat.getId(mSlab, mOffset);
+		}
+
+		return mId;
+	}
+
+	@Override
+	public long getVersion() {
+		return mSlab.getLong(mOffset + RecordFormat.VERSION_OFFSET);
+	}
+
+	@Override
+	public Object getField(final String name) {
+		final int position = findField(name);
+
+		if (position < 0) {
+			return null;
+		}
+
+		final ByteBuffer buffer = mSlab.duplicate();
+		buffer.position(position + 5);
+
+		return RecordFormat.readValue(buffer, mSlab.get(position));
+	}
+
+	@Override
+	public double getDouble(final String name) {
+		final int position = findField(name);
+
+		if (position < 0) {
+			return 0;
+		}
+
+		// numbers are read directly without boxing them first
+		switch (mSlab.get(position)) {
+			case RecordFormat.TYPE_INTEGER:
+				return mSlab.getInt(position + 5);
+			case RecordFormat.TYPE_LONG:
+				return mSlab.getLong(position + 5);
+			case RecordFormat.TYPE_DOUBLE:
+				return mSlab.getDouble(position + 5);
+			default:
+				return InMemoryQuery.coerceNumber(getField(name));
+		}
+	}
+
+	@Override
+	public long getLong(final String name) {
+		final int position = findField(name);
+
+		if (position < 0) {
+			return 0;
+		}
+
+		switch (mSlab.get(position)) {
+			case RecordFormat.TYPE_INTEGER:
+				return mSlab.getInt(position + 5);
+			case RecordFormat.TYPE_LONG:
+				return mSlab.getLong(position + 5);
+			case RecordFormat.TYPE_DOUBLE:
+				return (long) mSlab.getDouble(position + 5);
+			default:
+				return (long) InMemoryQuery.coerceNumber(getField(name));
+		}
+	}
+
+	@Override
+	public String[] getFieldNames() {
+		int position = RecordFormat.getFieldsOffset(mSlab, mOffset);
+		final String[] names = new String[mSlab.getInt(position)];
+		position += 4;
+
+		for (int i = 0; i < names.length; i++) {
+			final int nameLength = mSlab.getInt(position);
+			names[i] = RecordFormat.readString(mSlab, position + 4, nameLength);
+			position += 4 + nameLength + 1;
+			position += 4 + mSlab.getInt(position);
+		}
+
+		return names;
+	}
+
+	@Override
+	public int count() {
+		return mSlab.getInt(RecordFormat.getFieldsOffset(mSlab, mOffset));
+	}
+
+	/**
+	 * Returns the position of the type of the field with the specified name
+	 *
+	 * The type is followed by the length of the value and the value itself
+	 *
+	 * @param name the name of the field
+	 * @return the position or `-1` if the document does not have the field
+	 */
+	private int findField(final String name) {
+		final byte[] nameBytes = name.getBytes(RecordFormat.UTF_8);
+		int position = RecordFormat.getFieldsOffset(mSlab, mOffset);
+		final int numFields = mSlab.getInt(position);
+		position += 4;
+
+		for (int i = 0; i < numFields; i++) {
+			final int nameLength = mSlab.getInt(position);
+			position += 4;
+
+			if (nameLength == nameBytes.length && RecordFormat.equalBytes(mSlab, position, nameBytes)) {
+				return position + nameLength;
+			}
+
+			position += nameLength + 1;
+			position += 4 + mSlab.getInt(position);
+		}
+
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return RecordFormat.decodeFields(mSlab, mOffset).toString();
+	}
+
+}
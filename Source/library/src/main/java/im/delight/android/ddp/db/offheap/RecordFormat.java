@@ -0,0 +1,358 @@
+package im.delight.android.ddp.db.offheap;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary format of the records that documents are stored in
+ *
+ * A record starts with its total length, a state byte, the version and the ID of the document, followed by the number of fields and the fields themselves
+ *
+ * Every field consists of its name, the type of its value and the length of its value, so that fields can be skipped without decoding them
+ *
+ * Nested lists and maps are stored without lengths and are decoded completely when their field is read
+ */
+final class RecordFormat {
+
+	/** The position of the state byte within a record */
+	static final int STATE_OFFSET = 4;
+	/** The position of the version of the document within a record */
+	static final int VERSION_OFFSET = 5;
+	/** The position of the length of the document's ID within a record */
+	static final int ID_OFFSET = 13;
+	static final byte STATE_DEAD = 0;
+	static final byte STATE_LIVE = 1;
+	static final byte TYPE_NULL = 0;
+	static final byte TYPE_FALSE = 1;
+	static final byte TYPE_TRUE = 2;
+	static final byte TYPE_INTEGER = 3;
+	static final byte TYPE_LONG = 4;
+	static final byte TYPE_DOUBLE = 5;
+	static final byte TYPE_STRING = 6;
+	static final byte TYPE_LIST = 7;
+	static final byte TYPE_MAP = 8;
+	static final byte TYPE_BIG_INTEGER = 9;
+	static final byte TYPE_BIG_DECIMAL = 10;
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private RecordFormat() { }
+
+	/**
+	 * Encodes a document as a record
+	 *
+	 * @param id the ID of the document
+	 * @param fields the fields of the document
+	 * @return the record
+	 */
+	static byte[] encode(final String id, final Map<String, Object> fields) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + fields.size() * 16);
+		final DataOutputStream out = new DataOutputStream(bytes);
+
+		try {
+			// the total length is filled in below
+			out.writeInt(0);
+			out.writeByte(STATE_LIVE);
+			// the version is filled in when the record is stored
+			out.writeLong(0);
+			writeString(out, id);
+			out.writeInt(fields.size());
+
+			final ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+			final DataOutputStream valueOut = new DataOutputStream(valueBytes);
+
+			for (Map.Entry<String, Object> field : fields.entrySet()) {
+				final byte type = getType(field.getValue());
+				valueBytes.reset();
+				writeValue(valueOut, type, field.getValue());
+
+				writeString(out, field.getKey());
+				out.writeByte(type);
+				out.writeInt(valueBytes.size());
+				valueBytes.writeTo(out);
+			}
+		}
+		catch (IOException e) {
+			// writing to memory does not fail
+			throw new IllegalStateException(e);
+		}
+
+		final byte[] record = bytes.toByteArray();
+		ByteBuffer.wrap(record).putInt(0, record.length);
+
+		return record;
+	}
+
+	/**
+	 * Decodes all fields of the record at the given position
+	 *
+	 * @param slab the buffer containing the record
+	 * @param offset the position of the record
+	 * @return the fields
+	 */
+	static Fields decodeFields(final ByteBuffer slab, final int offset) {
+		final ByteBuffer buffer = slab.duplicate();
+		buffer.position(getFieldsOffset(slab, offset));
+
+		final Fields fields = new Fields();
+		final int numFields = buffer.getInt();
+
+		for (int i = 0; i < numFields; i++) {
+			final String name = readString(buffer);
+			final byte type = buffer.get();
+			// skip the length of the value
+			buffer.getInt();
+
+			fields.put(name, readValue(buffer, type));
+		}
+
+		return fields;
+	}
+
+	/**
+	 * Returns the ID of the document in the record at the given position
+	 *
+	 * @param slab the buffer containing the record
+	 * @param offset the position of the record
+	 * @return the ID
+	 */
+	static String getId(final ByteBuffer slab, final int offset) {
+		return readString(slab, offset + ID_OFFSET + 4, slab.getInt(offset + ID_OFFSET));
+	}
+
+	/**
+	 * Returns the position of the number of fields in the record at the given position
+	 *
+	 * @param slab the buffer containing the record
+	 * @param offset the position of the record
+	 * @return the position of the number of fields
+	 */
+	static int getFieldsOffset(final ByteBuffer slab, final int offset) {
+		return offset + ID_OFFSET + 4 + slab.getInt(offset + ID_OFFSET);
+	}
+
+	/**
+	 * Returns whether the bytes at the given position are equal to the specified bytes
+	 *
+	 * @param slab the buffer to compare
+	 * @param position the position in the buffer
+	 * @param bytes the bytes to compare with
+	 * @return whether the bytes are equal
+	 */
+	static boolean equalBytes(final ByteBuffer slab, final int position, final byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (slab.get(position + i) != bytes[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads a string with the given length in bytes from the specified position
+	 *
+	 * @param slab the buffer to read from
+	 * @param position the position of the first byte
+	 * @param length the number of bytes
+	 * @return the string
+	 */
+	static String readString(final ByteBuffer slab, final int position, final int length) {
+		final byte[] bytes = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			bytes[i] = slab.get(position + i);
+		}
+
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * Reads a value of the given type from the current position of the buffer
+	 *
+	 * @param buffer the buffer to read from
+	 * @param type the type of the value
+	 * @return the value
+	 */
+	static Object readValue(final ByteBuffer buffer, final byte type) {
+		switch (type) {
+			case TYPE_NULL:
+				return null;
+			case TYPE_FALSE:
+				return Boolean.FALSE;
+			case TYPE_TRUE:
+				return Boolean.TRUE;
+			case TYPE_INTEGER:
+				return buffer.getInt();
+			case TYPE_LONG:
+				return buffer.getLong();
+			case TYPE_DOUBLE:
+				return buffer.getDouble();
+			case TYPE_STRING:
+				return readString(buffer);
+			case TYPE_BIG_INTEGER:
+				return new BigInteger(readString(buffer));
+			case TYPE_BIG_DECIMAL:
+				return new BigDecimal(readString(buffer));
+			case TYPE_LIST:
+				final int numElements = buffer.getInt();
+				final List<Object> list = new ArrayList<Object>(numElements);
+
+				for (int i = 0; i < numElements; i++) {
+					list.add(readValue(buffer, buffer.get()));
+				}
+
+				return list;
+			case TYPE_MAP:
+				final int numEntries = buffer.getInt();
+				final Map<String, Object> map = new LinkedHashMap<String, Object>(Math.max(4, numEntries * 4 / 3 + 1));
+
+				for (int i = 0; i < numEntries; i++) {
+					final String key = readString(buffer);
+					map.put(key, readValue(buffer, buffer.get()));
+				}
+
+				return map;
+			default:
+				throw new IllegalStateException("Unknown value type `"+type+"` in record");
+		}
+	}
+
+	/**
+	 * Returns the type that the given value is stored as
+	 *
+	 * @param value the value
+	 * @return the type
+	 */
+	private static byte getType(final Object value) {
+		if (value == null) {
+			return TYPE_NULL;
+		}
+		else if (value instanceof Boolean) {
+			return (Boolean) value ? TYPE_TRUE : TYPE_FALSE;
+		}
+		else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return TYPE_INTEGER;
+		}
+		else if (value instanceof Long) {
+			return TYPE_LONG;
+		}
+		else if (value instanceof Double || value instanceof Float) {
+			return TYPE_DOUBLE;
+		}
+		else if (value instanceof String) {
+			return TYPE_STRING;
+		}
+		else if (value instanceof BigInteger) {
+			return TYPE_BIG_INTEGER;
+		}
+		else if (value instanceof BigDecimal) {
+			return TYPE_BIG_DECIMAL;
+		}
+		else if (value instanceof List) {
+			return TYPE_LIST;
+		}
+		else if (value instanceof Map) {
+			return TYPE_MAP;
+		}
+		else {
+			throw new IllegalArgumentException("Values of type `"+value.getClass().getName()+"` cannot be stored off-heap");
+		}
+	}
+
+	/**
+	 * Writes a value of the given type without the type itself
+	 *
+	 * @param out the stream to write to
+	 * @param type the type of the value
+	 * @param value the value to write
+	 * @throws IOException if the value could not be written
+	 */
+	@SuppressWarnings("unchecked")
+	private static void writeValue(final DataOutputStream out, final byte type, final Object value) throws IOException {
+		switch (type) {
+			case TYPE_INTEGER:
+				out.writeInt(((Number) value).intValue());
+				break;
+			case TYPE_LONG:
+				out.writeLong((Long) value);
+				break;
+			case TYPE_DOUBLE:
+				out.writeDouble(((Number) value).doubleValue());
+				break;
+			case TYPE_STRING:
+			case TYPE_BIG_INTEGER:
+			case TYPE_BIG_DECIMAL:
+				writeString(out, value.toString());
+				break;
+			case TYPE_LIST:
+				final List<Object> list = (List<Object>) value;
+				out.writeInt(list.size());
+
+				for (Object element : list) {
+					final byte elementType = getType(element);
+
+					out.writeByte(elementType);
+					writeValue(out, elementType, element);
+				}
+
+				break;
+			case TYPE_MAP:
+				final Map<String, Object> map = (Map<String, Object>) value;
+				out.writeInt(map.size());
+
+				for (Map.Entry<String, Object> entry : map.entrySet()) {
+					final byte entryType = getType(entry.getValue());
+
+					writeString(out, entry.getKey());
+					out.writeByte(entryType);
+					writeValue(out, entryType, entry.getValue());
+				}
+
+				break;
+			default:
+				// the type alone describes the value
+				break;
+		}
+	}
+
+	private static void writeString(final DataOutputStream out, final String value) throws IOException {
+		final byte[] bytes = value.getBytes(UTF_8);
+
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(final ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+
+		return new String(bytes, UTF_8);
+	}
+
+}
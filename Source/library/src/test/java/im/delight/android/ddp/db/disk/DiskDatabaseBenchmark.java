@@ -0,0 +1,185 @@
+package im.delight.android.ddp.db.disk;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.Collection;
+import im.delight.android.ddp.db.DataStore;
+import im.delight.android.ddp.db.Database;
+import im.delight.android.ddp.db.memory.InMemoryDatabase;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Benchmark that compares a disk database with an in-memory database for ingest and point lookups
+ *
+ * Lookups are measured both for a small set of documents that fits into the cache of the disk database and for documents spread over the whole collection
+ *
+ * Run with `java -cp <classes> im.delight.android.ddp.db.disk.DiskDatabaseBenchmark [documents] [directory]`
+ */
+public final class DiskDatabaseBenchmark {
+
+	private static final int LOOKUPS = 100000;
+	/** The number of distinct documents that are looked up repeatedly, which is below the default cache size */
+	private static final int HOT_DOCUMENTS = 200;
+	private static final int GC_ROUNDS = 5;
+
+	private DiskDatabaseBenchmark() { }
+
+	public static void main(final String[] args) throws IOException, InterruptedException {
+		final int documentCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		final File directory = args.length > 1 ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"), "disk-database-benchmark");
+
+		long before = getUsedMemory();
+		final InMemoryDatabase memory = new InMemoryDatabase();
+		final long memoryIngest = ingest(memory, documentCount);
+		final long memoryHeap = getUsedMemory() - before;
+		print("memory", documentCount, memoryIngest, memoryHeap, memory);
+
+		if (memory.getCollection("items").count() != documentCount) {
+			throw new IllegalStateException("Documents are missing");
+		}
+
+		deleteDirectory(directory);
+		before = getUsedMemory();
+		final DiskDatabase disk = new DiskDatabase(directory);
+
+		try {
+			long start = System.nanoTime();
+			ingest(disk, documentCount);
+			disk.flush();
+			final long diskIngest = System.nanoTime() - start;
+			final long diskHeap = getUsedMemory() - before;
+			print("disk", documentCount, diskIngest, diskHeap, disk);
+
+			disk.close();
+			start = System.nanoTime();
+			final DiskDatabase reopened = new DiskDatabase(directory);
+			System.out.println("disk: reopened in "+(System.nanoTime() - start) / 1000000+" ms, files "+getDirectorySize(directory) / 1024+" KB");
+			reopened.close();
+		}
+		finally {
+			disk.close();
+			deleteDirectory(directory);
+		}
+	}
+
+	/**
+	 * Adds the specified number of documents with four fields each
+	 *
+	 * @param dataStore the database to add the documents to
+	 * @param documentCount the number of documents
+	 * @return the elapsed time in nanoseconds
+	 */
+	private static long ingest(final DataStore dataStore, final int documentCount) {
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < documentCount; i++) {
+			final Fields fields = new Fields();
+			fields.put("n", i);
+			fields.put("s", "val"+(i % 100));
+			fields.put("d", i * 0.5);
+			fields.put("name", "user name "+i);
+			dataStore.onDataAdded("items", "id"+i, fields);
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Looks up documents by ID and returns the average time per lookup
+	 *
+	 * @param database the database to read from
+	 * @param documentCount the number of documents in the collection
+	 * @param distinctDocuments the number of distinct documents to look up
+	 * @return the average time per lookup in nanoseconds
+	 */
+	private static long lookUp(final Database database, final int documentCount, final int distinctDocuments) {
+		final Collection collection = database.getCollection("items");
+		// spread the documents over the whole collection
+		final long step = documentCount / distinctDocuments;
+		long checksum = 0;
+
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < LOOKUPS; i++) {
+			final long position = (i * 7919L) % distinctDocuments * step;
+			checksum += collection.getDocument("id"+position).getLong("n");
+		}
+
+		final long elapsed = System.nanoTime() - start;
+
+		// use the result so that the lookups cannot be optimized away
+		if (checksum < 0) {
+			System.out.println("Invalid checksum");
+		}
+
+		return elapsed / LOOKUPS;
+	}
+
+	private static void print(final String name, final int documentCount, final long ingestTime, final long heap, final Database database) {
+		// the first round warms up the code
+		lookUp(database, documentCount, documentCount);
+		final long hot = lookUp(database, documentCount, HOT_DOCUMENTS);
+		final long spread = lookUp(database, documentCount, documentCount);
+
+		System.out.println(name+": ingest "+ingestTime / 1000000+" ms ("+documentCount * 1000000000L / ingestTime+" documents/s), heap "+heap / 1024+" KB, lookups of "+HOT_DOCUMENTS+" documents "+hot+" ns, lookups of all documents "+spread+" ns");
+	}
+
+	/**
+	 * Returns the number of bytes used on the heap after running the garbage collector a few times
+	 *
+	 * @return the used heap in bytes
+	 * @throws InterruptedException if the benchmark has been interrupted
+	 */
+	private static long getUsedMemory() throws InterruptedException {
+		final Runtime runtime = Runtime.getRuntime();
+
+		for (int i = 0; i < GC_ROUNDS; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long getDirectorySize(final File directory) {
+		long size = 0;
+		final File[] files = directory.listFiles();
+
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+
+		return size;
+	}
+
+	private static void deleteDirectory(final File directory) {
+		final File[] files = directory.listFiles();
+
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+
+		directory.delete();
+	}
+
+}
@@ -0,0 +1,145 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.ChangeListener;
+import im.delight.android.ddp.db.Document;
+import java.util.Arrays;
+
+/**
+ * Benchmark that replays the initial data of a subscription into an in-memory database with five indexes and a live query
+ *
+ * The same messages are replayed once between the start of a subscription and its `ready` message, which loads the documents in bulk, and once without any pending subscription, which updates the indexes and the live query for every document
+ *
+ * Run with `java -cp <classes> im.delight.android.ddp.db.memory.BulkLoadBenchmark [documents] [rounds]`
+ */
+public final class BulkLoadBenchmark {
+
+	private static final int GROUPS = 100;
+
+	private BulkLoadBenchmark() { }
+
+	public static void main(final String[] args) {
+		final int documentCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		final long[] bulkTimes = new long[rounds];
+		final long[] singleTimes = new long[rounds];
+
+		for (int round = 0; round < rounds; round++) {
+			// alternate the order so that neither mode always runs on a warmer JVM
+			if (round % 2 == 0) {
+				bulkTimes[round] = replay(documentCount, true);
+				singleTimes[round] = replay(documentCount, false);
+			}
+			else {
+				singleTimes[round] = replay(documentCount, false);
+				bulkTimes[round] = replay(documentCount, true);
+			}
+		}
+
+		System.out.println(documentCount+" documents with subscription: median "+getMedian(bulkTimes) / 1000000+" ms, min "+getMin(bulkTimes) / 1000000+" ms");
+		System.out.println(documentCount+" documents without subscription: median "+getMedian(singleTimes) / 1000000+" ms, min "+getMin(singleTimes) / 1000000+" ms");
+	}
+
+	/**
+	 * Adds the specified number of documents to a new database and returns the time until the documents can be queried
+	 *
+	 * @param documentCount the number of documents
+	 * @param subscription whether the documents are the initial data of a subscription
+	 * @return the elapsed time in nanoseconds
+	 */
+	private static long replay(final int documentCount, final boolean subscription) {
+		final InMemoryDatabase database = new InMemoryDatabase();
+		database.ensureIndex("items", "group");
+		database.ensureSortedIndex("items", "value");
+		database.ensureStringIndex("items", "name");
+		database.ensureTextIndex("items", "bio");
+		database.ensureGridIndex("items", "lat", "lng");
+
+		final int[] notifications = new int[1];
+		database.getCollection("items").whereEqual("group", 0).observe(new ChangeListener() {
+
+			@Override
+			public void onAdded(final Document document) {
+				notifications[0]++;
+			}
+
+			@Override
+			public void onChanged(final Document document) {
+				notifications[0]++;
+			}
+
+			@Override
+			public void onRemoved(final String documentId) {
+				notifications[0]++;
+			}
+
+		});
+
+		final long start = System.nanoTime();
+
+		if (subscription) {
+			database.onSubscriptionStarted("items");
+		}
+
+		for (int i = 0; i < documentCount; i++) {
+			final Fields fields = new Fields();
+			fields.put("group", i % GROUPS);
+			fields.put("value", (i * 7919L) % documentCount);
+			fields.put("name", "user"+i);
+			fields.put("bio", "member of group "+(i % GROUPS)+" since "+(2000 + i % 20));
+			fields.put("lat", (i % 180) - 90.0);
+			fields.put("lng", (i % 360) - 180.0);
+			database.onDataAdded("items", "id"+i, fields);
+		}
+
+		if (subscription) {
+			database.onSubscriptionFinished("items");
+		}
+
+		final long elapsed = System.nanoTime() - start;
+
+		// the results must not depend on the mode
+		final int expected = (documentCount + GROUPS - 1) / GROUPS;
+		final int count = database.getCollection("items").whereEqual("group", 0).count();
+		if (count != expected || notifications[0] != expected) {
+			throw new IllegalStateException("Found "+count+" documents and received "+notifications[0]+" notifications");
+		}
+
+		return elapsed;
+	}
+
+	private static long getMedian(final long[] times) {
+		final long[] sorted = times.clone();
+		Arrays.sort(sorted);
+
+		return sorted[sorted.length / 2];
+	}
+
+	private static long getMin(final long[] times) {
+		long min = Long.MAX_VALUE;
+
+		for (long time : times) {
+			min = Math.min(min, time);
+		}
+
+		return min;
+	}
+
+}
@@ -0,0 +1,194 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.Collection;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stress benchmark that measures the throughput of threads reading from an in-memory database while another thread keeps changing documents
+ *
+ * Each reader looks up random documents by ID and counts the collection, with one indexed query after every 100 lookups
+ *
+ * Besides the throughput, the latency of the lookups is recorded in buckets of powers of two, since readers that have to wait for the writer show up in the tail of the latencies
+ *
+ * Run with `java -cp <classes> im.delight.android.ddp.db.memory.ConcurrencyBenchmark [documents] [seconds]`
+ */
+public final class ConcurrencyBenchmark {
+
+	private static final int LOOKUPS_PER_QUERY = 100;
+	private static final int GROUPS = 1000;
+	private static final int WARM_UP_MILLIS = 1000;
+
+	private ConcurrencyBenchmark() { }
+
+	public static void main(final String[] args) throws InterruptedException {
+		final int documentCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		System.out.println("Available processors: "+Runtime.getRuntime().availableProcessors());
+
+		for (int readers : new int[] { 1, 4 }) {
+			run(documentCount, readers, false, seconds);
+			run(documentCount, readers, true, seconds);
+		}
+	}
+
+	/**
+	 * Runs the readers and optionally the writer for the specified time and prints their throughput
+	 *
+	 * @param documentCount the number of documents in the collection
+	 * @param readerCount the number of reading threads
+	 * @param ingest whether a thread changes documents at the same time
+	 * @param seconds the duration of the measurement
+	 * @throws InterruptedException if the benchmark has been interrupted
+	 */
+	private static void run(final int documentCount, final int readerCount, final boolean ingest, final int seconds) throws InterruptedException {
+		final InMemoryDatabase database = new InMemoryDatabase();
+		// every query must be executed
+		database.setQueryCacheSize(0);
+		database.ensureIndex("items", "group");
+
+		for (int i = 0; i < documentCount; i++) {
+			final Fields fields = new Fields();
+			fields.put("group", i % GROUPS);
+			fields.put("value", i);
+			database.onDataAdded("items", "id"+i, fields);
+		}
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicLong lookups = new AtomicLong();
+		final AtomicLong queries = new AtomicLong();
+		final AtomicLong writes = new AtomicLong();
+		// the number of lookups by the position of the highest bit of their latency in nanoseconds
+		final AtomicLongArray latencies = new AtomicLongArray(Long.SIZE);
+		final AtomicBoolean measuring = new AtomicBoolean();
+		final Thread[] threads = new Thread[readerCount + (ingest ? 1 : 0)];
+
+		for (int i = 0; i < readerCount; i++) {
+			final Random random = new Random(i);
+
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					final Collection collection = database.getCollection("items");
+					long checksum = 0;
+
+					while (!done.get()) {
+						for (int k = 0; k < LOOKUPS_PER_QUERY; k++) {
+							final String id = "id"+random.nextInt(documentCount);
+							final long start = System.nanoTime();
+
+							if (collection.getDocument(id) != null) {
+								checksum += collection.count();
+							}
+
+							if (measuring.get()) {
+								latencies.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(System.nanoTime() - start));
+							}
+						}
+
+						lookups.addAndGet(LOOKUPS_PER_QUERY);
+						checksum += collection.whereEqual("group", random.nextInt(GROUPS)).find().length;
+						queries.incrementAndGet();
+					}
+
+					// use the result so that the reads cannot be optimized away
+					if (checksum == 0) {
+						System.out.println("No documents have been found");
+					}
+				}
+
+			};
+		}
+
+		if (ingest) {
+			final Random random = new Random(-1);
+
+			threads[readerCount] = new Thread() {
+
+				@Override
+				public void run() {
+					while (!done.get()) {
+						final Fields fields = new Fields();
+						fields.put("value", random.nextInt());
+						database.onDataChanged("items", "id"+random.nextInt(documentCount), fields, null);
+						writes.incrementAndGet();
+					}
+				}
+
+			};
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		Thread.sleep(WARM_UP_MILLIS);
+		measuring.set(true);
+		final long startLookups = lookups.get();
+		final long startQueries = queries.get();
+		final long startWrites = writes.get();
+
+		Thread.sleep(seconds * 1000L);
+		final long endLookups = lookups.get();
+		final long endQueries = queries.get();
+		final long endWrites = writes.get();
+
+		done.set(true);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		System.out.println(readerCount+" readers"+(ingest ? " with ingest" : "")+": "+(endLookups - startLookups) / seconds+" lookups/s, "+(endQueries - startQueries) / seconds+" queries/s, "+(endWrites - startWrites) / seconds+" writes/s, lookup latency p99 < "+getPercentile(latencies, 0.99)+" ns, p99.9 < "+getPercentile(latencies, 0.999)+" ns, max < "+getPercentile(latencies, 1)+" ns");
+	}
+
+	/**
+	 * Returns the upper bound of the bucket that contains the specified percentile of the latencies
+	 *
+	 * @param latencies the number of measurements by the position of the highest bit of their latency
+	 * @param fraction the percentile as a fraction between `0` and `1`
+	 * @return the upper bound in nanoseconds
+	 */
+	private static long getPercentile(final AtomicLongArray latencies, final double fraction) {
+		long total = 0;
+
+		for (int i = 0; i < latencies.length(); i++) {
+			total += latencies.get(i);
+		}
+
+		final long target = (long) Math.ceil(total * fraction);
+		long count = 0;
+
+		for (int i = 0; i < latencies.length(); i++) {
+			count += latencies.get(i);
+
+			if (count >= target && latencies.get(i) > 0) {
+				return 1L << i;
+			}
+		}
+
+		return 0;
+	}
+
+}
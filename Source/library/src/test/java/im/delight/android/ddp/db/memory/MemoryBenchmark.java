@@ -0,0 +1,107 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+
+/**
+ * Benchmark that measures how much heap an in-memory database retains per document
+ *
+ * The documents are small and have five fields, which is where the overhead of the storage matters most
+ *
+ * In the second run, one field alternates between integers, longs, doubles and strings, so that documents of the same collection have different shapes
+ *
+ * Run with `java -cp <classes> im.delight.android.ddp.db.memory.MemoryBenchmark [documents]`
+ */
+public final class MemoryBenchmark {
+
+	private static final int GC_ROUNDS = 5;
+
+	private MemoryBenchmark() { }
+
+	public static void main(final String[] args) throws InterruptedException {
+		final int documentCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		run(documentCount, false);
+		run(documentCount, true);
+	}
+
+	/**
+	 * Fills a new database with the specified number of documents and prints the retained heap
+	 *
+	 * @param documentCount the number of documents
+	 * @param mixedTypes whether the type of one field changes from document to document
+	 * @throws InterruptedException if the benchmark has been interrupted
+	 */
+	private static void run(final int documentCount, final boolean mixedTypes) throws InterruptedException {
+		final long before = getUsedMemory();
+		final InMemoryDatabase database = new InMemoryDatabase();
+
+		for (int i = 0; i < documentCount; i++) {
+			final Fields fields = new Fields();
+			fields.put("name", "user"+i);
+			fields.put("age", i % 90);
+			fields.put("score", i * 0.5);
+			fields.put("active", i % 2 == 0);
+
+			if (!mixedTypes) {
+				fields.put("value", i);
+			}
+			else if (i % 4 == 0) {
+				fields.put("value", i);
+			}
+			else if (i % 4 == 1) {
+				fields.put("value", (long) i);
+			}
+			else if (i % 4 == 2) {
+				fields.put("value", (double) i);
+			}
+			else {
+				fields.put("value", "v"+i);
+			}
+
+			database.onDataAdded("people", "id"+i, fields);
+		}
+
+		final long used = getUsedMemory() - before;
+
+		System.out.println(documentCount+" documents"+(mixedTypes ? " with mixed types" : "")+": "+used / 1024+" KB retained, "+used / documentCount+" bytes per document");
+
+		// keep the database reachable until the measurement is done
+		if (database.getCollection("people").count() != documentCount) {
+			throw new IllegalStateException("Documents are missing");
+		}
+	}
+
+	/**
+	 * Returns the number of bytes used on the heap after running the garbage collector a few times
+	 *
+	 * @return the used heap in bytes
+	 * @throws InterruptedException if the benchmark has been interrupted
+	 */
+	private static long getUsedMemory() throws InterruptedException {
+		final Runtime runtime = Runtime.getRuntime();
+
+		for (int i = 0; i < GC_ROUNDS; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
@@ -0,0 +1,107 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Benchmark that measures how long it takes to save a snapshot of an in-memory database and to load it into an empty database again
+ *
+ * The documents have seven fields of all common types, including a nested map and list
+ *
+ * Run with `java -cp <classes> im.delight.android.ddp.db.memory.SnapshotBenchmark [documents] [rounds]`
+ */
+public final class SnapshotBenchmark {
+
+	private SnapshotBenchmark() { }
+
+	public static void main(final String[] args) throws IOException {
+		final int documentCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		final InMemoryDatabase database = new InMemoryDatabase();
+
+		for (int i = 0; i < documentCount; i++) {
+			database.onDataAdded("people", "id"+i, createFields(i));
+		}
+
+		final File file = File.createTempFile("snapshot", ".bin");
+		file.deleteOnExit();
+
+		final long[] saveTimes = new long[rounds];
+		final long[] loadTimes = new long[rounds];
+
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			database.saveSnapshot(file);
+			saveTimes[round] = System.nanoTime() - start;
+
+			final InMemoryDatabase loaded = new InMemoryDatabase();
+			start = System.nanoTime();
+			loaded.loadSnapshot(file);
+			loadTimes[round] = System.nanoTime() - start;
+
+			if (loaded.getCollection("people").count() != documentCount) {
+				throw new IllegalStateException("Snapshot contains "+loaded.getCollection("people").count()+" documents");
+			}
+		}
+
+		System.out.println(documentCount+" documents, "+file.length()+" bytes");
+		System.out.println("save: median "+getMedian(saveTimes) / 1000000+" ms, min "+getMin(saveTimes) / 1000000+" ms");
+		System.out.println("load: median "+getMedian(loadTimes) / 1000000+" ms, min "+getMin(loadTimes) / 1000000+" ms");
+	}
+
+	private static Fields createFields(final int i) {
+		final Map<String, Object> profile = new LinkedHashMap<String, Object>();
+		profile.put("city", "c"+(i % 100));
+		profile.put("tags", Arrays.<Object>asList("a", 1, null));
+
+		final Fields fields = new Fields();
+		fields.put("name", "user"+i);
+		fields.put("age", i % 90);
+		fields.put("score", i * 1.5);
+		fields.put("big", 1L << 40);
+		fields.put("ok", i % 2 == 0);
+		fields.put("profile", profile);
+		fields.put("n", null);
+
+		return fields;
+	}
+
+	private static long getMedian(final long[] times) {
+		final long[] sorted = times.clone();
+		Arrays.sort(sorted);
+
+		return sorted[sorted.length / 2];
+	}
+
+	private static long getMin(final long[] times) {
+		long min = Long.MAX_VALUE;
+
+		for (long time : times) {
+			min = Math.min(min, time);
+		}
+
+		return min;
+	}
+
+}
@@ -0,0 +1,334 @@
+package im.delight.android.ddp.db.memory;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.Document;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests that values survive a round trip through a snapshot with their exact type and value */
+public class SnapshotTest {
+
+	private static final int MAGIC = 0x44445053;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void testIntegerBoundaries() throws IOException {
+		// values around the limits of each number of bytes in the zig-zag encoding
+		final int[] values = { 0, 1, -1, 63, -64, 64, -65, 8191, -8192, 8192, -8193, 1048575, -1048576, 134217727, -134217728, Integer.MAX_VALUE - 1, Integer.MIN_VALUE + 1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+		final Fields fields = new Fields();
+
+		for (int i = 0; i < values.length; i++) {
+			fields.put("v"+i, values[i]);
+		}
+
+		final Document document = roundTrip(fields);
+
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(Integer.valueOf(values[i]), document.getField("v"+i));
+		}
+	}
+
+	@Test
+	public void testLongBoundaries() throws IOException {
+		final long[] values = { 0L, 1L, -1L, Integer.MAX_VALUE + 1L, Integer.MIN_VALUE - 1L, 1L << 49, -(1L << 49), 1L << 62, -(1L << 62), Long.MAX_VALUE - 1, Long.MIN_VALUE + 1, Long.MAX_VALUE, Long.MIN_VALUE };
+		final Fields fields = new Fields();
+
+		for (int i = 0; i < values.length; i++) {
+			fields.put("v"+i, values[i]);
+		}
+
+		final Document document = roundTrip(fields);
+
+		for (int i = 0; i < values.length; i++) {
+			// small longs must not turn into integers
+			assertEquals(Long.valueOf(values[i]), document.getField("v"+i));
+		}
+	}
+
+	@Test
+	public void testSpecialDoubles() throws IOException {
+		final double[] values = { 0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE, 0.1, 1.0 };
+		final Fields fields = new Fields();
+
+		for (int i = 0; i < values.length; i++) {
+			fields.put("v"+i, values[i]);
+		}
+
+		final Document document = roundTrip(fields);
+
+		for (int i = 0; i < values.length; i++) {
+			final Object value = document.getField("v"+i);
+
+			assertTrue(value instanceof Double);
+			// compare the bits so that `-0.0` and `0.0` are told apart and `NaN` equals itself
+			assertEquals(Double.doubleToLongBits(values[i]), Double.doubleToLongBits((Double) value));
+		}
+	}
+
+	@Test
+	public void testNestedValues() throws IOException {
+		final Map<String, Object> inner = new LinkedHashMap<String, Object>();
+		inner.put("min", Long.MIN_VALUE);
+		inner.put("nan", Double.NaN);
+		inner.put("none", null);
+
+		final List<Object> list = new ArrayList<Object>();
+		list.add("text");
+		list.add(-1);
+		list.add(inner);
+		list.add(Arrays.<Object>asList(true, false, null));
+		list.add(new ArrayList<Object>());
+
+		final Map<String, Object> outer = new LinkedHashMap<String, Object>();
+		outer.put("list", list);
+		outer.put("empty", new LinkedHashMap<String, Object>());
+
+		final Fields fields = new Fields();
+		fields.put("outer", outer);
+		fields.put("string", "caf\u00e9 \u65e5\u672c \ud83d\ude00");
+		fields.put("empty", "");
+		fields.put("big", new BigInteger("123456789012345678901234567890"));
+		fields.put("decimal", new BigDecimal("-0.000000000000000000001"));
+		fields.put("yes", true);
+		fields.put("none", null);
+
+		final Document document = roundTrip(fields);
+
+		assertEquals(outer, document.getField("outer"));
+		assertEquals("caf\u00e9 \u65e5\u672c \ud83d\ude00", document.getField("string"));
+		assertEquals("", document.getField("empty"));
+		assertEquals(new BigInteger("123456789012345678901234567890"), document.getField("big"));
+		assertEquals(new BigDecimal("-0.000000000000000000001"), document.getField("decimal"));
+		assertEquals(Boolean.TRUE, document.getField("yes"));
+		assertNull(document.getField("none"));
+	}
+
+	@Test
+	public void testIntegerSizes() throws IOException {
+		// the zig-zag encoding stores values from -64 to 63 in one byte and adds a byte for every further seven bits
+		final long base = getSnapshotSize(0);
+
+		assertEquals(base, getSnapshotSize(1));
+		assertEquals(base, getSnapshotSize(-1));
+		assertEquals(base, getSnapshotSize(-64));
+		assertEquals(base + 1, getSnapshotSize(64));
+		assertEquals(base + 1, getSnapshotSize(-8192));
+		assertEquals(base + 2, getSnapshotSize(8192));
+		assertEquals(base + 4, getSnapshotSize(Integer.MAX_VALUE));
+		assertEquals(base + 4, getSnapshotSize(Integer.MIN_VALUE));
+	}
+
+	@Test
+	public void testMultipleCollections() throws IOException {
+		final InMemoryDatabase database = new InMemoryDatabase();
+
+		for (int i = 0; i < 100; i++) {
+			final Fields fields = new Fields();
+			fields.put("n", i);
+			fields.put(i % 2 == 0 ? "even" : "odd", (long) -i);
+			database.onDataAdded(i % 3 == 0 ? "a" : "b", "d"+i, fields);
+		}
+
+		final File file = mFolder.newFile();
+		database.saveSnapshot(file);
+
+		final InMemoryDatabase loaded = new InMemoryDatabase();
+		loaded.loadSnapshot(file);
+
+		assertEquals(34, loaded.getCollection("a").count());
+		assertEquals(66, loaded.getCollection("b").count());
+
+		for (int i = 0; i < 100; i++) {
+			final Document document = loaded.getCollection(i % 3 == 0 ? "a" : "b").getDocument("d"+i);
+
+			assertEquals(Integer.valueOf(i), document.getField("n"));
+			assertEquals(Long.valueOf(-i), document.getField(i % 2 == 0 ? "even" : "odd"));
+			assertNull(document.getField(i % 2 == 0 ? "odd" : "even"));
+		}
+	}
+
+	@Test
+	public void testReadsVersion1() throws IOException {
+		// version 1 wrote integers and longs with a fixed width
+		final File file = mFolder.newFile();
+		final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(1);
+			// names
+			out.writeByte(3);
+			writeString(out, "i");
+			writeString(out, "l");
+			writeString(out, "d");
+			// collections
+			out.writeByte(1);
+			writeString(out, "c");
+			out.writeByte(1);
+			writeString(out, "id");
+			out.writeByte(3);
+			out.writeByte(0);
+			out.writeByte(3);
+			out.writeInt(Integer.MIN_VALUE);
+			out.writeByte(1);
+			out.writeByte(4);
+			out.writeLong(Long.MIN_VALUE);
+			out.writeByte(2);
+			out.writeByte(5);
+			out.writeDouble(-0.0);
+		}
+		finally {
+			out.close();
+		}
+
+		final InMemoryDatabase database = new InMemoryDatabase();
+		database.loadSnapshot(file);
+
+		final Document document = database.getCollection("c").getDocument("id");
+		assertEquals(Integer.valueOf(Integer.MIN_VALUE), document.getField("i"));
+		assertEquals(Long.valueOf(Long.MIN_VALUE), document.getField("l"));
+		assertEquals(Double.valueOf(-0.0), document.getField("d"));
+	}
+
+	@Test
+	public void testRejectsInvalidFiles() throws IOException {
+		final File file = mFolder.newFile();
+		final InMemoryDatabase database = new InMemoryDatabase();
+		final Fields fields = new Fields();
+		fields.put("n", Long.MIN_VALUE);
+		database.onDataAdded("c", "id", fields);
+		database.saveSnapshot(file);
+
+		final byte[] bytes = readFile(file);
+
+		// every prefix of the file must be rejected instead of producing wrong documents
+		for (int length = 0; length < bytes.length; length++) {
+			writeFile(file, Arrays.copyOf(bytes, length));
+
+			try {
+				new InMemoryDatabase().loadSnapshot(file);
+				fail("Snapshot truncated to "+length+" bytes has been read");
+			}
+			catch (IOException expected) { }
+		}
+
+		// unknown version
+		final byte[] future = bytes.clone();
+		future[7] = 99;
+		writeFile(file, future);
+
+		try {
+			new InMemoryDatabase().loadSnapshot(file);
+			fail("Snapshot with unknown version has been read");
+		}
+		catch (IOException expected) { }
+	}
+
+	/**
+	 * Saves a document with the specified fields to a snapshot and returns the document loaded from that snapshot
+	 *
+	 * @param fields the fields of the document
+	 * @return the loaded document
+	 * @throws IOException if the snapshot could not be written or read
+	 */
+	private Document roundTrip(final Fields fields) throws IOException {
+		final InMemoryDatabase database = new InMemoryDatabase();
+		database.onDataAdded("c", "id", fields);
+
+		final File file = mFolder.newFile();
+		database.saveSnapshot(file);
+
+		final InMemoryDatabase loaded = new InMemoryDatabase();
+		loaded.loadSnapshot(file);
+
+		final Document document = loaded.getCollection("c").getDocument("id");
+		assertEquals(Collections.singletonList("id"), Arrays.asList(loaded.getCollection("c").getDocumentIds()));
+
+		return document;
+	}
+
+	private long getSnapshotSize(final int value) throws IOException {
+		final Fields fields = new Fields();
+		fields.put("n", value);
+
+		final InMemoryDatabase database = new InMemoryDatabase();
+		database.onDataAdded("c", "id", fields);
+
+		final File file = mFolder.newFile();
+		database.saveSnapshot(file);
+
+		return file.length();
+	}
+
+	private static void writeString(final DataOutputStream out, final String value) throws IOException {
+		final byte[] bytes = value.getBytes(UTF_8);
+
+		out.writeByte(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readFile(final File file) throws IOException {
+		final byte[] bytes = new byte[(int) file.length()];
+		final DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+		try {
+			in.readFully(bytes);
+		}
+		finally {
+			in.close();
+		}
+
+		return bytes;
+	}
+
+	private static void writeFile(final File file, final byte[] bytes) throws IOException {
+		final FileOutputStream out = new FileOutputStream(file);
+
+		try {
+			out.write(bytes);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+}